@@ -36,6 +36,17 @@ public interface EntitySet<T extends Entity<T>> extends Collection<T>, Navigable
 
     public void setCount(long count);
 
+    /**
+     * Flag indicating the count is a lower bound, and the set may contain
+     * more entities.
+     *
+     * @return true if the set may contain more entities than the count.
+     */
+    @JsonIgnore
+    public boolean isCountLowerBound();
+
+    public void setCountLowerBound(boolean countLowerBound);
+
     public String getNextLink();
 
     public void setNextLink(String nextLink);
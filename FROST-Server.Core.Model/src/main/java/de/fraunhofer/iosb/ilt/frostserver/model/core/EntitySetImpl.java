@@ -36,6 +36,7 @@ public class EntitySetImpl<T extends Entity<T>> implements EntitySet<T> {
 
     protected final List<T> data;
     protected long count = -1;
+    protected boolean countLowerBound;
     protected String nextLink;
     @JsonIgnore
     private EntityType type;
@@ -161,6 +162,16 @@ public class EntitySetImpl<T extends Entity<T>> implements EntitySet<T> {
         this.count = count;
     }
 
+    @Override
+    public boolean isCountLowerBound() {
+        return countLowerBound;
+    }
+
+    @Override
+    public void setCountLowerBound(boolean countLowerBound) {
+        this.countLowerBound = countLowerBound;
+    }
+
     @Override
     public String getNextLink() {
         return nextLink;
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.model.core;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An EntitySet that does not hold its entities in memory, but creates them
+ * while it is being iterated. It can only be iterated once, unless it is
+ * turned into a List first, and is usually only valid until the transaction
+ * it was loaded in ends.
+ *
+ * The nextLink is only known after the set is iterated completely.
+ *
+ * @author scf
+ * @param <T> Type of collection elements.
+ */
+public class EntitySetLazy<T extends Entity<T>> extends AbstractCollection<T> implements EntitySet<T> {
+
+    private final Iterator<T> source;
+    private boolean iterated = false;
+    private List<T> materialized;
+    private int handedOut = 0;
+    private long count = -1;
+    private boolean countLowerBound;
+    private String nextLink;
+    @JsonIgnore
+    private final EntityType type;
+
+    public EntitySetLazy(EntityType type, Iterator<T> source) {
+        this.type = type;
+        this.source = source;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        if (materialized != null) {
+            return materialized.iterator();
+        }
+        if (iterated) {
+            throw new IllegalStateException("A lazy EntitySet can only be iterated once.");
+        }
+        iterated = true;
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public T next() {
+                T next = source.next();
+                handedOut++;
+                return next;
+            }
+        };
+    }
+
+    /**
+     * The number of entities that have been created so far. The total size of
+     * the set is only known after the set has been iterated.
+     *
+     * @return The number of entities that have been created so far.
+     */
+    @Override
+    public int size() {
+        if (materialized != null) {
+            return materialized.size();
+        }
+        return handedOut;
+    }
+
+    /**
+     * Checks if the set has entities, without creating the next entity.
+     *
+     * @return true if the set has no entities.
+     */
+    @Override
+    public boolean isEmpty() {
+        if (materialized != null) {
+            return materialized.isEmpty();
+        }
+        return handedOut == 0 && !source.hasNext();
+    }
+
+    /**
+     * Creates all entities that have not been iterated yet, and holds them in
+     * memory. After this, the set can be iterated multiple times.
+     *
+     * @return The entities of the set.
+     */
+    @Override
+    public List<T> asList() {
+        if (materialized == null) {
+            if (iterated) {
+                throw new IllegalStateException("A lazy EntitySet can not be turned into a List after it is iterated.");
+            }
+            iterated = true;
+            materialized = new ArrayList<>();
+            while (source.hasNext()) {
+                materialized.add(source.next());
+            }
+            handedOut = materialized.size();
+        }
+        return materialized;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    @Override
+    public boolean isCountLowerBound() {
+        return countLowerBound;
+    }
+
+    @Override
+    public void setCountLowerBound(boolean countLowerBound) {
+        this.countLowerBound = countLowerBound;
+    }
+
+    @Override
+    public String getNextLink() {
+        return nextLink;
+    }
+
+    @Override
+    public void setNextLink(String nextLink) {
+        this.nextLink = nextLink;
+    }
+
+    @Override
+    public EntityType getEntityType() {
+        return type;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.model.ext;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a request with $aggregate. Per Datastream, the aggregated
+ * values are in a dataArray, with the columns described by the components.
+ *
+ * @author scf
+ */
+@JsonPropertyOrder({"@iot.nextLink", "value"})
+public class AggregateResult {
+
+    private String nextLink;
+    private final List<Value> value = new ArrayList<>();
+
+    @JsonProperty("@iot.nextLink")
+    public String getNextLink() {
+        return nextLink;
+    }
+
+    public void setNextLink(String nextLink) {
+        this.nextLink = nextLink;
+    }
+
+    @JsonProperty("value")
+    public List<Value> getValue() {
+        return value;
+    }
+
+    /**
+     * The aggregated values of one Datastream.
+     */
+    @JsonPropertyOrder({"Datastream@iot.navigationLink", "components", "dataArray@iot.count", "dataArray"})
+    public static class Value {
+
+        private final String datastreamLink;
+        private final List<String> components;
+        private final List<List<Object>> dataArray = new ArrayList<>();
+
+        public Value(String datastreamLink, List<String> components) {
+            this.datastreamLink = datastreamLink;
+            this.components = components;
+        }
+
+        @JsonProperty("Datastream@iot.navigationLink")
+        public String getDatastreamLink() {
+            return datastreamLink;
+        }
+
+        @JsonProperty("components")
+        public List<String> getComponents() {
+            return components;
+        }
+
+        @JsonProperty("dataArray@iot.count")
+        public int getCount() {
+            return dataArray.size();
+        }
+
+        @JsonProperty("dataArray")
+        public List<List<Object>> getDataArray() {
+            return dataArray;
+        }
+
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.model.ext;
+
+import java.time.Instant;
+
+/**
+ * A forward-only cursor over a set of Observations, giving access to the
+ * column values of each Observation without creating Observation entities.
+ * Used by result formats that write Observations in a columnar layout.
+ *
+ * @author scf
+ */
+public interface ObservationRows extends AutoCloseable {
+
+    /**
+     * The kinds of result an Observation can have.
+     */
+    public enum ResultKind {
+        NUMBER,
+        BOOLEAN,
+        STRING,
+        JSON
+    }
+
+    /**
+     * The type of the ids of the Observations and their (Multi)Datastreams.
+     *
+     * @return The java type of the ids, usually Long or String.
+     */
+    public Class<?> getIdType();
+
+    /**
+     * Moves to the next row. When there are no more rows, or $top rows have
+     * been read, the cursor is closed.
+     *
+     * @return false if there are no more rows.
+     */
+    public boolean next();
+
+    public Object getId();
+
+    public Instant getPhenomenonTimeStart();
+
+    public Instant getPhenomenonTimeEnd();
+
+    public Instant getResultTime();
+
+    /**
+     * The kind of result of the current row, determining which of the result
+     * getters returns the result.
+     *
+     * @return The kind of result, or null if the row has no result.
+     */
+    public ResultKind getResultKind();
+
+    public Double getResultNumber();
+
+    public Boolean getResultBoolean();
+
+    /**
+     * The result of the current row, if the result is a STRING, or the JSON
+     * text of the result, if the result is JSON.
+     *
+     * @return The String or JSON result.
+     */
+    public String getResultString();
+
+    public Object getDatastreamId();
+
+    public Object getMultiDatastreamId();
+
+    /**
+     * The total number of Observations in the set, if requested.
+     *
+     * @return The count, or -1 if no count was requested.
+     */
+    public long getCount();
+
+    @Override
+    public void close();
+
+}
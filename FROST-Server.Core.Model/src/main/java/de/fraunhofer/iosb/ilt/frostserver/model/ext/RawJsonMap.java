@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.model.ext;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import de.fraunhofer.iosb.ilt.frostserver.util.SimpleJsonMapper;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A JSON object that is kept in its textual form until its content is
+ * accessed. As long as the content is not accessed, the JSON text is written
+ * out as-is when serialising, without parsing and re-generating it.
+ *
+ * @author scf
+ */
+@JsonSerialize(using = RawJsonMap.RawJsonMapSerializer.class)
+public class RawJsonMap extends AbstractMap<String, Object> {
+
+    private static final TypeReference<LinkedHashMap<String, Object>> TYPE_MAP = new TypeReference<LinkedHashMap<String, Object>>() {
+        // Empty on purpose.
+    };
+
+    private final String rawJson;
+    private volatile Map<String, Object> parsed;
+
+    /**
+     * Creates a new RawJsonMap from the given JSON text.
+     *
+     * @param rawJson The JSON text, must be a JSON object.
+     */
+    public RawJsonMap(String rawJson) {
+        this.rawJson = rawJson;
+    }
+
+    /**
+     * Checks if the given JSON text is a JSON object, that can be wrapped in
+     * a RawJsonMap.
+     *
+     * @param json The JSON text to check.
+     * @return true if the text starts with the start of a JSON object.
+     */
+    public static boolean isJsonObject(String json) {
+        if (json == null) {
+            return false;
+        }
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the content has been accessed, and the JSON text is no
+     * longer used.
+     */
+    public boolean isParsed() {
+        return parsed != null;
+    }
+
+    /**
+     * @return The JSON text this map was created from. Once the content has
+     * been accessed, the content may differ from this text.
+     */
+    public String getRawJson() {
+        return rawJson;
+    }
+
+    private synchronized Map<String, Object> getParsed() {
+        if (parsed == null) {
+            try {
+                parsed = SimpleJsonMapper.getSimpleObjectMapper().readValue(rawJson, TYPE_MAP);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to parse stored json.", ex);
+            }
+        }
+        return parsed;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return getParsed().entrySet();
+    }
+
+    @Override
+    public int size() {
+        return getParsed().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        Map<String, Object> content = parsed;
+        if (content == null) {
+            return isEmptyObject(rawJson);
+        }
+        return content.isEmpty();
+    }
+
+    /**
+     * Checks if the given JSON object text has no members, ignoring
+     * whitespace, without parsing it.
+     *
+     * @param json The JSON text, must be a JSON object.
+     * @return true if the first non-whitespace character after the opening
+     * brace is the closing brace.
+     */
+    private static boolean isEmptyObject(String json) {
+        boolean opened = false;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            if (opened) {
+                return c == '}';
+            }
+            if (c != '{') {
+                return false;
+            }
+            opened = true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getParsed().containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return getParsed().get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return getParsed().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return getParsed().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        getParsed().clear();
+    }
+
+    /**
+     * Writes the JSON text as-is, or the parsed content if the content has
+     * been accessed or the generator does not write JSON text.
+     */
+    public static class RawJsonMapSerializer extends JsonSerializer<RawJsonMap> {
+
+        @Override
+        public void serialize(RawJsonMap value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            Map<String, Object> content = value.parsed;
+            if (content == null && gen instanceof JsonGeneratorImpl) {
+                gen.writeRawValue(value.rawJson);
+            } else if (content == null) {
+                // Binary formats can not contain raw JSON text.
+                serializers.defaultSerializeValue(value.getParsed(), gen);
+            } else {
+                serializers.defaultSerializeValue(content, gen);
+            }
+        }
+
+        @Override
+        public boolean isEmpty(SerializerProvider provider, RawJsonMap value) {
+            return value == null || value.isEmpty();
+        }
+    }
+}
@@ -27,5 +27,13 @@ public interface PathElement {
 
     public void setParent(PathElement parent);
 
+    /**
+     * Creates a copy of this element, with the given parent.
+     *
+     * @param newParent The parent of the copy.
+     * @return A copy of this element.
+     */
+    public PathElement copy(PathElement newParent);
+
     public void visit(ResourcePathVisitor visitor);
 }
@@ -54,6 +54,11 @@ public class PathElementArrayIndex implements PathElement {
         this.parent = parent;
     }
 
+    @Override
+    public PathElementArrayIndex copy(PathElement newParent) {
+        return new PathElementArrayIndex(index, newParent);
+    }
+
     @Override
     public void visit(ResourcePathVisitor visitor) {
         visitor.visit(this);
@@ -54,6 +54,11 @@ public class PathElementCustomProperty implements PathElement {
         this.parent = parent;
     }
 
+    @Override
+    public PathElementCustomProperty copy(PathElement newParent) {
+        return new PathElementCustomProperty(name, newParent);
+    }
+
     @Override
     public void visit(ResourcePathVisitor visitor) {
         visitor.visit(this);
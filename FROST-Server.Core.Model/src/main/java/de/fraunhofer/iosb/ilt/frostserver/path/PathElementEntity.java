@@ -66,6 +66,11 @@ public class PathElementEntity implements PathElement {
         this.parent = parent;
     }
 
+    @Override
+    public PathElementEntity copy(PathElement newParent) {
+        return new PathElementEntity(id, entityType, newParent);
+    }
+
     @Override
     public void visit(ResourcePathVisitor visitor) {
         visitor.visit(this);
@@ -55,6 +55,11 @@ public class PathElementEntitySet implements PathElement {
         this.parent = parent;
     }
 
+    @Override
+    public PathElementEntitySet copy(PathElement newParent) {
+        return new PathElementEntitySet(entityType, newParent);
+    }
+
     @Override
     public void visit(ResourcePathVisitor visitor) {
         visitor.visit(this);
@@ -55,6 +55,11 @@ public class PathElementProperty implements PathElement {
         this.parent = parent;
     }
 
+    @Override
+    public PathElementProperty copy(PathElement newParent) {
+        return new PathElementProperty(property, newParent);
+    }
+
     @Override
     public void visit(ResourcePathVisitor visitor) {
         visitor.visit(this);
@@ -19,7 +19,9 @@ package de.fraunhofer.iosb.ilt.frostserver.path;
 
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -259,6 +261,31 @@ public class ResourcePath {
         return this;
     }
 
+    /**
+     * Creates a copy of this path, with copies of all path elements, that can
+     * be changed without affecting this path.
+     *
+     * @return A copy of this path.
+     */
+    public ResourcePath copy() {
+        ResourcePath copy = new ResourcePath(serviceRootUrl, version, path);
+        copy.ref = ref;
+        copy.value = value;
+        copy.entityProperty = entityProperty;
+        Map<PathElement, PathElement> copies = new IdentityHashMap<>();
+        for (PathElement element : pathElements) {
+            PathElement parent = element.getParent();
+            PathElement elementCopy = element.copy(copies.getOrDefault(parent, parent));
+            copies.put(element, elementCopy);
+            copy.pathElements.add(elementCopy);
+        }
+        copy.mainElement = copies.getOrDefault(mainElement, mainElement);
+        if (identifiedElement != null) {
+            copy.identifiedElement = (PathElementEntity) copies.getOrDefault(identifiedElement, identifiedElement);
+        }
+        return copy;
+    }
+
     public String getServiceRootUrl() {
         return serviceRootUrl;
     }
@@ -45,6 +45,23 @@ public class UrlHelper {
         return nextLink;
     }
 
+    /**
+     * Generate a nextLink that continues at the position indicated by the
+     * given skipToken, instead of using $skip.
+     *
+     * @param path The path of the current request.
+     * @param query The query of the current request.
+     * @param skipToken The token indicating where the next page starts.
+     * @return The nextLink.
+     */
+    public static String generateNextLink(ResourcePath path, Query query, String skipToken) {
+        String oldSkipToken = query.getSkipToken();
+        query.setSkipToken(skipToken);
+        String nextLink = path.toString() + "?" + query.toString(false);
+        query.setSkipToken(oldSkipToken);
+        return nextLink;
+    }
+
     public static String generateSelfLink(String serviceRootUrl, Version version, EntityType entityType, Object id) {
         return new StringBuilder(serviceRootUrl)
                 .append('/')
@@ -27,7 +27,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import org.apache.commons.lang3.reflect.MethodUtils;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -90,6 +89,10 @@ public enum EntityPropertyMain implements EntityProperty {
     public final boolean serialiseNull;
 
     private final Collection<String> aliases;
+    /**
+     * The getter, setter and isSet methods, cached per entity class.
+     */
+    private final PropertyMethods methods;
 
     private EntityPropertyMain(String codeName) {
         this(codeName, false, false);
@@ -103,6 +106,7 @@ public enum EntityPropertyMain implements EntityProperty {
         this.getterName = "get" + codeName;
         this.setterName = "set" + codeName;
         this.isSetName = "isSet" + codeName;
+        this.methods = new PropertyMethods(getterName, setterName, isSetName);
         this.hasCustomProperties = hasCustomProperties;
         this.serialiseNull = serialiseNull;
     }
@@ -118,6 +122,7 @@ public enum EntityPropertyMain implements EntityProperty {
         this.getterName = "get" + capitalized;
         this.setterName = "set" + capitalized;
         this.isSetName = "isSet" + capitalized;
+        this.methods = new PropertyMethods(getterName, setterName, isSetName);
         this.hasCustomProperties = false;
         this.serialiseNull = false;
     }
@@ -143,7 +148,7 @@ public enum EntityPropertyMain implements EntityProperty {
     @Override
     public Object getFrom(Entity entity) {
         try {
-            return MethodUtils.invokeMethod(entity, getterName);
+            return methods.get(entity);
         } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
             LOGGER.error("Failed to execute getter {} on {}", getterName, entity);
             LOGGER.trace("", ex);
@@ -154,7 +159,7 @@ public enum EntityPropertyMain implements EntityProperty {
     @Override
     public void setOn(Entity entity, Object value) {
         try {
-            MethodUtils.invokeMethod(entity, setterName, value);
+            methods.set(entity, value);
         } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
             LOGGER.error("Failed to execute setter {} on {}", getterName, entity);
             throw new IllegalArgumentException(ex);
@@ -164,7 +169,7 @@ public enum EntityPropertyMain implements EntityProperty {
     @Override
     public boolean isSetOn(Entity entity) {
         try {
-            return (boolean) MethodUtils.invokeMethod(entity, isSetName);
+            return methods.isSet(entity);
         } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
             LOGGER.error("Failed to execute isSet {} on {}", getterName, entity);
             LOGGER.trace("", ex);
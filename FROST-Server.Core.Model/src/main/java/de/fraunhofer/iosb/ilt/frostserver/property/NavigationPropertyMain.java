@@ -28,7 +28,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import org.apache.commons.lang3.reflect.MethodUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,6 +97,11 @@ public enum NavigationPropertyMain implements NavigationProperty {
      */
     private final String isSetName;
 
+    /**
+     * The getter, setter and isSet methods, cached per entity class.
+     */
+    private final PropertyMethods methods;
+
     /**
      * Flag indication the path is to an EntitySet.
      */
@@ -113,6 +117,7 @@ public enum NavigationPropertyMain implements NavigationProperty {
         this.getterName = "get" + capitalized;
         this.setterName = "set" + capitalized;
         this.isSetName = "isSet" + capitalized;
+        this.methods = new PropertyMethods(getterName, setterName, isSetName);
     }
 
     public static NavigationPropertyMain fromString(String propertyName) {
@@ -151,7 +156,7 @@ public enum NavigationPropertyMain implements NavigationProperty {
     @Override
     public Object getFrom(Entity entity) {
         try {
-            return MethodUtils.invokeMethod(entity, getterName);
+            return methods.get(entity);
         } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException ex) {
             LOGGER.error("Failed to execute getter {} on {}", getterName, entity);
             LOGGER.trace("", ex);
@@ -162,7 +167,7 @@ public enum NavigationPropertyMain implements NavigationProperty {
     @Override
     public void setOn(Entity entity, Object value) {
         try {
-            MethodUtils.invokeMethod(entity, setterName, value);
+            methods.set(entity, value);
         } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException ex) {
             LOGGER.error("Failed to execute setter {} on {}", setterName, entity);
             LOGGER.trace("", ex);
@@ -172,7 +177,7 @@ public enum NavigationPropertyMain implements NavigationProperty {
     @Override
     public boolean isSetOn(Entity entity) {
         try {
-            return (boolean) MethodUtils.invokeMethod(entity, isSetName);
+            return methods.isSet(entity);
         } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException ex) {
             LOGGER.error("Failed to execute isSet {} on {}", isSetName, entity);
             LOGGER.trace("", ex);
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.property;
+
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.apache.commons.lang3.reflect.MethodUtils;
+
+/**
+ * The getter, setter and isSet methods of a property. The methods are looked
+ * up once for each entity class, and then called through MethodHandles, so
+ * that no reflective lookup is needed for each call.
+ *
+ * When the system property frost.property.reflective is true, all methods
+ * are called through reflection, as was done before the MethodHandles were
+ * cached. This is only used as the baseline in benchmarks.
+ *
+ * @author scf
+ */
+class PropertyMethods {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Entity.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Entity.class, Object.class);
+    private static final MethodType ISSET_TYPE = MethodType.methodType(boolean.class, Entity.class);
+    private static final boolean REFLECTIVE = Boolean.getBoolean("frost.property.reflective");
+
+    private final String getterName;
+    private final String setterName;
+    private final String isSetName;
+
+    private final ClassValue<Handles> handlesPerClass = new ClassValue<Handles>() {
+        @Override
+        protected Handles computeValue(Class<?> type) {
+            return new Handles(type);
+        }
+    };
+
+    PropertyMethods(String getterName, String setterName, String isSetName) {
+        this.getterName = getterName;
+        this.setterName = setterName;
+        this.isSetName = isSetName;
+    }
+
+    public Object get(Entity entity) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        MethodHandle getter = handlesPerClass.get(entity.getClass()).getter;
+        if (getter == null) {
+            return MethodUtils.invokeMethod(entity, getterName);
+        }
+        try {
+            return (Object) getter.invokeExact(entity);
+        } catch (Throwable ex) {
+            throw new InvocationTargetException(ex);
+        }
+    }
+
+    public void set(Entity entity, Object value) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        MethodHandle setter = handlesPerClass.get(entity.getClass()).setter;
+        if (setter == null) {
+            MethodUtils.invokeMethod(entity, setterName, value);
+            return;
+        }
+        try {
+            setter.invokeExact(entity, value);
+        } catch (Throwable ex) {
+            throw new InvocationTargetException(ex);
+        }
+    }
+
+    public boolean isSet(Entity entity) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        MethodHandle isSet = handlesPerClass.get(entity.getClass()).isSet;
+        if (isSet == null) {
+            return (boolean) MethodUtils.invokeMethod(entity, isSetName);
+        }
+        try {
+            return (boolean) isSet.invokeExact(entity);
+        } catch (Throwable ex) {
+            throw new InvocationTargetException(ex);
+        }
+    }
+
+    /**
+     * The MethodHandles for one entity class. A handle is null if the class has
+     * no unique public method with the required name, in which case the caller
+     * falls back to reflection.
+     */
+    private class Handles {
+
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private final MethodHandle isSet;
+
+        Handles(Class<?> type) {
+            if (REFLECTIVE) {
+                getter = null;
+                setter = null;
+                isSet = null;
+                return;
+            }
+            getter = findHandle(type, getterName, 0, GETTER_TYPE);
+            setter = findHandle(type, setterName, 1, SETTER_TYPE);
+            isSet = findHandle(type, isSetName, 0, ISSET_TYPE);
+        }
+    }
+
+    private static MethodHandle findHandle(Class<?> type, String name, int paramCount, MethodType handleType) {
+        Method found = null;
+        for (Method method : type.getMethods()) {
+            if (method.isBridge() || method.getParameterCount() != paramCount || !method.getName().equals(name)) {
+                continue;
+            }
+            if (found != null) {
+                // Overloaded, the right method depends on the argument.
+                return null;
+            }
+            found = method;
+        }
+        if (found == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.publicLookup()
+                    .unreflect(found)
+                    .asType(handleType);
+        } catch (IllegalAccessException | IllegalArgumentException | ClassCastException ex) {
+            return null;
+        }
+    }
+}
@@ -26,6 +26,9 @@ public final class SpecialNames {
     public static final String IOT_COUNT = "iot.count";
     public static final String AT_IOT_COUNT = '@' + IOT_COUNT;
 
+    public static final String IOT_COUNT_IS_LOWER_BOUND = "iot.countIsLowerBound";
+    public static final String AT_IOT_COUNT_IS_LOWER_BOUND = '@' + IOT_COUNT_IS_LOWER_BOUND;
+
     public static final String IOT_ID = "iot.id";
     public static final String AT_IOT_ID = '@' + IOT_ID;
 
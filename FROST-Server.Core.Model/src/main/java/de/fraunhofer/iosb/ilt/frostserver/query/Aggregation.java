@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.query;
+
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import org.joda.time.Period;
+
+/**
+ * The $aggregate query option: the numeric results of Observations, grouped
+ * per Datastream in buckets of phenomenonTime, reduced with aggregate
+ * functions.
+ *
+ * @author scf
+ */
+public class Aggregation {
+
+    public enum AggregateFunction {
+        MIN,
+        MAX,
+        AVG,
+        COUNT;
+
+        public final String urlName;
+
+        private AggregateFunction() {
+            urlName = name().toLowerCase(Locale.ROOT);
+        }
+
+        public static AggregateFunction fromString(String name) {
+            for (AggregateFunction function : values()) {
+                if (function.urlName.equalsIgnoreCase(name)) {
+                    return function;
+                }
+            }
+            throw new IllegalArgumentException("Unknown aggregate function: " + name);
+        }
+    }
+
+    /**
+     * The intervals that are exactly one calendar unit, and the name of that
+     * unit.
+     */
+    private static final Map<Period, String> CALENDAR_UNITS = new LinkedHashMap<>();
+
+    static {
+        CALENDAR_UNITS.put(Period.years(1), "year");
+        CALENDAR_UNITS.put(Period.months(1), "month");
+        CALENDAR_UNITS.put(Period.weeks(1), "week");
+        CALENDAR_UNITS.put(Period.days(1), "day");
+        CALENDAR_UNITS.put(Period.hours(1), "hour");
+        CALENDAR_UNITS.put(Period.minutes(1), "minute");
+        CALENDAR_UNITS.put(Period.seconds(1), "second");
+    }
+
+    private final Period interval;
+    private final List<AggregateFunction> functions;
+    private final String calendarUnit;
+    private final long seconds;
+
+    /**
+     * @param interval The length of the time buckets. Either exactly one
+     * calendar unit, or a duration without years and months.
+     * @param functions The aggregate functions to calculate for each bucket.
+     */
+    public Aggregation(Period interval, List<AggregateFunction> functions) {
+        if (functions.isEmpty()) {
+            throw new IllegalArgumentException("$aggregate needs at least one aggregate function.");
+        }
+        this.interval = interval;
+        this.functions = Collections.unmodifiableList(new ArrayList<>(functions));
+        this.calendarUnit = CALENDAR_UNITS.get(interval);
+        if (calendarUnit != null) {
+            seconds = 0;
+        } else if (interval.getYears() != 0 || interval.getMonths() != 0) {
+            throw new IllegalArgumentException("$aggregate intervals with years or months must be exactly one year or one month.");
+        } else {
+            seconds = interval.toStandardSeconds().getSeconds();
+            if (seconds <= 0) {
+                throw new IllegalArgumentException("$aggregate interval must be at least one second.");
+            }
+        }
+    }
+
+    public Period getInterval() {
+        return interval;
+    }
+
+    public List<AggregateFunction> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * The calendar unit (year, month, week, day, hour, minute or second) if
+     * the interval is exactly one such unit.
+     *
+     * @return the calendar unit, or null if the interval is not one calendar
+     * unit.
+     */
+    public String getCalendarUnit() {
+        return calendarUnit;
+    }
+
+    /**
+     * The length of the interval in seconds, if the interval is not exactly
+     * one calendar unit.
+     *
+     * @return the length of the interval in seconds.
+     */
+    public long getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * The names of the columns of the aggregated data: the phenomenonTime of
+     * the bucket, followed by the aggregate functions.
+     *
+     * @return The list of component names.
+     */
+    public List<String> getComponents() {
+        List<String> components = new ArrayList<>();
+        components.add(EntityPropertyMain.PHENOMENONTIME.entitiyName);
+        for (AggregateFunction function : functions) {
+            components.add(function.urlName);
+        }
+        return components;
+    }
+
+    public String toUrl() {
+        StringBuilder sb = new StringBuilder("duration'").append(interval).append('\'');
+        for (AggregateFunction function : functions) {
+            sb.append(',').append(function.urlName);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(interval, functions);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final Aggregation other = (Aggregation) obj;
+        return Objects.equals(this.interval, other.interval)
+                && Objects.equals(this.functions, other.functions);
+    }
+
+    @Override
+    public String toString() {
+        return toUrl();
+    }
+
+}
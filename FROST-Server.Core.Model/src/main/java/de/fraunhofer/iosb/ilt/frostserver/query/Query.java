@@ -20,6 +20,7 @@ package de.fraunhofer.iosb.ilt.frostserver.query;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementCustomProperty;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementProperty;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
 import de.fraunhofer.iosb.ilt.frostserver.path.Version;
@@ -60,12 +61,21 @@ public class Query {
 
     private Optional<Integer> top;
     private Optional<Integer> skip;
+    /**
+     * The opaque token, generated by the persistence layer, indicating where
+     * the next page starts. Replaces skip if set.
+     */
+    private String skipToken;
     private Optional<Boolean> count;
     private final Set<Property> select;
     private Expression filter;
     private List<Expand> expand;
     private List<OrderBy> orderBy;
     private String format;
+    /**
+     * The aggregation to return instead of the entities, if set.
+     */
+    private Aggregation aggregation;
 
     public Query(QueryDefaults settings, ResourcePath path) {
         this.path = path;
@@ -101,10 +111,61 @@ public class Query {
         if (invalidProperty.isPresent()) {
             throw new IllegalArgumentException("Invalid property '" + invalidProperty.get().getName() + "' found in select, for entity type " + entityType.entityName);
         }
+        if (skipToken != null && hasParentExpand()) {
+            throw new IllegalArgumentException("$skiptoken is not allowed in $expand.");
+        }
+        if (aggregation != null) {
+            validateAggregation(entityType);
+        }
         expand.forEach(x -> x.validate(entityType));
         return this;
     }
 
+    private void validateAggregation(EntityType entityType) {
+        if (hasParentExpand()) {
+            throw new IllegalArgumentException("$aggregate is not allowed in $expand.");
+        }
+        if (entityType != EntityType.OBSERVATION || path.isRef() || !(path.getLastElement() instanceof PathElementEntitySet)) {
+            throw new IllegalArgumentException("$aggregate is only allowed on collections of Observations.");
+        }
+        if (!select.isEmpty() || !expand.isEmpty() || !orderBy.isEmpty() || format != null) {
+            throw new IllegalArgumentException("$aggregate can not be combined with $select, $expand, $orderby or $resultFormat.");
+        }
+        if (skipToken != null || count.orElse(false)) {
+            throw new IllegalArgumentException("$aggregate can not be combined with $count or $skiptoken.");
+        }
+    }
+
+    /**
+     * Creates a copy of this query, using the given path. The expands and
+     * sub-queries are copied, the filter and orderby expressions are shared,
+     * since they are not changed after parsing.
+     *
+     * @param newPath The path to use for the copy.
+     * @return A copy of this query.
+     */
+    public Query copy(ResourcePath newPath) {
+        Query copy = new Query(settings, newPath);
+        copy.entityType = entityType;
+        copy.top = top;
+        copy.skip = skip;
+        copy.skipToken = skipToken;
+        copy.count = count;
+        copy.select.addAll(select);
+        copy.filter = filter;
+        copy.orderBy.addAll(orderBy);
+        copy.format = format;
+        copy.aggregation = aggregation;
+        for (Expand oldExpand : expand) {
+            Expand newExpand = new Expand(oldExpand.getPath());
+            if (oldExpand.hasSubQuery()) {
+                newExpand.setSubQuery(oldExpand.getSubQuery().copy(newPath));
+            }
+            copy.addExpand(newExpand);
+        }
+        return copy;
+    }
+
     public Version getVersion() {
         return path.getVersion();
     }
@@ -160,6 +221,10 @@ public class Query {
         return dflt;
     }
 
+    public String getSkipToken() {
+        return skipToken;
+    }
+
     public Optional<Boolean> getCount() {
         return count;
     }
@@ -270,6 +335,10 @@ public class Query {
         this.skip = Optional.of(skip);
     }
 
+    public void setSkipToken(String skipToken) {
+        this.skipToken = skipToken;
+    }
+
     public void setCount(boolean count) {
         this.count = Optional.of(count);
     }
@@ -328,9 +397,17 @@ public class Query {
         this.orderBy = orderBy;
     }
 
+    public Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    public void setAggregation(Aggregation aggregation) {
+        this.aggregation = aggregation;
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(top, skip, count, select, filter, format, expand, orderBy, path);
+        return Objects.hash(top, skip, skipToken, count, select, filter, format, aggregation, expand, orderBy, path);
     }
 
     @Override
@@ -348,9 +425,11 @@ public class Query {
         return Objects.equals(this.count, other.count)
                 && Objects.equals(this.top, other.top)
                 && Objects.equals(this.skip, other.skip)
+                && Objects.equals(this.skipToken, other.skipToken)
                 && Objects.equals(this.select, other.select)
                 && Objects.equals(this.filter, other.filter)
                 && Objects.equals(this.format, other.format)
+                && Objects.equals(this.aggregation, other.aggregation)
                 && Objects.equals(this.expand, other.expand)
                 && Objects.equals(this.orderBy, other.orderBy)
                 && Objects.equals(this.path, other.path);
@@ -376,6 +455,8 @@ public class Query {
 
         addFormatToUrl(sb, separator);
 
+        addAggregationToUrl(sb, separator);
+
         addExpandToUrl(sb, separator, inExpand);
 
         addOrderbyToUrl(sb, separator, inExpand);
@@ -400,8 +481,16 @@ public class Query {
         }
     }
 
+    private void addAggregationToUrl(StringBuilder sb, char separator) {
+        if (aggregation != null) {
+            sb.append(separator).append("$aggregate=").append(StringHelper.urlEncode(aggregation.toUrl()));
+        }
+    }
+
     private void addSkipToUrl(StringBuilder sb, char separator) {
-        if (skip.isPresent()) {
+        if (skipToken != null) {
+            sb.append(separator).append("$skiptoken=").append(StringHelper.urlEncode(skipToken));
+        } else if (skip.isPresent()) {
             sb.append(separator).append("$skip=").append(skip.get());
         }
     }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.model;
+
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetLazy;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the behaviour of EntitySetLazy that does not depend on iterating it
+ * exactly once.
+ *
+ * @author scf
+ */
+public class EntitySetLazyTest {
+
+    private static List<Thing> createThings(int count) {
+        List<Thing> things = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            things.add(new Thing(new IdLong(i)));
+        }
+        return things;
+    }
+
+    @Test
+    public void testIsEmpty() {
+        Assert.assertTrue(new EntitySetLazy<>(EntityType.THING, Collections.<Thing>emptyIterator()).isEmpty());
+
+        EntitySetLazy<Thing> set = new EntitySetLazy<>(EntityType.THING, createThings(2).iterator());
+        Assert.assertFalse(set.isEmpty());
+        Assert.assertEquals("isEmpty must not create entities.", 0, set.size());
+        Iterator<Thing> it = set.iterator();
+        it.next();
+        it.next();
+        Assert.assertFalse(set.isEmpty());
+    }
+
+    @Test
+    public void testAsList() {
+        List<Thing> things = createThings(3);
+        EntitySetLazy<Thing> set = new EntitySetLazy<>(EntityType.THING, things.iterator());
+        Assert.assertEquals(things, set.asList());
+        Assert.assertEquals(3, set.size());
+        List<Thing> iterated = new ArrayList<>();
+        set.forEach(iterated::add);
+        set.forEach(iterated::add);
+        Assert.assertEquals(6, iterated.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAsListAfterIterating() {
+        EntitySetLazy<Thing> set = new EntitySetLazy<>(EntityType.THING, createThings(2).iterator());
+        set.iterator().next();
+        set.asList();
+    }
+
+    @Test
+    public void testAsListEmpty() {
+        EntitySetLazy<Thing> set = new EntitySetLazy<>(EntityType.THING, Arrays.<Thing>asList().iterator());
+        Assert.assertTrue(set.asList().isEmpty());
+        Assert.assertTrue(set.isEmpty());
+    }
+
+}
@@ -17,9 +17,13 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.formatter;
 
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.ObservationRows;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 /**
  *
@@ -40,7 +44,8 @@ public interface ResultFormatter {
     }
 
     /**
-     * Format the result object.
+     * Format the result object. Never called for binary formatters, callers
+     * check {@link #isBinary()} first.
      *
      * @param path The path that was requested.
      * @param query The query parameters of the request.
@@ -51,6 +56,59 @@ public interface ResultFormatter {
      */
     public String format(ResourcePath path, Query query, Object result, boolean useAbsoluteNavigationLinks);
 
+    /**
+     * Flag indicating this formatter can write (lazy) EntitySets directly to
+     * an OutputStream, without first building the entire formatted result in
+     * memory.
+     *
+     * @return true if this formatter supports streaming.
+     */
+    public default boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Flag indicating this formatter generates binary data, that can only be
+     * written using {@link #format(ResourcePath, Query, Object, boolean, OutputStream)}.
+     * Binary formatters do not support formatting to a String, and can not be
+     * registered as the default formatter.
+     *
+     * @return true if this formatter generates binary data.
+     */
+    public default boolean isBinary() {
+        return false;
+    }
+
+    /**
+     * Flag indicating this formatter can write a set of Observations from an
+     * {@link ObservationRows} cursor, instead of from Observation entities.
+     * Only used when streaming is allowed.
+     *
+     * @return true if this formatter can write ObservationRows.
+     */
+    public default boolean isRowBased() {
+        return false;
+    }
+
+    /**
+     * Format the result object, writing the formatted result to the given
+     * OutputStream. The default implementation formats the result to a String
+     * and writes that String to the stream. Formatters that return true from
+     * {@link #isStreaming()} must override this method.
+     *
+     * @param path The path that was requested.
+     * @param query The query parameters of the request.
+     * @param result The result to format.
+     * @param useAbsoluteNavigationLinks Flag indicating absolute navigation
+     * links should be used.
+     * @param out The stream to write the formatted result to. The stream is
+     * not closed.
+     * @throws IOException If writing to the stream fails.
+     */
+    public default void format(ResourcePath path, Query query, Object result, boolean useAbsoluteNavigationLinks, OutputStream out) throws IOException {
+        out.write(format(path, query, result, useAbsoluteNavigationLinks).getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Get the content type of the result, when formatted by this
      * ResultFormatter.
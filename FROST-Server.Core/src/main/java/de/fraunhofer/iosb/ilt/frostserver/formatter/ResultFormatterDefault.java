@@ -24,6 +24,7 @@ import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 import org.geojson.GeoJsonObject;
 import org.slf4j.Logger;
@@ -76,6 +77,21 @@ public class ResultFormatterDefault implements ResultFormatter {
         return entityJsonString;
     }
 
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void format(ResourcePath path, Query query, Object result, boolean useAbsoluteNavigationLinks, OutputStream out) throws IOException {
+        if (EntitySet.class.isAssignableFrom(result.getClass())) {
+            LOGGER.debug("Streaming as EntitySet.");
+            JsonWriter.writeEntityCollection(out, (EntitySet) result);
+        } else {
+            ResultFormatter.super.format(path, query, result, useAbsoluteNavigationLinks, out);
+        }
+    }
+
     @Override
     public String getContentType() {
         return "application/json";
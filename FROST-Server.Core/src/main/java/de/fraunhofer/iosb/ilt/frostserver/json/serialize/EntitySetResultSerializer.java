@@ -22,6 +22,7 @@ import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import de.fraunhofer.iosb.ilt.frostserver.model.ext.EntitySetResult;
 import static de.fraunhofer.iosb.ilt.frostserver.property.SpecialNames.AT_IOT_COUNT;
+import static de.fraunhofer.iosb.ilt.frostserver.property.SpecialNames.AT_IOT_COUNT_IS_LOWER_BOUND;
 import static de.fraunhofer.iosb.ilt.frostserver.property.SpecialNames.AT_IOT_NEXT_LINK;
 import java.io.IOException;
 
@@ -37,14 +38,27 @@ public class EntitySetResultSerializer extends JsonSerializer<EntitySetResult> {
         long count = value.getValues().getCount();
         if (count >= 0) {
             gen.writeNumberField(AT_IOT_COUNT, count);
+            if (value.getValues().isCountLowerBound()) {
+                gen.writeBooleanField(AT_IOT_COUNT_IS_LOWER_BOUND, true);
+            }
         }
         String nextLink = value.getValues().getNextLink();
         if (nextLink != null) {
             gen.writeStringField(AT_IOT_NEXT_LINK, nextLink);
         }
 
-        gen.writeFieldName("value");
-        gen.writeObject(value.getValues());
+        gen.writeArrayFieldStart("value");
+        for (Object entity : value.getValues()) {
+            gen.writeObject(entity);
+        }
+        gen.writeEndArray();
+        if (nextLink == null) {
+            // Lazy sets only know their nextLink after they are iterated.
+            nextLink = value.getValues().getNextLink();
+            if (nextLink != null) {
+                gen.writeStringField(AT_IOT_NEXT_LINK, nextLink);
+            }
+        }
         gen.writeEndObject();
     }
 
@@ -18,6 +18,8 @@
 package de.fraunhofer.iosb.ilt.frostserver.json.serialize;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
@@ -27,6 +29,7 @@ import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
 import de.fraunhofer.iosb.ilt.frostserver.model.ext.EntitySetResult;
 import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeValue;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Enables serialization of entities as JSON.
@@ -52,7 +55,19 @@ public class JsonWriter {
     }
 
     private static ObjectMapper createObjectMapper() {
-        ObjectMapper mapper = new ObjectMapper();
+        return createObjectMapper(new JsonFactory());
+    }
+
+    /**
+     * Creates an ObjectMapper that serialises entities in the same way as the
+     * default ObjectMapper, using the given factory. This allows entities to
+     * be written in other formats supported by Jackson, like CBOR or Smile.
+     *
+     * @param factory The factory to create the ObjectMapper with.
+     * @return A new ObjectMapper.
+     */
+    public static ObjectMapper createObjectMapper(JsonFactory factory) {
+        ObjectMapper mapper = new ObjectMapper(factory);
         mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
         mapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
 
@@ -77,6 +92,22 @@ public class JsonWriter {
         return getObjectMapper().writeValueAsString(new EntitySetResult(entityCollection));
     }
 
+    /**
+     * Writes the given EntitySet directly to the given OutputStream, without
+     * first building the entire result in memory. The OutputStream is not
+     * closed.
+     *
+     * @param out The stream to write to.
+     * @param entityCollection The EntitySet to write.
+     * @throws IOException If writing to the stream fails.
+     */
+    public static void writeEntityCollection(OutputStream out, EntitySet entityCollection) throws IOException {
+        getObjectMapper()
+                .writer()
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .writeValue(out, new EntitySetResult(entityCollection));
+    }
+
     public static String writeObject(Object object) throws IOException {
         return getObjectMapper().writeValueAsString(object);
     }
@@ -18,6 +18,7 @@
 package de.fraunhofer.iosb.ilt.frostserver.messagebus;
 
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
 import de.fraunhofer.iosb.ilt.frostserver.settings.BusSettings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
@@ -101,6 +102,16 @@ public class InternalMessageBus implements MessageBus, ConfigDefaults {
         listeners.remove(listener);
     }
 
+    @Override
+    public boolean hasListenersFor(EntityType type) {
+        for (MessageListener listener : listeners) {
+            if (listener.isInterestedIn(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void handleMessage(EntityChangedMessage message) {
         for (MessageListener listener : listeners) {
             try {
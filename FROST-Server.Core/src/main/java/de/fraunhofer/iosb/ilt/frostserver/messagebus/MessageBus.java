@@ -18,6 +18,7 @@
 package de.fraunhofer.iosb.ilt.frostserver.messagebus;
 
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 
 /**
@@ -44,4 +45,17 @@ public interface MessageBus {
     public void addMessageListener(MessageListener listener);
 
     public void removeMessageListener(MessageListener listener);
+
+    /**
+     * Checks if any listener is interested in changes to entities of the given
+     * type. Buses that deliver messages to other processes can not know this,
+     * and should return true.
+     *
+     * @param type The type of entity to check.
+     * @return true if messages about entities of the given type should be
+     * sent.
+     */
+    public default boolean hasListenersFor(EntityType type) {
+        return true;
+    }
 }
@@ -18,6 +18,7 @@
 package de.fraunhofer.iosb.ilt.frostserver.messagebus;
 
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
 
 /**
  *
@@ -32,4 +33,17 @@ public interface MessageListener {
      * @param message The message that was received.
      */
     public void messageReceived(EntityChangedMessage message);
+
+    /**
+     * Checks if the listener is interested in changes to entities of the given
+     * type. If no listener is interested in a type, messages about that type
+     * are not sent at all.
+     *
+     * @param type The type of entity to check.
+     * @return true if the listener wants to receive messages about entities of
+     * the given type.
+     */
+    public default boolean isInterestedIn(EntityType type) {
+        return true;
+    }
 }
@@ -26,6 +26,7 @@ import de.fraunhofer.iosb.ilt.frostserver.mqtt.create.EntityCreateListener;
 import de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription.Subscription;
 import de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription.SubscriptionEvent;
 import de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription.SubscriptionFactory;
+import de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription.SubscriptionIndex;
 import de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription.SubscriptionListener;
 import de.fraunhofer.iosb.ilt.frostserver.path.Version;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
@@ -39,17 +40,15 @@ import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.MqttSettings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.UnknownVersionException;
 import de.fraunhofer.iosb.ilt.frostserver.util.ProcessorHelper;
-import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
 import java.io.IOException;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,7 +61,7 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
     private static MqttManager instance;
     private static final Logger LOGGER = LoggerFactory.getLogger(MqttManager.class);
 
-    private final Map<EntityType, Map<Subscription, AtomicInteger>> subscriptions = new EnumMap<>(EntityType.class);
+    private final Map<EntityType, SubscriptionIndex> subscriptions = new EnumMap<>(EntityType.class);
     private final CoreSettings settings;
 
     private MqttServer server;
@@ -71,6 +70,7 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
     private BlockingQueue<EntityCreateEvent> entityCreateEventQueue;
     private ExecutorService entityCreateExecutorService;
     private boolean enabledMqtt = false;
+    private boolean useReadReplica = false;
     private boolean shutdown = false;
 
     public static synchronized void init(CoreSettings settings) {
@@ -98,7 +98,7 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
         }
         this.settings = settings;
         for (EntityType entityType : EntityType.values()) {
-            subscriptions.put(entityType, new ConcurrentHashMap<>());
+            subscriptions.put(entityType, new SubscriptionIndex(settings));
         }
         init();
     }
@@ -106,6 +106,7 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
     private void init() {
         MqttSettings mqttSettings = settings.getMqttSettings();
         SubscriptionFactory.init(settings);
+        useReadReplica = mqttSettings.getCustomSettings().getBoolean(MqttSettings.TAG_USE_READ_REPLICA, MqttSettings.class);
         if (mqttSettings.isEnableMqtt()) {
             enabledMqtt = true;
             shutdown = false;
@@ -155,28 +156,33 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
         }
         // check if there is any subscription, if not do not publish at all
         EntityType entityType = message.getEntityType();
-        if (!subscriptions.containsKey(entityType)) {
+        if (subscriptions.get(entityType).isEmpty()) {
             return;
         }
         // Send a complete entity through the bus, or just an entity-id?
         Entity<?> entity = message.getEntity();
         Set<Property> fields = message.getFields();
         try (PersistenceManager persistenceManager = PersistenceManagerFactory.getInstance(settings).create()) {
-            // for each subscription on EntityType check match
-            for (Subscription subscription : subscriptions.get(entityType).keySet()) {
-                if (subscription.matches(persistenceManager, entity, fields)) {
-                    notifySubscription(subscription, entity);
-                }
+            persistenceManager.setReadOnly(useReadReplica);
+            // Subscriptions with the same message format share the payload.
+            Map<Object, byte[]> payloads = new HashMap<>();
+            for (Subscription subscription : subscriptions.get(entityType).findMatches(persistenceManager, entity, fields)) {
+                notifySubscription(subscription, entity, payloads);
             }
         } catch (Exception ex) {
             LOGGER.error("error handling MQTT subscriptions", ex);
         }
     }
 
-    private void notifySubscription(Subscription subscription, Entity entity) {
+    private void notifySubscription(Subscription subscription, Entity entity, Map<Object, byte[]> payloads) {
         try {
-            String payload = subscription.formatMessage(entity);
-            server.publish(subscription.getTopic(), payload.getBytes(StringHelper.UTF8), settings.getMqttSettings().getQosLevel());
+            Object formatKey = subscription.getMessageFormatKey();
+            byte[] payload = payloads.get(formatKey);
+            if (payload == null) {
+                payload = subscription.formatMessage(entity);
+                payloads.put(formatKey, payload);
+            }
+            server.publish(subscription.getTopic(), payload, settings.getMqttSettings().getQosLevel());
         } catch (IOException ex) {
             LOGGER.error("publishing to MQTT on topic '{}' failed", subscription.getTopic(), ex);
         }
@@ -230,17 +236,11 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
             return;
         }
 
-        Map<Subscription, AtomicInteger> subscriptionsMap = subscriptions.get(subscription.getEntityType());
-        synchronized (subscriptionsMap) {
-            AtomicInteger clientCount = subscriptionsMap.get(subscription);
-            if (clientCount == null) {
-                clientCount = new AtomicInteger(1);
-                subscriptionsMap.put(subscription, clientCount);
-                LOGGER.debug("Created new subscription for topic {}.", subscription.getTopic());
-            } else {
-                int newCount = clientCount.incrementAndGet();
-                LOGGER.debug("Now {} subscriptions for topic {}.", newCount, subscription.getTopic());
-            }
+        int newCount = subscriptions.get(subscription.getEntityType()).add(subscription);
+        if (newCount == 1) {
+            LOGGER.debug("Created new subscription for topic {}.", subscription.getTopic());
+        } else {
+            LOGGER.debug("Now {} subscriptions for topic {}.", newCount, subscription.getTopic());
         }
     }
 
@@ -251,17 +251,11 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
             // Not a valid topic.
             return;
         }
-        final Map<Subscription, AtomicInteger> subscriptionsMap = subscriptions.get(subscription.getEntityType());
-        synchronized (subscriptionsMap) {
-            AtomicInteger clientCount = subscriptionsMap.get(subscription);
-            if (clientCount != null) {
-                int newCount = clientCount.decrementAndGet();
-                LOGGER.debug("Now {} subscriptions for topic {}.", newCount, subscription.getTopic());
-                if (newCount <= 0) {
-                    subscriptionsMap.remove(subscription);
-                    LOGGER.debug("Removed last subscription for topic {}.", subscription.getTopic());
-                }
-            }
+        int newCount = subscriptions.get(subscription.getEntityType()).remove(subscription);
+        if (newCount == 0) {
+            LOGGER.debug("Removed last subscription for topic {}.", subscription.getTopic());
+        } else if (newCount > 0) {
+            LOGGER.debug("Now {} subscriptions for topic {}.", newCount, subscription.getTopic());
         }
     }
 
@@ -270,6 +264,14 @@ public class MqttManager implements SubscriptionListener, MessageListener, Entit
         entityChanged(message);
     }
 
+    @Override
+    public boolean isInterestedIn(EntityType type) {
+        if (shutdown || !enabledMqtt) {
+            return false;
+        }
+        return !subscriptions.get(type).isEmpty();
+    }
+
     @Override
     public void onEntityCreate(EntityCreateEvent e) {
         if (shutdown || !enabledMqtt) {
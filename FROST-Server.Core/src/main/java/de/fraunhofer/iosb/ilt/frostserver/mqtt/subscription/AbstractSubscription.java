@@ -35,7 +35,9 @@ import de.fraunhofer.iosb.ilt.frostserver.query.expression.constant.StringConsta
 import de.fraunhofer.iosb.ilt.frostserver.query.expression.function.comparison.Equal;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.PathHelper;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.List;
@@ -56,6 +58,8 @@ public abstract class AbstractSubscription implements Subscription {
     protected final String topic;
     protected EntityType entityType;
     private Expression matchExpression = null;
+    private List<NavigationPropertyMain> matchPath = null;
+    private Id matchId = null;
     private Query query;
     private Predicate<? super Entity> matcher;
     protected ResourcePath path;
@@ -83,10 +87,7 @@ public abstract class AbstractSubscription implements Subscription {
 
     @Override
     public boolean matches(PersistenceManager persistenceManager, Entity newEntity, Set<Property> fields) {
-        if (!newEntity.getEntityType().equals(entityType)) {
-            return false;
-        }
-        if (matcher != null && !matcher.test(newEntity)) {
+        if (!matchesLocally(newEntity, fields)) {
             return false;
         }
         if (matchExpression != null) {
@@ -96,6 +97,24 @@ public abstract class AbstractSubscription implements Subscription {
         return true;
     }
 
+    @Override
+    public boolean matchesLocally(Entity newEntity, Set<Property> fields) {
+        if (!newEntity.getEntityType().equals(entityType)) {
+            return false;
+        }
+        return matcher == null || matcher.test(newEntity);
+    }
+
+    @Override
+    public List<NavigationPropertyMain> getMatchPath() {
+        return matchPath;
+    }
+
+    @Override
+    public Id getMatchId() {
+        return matchId;
+    }
+
     protected void generateFilter(int pathElementOffset) {
         EntityType lastType = getEntityType();
         List<Property> properties = new ArrayList<>();
@@ -108,7 +127,7 @@ public abstract class AbstractSubscription implements Subscription {
             final NavigationPropertyMain navProp = PathHelper.getNavigationProperty(lastType, epe.getEntityType());
 
             Id id = epe.getId();
-            if (!navProp.isEntitySet() && id != null) {
+            if (!navProp.isEntitySet() && id != null && properties.isEmpty()) {
                 createMatcher(navProp, id);
                 assert (i <= 1);
                 return;
@@ -140,6 +159,11 @@ public abstract class AbstractSubscription implements Subscription {
     }
 
     private void createMatchExpression(List<Property> properties, final PathElementEntity epe) {
+        matchPath = new ArrayList<>();
+        for (Property property : properties) {
+            matchPath.add((NavigationPropertyMain) property);
+        }
+        matchId = epe.getId();
         properties.add(EntityPropertyMain.ID);
         String epeId = epe.getId().getUrl();
         if (epeId.startsWith("'")) {
@@ -162,11 +186,13 @@ public abstract class AbstractSubscription implements Subscription {
     }
 
     @Override
-    public String formatMessage(Entity entity) throws IOException {
-        return doFormatMessage(entity);
+    public byte[] formatMessage(Entity entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doFormatMessage(entity, out);
+        return out.toByteArray();
     }
 
-    public abstract String doFormatMessage(Entity entity) throws IOException;
+    public abstract void doFormatMessage(Entity entity, OutputStream out) throws IOException;
 
     @Override
     public int hashCode() {
@@ -17,7 +17,7 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription;
 
-import static de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDefault.DEFAULT_FORMAT_NAME;
+import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
 import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
@@ -27,8 +27,13 @@ import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +46,8 @@ public class EntitySetSubscription extends AbstractSubscription {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EntitySetSubscription.class);
     private Query query;
+    private ResultFormatter formatter;
+    private Object messageFormatKey;
 
     public EntitySetSubscription(CoreSettings settings, String topic, ResourcePath path) {
         super(topic, path, settings);
@@ -58,9 +65,31 @@ public class EntitySetSubscription extends AbstractSubscription {
                 || !query.getOrderBy().isEmpty()
                 || query.getSkip().isPresent()
                 || query.getTop().isPresent())) {
-            throw new IllegalArgumentException("Invalid subscription to: '" + topic + "': only $select is allowed in query options.");
+            throw new IllegalArgumentException("Invalid subscription to: '" + topic + "': only $select and $resultFormat are allowed in query options.");
+        }
+        String format = query == null ? null : query.getFormat();
+        try {
+            formatter = settings.getFormatter(format);
+            if (query != null) {
+                formatter.preProcessRequest(path, query);
+            }
+        } catch (IncorrectRequestException ex) {
+            throw new IllegalArgumentException("Invalid subscription to: '" + topic + "': " + ex.getMessage());
         }
         generateFilter(1);
+        if (query == null) {
+            // Formatted with the default formatter, like an EntitySubscription.
+            messageFormatKey = Collections.emptySet();
+        } else if (format == null) {
+            messageFormatKey = new HashSet<>(query.getSelect());
+        } else {
+            messageFormatKey = Arrays.asList(new HashSet<>(query.getSelect()), format.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    public Object getMessageFormatKey() {
+        return messageFormatKey;
     }
 
     private Query parseQuery(String topic) {
@@ -79,13 +108,9 @@ public class EntitySetSubscription extends AbstractSubscription {
     }
 
     @Override
-    public String doFormatMessage(Entity entity) throws IOException {
-        try {
-            entity.setQuery(query);
-            return settings.getFormatter(DEFAULT_FORMAT_NAME).format(path, query, entity, true);
-        } catch (IncorrectRequestException ex) {
-            throw new IllegalArgumentException(ex);
-        }
+    public void doFormatMessage(Entity entity, OutputStream out) throws IOException {
+        entity.setQuery(query);
+        formatter.format(path, query, entity, true, out);
     }
 
     @Override
@@ -23,13 +23,14 @@ import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
-import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
 import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
 import de.fraunhofer.iosb.ilt.frostserver.property.Property;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.Set;
 import java.util.function.Predicate;
 
@@ -64,18 +65,24 @@ public class EntitySubscription extends AbstractSubscription {
     }
 
     @Override
-    public boolean matches(PersistenceManager persistenceManager, Entity newEntity, Set<Property> fields) {
+    public Object getMessageFormatKey() {
+        // Formatted like an EntitySetSubscription without $select.
+        return Collections.emptySet();
+    }
+
+    @Override
+    public boolean matchesLocally(Entity newEntity, Set<Property> fields) {
         if (matcher != null && !matcher.test(newEntity)) {
             return false;
         }
-        return super.matches(persistenceManager, newEntity, fields);
+        return super.matchesLocally(newEntity, fields);
     }
 
     @Override
-    public String doFormatMessage(Entity entity) throws IOException {
+    public void doFormatMessage(Entity entity, OutputStream out) throws IOException {
         try {
             entity.setQuery(emptyQuery);
-            return settings.getFormatter(DEFAULT_FORMAT_NAME).format(path, emptyQuery, entity, true);
+            settings.getFormatter(DEFAULT_FORMAT_NAME).format(path, emptyQuery, entity, true, out);
         } catch (IncorrectRequestException ex) {
             throw new IllegalArgumentException(ex);
         }
@@ -17,18 +17,20 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription;
 
-import de.fraunhofer.iosb.ilt.frostserver.json.serialize.JsonWriter;
+import static de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDefault.DEFAULT_FORMAT_NAME;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementProperty;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
-import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
 import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
 import de.fraunhofer.iosb.ilt.frostserver.property.Property;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -65,7 +67,13 @@ public class PropertySubscription extends AbstractSubscription {
     }
 
     @Override
-    public boolean matches(PersistenceManager persistenceManager, Entity newEntity, Set<Property> fields) {
+    public Object getMessageFormatKey() {
+        // Formatted like an EntitySetSubscription with a $select of the property.
+        return Collections.singleton(property);
+    }
+
+    @Override
+    public boolean matchesLocally(Entity newEntity, Set<Property> fields) {
         if (matcher != null && !matcher.test(newEntity)) {
             return false;
         }
@@ -73,13 +81,17 @@ public class PropertySubscription extends AbstractSubscription {
             return false;
         }
 
-        return super.matches(persistenceManager, newEntity, fields);
+        return super.matchesLocally(newEntity, fields);
     }
 
     @Override
-    public String doFormatMessage(Entity entity) throws IOException {
-        entity.setQuery(query);
-        return JsonWriter.writeEntity(entity);
+    public void doFormatMessage(Entity entity, OutputStream out) throws IOException {
+        try {
+            entity.setQuery(query);
+            settings.getFormatter(DEFAULT_FORMAT_NAME).format(path, query, entity, true, out);
+        } catch (IncorrectRequestException ex) {
+            throw new IllegalArgumentException(ex);
+        }
     }
 
     @Override
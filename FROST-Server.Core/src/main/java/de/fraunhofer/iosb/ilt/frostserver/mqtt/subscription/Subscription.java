@@ -19,9 +19,12 @@ package de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription;
 
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
 import de.fraunhofer.iosb.ilt.frostserver.property.Property;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
 import java.io.IOException;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -37,7 +40,16 @@ public interface Subscription {
      * @return A message body.
      * @throws IOException If the formatting failed.
      */
-    String formatMessage(Entity entity) throws IOException;
+    byte[] formatMessage(Entity entity) throws IOException;
+
+    /**
+     * Get the key of the message format of this Subscription. Subscriptions
+     * with equal keys generate identical messages for the same entity, so the
+     * message only needs to be generated once.
+     *
+     * @return The key of the message format of this Subscription.
+     */
+    Object getMessageFormatKey();
 
     /**
      * Get the type of entity that is of interest for this Subscription.
@@ -63,4 +75,34 @@ public interface Subscription {
      */
     boolean matches(PersistenceManager persistenceManager, Entity newEntity, Set<Property> fields);
 
+    /**
+     * Check the parts of this Subscription that can be checked without
+     * querying the database. If this method returns true, and there is no
+     * match path, the entity matches.
+     *
+     * @param newEntity The entity to check.
+     * @param fields The fields of the entity that changed.
+     * @return false if the change is definitely not of interest for the
+     * Subscription.
+     */
+    boolean matchesLocally(Entity newEntity, Set<Property> fields);
+
+    /**
+     * Get the navigation path, starting from the entity type of this
+     * Subscription, leading to the entity that must have the id given by
+     * {@link #getMatchId()} for an entity to match.
+     *
+     * @return the navigation path, or null if the Subscription has no such
+     * condition.
+     */
+    List<NavigationPropertyMain> getMatchPath();
+
+    /**
+     * Get the id of the entity at the end of the match path.
+     *
+     * @return the id of the entity at the end of the match path, or null if
+     * the Subscription has no match path.
+     */
+    Id getMatchId();
+
 }
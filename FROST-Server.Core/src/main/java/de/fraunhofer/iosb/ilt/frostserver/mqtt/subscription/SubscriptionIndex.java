@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription;
+
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Subscriptions on one entity type, indexed so that matching a changed
+ * entity does not need a database query per Subscription.
+ *
+ * Subscriptions that can be checked without the database are checked one by
+ * one. Subscriptions that require a related entity with a given id, like
+ * Locations(1)/Things, are grouped by the navigation path to that related
+ * entity, and by its id. For a changed entity, the ids of the related
+ * entities are loaded with one query per navigation path, after which the
+ * matching Subscriptions are found by id.
+ *
+ * @author scf
+ */
+public class SubscriptionIndex {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionIndex.class);
+
+    private final CoreSettings settings;
+    private final Map<Subscription, AtomicInteger> clientCounts = new ConcurrentHashMap<>();
+    private final Set<Subscription> localSubscriptions = ConcurrentHashMap.newKeySet();
+    private final Map<List<NavigationPropertyMain>, Map<Id, Set<Subscription>>> pathSubscriptions = new ConcurrentHashMap<>();
+
+    public SubscriptionIndex(CoreSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Adds a client to the given Subscription.
+     *
+     * @param subscription The Subscription to add a client to.
+     * @return The number of clients of the Subscription.
+     */
+    public synchronized int add(Subscription subscription) {
+        AtomicInteger clientCount = clientCounts.get(subscription);
+        if (clientCount != null) {
+            return clientCount.incrementAndGet();
+        }
+        clientCounts.put(subscription, new AtomicInteger(1));
+        List<NavigationPropertyMain> matchPath = subscription.getMatchPath();
+        if (matchPath == null) {
+            localSubscriptions.add(subscription);
+        } else {
+            pathSubscriptions.computeIfAbsent(matchPath, p -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(subscription.getMatchId(), i -> ConcurrentHashMap.newKeySet())
+                    .add(subscription);
+        }
+        return 1;
+    }
+
+    /**
+     * Removes a client from the given Subscription. The Subscription is
+     * removed when it has no clients left.
+     *
+     * @param subscription The Subscription to remove a client from.
+     * @return The number of clients of the Subscription left, or -1 if the
+     * Subscription did not exist.
+     */
+    public synchronized int remove(Subscription subscription) {
+        AtomicInteger clientCount = clientCounts.get(subscription);
+        if (clientCount == null) {
+            return -1;
+        }
+        int newCount = clientCount.decrementAndGet();
+        if (newCount > 0) {
+            return newCount;
+        }
+        clientCounts.remove(subscription);
+        List<NavigationPropertyMain> matchPath = subscription.getMatchPath();
+        if (matchPath == null) {
+            localSubscriptions.remove(subscription);
+            return 0;
+        }
+        Map<Id, Set<Subscription>> byId = pathSubscriptions.get(matchPath);
+        Set<Subscription> subscriptions = byId.get(subscription.getMatchId());
+        subscriptions.remove(subscription);
+        if (subscriptions.isEmpty()) {
+            byId.remove(subscription.getMatchId());
+            if (byId.isEmpty()) {
+                pathSubscriptions.remove(matchPath);
+            }
+        }
+        return 0;
+    }
+
+    public boolean isEmpty() {
+        return clientCounts.isEmpty();
+    }
+
+    /**
+     * Finds the Subscriptions that the given changed entity matches.
+     *
+     * @param persistenceManager The PersistenceManager to use for queries.
+     * @param entity The changed entity.
+     * @param fields The fields of the entity that changed.
+     * @return The matching Subscriptions.
+     */
+    public List<Subscription> findMatches(PersistenceManager persistenceManager, Entity entity, Set<Property> fields) {
+        List<Subscription> result = new ArrayList<>();
+        for (Subscription subscription : localSubscriptions) {
+            if (subscription.matchesLocally(entity, fields)) {
+                result.add(subscription);
+            }
+        }
+        for (Map.Entry<List<NavigationPropertyMain>, Map<Id, Set<Subscription>>> entry : pathSubscriptions.entrySet()) {
+            Map<Id, Set<Subscription>> byId = entry.getValue();
+            Set<Id> relatedIds = findRelatedIds(persistenceManager, entity, entry.getKey());
+            if (relatedIds == null) {
+                // Too many related entities to load, check the subscriptions one by one.
+                for (Set<Subscription> subscriptions : byId.values()) {
+                    for (Subscription subscription : subscriptions) {
+                        if (subscription.matches(persistenceManager, entity, fields)) {
+                            result.add(subscription);
+                        }
+                    }
+                }
+                continue;
+            }
+            for (Id relatedId : relatedIds) {
+                for (Subscription subscription : byId.getOrDefault(relatedId, Collections.emptySet())) {
+                    if (subscription.matchesLocally(entity, fields)) {
+                        result.add(subscription);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the ids of the entities related to the given entity through the
+     * given navigation path.
+     *
+     * @param persistenceManager The PersistenceManager to use for queries.
+     * @param entity The entity to start from.
+     * @param matchPath The navigation path to follow.
+     * @return The ids of the related entities, or null if there are more
+     * related entities than fit in one request.
+     */
+    private Set<Id> findRelatedIds(PersistenceManager persistenceManager, Entity entity, List<NavigationPropertyMain> matchPath) {
+        ResourcePath path = entity.getPath();
+        for (NavigationPropertyMain navProp : matchPath) {
+            PathElement parent = path.getLastElement();
+            if (navProp.isEntitySet()) {
+                path.addPathElement(new PathElementEntitySet(navProp.getType(), parent), true, false);
+            } else {
+                path.addPathElement(new PathElementEntity(null, navProp.getType(), parent), true, false);
+            }
+        }
+        Query query = new Query(settings.getQueryDefaults(), path);
+        query.addSelect(EntityPropertyMain.ID);
+        query.setCount(false);
+        query.setTop(settings.getQueryDefaults().getTopMax());
+        Object result = persistenceManager.get(path, query);
+        Set<Id> relatedIds = new HashSet<>();
+        if (result instanceof Entity) {
+            relatedIds.add(((Entity) result).getId());
+        } else if (result instanceof EntitySet) {
+            EntitySet<? extends Entity> entitySet = (EntitySet<? extends Entity>) result;
+            if (entitySet.getNextLink() != null) {
+                LOGGER.debug("More than {} related entities for {}", settings.getQueryDefaults().getTopMax(), path);
+                return null;
+            }
+            for (Entity related : entitySet) {
+                relatedIds.add(related.getId());
+            }
+        }
+        return relatedIds;
+    }
+}
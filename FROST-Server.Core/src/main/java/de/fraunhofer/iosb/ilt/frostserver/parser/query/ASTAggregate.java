@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.parser.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ASTAggregate extends SimpleNode {
+
+    private String interval;
+    private final List<String> functions = new ArrayList<>();
+
+    public ASTAggregate(int id) {
+        super(id);
+    }
+
+    public ASTAggregate(Parser p, int id) {
+        super(p, id);
+    }
+
+    @Override
+    public Object jjtAccept(ParserVisitor visitor, Object data) {
+        return visitor.visit(this, data);
+    }
+
+    public void setInterval(String interval) {
+        this.interval = interval;
+    }
+
+    public String getInterval() {
+        return interval;
+    }
+
+    public void addFunction(String function) {
+        functions.add(function);
+    }
+
+    public List<String> getFunctions() {
+        return functions;
+    }
+
+    @Override
+    public String toString() {
+        return "Aggregate: " + interval + " " + functions;
+    }
+
+}
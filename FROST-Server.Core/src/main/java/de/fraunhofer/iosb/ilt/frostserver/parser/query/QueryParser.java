@@ -23,6 +23,8 @@ import de.fraunhofer.iosb.ilt.frostserver.property.NavigationProperty;
 import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyCustom;
 import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
 import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Aggregation;
+import de.fraunhofer.iosb.ilt.frostserver.query.Aggregation.AggregateFunction;
 import de.fraunhofer.iosb.ilt.frostserver.query.Expand;
 import de.fraunhofer.iosb.ilt.frostserver.query.OrderBy;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
@@ -34,6 +36,7 @@ import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import org.joda.time.Period;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,12 +49,14 @@ public class QueryParser extends AbstractParserVisitor {
 
     private static final String OP_TOP = "top";
     private static final String OP_SKIP = "skip";
+    private static final String OP_SKIP_TOKEN = "skiptoken";
     private static final String OP_COUNT = "count";
     private static final String OP_SELECT = "select";
     private static final String OP_EXPAND = "expand";
     private static final String OP_FILTER = "filter";
     private static final String OP_FORMAT = "resultformat";
     private static final String OP_ORDER_BY = "orderby";
+    private static final String OP_AGGREGATE = "aggregate";
 
     private final CoreSettings settings;
     private final ResourcePath path;
@@ -116,6 +121,10 @@ public class QueryParser extends AbstractParserVisitor {
                 handleSkip(node, query);
                 break;
 
+            case OP_SKIP_TOKEN:
+                handleSkipToken(node, query);
+                break;
+
             case OP_COUNT:
                 handleCount(node, query);
                 break;
@@ -140,6 +149,10 @@ public class QueryParser extends AbstractParserVisitor {
                 handleOrderBy(node, query, data);
                 break;
 
+            case OP_AGGREGATE:
+                handleAggregate(node, query);
+                break;
+
             default:
                 // ignore or throw exception?
                 throw new IllegalArgumentException("unknow query option '" + operator + "'");
@@ -152,6 +165,15 @@ public class QueryParser extends AbstractParserVisitor {
         query.setOrderBy(visit(child, data));
     }
 
+    private void handleAggregate(ASTOption node, Query query) {
+        ASTAggregate child = getChildOfType(node, 0, ASTAggregate.class);
+        List<AggregateFunction> functions = new ArrayList<>();
+        for (String name : child.getFunctions()) {
+            functions.add(AggregateFunction.fromString(name));
+        }
+        query.setAggregation(new Aggregation(new Period(child.getInterval()), functions));
+    }
+
     private void handleFromat(ASTOption node, Query query) {
         ASTFormat child = getChildOfType(node, 0, ASTFormat.class);
         query.setFormat(child.getValue());
@@ -177,6 +199,11 @@ public class QueryParser extends AbstractParserVisitor {
         query.setSkip(Math.toIntExact((long) child.jjtGetValue()));
     }
 
+    private void handleSkipToken(ASTOption node, Query query) {
+        ASTSkipToken child = getChildOfType(node, 0, ASTSkipToken.class);
+        query.setSkipToken(child.getValue());
+    }
+
     private void handleTop(ASTOption node, Query query) {
         ASTValueNode child = getChildOfType(node, 0, ASTValueNode.class);
         int top = Math.toIntExact((long) child.jjtGetValue());
@@ -31,7 +31,10 @@ import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncompleteEntityException;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.NoSuchEntityException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -44,9 +47,15 @@ public abstract class AbstractPersistenceManager implements PersistenceManager {
      * The changed entity messages that need to be sent to the bus.
      */
     private final List<EntityChangedMessage> changedEntities;
+    /**
+     * The changed entity messages of which the entity still needs to be
+     * loaded from the database.
+     */
+    private final List<EntityChangedMessage> changedEntitiesToFetch;
 
     protected AbstractPersistenceManager() {
         this.changedEntities = new ArrayList<>();
+        this.changedEntitiesToFetch = new ArrayList<>();
     }
 
     @Override
@@ -62,20 +71,88 @@ public abstract class AbstractPersistenceManager implements PersistenceManager {
     public boolean insert(Entity entity) throws NoSuchEntityException, IncompleteEntityException {
         boolean result = doInsert(entity);
         if (result) {
-            Entity newEntity = fetchEntity(
-                    entity.getEntityType(),
-                    entity.getId());
-            changedEntities.add(
+            addChangedEntityToFetch(
                     new EntityChangedMessage()
                             .setEventType(EntityChangedMessage.Type.CREATE)
-                            .setEntity(newEntity)
+                            .setEntity(entity)
             );
         }
         return result;
     }
 
+    /**
+     * Adds a message for an entity of which the current state has not been
+     * loaded yet. The state is loaded when the transaction is committed, and
+     * only if there are listeners for the entity type.
+     *
+     * @param message The message to add.
+     */
+    private void addChangedEntityToFetch(EntityChangedMessage message) {
+        changedEntities.add(message);
+        changedEntitiesToFetch.add(message);
+    }
+
     public abstract boolean doInsert(Entity entity) throws NoSuchEntityException, IncompleteEntityException;
 
+    @Override
+    public List<Exception> insert(List<? extends Entity> entities) {
+        List<Exception> failures = doInsert(entities);
+        List<Entity> inserted = new ArrayList<>(entities.size());
+        for (int i = 0; i < entities.size(); i++) {
+            if (failures.get(i) == null) {
+                inserted.add(entities.get(i));
+            }
+        }
+        for (Entity newEntity : inserted) {
+            addChangedEntityToFetch(
+                    new EntityChangedMessage()
+                            .setEventType(EntityChangedMessage.Type.CREATE)
+                            .setEntity(newEntity)
+            );
+        }
+        return failures;
+    }
+
+    /**
+     * Insert the given entities. The default implementation inserts the
+     * entities one by one. Implementations can override this to insert the
+     * entities more efficiently.
+     *
+     * @param entities The entities to insert.
+     * @return A list with, for each given entity, null if the entity was
+     * inserted, or the exception describing why it was not inserted.
+     */
+    public List<Exception> doInsert(List<? extends Entity> entities) {
+        List<Exception> failures = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            try {
+                if (doInsert(entity)) {
+                    failures.add(null);
+                } else {
+                    failures.add(new IllegalArgumentException("Entity was not inserted."));
+                }
+            } catch (NoSuchEntityException | IncompleteEntityException | IllegalArgumentException exc) {
+                failures.add(exc);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Fetch the current state of the given, newly inserted, entities. The
+     * default implementation fetches the entities one by one.
+     *
+     * @param entities The entities to fetch.
+     * @return The fetched entities.
+     */
+    protected List<Entity> fetchEntities(List<Entity> entities) {
+        List<Entity> result = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            result.add(fetchEntity(entity.getEntityType(), entity.getId()));
+        }
+        return result;
+    }
+
     @Override
     public boolean delete(PathElementEntity pathElement) throws NoSuchEntityException {
         Entity entity = getEntityByEntityPath(pathElement);
@@ -112,11 +189,8 @@ public abstract class AbstractPersistenceManager implements PersistenceManager {
         EntityChangedMessage result = doUpdate(pathElement, entity);
         if (result != null) {
             result.setEventType(EntityChangedMessage.Type.UPDATE);
-            Entity newEntity = fetchEntity(
-                    entity.getEntityType(),
-                    entity.getId());
-            result.setEntity(newEntity);
-            changedEntities.add(result);
+            result.setEntity(entity);
+            addChangedEntityToFetch(result);
         }
         return result != null;
     }
@@ -170,10 +244,51 @@ public abstract class AbstractPersistenceManager implements PersistenceManager {
 
     private void clearEntityChangedEvents() {
         changedEntities.clear();
+        changedEntitiesToFetch.clear();
+    }
+
+    /**
+     * Drops the messages no listener is interested in, and loads the current
+     * state of the entities in the remaining messages that still need it, in
+     * one batch per entity type.
+     */
+    private void prepareEntityChangeEvents() {
+        if (changedEntities.isEmpty()) {
+            return;
+        }
+        MessageBus messageBus = MessageBusFactory.getMessageBus();
+        Map<EntityType, Boolean> interest = new EnumMap<>(EntityType.class);
+        changedEntities.removeIf(
+                message -> !interest.computeIfAbsent(message.getEntityType(), messageBus::hasListenersFor));
+        Map<EntityType, List<EntityChangedMessage>> toFetchByType = new EnumMap<>(EntityType.class);
+        for (EntityChangedMessage message : changedEntitiesToFetch) {
+            if (interest.get(message.getEntityType())) {
+                toFetchByType.computeIfAbsent(message.getEntityType(), t -> new ArrayList<>())
+                        .add(message);
+            }
+        }
+        changedEntitiesToFetch.clear();
+        for (List<EntityChangedMessage> messages : toFetchByType.values()) {
+            List<Entity> entities = new ArrayList<>(messages.size());
+            for (EntityChangedMessage message : messages) {
+                entities.add(message.getEntity());
+            }
+            Map<Id, Entity> fetchedById = new HashMap<>();
+            for (Entity fetched : fetchEntities(entities)) {
+                fetchedById.put(fetched.getId(), fetched);
+            }
+            for (EntityChangedMessage message : messages) {
+                Entity fetched = fetchedById.get(message.getEntity().getId());
+                if (fetched != null) {
+                    message.setEntity(fetched);
+                }
+            }
+        }
     }
 
     @Override
     public void commit() {
+        prepareEntityChangeEvents();
         if (doCommit()) {
             fireEntityChangeEvents();
         }
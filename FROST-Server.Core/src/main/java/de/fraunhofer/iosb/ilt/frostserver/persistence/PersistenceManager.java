@@ -21,6 +21,7 @@ import com.github.fge.jsonpatch.JsonPatch;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.ObservationRows;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
@@ -58,10 +59,49 @@ public interface PersistenceManager extends LiquibaseUser, AutoCloseable {
      */
     public boolean insert(Entity entity) throws NoSuchEntityException, IncompleteEntityException;
 
+    /**
+     * Insert the given entities. Implementations may insert the entities in
+     * bulk, checking the entities they link to only once. Entities that can
+     * not be inserted are skipped.
+     *
+     * @param entities The entities to insert.
+     * @return A list with, for each given entity, null if the entity was
+     * inserted, or the exception describing why it was not inserted.
+     */
+    public List<Exception> insert(List<? extends Entity> entities);
+
     public Entity get(EntityType entityType, Id id);
 
     public Object get(ResourcePath path, Query query);
 
+    /**
+     * Get the result for the given path. Unlike {@link #get(ResourcePath, Query)}
+     * EntitySets in the result may be loaded lazily, while they are iterated.
+     * Such a result is only valid until this PersistenceManager is committed,
+     * rolled back or closed.
+     *
+     * The default implementation is not lazy.
+     *
+     * @param path The path to get the result for.
+     * @param query The query to apply.
+     * @return The (lazy) result.
+     */
+    public default Object getLazy(ResourcePath path, Query query) {
+        return get(path, query);
+    }
+
+    /**
+     * Get the set of Observations identified by the given path as a cursor
+     * over the rows of the Observations, without creating Observation
+     * entities. The cursor is only valid until the transaction is committed,
+     * rolled back or closed.
+     *
+     * @param path The path to a set of Observations.
+     * @param query The query to apply.
+     * @return The rows of the Observations.
+     */
+    public ObservationRows getObservationRows(ResourcePath path, Query query);
+
     public default <T> T get(ResourcePath path, Query query, Class<T> clazz) {
         Object result = get(path, query);
         if (!clazz.isAssignableFrom(result.getClass())) {
@@ -130,6 +170,44 @@ public interface PersistenceManager extends LiquibaseUser, AutoCloseable {
      */
     public CoreSettings getCoreSettings();
 
+    /**
+     * Indicates that this PersistenceManager will only be used for reading.
+     * Implementations may then read from a read-only replica of the database,
+     * that can lag behind the primary. Has no effect after the first query.
+     *
+     * @param readOnly flag indicating no changes will be made.
+     */
+    public default void setReadOnly(boolean readOnly) {
+        // Only relevant for implementations that support read replicas.
+    }
+
+    /**
+     * Flag indicating data was read from a read-only replica, that can lag
+     * behind the primary. Such data must not be cached, since it may already
+     * be outdated when it is read.
+     *
+     * @return true if data was read from a read replica.
+     */
+    public default boolean isReadFromReplica() {
+        return false;
+    }
+
+    /**
+     * Starts the background tasks of this type of PersistenceManager, if it
+     * has any. Called once the database is known to be up to date.
+     */
+    public default void startBackgroundTasks() {
+        // Only relevant for implementations that have background tasks.
+    }
+
+    /**
+     * Stops the background tasks of this type of PersistenceManager, if it
+     * has any.
+     */
+    public default void stopBackgroundTasks() {
+        // Only relevant for implementations that have background tasks.
+    }
+
     public void commit();
 
     public void rollback();
@@ -59,6 +59,13 @@ public class PersistenceManagerFactory {
             PersistenceManagerFactory newInstance = new PersistenceManagerFactory(coreSettings);
             PersistenceSettings persistenceSettings = coreSettings.getPersistenceSettings();
             newInstance.maybeUpdateDatabase = persistenceSettings.isAutoUpdateDatabase();
+            if (!newInstance.maybeUpdateDatabase) {
+                // The database is managed externally, assume it is up to date.
+                // Otherwise the background tasks start after the update.
+                try (PersistenceManager pm = newInstance.create()) {
+                    pm.startBackgroundTasks();
+                }
+            }
             return newInstance;
         });
         if (instance.maybeUpdateDatabase) {
@@ -69,6 +76,17 @@ public class PersistenceManagerFactory {
         return instance;
     }
 
+    /**
+     * Stops the background tasks of the PersistenceManagers of all factories.
+     */
+    public static synchronized void shutdown() {
+        for (PersistenceManagerFactory instance : instances.values()) {
+            try (PersistenceManager pm = instance.create()) {
+                pm.stopBackgroundTasks();
+            }
+        }
+    }
+
     public static PersistenceManagerFactory getInstance(CoreSettings coreSettings) {
         PersistenceManagerFactory instance = instances.get(coreSettings);
         if (instance == null) {
@@ -17,6 +17,7 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.service;
 
+import static de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDefault.DEFAULT_FORMAT_NAME;
 import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
 import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
@@ -47,7 +48,10 @@ public class PluginManager implements ConfigDefaults {
             + ",de.fraunhofer.iosb.ilt.frostserver.plugin.format.dataarray.PluginResultFormatDataArray"
             + ",de.fraunhofer.iosb.ilt.frostserver.plugin.format.csv.PluginResultFormatCsv"
             + ",de.fraunhofer.iosb.ilt.frostserver.plugin.format.geojson.PluginResultFormatGeoJson"
+            + ",de.fraunhofer.iosb.ilt.frostserver.plugin.format.binary.PluginResultFormatBinary"
+            + ",de.fraunhofer.iosb.ilt.frostserver.plugin.format.arrow.PluginResultFormatArrow"
             + ",de.fraunhofer.iosb.ilt.frostserver.plugin.openapi.PluginOpenApi"
+            + ",de.fraunhofer.iosb.ilt.frostserver.plugin.rollups.PluginRollups"
     )
     public static final String TAG_PROVIDED_PLUGINS = "providedPlugins";
 
@@ -67,6 +71,11 @@ public class PluginManager implements ConfigDefaults {
      */
     private final Map<String, PluginResultFormat> resultFormatters = new HashMap<>();
 
+    /**
+     * The names of the result formats, by the content type they generate.
+     */
+    private final Map<String, String> formatsByContentType = new HashMap<>();
+
     /**
      * The plugins that can handle registered paths.
      */
@@ -126,7 +135,15 @@ public class PluginManager implements ConfigDefaults {
 
     private void registerPlugin(PluginResultFormat plugin) {
         for (String format : plugin.getFormatNames()) {
+            ResultFormatter formatter = plugin.getResultFormatter(format);
+            if (DEFAULT_FORMAT_NAME.equalsIgnoreCase(format) && formatter.isBinary()) {
+                // The default formatter is used to format results as String.
+                LOGGER.error("Binary formatter {} can not be the default formatter.", formatter.getClass().getName());
+                continue;
+            }
             resultFormatters.put(format.toLowerCase(), plugin);
+            String contentType = formatter.getContentType();
+            formatsByContentType.putIfAbsent(contentType.split(";", 2)[0].trim().toLowerCase(), format);
         }
     }
 
@@ -158,6 +175,17 @@ public class PluginManager implements ConfigDefaults {
         if (plugin == null) {
             return null;
         }
-        return plugin.getResultFormatter();
+        return plugin.getResultFormatter(formatName);
+    }
+
+    /**
+     * Finds the result format that generates the given content type.
+     *
+     * @param contentType The content type, without parameters.
+     * @return The name of the format, or null if no format generates the
+     * given content type.
+     */
+    public String getFormatNameForContentType(String contentType) {
+        return formatsByContentType.get(contentType.toLowerCase());
     }
 }
@@ -40,4 +40,16 @@ public interface PluginResultFormat extends Plugin {
      * @return An actual result formatter.
      */
     public ResultFormatter getResultFormatter();
+
+    /**
+     * Get an actual result formatter for the given format. Plugins that
+     * support more than one format should override this method.
+     *
+     * @param formatName The name of the requested format, one of the names
+     * returned by {@link #getFormatNames()}.
+     * @return An actual result formatter.
+     */
+    public default ResultFormatter getResultFormatter(String formatName) {
+        return getResultFormatter();
+    }
 }
@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.service;
+
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageListener;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationProperty;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Expand;
+import de.fraunhofer.iosb.ilt.frostserver.query.OrderBy;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.Expression;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.Path;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.function.Function;
+import de.fraunhofer.iosb.ilt.frostserver.util.PathHelper;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of formatted GET responses. Each response is stored
+ * with the entity types it depends on, and is invalidated when the message
+ * bus reports a change to an entity of one of those types.
+ *
+ * If the path starts with a single entity, the anchor, changes to entities
+ * that are directly related to the anchor only invalidate the response if they
+ * are related to the same anchor. Thus a new Observation in Datastream 1 does
+ * not invalidate the cached /Datastreams(2)/Observations.
+ *
+ * @author scf
+ */
+public class ResponseCache implements MessageListener {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class);
+
+    /**
+     * Entity types with properties that the database changes when entities of
+     * other types change.
+     */
+    private static final Map<EntityType, EntityType[]> IMPLICIT_DEPENDENCIES = new EnumMap<>(EntityType.class);
+
+    static {
+        IMPLICIT_DEPENDENCIES.put(EntityType.DATASTREAM, new EntityType[]{EntityType.OBSERVATION});
+        IMPLICIT_DEPENDENCIES.put(EntityType.MULTIDATASTREAM, new EntityType[]{EntityType.OBSERVATION});
+        IMPLICIT_DEPENDENCIES.put(EntityType.FEATUREOFINTEREST, new EntityType[]{EntityType.OBSERVATION});
+        IMPLICIT_DEPENDENCIES.put(EntityType.HISTORICALLOCATION, new EntityType[]{EntityType.THING, EntityType.LOCATION});
+    }
+
+    private final long maxSize;
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Keys of responses that are invalidated by any change to entities of a
+     * type.
+     */
+    private final Map<EntityType, Set<String>> byType = new EnumMap<>(EntityType.class);
+    /**
+     * Keys of responses that are only invalidated by changes to entities of a
+     * type, that are related to the anchor entity of the response. Indexed by
+     * changed type, anchor type and anchor id.
+     */
+    private final Map<EntityType, Map<EntityType, Map<Id, Set<String>>>> byAnchor = new EnumMap<>(EntityType.class);
+    /**
+     * Counts the changes per entity type, so that responses that were
+     * generated while a change happened are not cached.
+     */
+    private final long[] changeCounters = new long[EntityType.values().length];
+    private long currentSize;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize The maximum total size, in bytes, of the cached responses.
+     * 0 disables the cache.
+     * @param ttlSeconds The time, in seconds, after which cached responses
+     * expire, even if no change is reported.
+     */
+    public ResponseCache(long maxSize, int ttlSeconds) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlSeconds * 1000L;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Returns the current change counters, to pass to
+     * {@link #put(ServiceRequest, ResourcePath, Query, ServiceResponse, long[])}
+     * after the response has been generated.
+     *
+     * @return A snapshot of the change counters.
+     */
+    public synchronized long[] getChangeCounters() {
+        return changeCounters.clone();
+    }
+
+    /**
+     * Returns a new response for the given request, if it is in the cache.
+     *
+     * @param <T> The type of the response.
+     * @param request The request to find the response for.
+     * @return The cached response, or null.
+     */
+    public <T> ServiceResponse<T> get(ServiceRequest request) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = createKey(request);
+        CachedResponse cached;
+        synchronized (this) {
+            cached = cache.get(key);
+            if (cached != null && cached.isExpired(System.currentTimeMillis(), ttlMillis)) {
+                remove(key);
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            return null;
+        }
+        ServiceResponse<T> response = new ServiceResponse<>();
+        response.setResultFormatted(cached.body);
+        response.setContentType(cached.contentType);
+        response.addHeader(ServiceResponse.HEADER_ETAG, cached.etag);
+        response.setCode(200);
+        return response;
+    }
+
+    /**
+     * Adds the formatted result of the given response to the cache, and sets
+     * the ETag header on the response. The response is not cached if an
+     * entity it depends on changed after the given counters were taken.
+     *
+     * @param request The request the response is for.
+     * @param path The parsed path of the request.
+     * @param query The parsed query of the request.
+     * @param response The response to cache.
+     * @param countersAtStart The change counters from before the response
+     * was generated.
+     */
+    public void put(ServiceRequest request, ResourcePath path, Query query, ServiceResponse<?> response, long[] countersAtStart) {
+        String body = response.getResultFormatted();
+        if (!isEnabled() || body == null) {
+            return;
+        }
+        long size = 2L * body.length();
+        if (size > maxSize) {
+            return;
+        }
+        CachedResponse cached = new CachedResponse(createKey(request), body, response.getContentType(), createEtag(body), size);
+        findDependencies(cached, path, query);
+        response.addHeader(ServiceResponse.HEADER_ETAG, cached.etag);
+        synchronized (this) {
+            for (EntityType type : cached.allTypes()) {
+                if (changeCounters[type.ordinal()] != countersAtStart[type.ordinal()]) {
+                    return;
+                }
+            }
+            remove(cached.key);
+            cache.put(cached.key, cached);
+            currentSize += size;
+            for (EntityType type : cached.typeDependencies) {
+                byType.computeIfAbsent(type, t -> new HashSet<>()).add(cached.key);
+            }
+            for (EntityType type : cached.anchoredDependencies) {
+                byAnchor.computeIfAbsent(type, t -> new EnumMap<>(EntityType.class))
+                        .computeIfAbsent(cached.anchorType, t -> new HashMap<>())
+                        .computeIfAbsent(cached.anchorId, t -> new HashSet<>())
+                        .add(cached.key);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < changeCounters.length; i++) {
+            changeCounters[i]++;
+        }
+        cache.clear();
+        byType.clear();
+        byAnchor.clear();
+        currentSize = 0;
+    }
+
+    @Override
+    public void messageReceived(EntityChangedMessage message) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (message.getEventType() == EntityChangedMessage.Type.DELETE) {
+            // Deletes cascade to related entities, without messages.
+            invalidateAll();
+            return;
+        }
+        EntityType type = message.getEntityType();
+        Entity entity = message.getEntity();
+        synchronized (this) {
+            changeCounters[type.ordinal()]++;
+            Set<String> keys = byType.get(type);
+            if (keys != null) {
+                removeAll(new HashSet<>(keys));
+            }
+            Map<EntityType, Map<Id, Set<String>>> anchored = byAnchor.get(type);
+            if (anchored == null) {
+                return;
+            }
+            for (Map.Entry<EntityType, Map<Id, Set<String>>> entry : anchored.entrySet()) {
+                EntityType anchorType = entry.getKey();
+                Map<Id, Set<String>> byId = entry.getValue();
+                Id anchorId = findAnchorId(message, entity, anchorType);
+                if (anchorId == null) {
+                    for (Set<String> idKeys : byId.values()) {
+                        removeAll(new HashSet<>(idKeys));
+                    }
+                } else {
+                    Set<String> idKeys = byId.get(anchorId);
+                    if (idKeys != null) {
+                        removeAll(new HashSet<>(idKeys));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the id of the anchor entity that the changed entity is related
+     * to.
+     *
+     * @return The id of the anchor, or null if it can not be determined.
+     */
+    private static Id findAnchorId(EntityChangedMessage message, Entity entity, EntityType anchorType) {
+        if (entity == null) {
+            return null;
+        }
+        if (message.getEntityType() == anchorType) {
+            return entity.getId();
+        }
+        NavigationPropertyMain navProperty = PathHelper.getNavigationProperty(message.getEntityType(), anchorType);
+        if (navProperty == null || navProperty.isEntitySet()) {
+            return null;
+        }
+        if (message.getNpFields() != null && message.getNpFields().contains(navProperty)) {
+            // The entity may have been moved away from another anchor.
+            return null;
+        }
+        Object related = navProperty.getFrom(entity);
+        if (related instanceof Entity) {
+            return ((Entity) related).getId();
+        }
+        return null;
+    }
+
+    private void removeAll(Set<String> keys) {
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        CachedResponse removed = cache.remove(key);
+        if (removed == null) {
+            return;
+        }
+        currentSize -= removed.size;
+        for (EntityType type : removed.typeDependencies) {
+            Set<String> keys = byType.get(type);
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+        for (EntityType type : removed.anchoredDependencies) {
+            Map<EntityType, Map<Id, Set<String>>> anchored = byAnchor.get(type);
+            Map<Id, Set<String>> byId = anchored == null ? null : anchored.get(removed.anchorType);
+            Set<String> keys = byId == null ? null : byId.get(removed.anchorId);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    byId.remove(removed.anchorId);
+                }
+            }
+        }
+    }
+
+    private void evict() {
+        while (currentSize > maxSize && !cache.isEmpty()) {
+            remove(cache.keySet().iterator().next());
+        }
+    }
+
+    @Override
+    public boolean isInterestedIn(EntityType type) {
+        return isEnabled();
+    }
+
+    private static String createKey(ServiceRequest request) {
+        StringBuilder key = new StringBuilder()
+                .append(request.getVersion())
+                .append(request.getUrlPath());
+        if (request.getUrlQuery() != null) {
+            key.append('?').append(request.getUrlQuery());
+        }
+        return key.toString();
+    }
+
+    private static String createEtag(String body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(body.getBytes(StandardCharsets.UTF_8));
+            StringBuilder etag = new StringBuilder("\"");
+            for (byte b : hash) {
+                etag.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException ex) {
+            LOGGER.error("MD5 not available", ex);
+            return "\"" + Integer.toHexString(body.hashCode()) + "\"";
+        }
+    }
+
+    /**
+     * Finds the entity types that the response for the given path and query
+     * depends on.
+     */
+    private static void findDependencies(CachedResponse cached, ResourcePath path, Query query) {
+        int anchorIdx = findAnchor(path);
+        Map<EntityType, Boolean> anchoredByType = new EnumMap<>(EntityType.class);
+        EntityType anchorType = null;
+        if (anchorIdx >= 0) {
+            PathElementEntity anchor = (PathElementEntity) path.get(anchorIdx);
+            anchorType = anchor.getEntityType();
+            cached.anchorType = anchorType;
+            cached.anchorId = anchor.getId();
+        }
+        for (int i = 0; i < path.size(); i++) {
+            EntityType type = getType(path.get(i));
+            if (type == null) {
+                continue;
+            }
+            boolean anchored = (i == anchorIdx)
+                    || (i == anchorIdx + 1 && anchorIdx >= 0 && isDirectlyRelated(type, anchorType));
+            addType(anchoredByType, type, anchored);
+        }
+        boolean anchorIsMain = anchorIdx >= 0 && anchorIdx == path.size() - 1;
+        addQueryTypes(anchoredByType, query, anchorIsMain ? anchorType : null);
+        if (anchorIsMain) {
+            // The properties of the anchor are only in the response if the
+            // anchor itself is returned.
+            for (EntityType implicit : IMPLICIT_DEPENDENCIES.getOrDefault(anchorType, new EntityType[0])) {
+                addType(anchoredByType, implicit, isDirectlyRelated(implicit, anchorType));
+            }
+        }
+        for (Map.Entry<EntityType, Boolean> entry : new EnumMap<>(anchoredByType).entrySet()) {
+            for (EntityType implicit : IMPLICIT_DEPENDENCIES.getOrDefault(entry.getKey(), new EntityType[0])) {
+                if (!anchoredByType.containsKey(implicit) && entry.getKey() != anchorType) {
+                    addType(anchoredByType, implicit, false);
+                }
+            }
+        }
+        for (Map.Entry<EntityType, Boolean> entry : anchoredByType.entrySet()) {
+            if (Boolean.TRUE.equals(entry.getValue())) {
+                cached.anchoredDependencies.add(entry.getKey());
+            } else {
+                cached.typeDependencies.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * The anchor is the first entity in the path, if it has an id and is only
+     * preceded by its own entity set.
+     */
+    private static int findAnchor(ResourcePath path) {
+        for (int i = 0; i < path.size(); i++) {
+            PathElement element = path.get(i);
+            if (element instanceof PathElementEntity) {
+                return ((PathElementEntity) element).getId() == null ? -1 : i;
+            }
+            if (!(element instanceof PathElementEntitySet)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static EntityType getType(PathElement element) {
+        if (element instanceof PathElementEntity) {
+            return ((PathElementEntity) element).getEntityType();
+        }
+        if (element instanceof PathElementEntitySet) {
+            return ((PathElementEntitySet) element).getEntityType();
+        }
+        return null;
+    }
+
+    /**
+     * Checks if entities of the given type link to exactly one entity of the
+     * anchor type.
+     */
+    private static boolean isDirectlyRelated(EntityType type, EntityType anchorType) {
+        if (type == anchorType) {
+            return false;
+        }
+        NavigationPropertyMain navProperty = PathHelper.getNavigationProperty(type, anchorType);
+        return navProperty != null && !navProperty.isEntitySet();
+    }
+
+    private static void addType(Map<EntityType, Boolean> anchoredByType, EntityType type, boolean anchored) {
+        anchoredByType.merge(type, anchored, Boolean::logicalAnd);
+    }
+
+    /**
+     * Adds the types used in the expands, filters and orderbys of the query.
+     *
+     * @param anchorType The type of the anchor, if the query is directly on
+     * the anchor, null otherwise.
+     */
+    private static void addQueryTypes(Map<EntityType, Boolean> anchoredByType, Query query, EntityType anchorType) {
+        if (query == null) {
+            return;
+        }
+        if (query.getFilter() != null) {
+            addExpressionTypes(anchoredByType, query.getFilter());
+        }
+        for (OrderBy orderBy : query.getOrderBy()) {
+            addExpressionTypes(anchoredByType, orderBy.getExpression());
+        }
+        for (Expand expand : query.getExpand()) {
+            EntityType type = expand.getPath().getType();
+            addType(anchoredByType, type, anchorType != null && isDirectlyRelated(type, anchorType));
+            if (expand.hasSubQuery()) {
+                addQueryTypes(anchoredByType, expand.getSubQuery(), null);
+            }
+        }
+    }
+
+    private static void addExpressionTypes(Map<EntityType, Boolean> anchoredByType, Expression expression) {
+        if (expression instanceof Function) {
+            for (Expression parameter : ((Function) expression).getParameters()) {
+                addExpressionTypes(anchoredByType, parameter);
+            }
+        } else if (expression instanceof Path) {
+            for (Property property : ((Path) expression).getElements()) {
+                if (property instanceof NavigationProperty) {
+                    addType(anchoredByType, ((NavigationProperty) property).getType(), false);
+                }
+            }
+        }
+    }
+
+    private static class CachedResponse {
+
+        private final String key;
+        private final String body;
+        private final String contentType;
+        private final String etag;
+        private final long size;
+        private final long created = System.currentTimeMillis();
+        private final Set<EntityType> typeDependencies = new HashSet<>();
+        private final Set<EntityType> anchoredDependencies = new HashSet<>();
+        private EntityType anchorType;
+        private Id anchorId;
+
+        public CachedResponse(String key, String body, String contentType, String etag, long size) {
+            this.key = key;
+            this.body = body;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.size = size;
+        }
+
+        public boolean isExpired(long now, long ttl) {
+            return ttl > 0 && now - created > ttl;
+        }
+
+        public Set<EntityType> allTypes() {
+            Set<EntityType> all = new HashSet<>(typeDependencies);
+            all.addAll(anchoredDependencies);
+            return all;
+        }
+    }
+}
@@ -47,12 +47,15 @@ import static de.fraunhofer.iosb.ilt.frostserver.service.RequestTypeUtils.UPDATE
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.CustomLinksHelper;
 import de.fraunhofer.iosb.ilt.frostserver.util.HttpMethod;
+import de.fraunhofer.iosb.ilt.frostserver.util.ParsedRequestCache;
+import de.fraunhofer.iosb.ilt.frostserver.util.ParsedRequestCache.ParsedRequest;
 import de.fraunhofer.iosb.ilt.frostserver.util.SimpleJsonMapper;
 import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncompleteEntityException;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.NoSuchEntityException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
@@ -322,8 +325,18 @@ public class Service implements AutoCloseable {
     }
 
     private <T> ServiceResponse<T> executeGet(ServiceRequest request) {
+        if (!transactionActive) {
+            ServiceResponse<T> cached = settings.getResponseCache().get(request);
+            if (cached != null) {
+                return cached;
+            }
+        }
         ServiceResponse<T> response = new ServiceResponse<>();
         PersistenceManager pm = getPm();
+        if (!transactionActive) {
+            // Inside a transaction, reads must see the changes made before.
+            pm.setReadOnly(true);
+        }
         try {
             return handleGet(pm, request, response);
         } catch (Exception e) {
@@ -333,29 +346,49 @@ public class Service implements AutoCloseable {
             }
             return errorResponse(response, 500, "Failed to execute query. See logs for details.");
         } finally {
-            maybeRollbackAndClose();
+            if (!response.isStreaming()) {
+                // When streaming, the ResultWriter closes the PM.
+                maybeRollbackAndClose();
+            }
         }
     }
 
     private <T> ServiceResponse<T> handleGet(PersistenceManager pm, ServiceRequest request, ServiceResponse<T> response) {
+        final ResponseCache responseCache = settings.getResponseCache();
+        final long[] changeCounters = responseCache.getChangeCounters();
+        ParsedRequestCache parsedRequestCache = settings.getParsedRequestCache();
+        ParsedRequest parsed = parsedRequestCache.get(request.getVersion(), request.getUrlPath(), request.getUrlQuery());
         ResourcePath path;
-        try {
-            path = PathParser.parsePath(
-                    pm.getIdManager(),
-                    settings.getQueryDefaults().getServiceRootUrl(),
-                    request.getVersion(),
-                    request.getUrlPath());
-        } catch (IllegalArgumentException e) {
-            return errorResponse(response, 404, NOT_A_VALID_ID);
-        } catch (IllegalStateException e) {
-            return errorResponse(response, 404, NOT_A_VALID_ID + ": " + e.getMessage());
-        }
         Query query;
+        if (parsed == null) {
+            try {
+                path = PathParser.parsePath(
+                        pm.getIdManager(),
+                        settings.getQueryDefaults().getServiceRootUrl(),
+                        request.getVersion(),
+                        request.getUrlPath());
+            } catch (IllegalArgumentException e) {
+                return errorResponse(response, 404, NOT_A_VALID_ID);
+            } catch (IllegalStateException e) {
+                return errorResponse(response, 404, NOT_A_VALID_ID + ": " + e.getMessage());
+            }
+        } else {
+            path = parsed.getPath();
+        }
         ResultFormatter formatter;
         try {
-            query = QueryParser.parseQuery(request.getUrlQuery(), settings, path);
-            query.validate();
-            formatter = settings.getFormatter(query.getFormat());
+            if (parsed == null) {
+                query = QueryParser.parseQuery(request.getUrlQuery(), settings, path);
+                query.validate();
+                formatter = settings.getFormatter(query.getFormat());
+                // The cache stores a copy, so preProcessRequest below does not
+                // change the cached query.
+                parsedRequestCache.put(request.getVersion(), request.getUrlPath(), request.getUrlQuery(), new ParsedRequest(path, query));
+            } else {
+                query = parsed.getQuery();
+                query.validate();
+                formatter = settings.getFormatter(query.getFormat());
+            }
             formatter.preProcessRequest(path, query);
         } catch (IllegalArgumentException | IncorrectRequestException ex) {
             return errorResponse(response, 400, ex.getMessage());
@@ -365,9 +398,16 @@ public class Service implements AutoCloseable {
             maybeCommitAndClose();
             return errorResponse(response, 404, NOTHING_FOUND_RESPONSE);
         }
+        boolean streaming = request.isStreamingAllowed() && formatter.isStreaming();
         T object;
         try {
-            object = (T) pm.get(path, query);
+            if (streaming && formatter.isRowBased()) {
+                object = (T) pm.getObservationRows(path, query);
+            } else if (streaming) {
+                object = (T) pm.getLazy(path, query);
+            } else {
+                object = (T) pm.get(path, query);
+            }
         } catch (UnsupportedOperationException e) {
             LOGGER.error("Unsupported operation.", e);
             pm.rollbackAndClose();
@@ -381,22 +421,67 @@ public class Service implements AutoCloseable {
             pm.rollbackAndClose();
             return errorResponse(response, 500, "Illegal result type: " + e.getMessage());
         }
-        maybeCommitAndClose();
         if (object == null) {
+            maybeCommitAndClose();
             if (path.isValue() || path.isEntityProperty()) {
                 return successResponse(response, 204, "No Content");
             } else {
                 return errorResponse(response, 404, NOTHING_FOUND_RESPONSE);
             }
+        } else if (streaming) {
+            final boolean absoluteLinks = settings.getQueryDefaults().useAbsoluteNavigationLinks();
+            final Object result = object;
+            response.setResult(object);
+            response.setResultWriter(out -> writeStreaming(formatter, path, query, result, absoluteLinks, out));
+            response.setContentType(formatter.getContentType());
+            response.setCode(200);
+            return response;
+        } else if (formatter.isBinary()) {
+            // Binary results can not be held as a String, so they are written
+            // from the fully loaded result. They are not cached.
+            maybeCommitAndClose();
+            final boolean absoluteLinks = settings.getQueryDefaults().useAbsoluteNavigationLinks();
+            final Object result = object;
+            response.setResult(object);
+            response.setResultWriter(out -> formatter.format(path, query, result, absoluteLinks, out));
+            response.setContentType(formatter.getContentType());
+            response.setCode(200);
+            return response;
         } else {
+            maybeCommitAndClose();
             response.setResult(object);
             response.setResultFormatted(formatter.format(path, query, object, settings.getQueryDefaults().useAbsoluteNavigationLinks()));
             response.setContentType(formatter.getContentType());
             response.setCode(200);
+            if (!transactionActive && !pm.isReadFromReplica()) {
+                // A replica can lag behind the primary, so after a change it
+                // can still return the old data. Caching that would keep the
+                // stale data until the cache entry expires.
+                responseCache.put(request, path, query, response, changeCounters);
+            }
             return response;
         }
     }
 
+    /**
+     * Writes a lazily loaded result to the given stream. Since the result is
+     * loaded while it is written, the PersistenceManager is only closed after
+     * the result is written.
+     */
+    private void writeStreaming(ResultFormatter formatter, ResourcePath path, Query query, Object result, boolean absoluteLinks, OutputStream out) throws IOException {
+        boolean success = false;
+        try {
+            formatter.format(path, query, result, absoluteLinks, out);
+            success = true;
+        } finally {
+            if (success) {
+                maybeCommitAndClose();
+            } else {
+                maybeRollbackAndClose();
+            }
+        }
+    }
+
     private <T> ServiceResponse<T> executePost(ServiceRequest request) {
         ServiceResponse<T> response = new ServiceResponse<>();
         String urlPath = request.getUrlPath();
@@ -785,6 +870,8 @@ public class Service implements AutoCloseable {
         try {
             pm.delete(path, query);
             maybeCommitAndClose();
+            // Bulk deletes do not send messages for the deleted entities.
+            settings.getResponseCache().invalidateAll();
             return successResponse(response, 200, "Deleted.");
         } catch (NoSuchEntityException e) {
             pm.rollbackAndClose();
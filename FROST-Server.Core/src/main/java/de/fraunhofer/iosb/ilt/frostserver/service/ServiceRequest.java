@@ -18,7 +18,11 @@
 package de.fraunhofer.iosb.ilt.frostserver.service;
 
 import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -30,9 +34,11 @@ public class ServiceRequest {
     private String urlPath;
     private String urlQuery;
     private String content;
+    private Reader contentReader;
     private Version version;
     private String contentType;
     private Map<String, String[]> parameterMap;
+    private boolean streamingAllowed;
 
     protected ServiceRequest() {
         // empty by design.
@@ -43,9 +49,28 @@ public class ServiceRequest {
     }
 
     public String getContent() {
+        if (content == null && contentReader != null) {
+            content = new BufferedReader(contentReader).lines().collect(Collectors.joining("\n"));
+            contentReader = null;
+        }
         return content;
     }
 
+    /**
+     * Get the content of the request as a Reader, so that it can be processed
+     * while it is read. If the content was set as a String, a Reader over that
+     * String is returned. Once the returned Reader has been read from,
+     * {@link #getContent()} no longer returns the full content.
+     *
+     * @return the content of the request as a Reader.
+     */
+    public Reader getContentReader() {
+        if (contentReader != null) {
+            return contentReader;
+        }
+        return new StringReader(content == null ? "" : content);
+    }
+
     public String getContentType() {
         return contentType;
     }
@@ -95,6 +120,16 @@ public class ServiceRequest {
         this.content = content;
     }
 
+    /**
+     * Set the content of the request as a Reader, so that it does not have to
+     * be read into memory completely before the request is processed.
+     *
+     * @param contentReader the Reader to read the content from.
+     */
+    public void setContentReader(Reader contentReader) {
+        this.contentReader = contentReader;
+    }
+
     public void setContentType(String contentType) {
         this.contentType = contentType;
     }
@@ -103,6 +138,29 @@ public class ServiceRequest {
         this.parameterMap = parameterMap;
     }
 
+    /**
+     * Flag indicating the caller can handle a streamed response. If true, the
+     * Service may return a response with a ResultWriter instead of a
+     * formatted result.
+     *
+     * @return true if the caller can handle a streamed response.
+     */
+    public boolean isStreamingAllowed() {
+        return streamingAllowed;
+    }
+
+    /**
+     * Flag indicating the caller can handle a streamed response. If true, the
+     * Service may return a response with a ResultWriter instead of a
+     * formatted result.
+     *
+     * @param streamingAllowed true if the caller can handle a streamed
+     * response.
+     */
+    public void setStreamingAllowed(boolean streamingAllowed) {
+        this.streamingAllowed = streamingAllowed;
+    }
+
     /**
      * Get the API version for this request.
      *
@@ -18,6 +18,7 @@
 package de.fraunhofer.iosb.ilt.frostserver.service;
 
 import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import java.io.Reader;
 import java.util.Map;
 import java.util.Optional;
 
@@ -32,8 +33,10 @@ public class ServiceRequestBuilder {
     private Optional<String> urlPath;
     private Optional<String> urlQuery;
     private Optional<String> content;
+    private Optional<Reader> contentReader;
     private Optional<String> contentType;
     private Optional<Map<String, String[]>> parameterMap;
+    private boolean streamingAllowed;
     private final Version version;
 
     public ServiceRequestBuilder(Version version) {
@@ -43,6 +46,7 @@ public class ServiceRequestBuilder {
         this.urlPath = Optional.empty();
         this.urlQuery = Optional.empty();
         this.content = Optional.empty();
+        this.contentReader = Optional.empty();
         this.contentType = Optional.empty();
         this.parameterMap = Optional.empty();
     }
@@ -67,6 +71,11 @@ public class ServiceRequestBuilder {
         return this;
     }
 
+    public ServiceRequestBuilder withContentReader(Reader contentReader) {
+        this.contentReader = Optional.ofNullable(contentReader);
+        return this;
+    }
+
     public ServiceRequestBuilder withContentType(String contentType) {
         this.contentType = Optional.ofNullable(contentType);
         return this;
@@ -77,6 +86,11 @@ public class ServiceRequestBuilder {
         return this;
     }
 
+    public ServiceRequestBuilder withStreamingAllowed(boolean streamingAllowed) {
+        this.streamingAllowed = streamingAllowed;
+        return this;
+    }
+
     public ServiceRequestBuilder withRequestType(String requestType) {
         this.requestType = Optional.of(requestType);
         return this;
@@ -97,6 +111,9 @@ public class ServiceRequestBuilder {
         if (content.isPresent()) {
             result.setContent(content.get());
         }
+        if (contentReader.isPresent()) {
+            result.setContentReader(contentReader.get());
+        }
         if (contentType.isPresent()) {
             result.setContentType(contentType.get());
         }
@@ -106,6 +123,7 @@ public class ServiceRequestBuilder {
         if (requestType.isPresent()) {
             result.setRequestType(requestType.get());
         }
+        result.setStreamingAllowed(streamingAllowed);
         return result;
     }
 }
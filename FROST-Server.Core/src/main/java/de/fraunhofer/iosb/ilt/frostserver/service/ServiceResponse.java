@@ -17,6 +17,8 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,6 +29,8 @@ import java.util.Map;
  */
 public class ServiceResponse<T> {
 
+    public static final String HEADER_ETAG = "ETag";
+
     /**
      * The non-formatted result.
      */
@@ -35,6 +39,11 @@ public class ServiceResponse<T> {
      * The formatted result.
      */
     private String resultFormatted;
+    /**
+     * Writes the formatted result directly to a stream, used instead of
+     * resultFormatted when the result is streamed.
+     */
+    private ResultWriter resultWriter;
     /**
      * The content type of the formatted result.
      */
@@ -125,8 +134,75 @@ public class ServiceResponse<T> {
         this.resultFormatted = resultFormatted;
     }
 
+    /**
+     * The writer that writes the formatted result directly to a stream. If
+     * this is set, the result is streamed, and resultFormatted is not set.
+     *
+     * @return the resultWriter, or null if the result is not streamed.
+     */
+    public ResultWriter getResultWriter() {
+        return resultWriter;
+    }
+
+    /**
+     * The writer that writes the formatted result directly to a stream. If
+     * this is set, the result is streamed, and resultFormatted is not set.
+     *
+     * @param resultWriter the resultWriter to set.
+     */
+    public void setResultWriter(ResultWriter resultWriter) {
+        this.resultWriter = resultWriter;
+    }
+
+    public boolean isStreaming() {
+        return resultWriter != null;
+    }
+
     public boolean isSuccessful() {
         return code >= 200 && code < 300;
     }
 
+    /**
+     * Checks if the client already has the current version of this response,
+     * according to the If-None-Match header of the request.
+     *
+     * @param ifNoneMatch The value of the If-None-Match header, may be null.
+     * @return true if the client has the current version.
+     */
+    public boolean isNotModified(String ifNoneMatch) {
+        if (code != 200) {
+            return false;
+        }
+        String etag = headers.get(HEADER_ETAG);
+        if (etag == null || ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.startsWith("W/")) {
+                trimmed = trimmed.substring(2);
+            }
+            if ("*".equals(trimmed) || etag.equals(trimmed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a formatted result to an OutputStream.
+     */
+    @FunctionalInterface
+    public static interface ResultWriter {
+
+        /**
+         * Write the formatted result to the given stream. The stream is not
+         * closed.
+         *
+         * @param out The stream to write to.
+         * @throws IOException If writing to the stream fails.
+         */
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
 }
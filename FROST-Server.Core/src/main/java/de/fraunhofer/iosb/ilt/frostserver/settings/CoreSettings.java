@@ -22,10 +22,12 @@ import static de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDef
 import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
 import de.fraunhofer.iosb.ilt.frostserver.query.QueryDefaults;
 import de.fraunhofer.iosb.ilt.frostserver.service.PluginManager;
+import de.fraunhofer.iosb.ilt.frostserver.service.ResponseCache;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValue;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueBoolean;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
 import de.fraunhofer.iosb.ilt.frostserver.util.LiquibaseUser;
+import de.fraunhofer.iosb.ilt.frostserver.util.ParsedRequestCache;
 import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
 import java.io.IOException;
@@ -70,6 +72,8 @@ public class CoreSettings implements ConfigDefaults {
     public static final String TAG_ENABLE_ACTUATION = "enableActuation";
     @DefaultValueBoolean(true)
     public static final String TAG_ENABLE_MULTIDATASTREAM = "enableMultiDatastream";
+    @DefaultValueInt(1000)
+    public static final String TAG_PARSE_CACHE_SIZE = "parseCacheSize";
 
     /**
      * Used when passing CoreSettings in a map.
@@ -93,6 +97,24 @@ public class CoreSettings implements ConfigDefaults {
     public static final String TAG_CORS_PREFLIGHT_MAXAGE = "cors.preflight.maxage";
     @DefaultValueBoolean(true)
     public static final String TAG_CORS_REQUEST_DECORATE = "cors.request.decorate";
+    @DefaultValueBoolean(false)
+    public static final String TAG_STREAMING_ENABLE = "streaming.enable";
+    @DefaultValueInt(0)
+    public static final String TAG_RESPONSE_CACHE_MAX_SIZE = "responseCache.maxSize";
+    @DefaultValueInt(300)
+    public static final String TAG_RESPONSE_CACHE_TTL = "responseCache.ttl";
+    @DefaultValueBoolean(false)
+    public static final String TAG_ASYNC_ENABLE = "async.enable";
+    @DefaultValue("PLATFORM")
+    public static final String TAG_ASYNC_EXECUTOR = "async.executor";
+    @DefaultValueInt(0)
+    public static final String TAG_ASYNC_MAX_READS = "async.maxReads";
+    @DefaultValueInt(0)
+    public static final String TAG_ASYNC_MAX_WRITES = "async.maxWrites";
+    @DefaultValueInt(100)
+    public static final String TAG_ASYNC_QUEUE_SIZE = "async.queueSize";
+    @DefaultValueInt(5)
+    public static final String TAG_ASYNC_RETRY_AFTER = "async.retryAfter";
 
     // Auth Tags
     @DefaultValue("")
@@ -153,6 +175,14 @@ public class CoreSettings implements ConfigDefaults {
      * Flag indicating MultiDatastream should be enabled (entities not hidden).
      */
     private boolean enableMultiDatastream;
+    /**
+     * The cache of parsed paths and queries.
+     */
+    private ParsedRequestCache parsedRequestCache = new ParsedRequestCache(0);
+    /**
+     * The cache of formatted GET responses.
+     */
+    private ResponseCache responseCache = new ResponseCache(0, 0);
 
     /**
      * The set of enabled extensions that are defined in the standard.
@@ -217,6 +247,9 @@ public class CoreSettings implements ConfigDefaults {
         Settings settings = new Settings(properties);
         initLocalFields(settings);
         initChildSettings(settings);
+        responseCache = new ResponseCache(
+                httpSettings.getLong(TAG_RESPONSE_CACHE_MAX_SIZE, getClass()),
+                httpSettings.getInt(TAG_RESPONSE_CACHE_TTL, getClass()));
         initExtensions();
         pluginManager.init(this);
     }
@@ -249,6 +282,7 @@ public class CoreSettings implements ConfigDefaults {
         queryDefaults.setTopDefault(settings.getInt(TAG_DEFAULT_TOP, getClass()));
         queryDefaults.setTopMax(settings.getInt(TAG_MAX_TOP, getClass()));
         dataSizeMax = settings.getLong(TAG_MAX_DATASIZE, getClass());
+        parsedRequestCache = new ParsedRequestCache(settings.getInt(TAG_PARSE_CACHE_SIZE, getClass()));
     }
 
     private void initChildSettings(Settings settings) {
@@ -397,6 +431,26 @@ public class CoreSettings implements ConfigDefaults {
         liquibaseUsers.add(liquibaseUser);
     }
 
+    /**
+     * The cache of parsed paths and queries, used to skip parsing of
+     * frequently repeated requests.
+     *
+     * @return The cache of parsed paths and queries.
+     */
+    public ParsedRequestCache getParsedRequestCache() {
+        return parsedRequestCache;
+    }
+
+    /**
+     * The cache of formatted GET responses. Disabled unless
+     * http.responseCache.maxSize is set.
+     *
+     * @return The cache of formatted GET responses.
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
     /**
      * Returns the ResultFormatter with the given name.
      *
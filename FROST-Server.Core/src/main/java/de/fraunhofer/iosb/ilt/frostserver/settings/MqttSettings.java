@@ -65,6 +65,8 @@ public class MqttSettings implements ConfigDefaults {
     public static final String TAG_CREATE_THREAD_POOL_SIZE = "CreateThreadPoolSize";
     @DefaultValue("")
     public static final String TAG_EXPOSED_MQTT_ENDPOINTS = "exposedEndpoints";
+    @DefaultValueBoolean(false)
+    public static final String TAG_USE_READ_REPLICA = "useReadReplica";
 
     /**
      * Constraints
@@ -20,6 +20,8 @@ package de.fraunhofer.iosb.ilt.frostserver.settings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValue;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueBoolean;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -27,6 +29,11 @@ import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
  */
 public class PersistenceSettings implements ConfigDefaults {
 
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceSettings.class);
+
     /**
      * Tags
      */
@@ -34,6 +41,8 @@ public class PersistenceSettings implements ConfigDefaults {
     public static final String TAG_IMPLEMENTATION_CLASS = "persistenceManagerImplementationClass";
     @DefaultValueBoolean(false)
     public static final String TAG_ALWAYS_ORDERBY_ID = "alwaysOrderbyId";
+    @DefaultValueBoolean(false)
+    public static final String TAG_KEYSET_PAGINATION = "keysetPagination";
     @DefaultValue("ServerGeneratedOnly")
     public static final String TAG_ID_GENERATION_MODE = "idGenerationMode";
     @DefaultValueBoolean(false)
@@ -42,12 +51,54 @@ public class PersistenceSettings implements ConfigDefaults {
     public static final String TAG_SLOW_QUERY_THRESHOLD = "slowQueryThreshold";
     @DefaultValueInt(0)
     public static final String TAG_QUERY_TIMEOUT = "queryTimeout";
+    @DefaultValue("FULL")
+    public static final String TAG_COUNT_MODE = "countMode";
+    @DefaultValueInt(10000)
+    public static final String TAG_COUNT_ESTIMATE_THRESHOLD = "countEstimateThreshold";
+    @DefaultValueInt(0)
+    public static final String TAG_COUNT_CACHE_TTL = "countCacheTtl";
+    @DefaultValueInt(0)
+    public static final String TAG_QUERY_SHAPE_CACHE_SIZE = "queryShapeCacheSize";
+    @DefaultValueInt(0)
+    public static final String TAG_PARENT_CACHE_SIZE = "parentCacheSize";
+    /**
+     * The maximum size of the database connection pool, a custom setting of
+     * the persistence manager. Also used to limit the number of concurrent
+     * requests. The default is the default of the BasicDataSource.
+     */
+    @DefaultValueInt(8)
+    public static final String TAG_DB_MAXCONN = "db.conn.max";
+
+    /**
+     * The ways the persistence layer can count the entities in a collection.
+     */
+    public enum CountMode {
+        /**
+         * Always do an exact count.
+         */
+        FULL,
+        /**
+         * Count up to countEstimateThreshold entities, larger collections
+         * report countEstimateThreshold.
+         */
+        LIMIT,
+        /**
+         * Use the row estimate of the database, and only do an exact count if
+         * the estimate is below countEstimateThreshold.
+         */
+        ESTIMATE
+    }
 
     /**
      * Fully-qualified class name of the PersistenceManager implementation class
      */
     private String persistenceManagerImplementationClass;
     private boolean alwaysOrderbyId;
+    /**
+     * Flag indicating nextLinks should continue after the last entity of the
+     * page, instead of using $skip.
+     */
+    private boolean keysetPagination;
     private String idGenerationMode;
     private boolean autoUpdateDatabase;
     /**
@@ -66,6 +117,26 @@ public class PersistenceSettings implements ConfigDefaults {
      * Flag indicating a queryTimeout is set.
      */
     private boolean timeoutQueries;
+    /**
+     * The way entities in collections are counted.
+     */
+    private CountMode countMode;
+    /**
+     * The threshold below which counts are always exact.
+     */
+    private int countEstimateThreshold;
+    /**
+     * The time, in seconds, that counts are cached.
+     */
+    private int countCacheTtl;
+    /**
+     * The number of query shapes for which the rendered SQL is cached.
+     */
+    private int queryShapeCacheSize;
+    /**
+     * The number of (Multi)Datastreams of which the existence is cached.
+     */
+    private int parentCacheSize;
     /**
      * Extension point for implementation specific settings
      */
@@ -81,12 +152,24 @@ public class PersistenceSettings implements ConfigDefaults {
     private void init(Settings settings) {
         persistenceManagerImplementationClass = settings.get(TAG_IMPLEMENTATION_CLASS, getClass());
         alwaysOrderbyId = settings.getBoolean(TAG_ALWAYS_ORDERBY_ID, getClass());
+        keysetPagination = settings.getBoolean(TAG_KEYSET_PAGINATION, getClass());
         idGenerationMode = settings.get(TAG_ID_GENERATION_MODE, getClass());
         autoUpdateDatabase = settings.getBoolean(TAG_AUTO_UPDATE_DATABASE, getClass());
         slowQueryThreshold = settings.getInt(TAG_SLOW_QUERY_THRESHOLD, getClass());
         logSlowQueries = slowQueryThreshold > 0;
         queryTimeout = settings.getInt(TAG_QUERY_TIMEOUT, getClass());
         timeoutQueries = queryTimeout > 0;
+        String countModeName = settings.get(TAG_COUNT_MODE, getClass());
+        try {
+            countMode = CountMode.valueOf(countModeName.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Unknown value for {}: {}, using {}.", TAG_COUNT_MODE, countModeName, CountMode.FULL);
+            countMode = CountMode.FULL;
+        }
+        countEstimateThreshold = settings.getInt(TAG_COUNT_ESTIMATE_THRESHOLD, getClass());
+        countCacheTtl = settings.getInt(TAG_COUNT_CACHE_TTL, getClass());
+        queryShapeCacheSize = settings.getInt(TAG_QUERY_SHAPE_CACHE_SIZE, getClass());
+        parentCacheSize = settings.getInt(TAG_PARENT_CACHE_SIZE, getClass());
         customSettings = settings;
     }
 
@@ -98,6 +181,16 @@ public class PersistenceSettings implements ConfigDefaults {
         return alwaysOrderbyId;
     }
 
+    /**
+     * Flag indicating nextLinks should continue after the last entity of the
+     * page, using a $skiptoken, instead of using $skip.
+     *
+     * @return true if keyset pagination should be used.
+     */
+    public boolean isKeysetPagination() {
+        return keysetPagination;
+    }
+
     public boolean isAutoUpdateDatabase() {
         return autoUpdateDatabase;
     }
@@ -146,4 +239,55 @@ public class PersistenceSettings implements ConfigDefaults {
         return timeoutQueries;
     }
 
+
+    /**
+     * The way entities in collections are counted.
+     *
+     * @return The way entities in collections are counted.
+     */
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    /**
+     * The threshold below which counts are always exact, and the maximum
+     * count when using the LIMIT count mode.
+     *
+     * @return The threshold below which counts are always exact.
+     */
+    public int getCountEstimateThreshold() {
+        return countEstimateThreshold;
+    }
+
+    /**
+     * The time, in seconds, that counts are cached. 0 means counts are not
+     * cached.
+     *
+     * @return The time, in seconds, that counts are cached.
+     */
+    public int getCountCacheTtl() {
+        return countCacheTtl;
+    }
+
+    /**
+     * The number of query shapes for which the rendered SQL is cached. 0
+     * means the SQL is not cached.
+     *
+     * @return The number of query shapes for which the SQL is cached.
+     */
+    public int getQueryShapeCacheSize() {
+        return queryShapeCacheSize;
+    }
+
+    /**
+     * The number of (Multi)Datastreams of which the existence is cached. 0
+     * means the existence is checked in the database for each Observation.
+     *
+     * @return The number of (Multi)Datastreams of which the existence is
+     * cached.
+     */
+    public int getParentCacheSize() {
+        return parentCacheSize;
+    }
+
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.util;
+
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of parsed ResourcePaths and Queries, keyed on the
+ * version, path and query string of the request. Since Paths and Queries are
+ * changed after parsing, the cache stores templates and only hands out copies.
+ *
+ * Like the ResponseCache, the LRU order is kept by a LinkedHashMap in access
+ * order, guarded by a lock. The lock is only held for the lookup itself, the
+ * copies are made outside of it.
+ *
+ * @author scf
+ */
+public class ParsedRequestCache {
+
+    /**
+     * A parsed path with its parsed query.
+     */
+    public static class ParsedRequest {
+
+        private final ResourcePath path;
+        private final Query query;
+
+        public ParsedRequest(ResourcePath path, Query query) {
+            this.path = path;
+            this.query = query;
+        }
+
+        public ResourcePath getPath() {
+            return path;
+        }
+
+        public Query getQuery() {
+            return query;
+        }
+
+        /**
+         * Creates a copy of the path and query, that can be changed without
+         * affecting this instance.
+         *
+         * @return A copy of this ParsedRequest.
+         */
+        public ParsedRequest copy() {
+            ResourcePath pathCopy = path.copy();
+            return new ParsedRequest(pathCopy, query.copy(pathCopy));
+        }
+    }
+
+    private final int maxSize;
+    private final Map<String, ParsedRequest> cache;
+
+    /**
+     * Creates a new cache with the given maximum size. A size of 0 or less
+     * disables the cache.
+     *
+     * @param maxSize The maximum number of requests to cache.
+     */
+    public ParsedRequestCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<String, ParsedRequest>(Math.max(16, maxSize), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedRequest> eldest) {
+                return size() > ParsedRequestCache.this.maxSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Returns a copy of the cached request for the given url, or null if the
+     * url is not in the cache.
+     *
+     * @param version The version of the request.
+     * @param urlPath The path of the request.
+     * @param urlQuery The query string of the request.
+     * @return A copy of the cached request, or null.
+     */
+    public ParsedRequest get(Version version, String urlPath, String urlQuery) {
+        if (!isEnabled()) {
+            return null;
+        }
+        ParsedRequest cached;
+        synchronized (cache) {
+            cached = cache.get(createKey(version, urlPath, urlQuery));
+        }
+        if (cached == null) {
+            return null;
+        }
+        return cached.copy();
+    }
+
+    /**
+     * Adds a copy of the given, validated, path and query to the cache.
+     *
+     * @param version The version of the request.
+     * @param urlPath The path of the request.
+     * @param urlQuery The query string of the request.
+     * @param request The parsed path and query.
+     */
+    public void put(Version version, String urlPath, String urlQuery, ParsedRequest request) {
+        if (!isEnabled()) {
+            return;
+        }
+        ParsedRequest template = request.copy();
+        synchronized (cache) {
+            cache.put(createKey(version, urlPath, urlQuery), template);
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static String createKey(Version version, String urlPath, String urlQuery) {
+        StringBuilder key = new StringBuilder(String.valueOf(version)).append(urlPath);
+        if (urlQuery != null) {
+            key.append('?').append(urlQuery);
+        }
+        return key.toString();
+    }
+
+}
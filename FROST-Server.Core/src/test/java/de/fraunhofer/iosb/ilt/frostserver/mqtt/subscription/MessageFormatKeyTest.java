@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription;
+
+import de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDefault;
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that subscriptions that get the same message share a message format
+ * key, and that subscriptions that get different messages do not.
+ *
+ * @author scf
+ */
+public class MessageFormatKeyTest {
+
+    private static CoreSettings settings;
+
+    @BeforeClass
+    public static void initClass() {
+        settings = new CoreSettings();
+        new PluginResultFormatDefault().init(settings);
+    }
+
+    private static ResourcePath parsePath(String path) {
+        return PathParser.parsePath("", Version.V_1_1, path);
+    }
+
+    private static Object entitySetKey(String path, String query) {
+        String topic = "v1.1" + path + (query == null ? "" : "?" + query);
+        return new EntitySetSubscription(settings, topic, parsePath(path)).getMessageFormatKey();
+    }
+
+    private static Object entityKey(String path) {
+        return new EntitySubscription(settings, "v1.1" + path, parsePath(path)).getMessageFormatKey();
+    }
+
+    private static Object propertyKey(String path) {
+        return new PropertySubscription("v1.1" + path, parsePath(path), settings).getMessageFormatKey();
+    }
+
+    @Test
+    public void testEntityAndEntitySetShareKey() {
+        Object entity = entityKey("/Observations(1)");
+        Assert.assertEquals(Collections.emptySet(), entity);
+        Assert.assertEquals(entity, entityKey("/Datastreams(1)/Observations(2)"));
+        Assert.assertEquals(entity, entitySetKey("/Observations", null));
+        Assert.assertEquals(entity, entitySetKey("/Datastreams(1)/Observations", null));
+    }
+
+    @Test
+    public void testInvalidQueryUsesDefaultKey() {
+        Assert.assertEquals(entityKey("/Observations(1)"), entitySetKey("/Observations", "$select=("));
+    }
+
+    @Test
+    public void testPropertyAndSelectShareKey() {
+        Object property = propertyKey("/Observations(1)/result");
+        Assert.assertEquals(Collections.singleton(EntityPropertyMain.RESULT), property);
+        Assert.assertEquals(property, entitySetKey("/Observations", "$select=result"));
+        Assert.assertNotEquals(property, propertyKey("/Observations(1)/resultTime"));
+        Assert.assertNotEquals(property, entityKey("/Observations(1)"));
+    }
+
+    @Test
+    public void testSelectOrderDoesNotMatter() {
+        Assert.assertEquals(
+                entitySetKey("/Observations", "$select=result,phenomenonTime"),
+                entitySetKey("/Observations", "$select=phenomenonTime,result"));
+        Assert.assertNotEquals(
+                entitySetKey("/Observations", "$select=result,phenomenonTime"),
+                entitySetKey("/Observations", "$select=result"));
+    }
+
+}
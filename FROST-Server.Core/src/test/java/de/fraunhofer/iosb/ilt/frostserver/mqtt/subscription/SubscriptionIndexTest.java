@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.mqtt.subscription;
+
+import de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDefault;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.HistoricalLocation;
+import de.fraunhofer.iosb.ilt.frostserver.model.Location;
+import de.fraunhofer.iosb.ilt.frostserver.model.Thing;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetImpl;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.Path;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.constant.IntegerConstant;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.function.comparison.Equal;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the SubscriptionIndex finds exactly the Subscriptions that
+ * checking each Subscription on its own finds.
+ *
+ * @author scf
+ */
+public class SubscriptionIndexTest {
+
+    private static final String[] ENTITY_SET_PATHS = {
+        "/Locations",
+        "/Things(1)/Locations",
+        "/Things(2)/Locations",
+        "/Things(3)/Locations",
+        "/HistoricalLocations(4)/Locations"
+    };
+
+    private static CoreSettings settings;
+
+    /**
+     * The related entities of each Location: Location id, navigation
+     * property, ids of the related entities.
+     */
+    private final Map<Long, Map<NavigationPropertyMain, Set<Long>>> relations = new HashMap<>();
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private SubscriptionIndex index;
+    private PersistenceManager pm;
+    private boolean overflow;
+
+    @BeforeClass
+    public static void initClass() {
+        settings = new CoreSettings();
+        new PluginResultFormatDefault().init(settings);
+    }
+
+    @Before
+    public void init() {
+        relate(10, NavigationPropertyMain.THINGS, 1, 2);
+        relate(10, NavigationPropertyMain.HISTORICALLOCATIONS, 4);
+        relate(11, NavigationPropertyMain.THINGS, 2);
+        overflow = false;
+        pm = (PersistenceManager) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{PersistenceManager.class},
+                (proxy, method, args) -> {
+                    if ("get".equals(method.getName()) && args.length == 2) {
+                        return get((ResourcePath) args[0], (Query) args[1]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        index = new SubscriptionIndex(settings);
+        for (String path : ENTITY_SET_PATHS) {
+            addSubscription(new EntitySetSubscription(settings, "v1.1" + path, parsePath(path)));
+        }
+        addSubscription(new EntitySetSubscription(settings, "v1.1/Things(1)/Locations?$select=name", parsePath("/Things(1)/Locations")));
+        addSubscription(new EntitySubscription(settings, "v1.1/Locations(10)", parsePath("/Locations(10)")));
+        addSubscription(new PropertySubscription("v1.1/Locations(10)/name", parsePath("/Locations(10)/name"), settings));
+    }
+
+    private void relate(long locationId, NavigationPropertyMain navProp, long... ids) {
+        Set<Long> related = relations
+                .computeIfAbsent(locationId, l -> new EnumMap<>(NavigationPropertyMain.class))
+                .computeIfAbsent(navProp, n -> new HashSet<>());
+        for (long id : ids) {
+            related.add(id);
+        }
+    }
+
+    private void addSubscription(Subscription subscription) {
+        subscriptions.add(subscription);
+        index.add(subscription);
+    }
+
+    private static ResourcePath parsePath(String path) {
+        return PathParser.parsePath("", Version.V_1_1, path);
+    }
+
+    /**
+     * Answers the two kinds of queries the subscriptions do: the ids of the
+     * entities related to a Location, and a Location filtered on the id of a
+     * related entity.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private Object get(ResourcePath path, Query query) {
+        long locationId = (Long) ((PathElementEntity) path.get(0)).getId().getValue();
+        Map<NavigationPropertyMain, Set<Long>> locationRelations = relations.getOrDefault(locationId, Collections.emptyMap());
+        if (path.size() == 1) {
+            Equal filter = (Equal) query.getFilter();
+            List<Property> elements = ((Path) filter.getParameters().get(0)).getElements();
+            Assert.assertEquals(2, elements.size());
+            Assert.assertEquals(EntityPropertyMain.ID, elements.get(1));
+            long id = ((IntegerConstant) filter.getParameters().get(1)).getValue();
+            if (locationRelations.getOrDefault((NavigationPropertyMain) elements.get(0), Collections.emptySet()).contains(id)) {
+                return new Location(new IdLong(locationId));
+            }
+            return null;
+        }
+        Assert.assertEquals(2, path.size());
+        EntityType type = ((PathElementEntitySet) path.get(1)).getEntityType();
+        NavigationPropertyMain navProp = type == EntityType.THING ? NavigationPropertyMain.THINGS : NavigationPropertyMain.HISTORICALLOCATIONS;
+        List<Entity> related = new ArrayList<>();
+        for (long id : locationRelations.getOrDefault(navProp, Collections.emptySet())) {
+            related.add(type == EntityType.THING ? new Thing(new IdLong(id)) : new HistoricalLocation(new IdLong(id)));
+        }
+        EntitySetImpl result = new EntitySetImpl(type, related);
+        if (overflow) {
+            result.setNextLink("next");
+        }
+        return result;
+    }
+
+    private Set<Subscription> findIndexed(Entity entity, Set<Property> fields) {
+        List<Subscription> matches = index.findMatches(pm, entity, fields);
+        Set<Subscription> result = new HashSet<>(matches);
+        Assert.assertEquals("Subscription found more than once", matches.size(), result.size());
+        return result;
+    }
+
+    private Set<Subscription> findLinear(Entity entity, Set<Property> fields) {
+        Set<Subscription> result = new HashSet<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(pm, entity, fields)) {
+                result.add(subscription);
+            }
+        }
+        return result;
+    }
+
+    private void assertSameMatches(long locationId, Set<Property> fields, int expectedCount) {
+        Location location = new Location(new IdLong(locationId));
+        Set<Subscription> linear = findLinear(location, fields);
+        Assert.assertEquals(linear, findIndexed(location, fields));
+        Assert.assertEquals(expectedCount, linear.size());
+    }
+
+    @Test
+    public void testMatchesEqualLinearScan() {
+        Set<Property> nameChanged = Collections.singleton(EntityPropertyMain.NAME);
+        // Locations, Things(1) twice, Things(2), HistoricalLocations(4), Locations(10), Locations(10)/name
+        assertSameMatches(10, nameChanged, 7);
+        // Locations, Things(2)
+        assertSameMatches(11, nameChanged, 2);
+        // Locations
+        assertSameMatches(12, nameChanged, 1);
+        Set<Property> otherChanged = new HashSet<>(Arrays.asList(EntityPropertyMain.DESCRIPTION, EntityPropertyMain.LOCATION));
+        // Locations(10)/name does not match a change of other properties
+        assertSameMatches(10, otherChanged, 6);
+    }
+
+    @Test
+    public void testMatchesEqualLinearScanWithTooManyRelated() {
+        overflow = true;
+        Set<Property> nameChanged = Collections.singleton(EntityPropertyMain.NAME);
+        assertSameMatches(10, nameChanged, 7);
+        assertSameMatches(11, nameChanged, 2);
+    }
+
+    @Test
+    public void testMatchesAfterRemove() {
+        Subscription thing1 = subscriptions.get(1);
+        Subscription thing2 = subscriptions.get(2);
+        Assert.assertEquals(2, index.add(thing1));
+        Assert.assertEquals(1, index.remove(thing1));
+        Assert.assertEquals(0, index.remove(thing1));
+        Assert.assertEquals(-1, index.remove(thing1));
+        Assert.assertEquals(0, index.remove(thing2));
+        subscriptions.remove(thing1);
+        subscriptions.remove(thing2);
+        Set<Property> nameChanged = Collections.singleton(EntityPropertyMain.NAME);
+        assertSameMatches(10, nameChanged, 5);
+        assertSameMatches(11, nameChanged, 1);
+    }
+
+}
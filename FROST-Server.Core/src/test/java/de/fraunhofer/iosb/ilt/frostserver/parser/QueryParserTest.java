@@ -17,6 +17,7 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.parser;
 
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
 import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
 import de.fraunhofer.iosb.ilt.frostserver.path.Version;
@@ -24,6 +25,8 @@ import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyCustom;
 import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
 import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyCustom;
 import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.query.Aggregation;
+import de.fraunhofer.iosb.ilt.frostserver.query.Aggregation.AggregateFunction;
 import de.fraunhofer.iosb.ilt.frostserver.query.Expand;
 import de.fraunhofer.iosb.ilt.frostserver.query.OrderBy;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
@@ -49,8 +52,10 @@ import de.fraunhofer.iosb.ilt.frostserver.query.expression.function.math.Round;
 import de.fraunhofer.iosb.ilt.frostserver.query.expression.function.temporal.Overlaps;
 import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigUtils;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.util.Arrays;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.Period;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -98,6 +103,69 @@ public class QueryParserTest {
         Assert.assertEquals(10, result.getSkip(11));
     }
 
+    @Test
+    public void testSkipToken() {
+        Query expResult = new Query(settings.getQueryDefaults(), path);
+        expResult.setSkipToken("WzIwMCwiTjEyIl0");
+
+        String query = "$top=2&$skiptoken=WzIwMCwiTjEyIl0";
+        Query result = QueryParser.parseQuery(query, settings, path);
+        expResult.setTop(2);
+        Assert.assertEquals(expResult, result);
+        Assert.assertEquals("$top=2&$skiptoken=WzIwMCwiTjEyIl0", result.toString());
+    }
+
+    @Test
+    public void testAggregate() {
+        Query expResult = new Query(settings.getQueryDefaults(), path);
+        expResult.setAggregation(new Aggregation(Period.hours(1), Arrays.asList(AggregateFunction.MIN, AggregateFunction.AVG, AggregateFunction.COUNT)));
+
+        String query = "$aggregate=duration'PT1H',min,avg,count";
+        Query result = QueryParser.parseQuery(query, settings, path);
+        Assert.assertEquals(expResult, result);
+        Assert.assertEquals("hour", result.getAggregation().getCalendarUnit());
+
+        query = "$aggregate=duration'PT15M',max";
+        result = QueryParser.parseQuery(query, settings, path);
+        Assert.assertNull(result.getAggregation().getCalendarUnit());
+        Assert.assertEquals(900, result.getAggregation().getSeconds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAggregateInvalidFunction() {
+        QueryParser.parseQuery("$aggregate=duration'PT1H',median", settings, path);
+    }
+
+    @Test
+    public void testAggregateValidation() {
+        ResourcePath observations = PathParser.parsePath("", Version.V_1_1, "/Observations");
+        String aggregate = "$aggregate=duration'PT1H',avg";
+        QueryParser.parseQuery(aggregate + "&$filter=result gt 5&$top=10", settings, observations).validate();
+        QueryParser.parseQuery(aggregate + "&$count=false", settings, observations).validate();
+        String[] invalid = {
+            "&$count=true",
+            "&$skiptoken=abc",
+            "&$select=result",
+            "&$orderby=phenomenonTime"
+        };
+        for (String extra : invalid) {
+            Query query = QueryParser.parseQuery(aggregate + extra, settings, observations);
+            try {
+                query.validate();
+                Assert.fail("Should have been rejected: " + extra);
+            } catch (IllegalArgumentException exc) {
+                // expected
+            }
+        }
+        ResourcePath things = PathParser.parsePath("", Version.V_1_1, "/Things");
+        try {
+            QueryParser.parseQuery(aggregate, settings, things).validate();
+            Assert.fail("Should have been rejected: $aggregate on Things");
+        } catch (IllegalArgumentException exc) {
+            // expected
+        }
+    }
+
     @Test
     public void testCount() {
         Query expResult = new Query(settings.getQueryDefaults(), path);
@@ -33,7 +33,9 @@ import de.fraunhofer.iosb.ilt.frostserver.model.Thing;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetImpl;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetLazy;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.RawJsonMap;
 import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInstant;
 import de.fraunhofer.iosb.ilt.frostserver.model.ext.UnitOfMeasurement;
 import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
@@ -45,8 +47,14 @@ import de.fraunhofer.iosb.ilt.frostserver.query.QueryDefaults;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.SimpleJsonMapper;
 import de.fraunhofer.iosb.ilt.frostserver.util.TestHelper;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.joda.time.DateTimeZone;
@@ -191,6 +199,64 @@ public class EntityFormatterTest {
         Assert.assertTrue(jsonEqual(expResult, JsonWriter.writeEntityCollection(things)));
     }
 
+    @Test
+    public void writeThingsLazy() throws IOException {
+        String thing
+                = "{\n"
+                + "\"@iot.id\": 1,\n"
+                + "\"@iot.selfLink\": \"http://example.org/v1.0/Things(1)\",\n"
+                + "\"Locations@iot.navigationLink\": \"Things(1)/Locations\",\n"
+                + "\"Datastreams@iot.navigationLink\": \"Things(1)/Datastreams\",\n"
+                + "\"MultiDatastreams@iot.navigationLink\": \"Things(1)/MultiDatastreams\",\n"
+                + "\"HistoricalLocations@iot.navigationLink\": \"Things(1)/HistoricalLocations\",\n"
+                + "\"TaskingCapabilities@iot.navigationLink\": \"Things(1)/TaskingCapabilities\",\n"
+                + "\"name\": \"This thing is an oven.\",\n"
+                + "\"description\": \"This thing is an oven.\"\n"
+                + "}";
+        String expResult
+                = "{ \"@iot.count\": 3,\n"
+                + "\"value\":[\n"
+                + thing + ",\n"
+                + thing
+                + "],\n"
+                + "\"@iot.nextLink\": \"http://example.org/v1.0/Things?$skip=2\"}";
+        ResourcePath path = PathParser.parsePath("http://example.org", Version.V_1_0, "/Things");
+        Query query = new Query(queryDefaults, path).validate();
+        Thing entity = new Thing()
+                .setQuery(query)
+                .setId(new IdLong(1))
+                .setName("This thing is an oven.")
+                .setDescription("This thing is an oven.");
+        List<Thing> source = Arrays.asList(entity, entity);
+        final List<EntitySetLazy<Thing>> holder = new ArrayList<>();
+        // The nextLink of a lazy set is only known after iterating.
+        Iterator<Thing> iterator = new Iterator<Thing>() {
+            private final Iterator<Thing> wrapped = source.iterator();
+
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = wrapped.hasNext();
+                if (!hasNext) {
+                    holder.get(0).setNextLink("http://example.org/v1.0/Things?$skip=2");
+                }
+                return hasNext;
+            }
+
+            @Override
+            public Thing next() {
+                return wrapped.next();
+            }
+        };
+        EntitySetLazy<Thing> lazyThings = new EntitySetLazy<>(EntityType.THING, iterator);
+        lazyThings.setCount(3);
+        holder.add(lazyThings);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter.writeEntityCollection(out, lazyThings);
+        String result = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(jsonEqual(expResult, result));
+        Assert.assertTrue(result.indexOf("@iot.nextLink") > result.indexOf("value"));
+    }
+
     @Test
     public void writeThingOnlyId() throws IOException {
         String expResult = "{\"@iot.id\": 1}";
@@ -877,6 +943,47 @@ public class EntityFormatterTest {
         Assert.assertTrue(jsonEqual(expResult, JsonWriter.writeEntity(entity)));
     }
 
+    @Test
+    public void writeThingRawProperties() throws IOException {
+        String expResult
+                = "{\n"
+                + "\"@iot.id\": 1,\n"
+                + "\"name\": \"This thing is an oven.\",\n"
+                + "\"properties\": {\n"
+                + "\"owner\": \"John Doe\",\n"
+                + "\"sizes\": [1.50, 2]\n"
+                + "}\n"
+                + "}";
+        ResourcePath path = PathParser.parsePath("http://example.org", Version.V_1_0, "/Things(1)");
+        Query query = QueryParser.parseQuery("$select=id,name,properties", coreSettings, path).validate();
+        RawJsonMap properties = new RawJsonMap("{\"owner\": \"John Doe\", \"sizes\": [1.50, 2]}");
+        Thing entity = new Thing()
+                .setQuery(query)
+                .setId(new IdLong(1))
+                .setName("This thing is an oven.");
+        entity.setProperties(properties);
+        Assert.assertTrue(jsonEqual(expResult, JsonWriter.writeEntity(entity)));
+        Assert.assertFalse(properties.isParsed());
+
+        properties.put("color", "Silver");
+        Assert.assertTrue(properties.isParsed());
+        Assert.assertEquals("Silver", SimpleJsonMapper.getSimpleObjectMapper()
+                .readTree(JsonWriter.writeEntity(entity))
+                .get("properties")
+                .get("color")
+                .asText());
+    }
+
+    @Test
+    public void testRawJsonMapIsEmpty() {
+        RawJsonMap empty = new RawJsonMap(" {\n\t } ");
+        Assert.assertTrue(empty.isEmpty());
+        Assert.assertFalse(empty.isParsed());
+        RawJsonMap notEmpty = new RawJsonMap("{ \"owner\": \"John Doe\" }");
+        Assert.assertFalse(notEmpty.isEmpty());
+        Assert.assertFalse(notEmpty.isParsed());
+    }
+
     private boolean jsonEqual(String string1, String string2) {
         ObjectMapper mapper = SimpleJsonMapper.getSimpleObjectMapper();
         try {
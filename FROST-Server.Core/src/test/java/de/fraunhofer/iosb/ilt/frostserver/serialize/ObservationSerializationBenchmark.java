@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.serialize;
+
+import de.fraunhofer.iosb.ilt.frostserver.json.serialize.JsonWriter;
+import de.fraunhofer.iosb.ilt.frostserver.model.Datastream;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.Observation;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetImpl;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInstant;
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.query.QueryDefaults;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks the serialisation of a page of 10000 Observations, and the
+ * property access it depends on. The reflective benchmarks show the cost of
+ * looking up the getters with reflection, as was done before the property
+ * methods were cached: serializePageBaseline runs in a JVM with the
+ * frost.property.reflective system property set, so the serialiser uses the
+ * old reflective path, and can be compared directly with serializePage.
+ *
+ * Run using the main method, after building the test classes.
+ *
+ * @author scf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObservationSerializationBenchmark {
+
+    private static final int PAGE_SIZE = 10000;
+    private static final String REFLECTIVE_ARG = "-Dfrost.property.reflective=true";
+
+    private static final EntityPropertyMain[] PROPERTIES = {
+        EntityPropertyMain.ID,
+        EntityPropertyMain.PHENOMENONTIME,
+        EntityPropertyMain.RESULTTIME,
+        EntityPropertyMain.RESULT,
+        EntityPropertyMain.VALIDTIME,
+        EntityPropertyMain.PARAMETERS,
+        EntityPropertyMain.RESULTQUALITY
+    };
+
+    private EntitySet<Observation> observations;
+
+    @Setup
+    public void setup() {
+        ResourcePath path = PathParser.parsePath("http://example.org", Version.V_1_0, "/Observations");
+        Query query = new Query(new QueryDefaults(true, false, PAGE_SIZE, PAGE_SIZE), path).validate();
+        Datastream datastream = new Datastream(new IdLong(1));
+        long start = 1_600_000_000_000L;
+        observations = new EntitySetImpl<>(EntityType.OBSERVATION);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            observations.add(new Observation()
+                    .setQuery(query)
+                    .setId(new IdLong(i))
+                    .setPhenomenonTime(TimeInstant.create(start + i * 1000L))
+                    .setResultTime(TimeInstant.create(start + i * 1000L))
+                    .setResult(new BigDecimal(i))
+                    .setDatastream(datastream));
+        }
+    }
+
+    @Benchmark
+    public String serializePage() throws IOException {
+        return JsonWriter.writeEntityCollection(observations);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = REFLECTIVE_ARG)
+    public String serializePageBaseline() throws IOException {
+        return JsonWriter.writeEntityCollection(observations);
+    }
+
+    @Benchmark
+    public void propertyAccess(Blackhole blackhole) {
+        for (Observation observation : observations) {
+            for (EntityPropertyMain property : PROPERTIES) {
+                blackhole.consume(property.getFrom(observation));
+            }
+        }
+    }
+
+    @Benchmark
+    public void propertyAccessReflective(Blackhole blackhole) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        for (Observation observation : observations) {
+            for (EntityPropertyMain property : PROPERTIES) {
+                blackhole.consume(MethodUtils.invokeMethod(observation, property.getterName));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ObservationSerializationBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
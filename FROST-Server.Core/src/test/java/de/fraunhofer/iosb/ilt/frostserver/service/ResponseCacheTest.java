@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.service;
+
+import de.fraunhofer.iosb.ilt.frostserver.model.Datastream;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.Observation;
+import de.fraunhofer.iosb.ilt.frostserver.model.Sensor;
+import de.fraunhofer.iosb.ilt.frostserver.model.Thing;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the ETags, If-None-Match handling and the invalidation of the
+ * ResponseCache.
+ *
+ * @author scf
+ */
+public class ResponseCacheTest {
+
+    private static CoreSettings settings;
+
+    private ResponseCache cache;
+
+    @BeforeClass
+    public static void initClass() {
+        settings = new CoreSettings();
+    }
+
+    @Before
+    public void init() {
+        cache = new ResponseCache(1_000_000, 0);
+    }
+
+    private static ServiceRequest request(String path, String query) {
+        return new ServiceRequestBuilder(Version.V_1_1)
+                .withRequestType(RequestTypeUtils.READ)
+                .withUrlPath(path)
+                .withUrlQuery(query)
+                .build();
+    }
+
+    private ServiceResponse<Object> put(String path, String query, String body) {
+        return put(path, query, body, cache.getChangeCounters());
+    }
+
+    private ServiceResponse<Object> put(String path, String query, String body, long[] countersAtStart) {
+        ResourcePath resourcePath = PathParser.parsePath("", Version.V_1_1, path);
+        Query parsedQuery = QueryParser.parseQuery(query, settings, resourcePath).validate();
+        ServiceResponse<Object> response = new ServiceResponse<>(200, null, null, body);
+        response.setContentType("application/json");
+        cache.put(request(path, query), resourcePath, parsedQuery, response, countersAtStart);
+        return response;
+    }
+
+    private boolean isCached(String path, String query) {
+        return cache.get(request(path, query)) != null;
+    }
+
+    private void created(Entity entity) {
+        cache.messageReceived(new EntityChangedMessage()
+                .setEventType(EntityChangedMessage.Type.CREATE)
+                .setEntity(entity));
+    }
+
+    @Test
+    public void testEtag() {
+        String etag = put("/Things", null, "{\"value\":[]}").getHeaders().get(ServiceResponse.HEADER_ETAG);
+        Assert.assertNotNull(etag);
+        Assert.assertTrue(etag.matches("\"[0-9a-f]{32}\""));
+        Assert.assertEquals(etag, put("/Sensors", null, "{\"value\":[]}").getHeaders().get(ServiceResponse.HEADER_ETAG));
+        Assert.assertNotEquals(etag, put("/Sensors", null, "{\"value\":[{}]}").getHeaders().get(ServiceResponse.HEADER_ETAG));
+
+        ServiceResponse<Object> cached = cache.get(request("/Things", null));
+        Assert.assertEquals(200, cached.getCode());
+        Assert.assertEquals("{\"value\":[]}", cached.getResultFormatted());
+        Assert.assertEquals("application/json", cached.getContentType());
+        Assert.assertEquals(etag, cached.getHeaders().get(ServiceResponse.HEADER_ETAG));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        String etag = put("/Things", null, "{}").getHeaders().get(ServiceResponse.HEADER_ETAG);
+        ServiceResponse<Object> cached = cache.get(request("/Things", null));
+        Assert.assertTrue(cached.isNotModified(etag));
+        Assert.assertTrue(cached.isNotModified("W/" + etag));
+        Assert.assertTrue(cached.isNotModified("\"other\", " + etag));
+        Assert.assertTrue(cached.isNotModified("*"));
+        Assert.assertFalse(cached.isNotModified(null));
+        Assert.assertFalse(cached.isNotModified("\"other\""));
+        Assert.assertFalse(cached.isNotModified(etag.substring(1, etag.length() - 1)));
+
+        cached.setCode(404);
+        Assert.assertFalse(cached.isNotModified(etag));
+        Assert.assertFalse(new ServiceResponse<>(200, null, null, "{}").isNotModified("*"));
+
+        // After a change the client gets the new version.
+        created(new Thing(new IdLong(1)));
+        Assert.assertNull(cache.get(request("/Things", null)));
+        String newEtag = put("/Things", null, "{\"value\":[{}]}").getHeaders().get(ServiceResponse.HEADER_ETAG);
+        Assert.assertFalse(cache.get(request("/Things", null)).isNotModified(etag));
+        Assert.assertTrue(cache.get(request("/Things", null)).isNotModified(newEtag));
+    }
+
+    @Test
+    public void testQueryIsPartOfKey() {
+        put("/Things", "$top=1", "{}");
+        Assert.assertTrue(isCached("/Things", "$top=1"));
+        Assert.assertFalse(isCached("/Things", null));
+        Assert.assertFalse(isCached("/Things", "$top=2"));
+    }
+
+    @Test
+    public void testDisabled() {
+        cache = new ResponseCache(0, 0);
+        ServiceResponse<Object> response = put("/Things", null, "{}");
+        Assert.assertNull(response.getHeaders().get(ServiceResponse.HEADER_ETAG));
+        Assert.assertFalse(isCached("/Things", null));
+    }
+
+    @Test
+    public void testChangeInvalidatesDependentTypes() {
+        put("/Things", null, "{}");
+        put("/Sensors", null, "{}");
+        put("/Datastreams", "$filter=Thing/name eq 'a'", "{}");
+        created(new Thing(new IdLong(1)));
+        Assert.assertFalse(isCached("/Things", null));
+        Assert.assertFalse(isCached("/Datastreams", "$filter=Thing/name eq 'a'"));
+        Assert.assertTrue(isCached("/Sensors", null));
+    }
+
+    @Test
+    public void testChangeInvalidatesImplicitDependencies() {
+        put("/Datastreams", null, "{}");
+        put("/Things", null, "{}");
+        created(new Observation(new IdLong(1)).setDatastream(new Datastream(new IdLong(1))));
+        Assert.assertFalse(isCached("/Datastreams", null));
+        Assert.assertTrue(isCached("/Things", null));
+    }
+
+    @Test
+    public void testChangeInvalidatesOnlySameAnchor() {
+        put("/Datastreams(1)/Observations", null, "{}");
+        put("/Datastreams(2)/Observations", null, "{}");
+        created(new Observation(new IdLong(1)).setDatastream(new Datastream(new IdLong(1))));
+        Assert.assertFalse(isCached("/Datastreams(1)/Observations", null));
+        Assert.assertTrue(isCached("/Datastreams(2)/Observations", null));
+
+        // Without the Datastream it is unknown which anchor is affected.
+        created(new Observation(new IdLong(2)));
+        Assert.assertFalse(isCached("/Datastreams(2)/Observations", null));
+    }
+
+    @Test
+    public void testChangeDuringGenerationIsNotCached() {
+        long[] counters = cache.getChangeCounters();
+        created(new Thing(new IdLong(1)));
+        put("/Things", null, "{}", counters);
+        put("/Sensors", null, "{}", counters);
+        Assert.assertFalse(isCached("/Things", null));
+        Assert.assertTrue(isCached("/Sensors", null));
+    }
+
+    @Test
+    public void testDeleteInvalidatesAll() {
+        put("/Things", null, "{}");
+        put("/Sensors", null, "{}");
+        long[] counters = cache.getChangeCounters();
+        cache.messageReceived(new EntityChangedMessage()
+                .setEventType(EntityChangedMessage.Type.DELETE)
+                .setEntity(new Sensor(new IdLong(1))));
+        Assert.assertFalse(isCached("/Things", null));
+        Assert.assertFalse(isCached("/Sensors", null));
+        put("/Things", null, "{}", counters);
+        Assert.assertFalse(isCached("/Things", null));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // Sizes are counted as two bytes per character.
+        cache = new ResponseCache(20, 0);
+        put("/Things", null, "12345");
+        put("/Sensors", null, "12345");
+        Assert.assertTrue(isCached("/Things", null));
+        put("/Locations", null, "12345");
+        Assert.assertTrue(isCached("/Things", null));
+        Assert.assertFalse(isCached("/Sensors", null));
+        Assert.assertTrue(isCached("/Locations", null));
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.util;
+
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.query.Expand;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.util.ParsedRequestCache.ParsedRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the copies handed out by the ParsedRequestCache can be changed
+ * without affecting the cache, or each other.
+ *
+ * @author scf
+ */
+public class ParsedRequestCacheTest {
+
+    private static final String PATH = "/Things";
+    private static final String QUERY = "$select=id,name&$expand=Datastreams($select=id;$orderby=name)&$orderby=name asc,id desc";
+
+    private static CoreSettings settings;
+
+    private ParsedRequestCache cache;
+
+    @BeforeClass
+    public static void initClass() {
+        settings = new CoreSettings();
+    }
+
+    @Before
+    public void init() {
+        cache = new ParsedRequestCache(10);
+    }
+
+    private static ParsedRequest parse() {
+        ResourcePath path = PathParser.parsePath("", Version.V_1_1, PATH);
+        Query query = QueryParser.parseQuery(QUERY, settings, path).validate();
+        return new ParsedRequest(path, query);
+    }
+
+    private static void assertUnchanged(ParsedRequest request) {
+        Query query = request.getQuery();
+        Assert.assertEquals(2, query.getSelect().size());
+        Assert.assertTrue(query.getSelect().contains(EntityPropertyMain.NAME));
+        Assert.assertEquals(2, query.getOrderBy().size());
+        Assert.assertEquals(1, query.getExpand().size());
+        Query subQuery = query.getExpand().get(0).getSubQuery();
+        Assert.assertEquals(1, subQuery.getSelect().size());
+        Assert.assertEquals(1, subQuery.getOrderBy().size());
+        Assert.assertEquals(1, request.getPath().size());
+    }
+
+    private static void change(ParsedRequest request) {
+        Query query = request.getQuery();
+        Query subQuery = query.getExpand().get(0).getSubQuery();
+        query.getSelect().clear();
+        query.getSelect().add(EntityPropertyMain.DESCRIPTION);
+        query.getOrderBy().clear();
+        subQuery.getSelect().clear();
+        subQuery.getOrderBy().clear();
+        query.getExpand().add(new Expand(query.getExpand().get(0).getPath()));
+    }
+
+    @Test
+    public void testChangingOriginalAfterPut() {
+        ParsedRequest original = parse();
+        cache.put(Version.V_1_1, PATH, QUERY, original);
+        // Like a formatter changing the query in preProcessRequest.
+        change(original);
+        assertUnchanged(cache.get(Version.V_1_1, PATH, QUERY));
+    }
+
+    @Test
+    public void testChangingCopy() {
+        cache.put(Version.V_1_1, PATH, QUERY, parse());
+        ParsedRequest first = cache.get(Version.V_1_1, PATH, QUERY);
+        change(first);
+        ParsedRequest second = cache.get(Version.V_1_1, PATH, QUERY);
+        assertUnchanged(second);
+        Assert.assertNotSame(first.getQuery(), second.getQuery());
+        Assert.assertNotSame(first.getPath(), second.getPath());
+        Assert.assertSame(second.getPath(), second.getQuery().getPath());
+    }
+
+    @Test
+    public void testKey() {
+        cache.put(Version.V_1_1, PATH, QUERY, parse());
+        Assert.assertNotNull(cache.get(Version.V_1_1, PATH, QUERY));
+        Assert.assertNull(cache.get(Version.V_1_0, PATH, QUERY));
+        Assert.assertNull(cache.get(Version.V_1_1, PATH, null));
+        Assert.assertNull(cache.get(Version.V_1_1, "/Datastreams", QUERY));
+    }
+
+    @Test
+    public void testDisabled() {
+        ParsedRequestCache disabled = new ParsedRequestCache(0);
+        disabled.put(Version.V_1_1, PATH, QUERY, parse());
+        Assert.assertNull(disabled.get(Version.V_1_1, PATH, QUERY));
+    }
+
+}
@@ -83,6 +83,9 @@ public abstract class AbstractContextListener implements ServletContextListener
 
             PersistenceManagerFactory.init(coreSettings);
             MessageBusFactory.init(coreSettings);
+            if (coreSettings.getResponseCache().isEnabled()) {
+                MessageBusFactory.getMessageBus().addMessageListener(coreSettings.getResponseCache());
+            }
 
             setupAuthFilter(context, coreSettings);
         }
@@ -92,6 +95,7 @@ public abstract class AbstractContextListener implements ServletContextListener
     public void contextDestroyed(ServletContextEvent sce) {
         LOGGER.info("Context destroyed, shutting down threads...");
         MessageBusFactory.getMessageBus().stop();
+        PersistenceManagerFactory.shutdown();
         try {
             Thread.sleep(5000L);
         } catch (InterruptedException ex) {
@@ -109,6 +113,7 @@ public abstract class AbstractContextListener implements ServletContextListener
                 String filterName = "CorsFilter";
 
                 FilterRegistration.Dynamic corsFilter = servletContext.addFilter(filterName, "org.apache.catalina.filters.CorsFilter");
+                corsFilter.setAsyncSupported(true);
                 corsFilter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST, DispatcherType.FORWARD), true, "/*");
 
                 String allowedOrigins = httpSettings.get(CoreSettings.TAG_CORS_ALLOWED_ORIGINS, CoreSettings.class);
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.http.common;
+
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_ASYNC_EXECUTOR;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_ASYNC_MAX_READS;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_ASYNC_MAX_WRITES;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_ASYNC_QUEUE_SIZE;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_ASYNC_RETRY_AFTER;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings.TAG_DB_MAXCONN;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes HTTP requests outside of the container threads, with separate
+ * concurrency limits and bounded queues for read and write requests. Since
+ * both kinds of requests use the same database connection pool, the total
+ * number of running requests is limited to the size of that pool.
+ *
+ * @author scf
+ */
+public class RequestExecutor {
+
+    /**
+     * The kind of threads used to execute requests.
+     */
+    public enum ExecutorType {
+        /**
+         * A fixed pool of platform threads, one per allowed concurrent request.
+         */
+        PLATFORM,
+        /**
+         * A new virtual thread per request. Requires Java 21 or later, falls
+         * back to PLATFORM on older versions.
+         */
+        VIRTUAL
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestExecutor.class);
+
+    /**
+     * Limits the number of running requests of both lanes together, so the
+     * lanes can not ask for more connections than the pool has.
+     */
+    private final Semaphore running;
+    private final Lane readLane;
+    private final Lane writeLane;
+    private final int retryAfter;
+
+    public RequestExecutor(CoreSettings coreSettings) {
+        Settings httpSettings = coreSettings.getHttpSettings();
+        int poolSize = coreSettings.getPersistenceSettings().getCustomSettings().getInt(TAG_DB_MAXCONN, PersistenceSettings.class);
+        int maxReads = httpSettings.getInt(TAG_ASYNC_MAX_READS, CoreSettings.class);
+        int maxWrites = httpSettings.getInt(TAG_ASYNC_MAX_WRITES, CoreSettings.class);
+        int queueSize = httpSettings.getInt(TAG_ASYNC_QUEUE_SIZE, CoreSettings.class);
+        retryAfter = httpSettings.getInt(TAG_ASYNC_RETRY_AFTER, CoreSettings.class);
+        ExecutorType type = ExecutorType.valueOf(httpSettings.get(TAG_ASYNC_EXECUTOR, CoreSettings.class).trim().toUpperCase(Locale.ROOT));
+        if (type == ExecutorType.VIRTUAL && !isVirtualThreadsAvailable()) {
+            LOGGER.warn("Virtual threads are not available in this Java version, using platform threads.");
+            type = ExecutorType.PLATFORM;
+        }
+        running = new Semaphore(poolSize, true);
+        readLane = new Lane("FROST-HTTP-Read", type, maxReads > 0 ? Math.min(maxReads, poolSize) : poolSize, queueSize, running);
+        writeLane = new Lane("FROST-HTTP-Write", type, maxWrites > 0 ? Math.min(maxWrites, poolSize) : poolSize, queueSize, running);
+        LOGGER.info("Executing HTTP requests asynchronously on {} threads, with at most {} reads and {} writes, and {} requests in total, at the same time.",
+                type, readLane.maxRunning, writeLane.maxRunning, poolSize);
+    }
+
+    /**
+     * Submits the given task for execution.
+     *
+     * @param readOnly flag indicating the task only reads data.
+     * @param task The task to execute.
+     * @return false if the queue for the type of task is full, and the task is
+     * not executed.
+     */
+    public boolean submit(boolean readOnly, Runnable task) {
+        if (readOnly) {
+            return readLane.submit(task);
+        }
+        return writeLane.submit(task);
+    }
+
+    /**
+     * The number of seconds a client should wait before retrying a request
+     * that was rejected because the queue was full.
+     *
+     * @return The number of seconds to send in the Retry-After header.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void shutdown() {
+        readLane.shutdown();
+        writeLane.shutdown();
+    }
+
+    private static boolean isVirtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException exc) {
+            return false;
+        }
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException exc) {
+            throw new IllegalStateException("Failed to create virtual thread executor.", exc);
+        }
+    }
+
+    private static class Lane {
+
+        private final String name;
+        private final int maxRunning;
+        /**
+         * Limits the number of requests that are running or waiting.
+         */
+        private final Semaphore admitted;
+        /**
+         * Limits the number of running requests of this lane, when the
+         * executor itself does not limit the number of threads.
+         */
+        private final Semaphore laneRunning;
+        /**
+         * Limits the number of running requests of all lanes together.
+         */
+        private final Semaphore totalRunning;
+        private final ExecutorService executor;
+
+        public Lane(String name, ExecutorType type, int maxRunning, int queueSize, Semaphore totalRunning) {
+            this.name = name;
+            this.maxRunning = maxRunning;
+            this.totalRunning = totalRunning;
+            admitted = new Semaphore(maxRunning + Math.max(0, queueSize));
+            if (type == ExecutorType.VIRTUAL) {
+                laneRunning = new Semaphore(maxRunning);
+                executor = createVirtualExecutor();
+            } else {
+                laneRunning = null;
+                executor = Executors.newFixedThreadPool(
+                        maxRunning,
+                        new BasicThreadFactory.Builder()
+                                .namingPattern(name + "-%d")
+                                .daemon(true)
+                                .build());
+            }
+        }
+
+        public boolean submit(Runnable task) {
+            if (!admitted.tryAcquire()) {
+                LOGGER.debug("Queue of {} is full, rejecting request.", name);
+                return false;
+            }
+            try {
+                executor.execute(() -> run(task));
+                return true;
+            } catch (RejectedExecutionException exc) {
+                admitted.release();
+                LOGGER.debug("{} is shut down, rejecting request.", name);
+                return false;
+            }
+        }
+
+        private void run(Runnable task) {
+            if (laneRunning != null) {
+                laneRunning.acquireUninterruptibly();
+            }
+            totalRunning.acquireUninterruptibly();
+            try {
+                task.run();
+            } catch (RuntimeException exc) {
+                LOGGER.error("Exception executing request.", exc);
+            } finally {
+                totalRunning.release();
+                if (laneRunning != null) {
+                    laneRunning.release();
+                }
+                admitted.release();
+            }
+        }
+
+        public void shutdown() {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOGGER.warn("{} did not terminate in time.", name);
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException exc) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -17,6 +17,8 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.http.common;
 
+import static de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDefault.DEFAULT_FORMAT_NAME;
+import de.fraunhofer.iosb.ilt.frostserver.service.PluginManager;
 import de.fraunhofer.iosb.ilt.frostserver.service.PluginService;
 import de.fraunhofer.iosb.ilt.frostserver.service.RequestTypeUtils;
 import de.fraunhofer.iosb.ilt.frostserver.service.Service;
@@ -24,13 +26,17 @@ import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
 import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequestBuilder;
 import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_ASYNC_ENABLE;
 import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_CORE_SETTINGS;
+import static de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings.TAG_STREAMING_ENABLE;
 import de.fraunhofer.iosb.ilt.frostserver.path.Version;
 import de.fraunhofer.iosb.ilt.frostserver.util.HttpMethod;
 import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Locale;
 import java.util.stream.Collectors;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebInitParam;
@@ -50,6 +56,7 @@ import org.slf4j.LoggerFactory;
         // This annotation MUST be kept aligned with the constant 
         // de.fraunhofer.iosb.ilt.frostserver.util.Contants.HTTP_URL_PATTERNS!
         urlPatterns = {"/v1.0", "/v1.0/*", "/v1.1", "/v1.1/*"},
+        asyncSupported = true,
         initParams = {
             @WebInitParam(name = "readonly", value = "false")
         }
@@ -63,6 +70,38 @@ public class ServletV1P0 extends HttpServlet {
     private static final Logger LOGGER = LoggerFactory.getLogger(ServletV1P0.class);
     private static final String ENCODING = "UTF-8";
     public static final String JSON_PATCH_CONTENT_TYPE = "application/json-patch+json";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String HEADER_VARY = "Vary";
+    private static final String HEADER_ACCEPT = "Accept";
+    /**
+     * The request attribute holding the exception that aborted an
+     * asynchronous response after it was committed.
+     */
+    private static final String ATTR_ABORTED = ServletV1P0.class.getName() + ".aborted";
+
+    /**
+     * The executor for asynchronous requests, null if requests are executed
+     * on the container threads.
+     */
+    private RequestExecutor requestExecutor;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        CoreSettings coreSettings = (CoreSettings) getServletContext().getAttribute(TAG_CORE_SETTINGS);
+        if (coreSettings != null && coreSettings.getHttpSettings().getBoolean(TAG_ASYNC_ENABLE, CoreSettings.class)) {
+            requestExecutor = new RequestExecutor(coreSettings);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (requestExecutor != null) {
+            requestExecutor.shutdown();
+            requestExecutor = null;
+        }
+        super.destroy();
+    }
 
     private void processGetRequest(HttpServletRequest request, HttpServletResponse response) {
         response.setContentType("application/json");
@@ -74,6 +113,8 @@ public class ServletV1P0 extends HttpServlet {
             CoreSettings coreSettings = (CoreSettings) request.getServletContext().getAttribute(TAG_CORE_SETTINGS);
             PluginService plugin = coreSettings.getPluginManager().getServiceForPath(pathInfo);
             if (plugin == null) {
+                // The result format can be selected using the Accept header.
+                response.setHeader(HEADER_VARY, HEADER_ACCEPT);
                 executeService(RequestTypeUtils.READ, request, response);
             } else {
                 String requestType = plugin.getRequestTypeFor(pathInfo, HttpMethod.fromString(request.getMethod()));
@@ -117,16 +158,60 @@ public class ServletV1P0 extends HttpServlet {
     }
 
     private void executeService(String requestType, HttpServletRequest request, HttpServletResponse response) {
+        if (requestExecutor == null || !request.isAsyncSupported()) {
+            executeServiceNow(requestType, request, response);
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        // Queries are limited by persistence.queryTimeout, not by the container.
+        asyncContext.setTimeout(0);
+        boolean readOnly = "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+        boolean accepted = requestExecutor.submit(readOnly, () -> {
+            boolean dispatched = false;
+            try {
+                executeServiceNow(requestType, request, response);
+            } catch (ResponseAbortedException exc) {
+                // Hand the failure to the container, so that it aborts the
+                // connection instead of completing the truncated response.
+                request.setAttribute(ATTR_ABORTED, exc);
+                asyncContext.dispatch();
+                dispatched = true;
+            } finally {
+                if (!dispatched) {
+                    asyncContext.complete();
+                }
+            }
+        });
+        if (!accepted) {
+            response.setHeader(HEADER_RETRY_AFTER, Integer.toString(requestExecutor.getRetryAfter()));
+            sendResponse(new ServiceResponse<>(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests in queue, try again later."), response);
+            asyncContext.complete();
+        }
+    }
+
+    private void executeServiceNow(String requestType, HttpServletRequest request, HttpServletResponse response) {
         CoreSettings coreSettings = (CoreSettings) request.getServletContext().getAttribute(TAG_CORE_SETTINGS);
         try (Service service = new Service(coreSettings)) {
-            sendResponse(service.execute(serviceRequestFromHttpRequest(request, requestType)), response);
+            ServiceResponse<?> serviceResponse = service.execute(serviceRequestFromHttpRequest(coreSettings, request, requestType));
+            if (serviceResponse.isNotModified(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                response.setHeader(ServiceResponse.HEADER_ETAG, serviceResponse.getHeaders().get(ServiceResponse.HEADER_ETAG));
+                return;
+            }
+            sendResponse(serviceResponse, response);
+        } catch (ResponseAbortedException exc) {
+            throw exc;
         } catch (Exception exc) {
+            if (response.isCommitted()) {
+                LOGGER.error("Failed after the response was committed, aborting.", exc);
+                throw new ResponseAbortedException(exc);
+            }
             LOGGER.error("", exc);
             sendResponse(new ServiceResponse<>(500, exc.getMessage()), response);
         }
     }
 
-    private ServiceRequest serviceRequestFromHttpRequest(HttpServletRequest request, String requestType) throws IOException {
+    private ServiceRequest serviceRequestFromHttpRequest(CoreSettings coreSettings, HttpServletRequest request, String requestType) throws IOException {
         // request.getPathInfo() is decoded, breaking urls that contain //
         // (ids that are urls)
         String requestURI = request.getRequestURI();
@@ -140,25 +225,99 @@ public class ServletV1P0 extends HttpServlet {
             pathInfo = request.getPathInfo();
         }
 
+        String urlQuery = request.getQueryString() != null
+                ? StringHelper.urlDecode(request.getQueryString())
+                : null;
+        if (RequestTypeUtils.READ.equals(requestType)) {
+            urlQuery = addNegotiatedFormat(coreSettings, request.getHeader(HEADER_ACCEPT), urlQuery);
+        }
+
         // ServletPath is /vx.x
         Version version = Version.forString(servletPath.substring(1));
-        return new ServiceRequestBuilder(version)
+        ServiceRequestBuilder builder = new ServiceRequestBuilder(version);
+        if (isMultipartMixed(request.getContentType())) {
+            // Multipart content, like $batch requests, can be very large and
+            // is processed while it is read.
+            builder.withContentReader(request.getReader());
+        } else {
+            builder.withContent(readRequestData(request.getReader()));
+        }
+        return builder
                 .withRequestType(requestType)
                 .withUrlPath(pathInfo)
-                .withUrlQuery(request.getQueryString() != null
-                        ? StringHelper.urlDecode(request.getQueryString())
-                        : null)
-                .withContent(readRequestData(request.getReader()))
+                .withUrlQuery(urlQuery)
                 .withContentType(request.getContentType())
                 .withParameterMap(request.getParameterMap())
+                .withStreamingAllowed(coreSettings.getHttpSettings().getBoolean(TAG_STREAMING_ENABLE, CoreSettings.class))
                 .build();
     }
 
+    /**
+     * Adds a $resultFormat to the query, if the request has no $resultFormat
+     * and the most preferred content type in the Accept header is generated
+     * by a non-default result format.
+     *
+     * @param coreSettings The settings to get the result formats from.
+     * @param accept The value of the Accept header.
+     * @param urlQuery The query of the request.
+     * @return The query, with the negotiated $resultFormat added if needed.
+     */
+    private static String addNegotiatedFormat(CoreSettings coreSettings, String accept, String urlQuery) {
+        if (StringHelper.isNullOrEmpty(accept)
+                || (urlQuery != null && urlQuery.toLowerCase(Locale.ROOT).contains("$resultformat="))) {
+            return urlQuery;
+        }
+        PluginManager pluginManager = coreSettings.getPluginManager();
+        String bestFormat = null;
+        double bestQuality = 0;
+        for (String mediaRange : accept.split(",")) {
+            String[] parts = mediaRange.split(";");
+            String mediaType = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException exc) {
+                        LOGGER.trace("Ignoring invalid quality in Accept header: {}", param);
+                    }
+                }
+            }
+            if (quality <= bestQuality) {
+                continue;
+            }
+            String format;
+            if ("*/*".equals(mediaType) || "application/*".equals(mediaType)) {
+                format = DEFAULT_FORMAT_NAME;
+            } else {
+                format = pluginManager.getFormatNameForContentType(mediaType);
+            }
+            if (format != null) {
+                bestFormat = format;
+                bestQuality = quality;
+            }
+        }
+        if (bestFormat == null || DEFAULT_FORMAT_NAME.equalsIgnoreCase(bestFormat)) {
+            return urlQuery;
+        }
+        String formatParam = "$resultFormat=" + bestFormat;
+        if (StringHelper.isNullOrEmpty(urlQuery)) {
+            return formatParam;
+        }
+        return urlQuery + "&" + formatParam;
+    }
+
     private void sendResponse(ServiceResponse<?> serviceResponse, HttpServletResponse httpResponse) {
         httpResponse.setStatus(serviceResponse.getCode());
         serviceResponse.getHeaders().entrySet().forEach(x -> httpResponse.setHeader(x.getKey(), x.getValue()));
         try {
-            if (serviceResponse.getCode() >= 200
+            if (serviceResponse.isSuccessful() && serviceResponse.isStreaming()) {
+                httpResponse.setContentType(serviceResponse.getContentType());
+                httpResponse.setCharacterEncoding(ENCODING);
+                serviceResponse.getResultWriter().writeTo(httpResponse.getOutputStream());
+
+            } else if (serviceResponse.getCode() >= 200
                     && serviceResponse.getCode() < 300
                     && serviceResponse.getResultFormatted() != null
                     && !serviceResponse.getResultFormatted().isEmpty()) {
@@ -171,6 +330,12 @@ public class ServletV1P0 extends HttpServlet {
                 httpResponse.getWriter().write(serviceResponse.getMessage());
             }
         } catch (IOException ex) {
+            if (httpResponse.isCommitted()) {
+                // The status is already sent, only aborting the connection
+                // tells the client that the response is incomplete.
+                LOGGER.error("Error writing HTTP result, aborting.", ex);
+                throw new ResponseAbortedException(ex);
+            }
             LOGGER.error("Error writing HTTP result", ex);
             httpResponse.setStatus(500);
         }
@@ -212,6 +377,11 @@ public class ServletV1P0 extends HttpServlet {
 
     @Override
     protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        Object aborted = request.getAttribute(ATTR_ABORTED);
+        if (aborted instanceof ResponseAbortedException) {
+            // An asynchronous response failed after it was committed.
+            throw (ResponseAbortedException) aborted;
+        }
         if ("PATCH".equals(request.getMethod())) {
             doPatch(request, response);
             return;
@@ -219,8 +389,24 @@ public class ServletV1P0 extends HttpServlet {
         super.service(request, response);
     }
 
+    private static boolean isMultipartMixed(String contentType) {
+        return contentType != null && contentType.trim().toLowerCase(Locale.ROOT).startsWith("multipart/mixed");
+    }
+
     private String readRequestData(BufferedReader reader) {
         return reader.lines().collect(Collectors.joining("\n"));
     }
 
+    /**
+     * Thrown when writing a response fails after the response was committed.
+     * The exception is passed on to the container, which can then only abort
+     * the connection, so the client sees that the response is incomplete.
+     */
+    private static class ResponseAbortedException extends RuntimeException {
+
+        public ResponseAbortedException(Throwable cause) {
+            super(cause);
+        }
+    }
+
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import de.fraunhofer.iosb.ilt.frostserver.util.ProcessorHelper;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A periodic database task, running on its own daemon thread. Each run gets a
+ * fresh connection from the persistence settings, executes the work, and
+ * commits. Errors are logged, and do not stop the next runs.
+ *
+ * @author scf
+ */
+public class BackgroundSqlTask {
+
+    /**
+     * The work done in each run of a background task.
+     */
+    @FunctionalInterface
+    public interface Work {
+
+        /**
+         * Executes the work. The transaction is committed afterwards.
+         *
+         * @param dslContext The DSLContext to execute the work with.
+         * @param customSettings The persistence settings.
+         */
+        public void run(DSLContext dslContext, Settings customSettings);
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundSqlTask.class.getName());
+
+    private final String name;
+    private final Work work;
+    private ScheduledExecutorService executorService;
+
+    /**
+     * @param name The name of the task, used for the thread and in log
+     * messages.
+     * @param work The work to do in each run.
+     */
+    public BackgroundSqlTask(String name, Work work) {
+        this.name = name;
+        this.work = work;
+    }
+
+    /**
+     * Starts running the task periodically, if it is not running yet.
+     *
+     * @param customSettings The persistence settings.
+     * @param initialDelay The delay before the first run.
+     * @param delay The delay between the end of one run and the start of the
+     * next.
+     * @param unit The time unit of the delays.
+     * @return true if the task was started, false if it was already running.
+     */
+    public synchronized boolean start(Settings customSettings, long initialDelay, long delay, TimeUnit unit) {
+        if (executorService != null) {
+            return false;
+        }
+        executorService = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder()
+                        .namingPattern(name + "-%d")
+                        .daemon(true)
+                        .build());
+        executorService.scheduleWithFixedDelay(() -> runOnce(customSettings), initialDelay, delay, unit);
+        return true;
+    }
+
+    /**
+     * Stops running the task, if it is running.
+     */
+    public synchronized void stop() {
+        if (executorService == null) {
+            return;
+        }
+        ProcessorHelper.shutdownProcessors(executorService, null, 0, TimeUnit.SECONDS);
+        executorService = null;
+    }
+
+    /**
+     * Runs the task once, on the calling thread.
+     *
+     * @param customSettings The persistence settings.
+     */
+    public void runOnce(Settings customSettings) {
+        try (Connection connection = ConnectionUtils.getConnection(ConnectionUtils.SOURCE_NAME, customSettings)) {
+            work.run(DSL.using(connection, SQLDialect.POSTGRES), customSettings);
+            connection.commit();
+        } catch (SQLException | DataAccessException ex) {
+            LOGGER.error("Failed to run {}.", name, ex);
+        }
+    }
+
+    /**
+     * Calls a database function that returns an integer.
+     *
+     * @param dslContext The DSLContext to call the function with.
+     * @param call The function call, with ? for the bindings.
+     * @param bindings The bindings.
+     * @return The result of the function.
+     */
+    public static Integer callFunction(DSLContext dslContext, String call, Object... bindings) {
+        return dslContext
+                .select(DSL.field(call, Integer.class, bindings))
+                .fetchOne()
+                .value1();
+    }
+
+}
@@ -18,13 +18,18 @@
 package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
 
 import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValue;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
@@ -57,17 +62,45 @@ public class ConnectionUtils implements ConfigDefaults {
     @DefaultValue("")
     public static final String TAG_DB_PASSWRD = "db.password";
 
+    // Default value in PersistenceSettings, since requests are also limited by it.
+    public static final String TAG_DB_MAXCONN = PersistenceSettings.TAG_DB_MAXCONN;
     // Default values supplied by driver, not here.
-    public static final String TAG_DB_MAXCONN = "db.conn.max";
     public static final String TAG_DB_MAXIDLE = "db.conn.idle.max";
     public static final String TAG_DB_MINIDLE = "db.conn.idle.min";
 
+    @DefaultValue("")
+    public static final String TAG_REPLICA_URLS = "db.replica.urls";
+    @DefaultValue("")
+    public static final String TAG_REPLICA_DATA_SOURCES = "db.replica.jndi.datasources";
+    @DefaultValue("ROUND_ROBIN")
+    public static final String TAG_REPLICA_SELECTION = "db.replica.selection";
+
+    /**
+     * The ways to select the read replica to use for a connection.
+     */
+    public enum ReplicaSelection {
+        /**
+         * Use the replicas in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * Use the replica with the fewest connections in use by this instance.
+         */
+        LEAST_CONNECTIONS
+    }
+
+    /**
+     * The name of the connection source of the FROST persistence manager.
+     */
+    public static final String SOURCE_NAME = "FROST-Source";
+
     /**
      * The logger for this class.
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionUtils.class);
 
     private static final Map<String, ConnectionSource> EXISTING_POOLS = new HashMap<>();
+    private static final Map<String, ReplicaSet> EXISTING_REPLICAS = new HashMap<>();
 
     private ConnectionUtils() {
         // Utility class, should not be instantiated.
@@ -100,10 +133,11 @@ public class ConnectionUtils implements ConfigDefaults {
         synchronized (EXISTING_POOLS) {
             ConnectionSource source = EXISTING_POOLS.get(name);
             if (source == null) {
-                if (!settings.get(TAG_DB_URL, ConnectionUtils.class).isEmpty()) {
-                    source = setupBasicDataSource(settings);
+                String url = settings.get(TAG_DB_URL, ConnectionUtils.class);
+                if (!url.isEmpty()) {
+                    source = setupBasicDataSource(settings, url);
                 } else {
-                    source = setupDataSource(settings);
+                    source = setupDataSource(settings.get(TAG_DATA_SOURCE, ConnectionUtils.class));
                 }
                 EXISTING_POOLS.put(name, source);
             }
@@ -111,7 +145,43 @@ public class ConnectionUtils implements ConfigDefaults {
         }
     }
 
-    private static ConnectionSource setupBasicDataSource(Settings settings) {
+    /**
+     * Finds the read replicas configured in the given settings, setting up
+     * their pools if needed.
+     *
+     * @param name The name of the source the replicas belong to.
+     * @param settings The settings to read the replica configuration from.
+     * @return The replicas, or null if none are configured.
+     */
+    private static ReplicaSet getReplicas(String name, Settings settings) {
+        synchronized (EXISTING_REPLICAS) {
+            if (EXISTING_REPLICAS.containsKey(name)) {
+                return EXISTING_REPLICAS.get(name);
+            }
+            List<ConnectionSource> sources = new ArrayList<>();
+            for (String url : settings.get(TAG_REPLICA_URLS, ConnectionUtils.class).split(",")) {
+                if (!url.trim().isEmpty()) {
+                    sources.add(setupBasicDataSource(settings, url.trim()));
+                }
+            }
+            for (String dataSourceName : settings.get(TAG_REPLICA_DATA_SOURCES, ConnectionUtils.class).split(",")) {
+                if (!dataSourceName.trim().isEmpty()) {
+                    sources.add(setupDataSource(dataSourceName.trim()));
+                }
+            }
+            ReplicaSet replicas = null;
+            if (!sources.isEmpty()) {
+                ReplicaSelection selection = ReplicaSelection.valueOf(
+                        settings.get(TAG_REPLICA_SELECTION, ConnectionUtils.class).trim().toUpperCase(Locale.ROOT));
+                LOGGER.info("Using {} read replicas for {}, with selection {}.", sources.size(), name, selection);
+                replicas = new ReplicaSet(sources, selection);
+            }
+            EXISTING_REPLICAS.put(name, replicas);
+            return replicas;
+        }
+    }
+
+    private static ConnectionSource setupBasicDataSource(Settings settings, String url) {
         LOGGER.info("Setting up BasicDataSource for database connections.");
         String driver = settings.get(TAG_DB_DRIVER, ConnectionUtils.class);
         if (driver.isEmpty()) {
@@ -120,11 +190,11 @@ public class ConnectionUtils implements ConfigDefaults {
         try {
             Class.forName(driver);
             BasicDataSource ds = new BasicDataSource();
-            ds.setUrl(settings.get(TAG_DB_URL, ConnectionUtils.class));
+            ds.setUrl(url);
             ds.setUsername(settings.get(TAG_DB_USERNAME, ConnectionUtils.class));
             ds.setPassword(settings.get(TAG_DB_PASSWRD, ConnectionUtils.class));
             ds.setMaxIdle(settings.getInt(TAG_DB_MAXIDLE, ds.getMaxIdle()));
-            ds.setMaxTotal(settings.getInt(TAG_DB_MAXCONN, ds.getMaxTotal()));
+            ds.setMaxTotal(settings.getInt(TAG_DB_MAXCONN, PersistenceSettings.class));
             ds.setMinIdle(settings.getInt(TAG_DB_MINIDLE, ds.getMinIdle()));
             return new ConnectionSourceBasicDataSource(ds);
         } catch (ClassNotFoundException exc) {
@@ -132,10 +202,9 @@ public class ConnectionUtils implements ConfigDefaults {
         }
     }
 
-    private static ConnectionSource setupDataSource(Settings settings) {
+    private static ConnectionSource setupDataSource(String dataSourceName) {
         LOGGER.info("Setting up DataSource for database connections.");
         try {
-            String dataSourceName = settings.get(TAG_DATA_SOURCE, ConnectionUtils.class);
             if (dataSourceName.isEmpty()) {
                 throw new IllegalArgumentException("Setting " + TAG_DATA_SOURCE + " must not be empty.");
             }
@@ -174,7 +243,7 @@ public class ConnectionUtils implements ConfigDefaults {
         driver.registerPool(name, connectionPool);
     }
 
-    private static interface ConnectionSource {
+    static interface ConnectionSource {
 
         public Connection getConnection() throws SQLException;
     }
@@ -208,20 +277,104 @@ public class ConnectionUtils implements ConfigDefaults {
 
     }
 
+    /**
+     * The read replicas of a source, with the number of connections this
+     * instance has in use on each of them.
+     */
+    static class ReplicaSet {
+
+        private final List<ConnectionSource> sources;
+        private final AtomicInteger[] inUse;
+        private final ReplicaSelection selection;
+        private final AtomicInteger next = new AtomicInteger();
+
+        public ReplicaSet(List<ConnectionSource> sources, ReplicaSelection selection) {
+            this.sources = sources;
+            this.selection = selection;
+            inUse = new AtomicInteger[sources.size()];
+            for (int i = 0; i < inUse.length; i++) {
+                inUse[i] = new AtomicInteger();
+            }
+        }
+
+        public int select() {
+            if (selection == ReplicaSelection.LEAST_CONNECTIONS) {
+                int best = 0;
+                for (int i = 1; i < inUse.length; i++) {
+                    if (inUse[i].get() < inUse[best].get()) {
+                        best = i;
+                    }
+                }
+                return best;
+            }
+            return Math.floorMod(next.getAndIncrement(), sources.size());
+        }
+
+        public Connection getConnection(int index) throws SQLException {
+            inUse[index].incrementAndGet();
+            try {
+                Connection connection = sources.get(index).getConnection();
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+                return connection;
+            } catch (SQLException | RuntimeException ex) {
+                inUse[index].decrementAndGet();
+                throw ex;
+            }
+        }
+
+        public void release(int index) {
+            inUse[index].decrementAndGet();
+        }
+    }
+
     public static class ConnectionWrapper implements Provider<Connection> {
 
         private final Settings settings;
         private Connection connection;
+        private boolean readOnly;
+        private ReplicaSet replicas;
+        private int replicaIndex;
+        private boolean usedReplica;
 
         public ConnectionWrapper(Settings settings) {
             this.settings = settings;
         }
 
+        /**
+         * Indicates that the connection will only be used for reading, so it
+         * can be taken from a read replica, if any are configured. Has no
+         * effect once the connection is opened.
+         *
+         * @param readOnly flag indicating no changes will be made.
+         */
+        public void setReadOnly(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+
+        /**
+         * Flag indicating a connection was taken from a read replica. Data
+         * read from a replica can lag behind the primary.
+         *
+         * @return true if a connection was taken from a read replica.
+         */
+        public boolean isUsedReplica() {
+            return usedReplica;
+        }
+
         @Override
         public Connection get() {
             if (connection == null) {
                 try {
-                    connection = ConnectionUtils.getConnection("FROST-Source", settings);
+                    ReplicaSet replicaSet = readOnly ? getReplicas(SOURCE_NAME, settings) : null;
+                    if (replicaSet == null) {
+                        connection = ConnectionUtils.getConnection(SOURCE_NAME, settings);
+                    } else {
+                        replicaIndex = replicaSet.select();
+                        connection = replicaSet.getConnection(replicaIndex);
+                        replicas = replicaSet;
+                        usedReplica = true;
+                    }
                 } catch (SQLException ex) {
                     LOGGER.error("Could not inizialize {}", getClass().getName(), ex);
                 }
@@ -277,6 +430,10 @@ public class ConnectionUtils implements ConfigDefaults {
 
         public void clear() {
             connection = null;
+            if (replicas != null) {
+                replicas.release(replicaIndex);
+                replicas = null;
+            }
         }
 
     }
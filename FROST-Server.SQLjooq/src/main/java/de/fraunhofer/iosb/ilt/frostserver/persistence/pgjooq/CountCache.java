@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageBusFactory;
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageListener;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationProperty;
+import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.Expression;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.Path;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.function.Function;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A short-lived cache for the results of count queries, keyed on the SQL of
+ * the count query. The least recently used counts are dropped when the cache
+ * is full, and counts are dropped when entities of a type they depend on are
+ * changed. Changes committed by this instance invalidate the cache directly,
+ * changes made by other instances arrive as messages on the message bus, like
+ * for the ResponseCache.
+ *
+ * @author scf
+ */
+public class CountCache implements MessageListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CountCache.class);
+
+    /**
+     * The maximum number of cached counts.
+     */
+    private static final int MAX_SIZE = 10_000;
+
+    /**
+     * Entity types with properties that the database changes when entities of
+     * other types change, indexed by the type that changes.
+     */
+    private static final Map<EntityType, EntityType[]> IMPLICIT_CHANGES = new EnumMap<>(EntityType.class);
+
+    static {
+        IMPLICIT_CHANGES.put(EntityType.OBSERVATION, new EntityType[]{EntityType.DATASTREAM, EntityType.MULTIDATASTREAM, EntityType.FEATUREOFINTEREST});
+        IMPLICIT_CHANGES.put(EntityType.THING, new EntityType[]{EntityType.HISTORICALLOCATION});
+        IMPLICIT_CHANGES.put(EntityType.LOCATION, new EntityType[]{EntityType.HISTORICALLOCATION});
+    }
+
+    private static final Map<PersistenceSettings, CountCache> INSTANCES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Get the CountCache for the given settings. A new cache registers itself
+     * on the message bus.
+     *
+     * @param settings The persistence settings to get the cache for.
+     * @return The cache for the given settings.
+     */
+    public static CountCache getInstance(PersistenceSettings settings) {
+        return INSTANCES.computeIfAbsent(settings, s -> {
+            CountCache countCache = new CountCache(MAX_SIZE);
+            try {
+                MessageBusFactory.getMessageBus().addMessageListener(countCache);
+            } catch (IllegalStateException ex) {
+                LOGGER.warn("No message bus, cached counts are not invalidated by changes on other instances.");
+                LOGGER.trace("Exception:", ex);
+            }
+            return countCache;
+        });
+    }
+
+    private final LinkedHashMap<String, CachedCount> cache;
+
+    /**
+     * Counts the changes per entity type, so that counts that were done while
+     * a change happened are not cached.
+     */
+    private final long[] changeCounters = new long[EntityType.values().length];
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize The maximum number of cached counts.
+     */
+    public CountCache(int maxSize) {
+        cache = new LinkedHashMap<String, CachedCount>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCount> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the current change counters, to pass to
+     * {@link #put(String, CachedCount, long, long[])} after the count is done.
+     *
+     * @return A snapshot of the change counters.
+     */
+    public synchronized long[] getChangeCounters() {
+        return changeCounters.clone();
+    }
+
+    /**
+     * Get the cached count for the given key.
+     *
+     * @param key The key, the normalised SQL of the count query.
+     * @return The cached count, or null if there is no valid cached count.
+     */
+    public synchronized CachedCount get(String key) {
+        CachedCount cached = cache.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.isExpired(System.currentTimeMillis())) {
+            cache.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Store the given count. The count is not stored if an entity it depends
+     * on changed after the given counters were taken.
+     *
+     * @param key The key, the normalised SQL of the count query.
+     * @param count The count to store.
+     * @param ttlMillis The time, in milliseconds, the count is valid.
+     * @param countersAtStart The change counters from before the count was
+     * done.
+     */
+    public synchronized void put(String key, CachedCount count, long ttlMillis, long[] countersAtStart) {
+        for (EntityType type : count.dependencies) {
+            if (changeCounters[type.ordinal()] != countersAtStart[type.ordinal()]) {
+                return;
+            }
+        }
+        count.expires = System.currentTimeMillis() + ttlMillis;
+        cache.put(key, count);
+    }
+
+    /**
+     * Removes the counts that depend on entities of the given types, or of
+     * types that the database changes when entities of the given types
+     * change.
+     *
+     * @param changedTypes The types of the changed entities.
+     */
+    public synchronized void entitiesChanged(Collection<EntityType> changedTypes) {
+        if (changedTypes.isEmpty()) {
+            return;
+        }
+        Set<EntityType> types = EnumSet.copyOf(changedTypes);
+        for (EntityType type : changedTypes) {
+            Collections.addAll(types, IMPLICIT_CHANGES.getOrDefault(type, new EntityType[0]));
+        }
+        for (EntityType type : types) {
+            changeCounters[type.ordinal()]++;
+        }
+        cache.values().removeIf(c -> !Collections.disjoint(c.dependencies, types));
+    }
+
+    /**
+     * Removes all cached counts. Used after deletes, since those cascade to
+     * related entities.
+     */
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < changeCounters.length; i++) {
+            changeCounters[i]++;
+        }
+        cache.clear();
+    }
+
+    @Override
+    public void messageReceived(EntityChangedMessage message) {
+        if (message.getEventType() == EntityChangedMessage.Type.DELETE) {
+            // Deletes cascade to related entities, without messages.
+            invalidateAll();
+        } else {
+            entitiesChanged(Collections.singleton(message.getEntityType()));
+        }
+    }
+
+    /**
+     * The number of cached counts.
+     *
+     * @return The number of cached counts.
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Finds the entity types that the count of the given path and query
+     * depends on: the types in the path, and those used in the filter.
+     *
+     * @param path The path of the entity set that is counted.
+     * @param query The query of the count, may be null.
+     * @return The types the count depends on.
+     */
+    public static Set<EntityType> findDependencies(ResourcePath path, Query query) {
+        Set<EntityType> types = EnumSet.noneOf(EntityType.class);
+        for (int i = 0; i < path.size(); i++) {
+            PathElement element = path.get(i);
+            if (element instanceof PathElementEntity) {
+                types.add(((PathElementEntity) element).getEntityType());
+            } else if (element instanceof PathElementEntitySet) {
+                types.add(((PathElementEntitySet) element).getEntityType());
+            }
+        }
+        if (query != null && query.getFilter() != null) {
+            addExpressionTypes(types, query.getFilter());
+        }
+        return types;
+    }
+
+    private static void addExpressionTypes(Set<EntityType> types, Expression expression) {
+        if (expression instanceof Function) {
+            for (Expression parameter : ((Function) expression).getParameters()) {
+                addExpressionTypes(types, parameter);
+            }
+        } else if (expression instanceof Path) {
+            for (Property property : ((Path) expression).getElements()) {
+                if (property instanceof NavigationProperty) {
+                    types.add(((NavigationProperty) property).getType());
+                }
+            }
+        }
+    }
+
+    /**
+     * A count, with the entity types it depends on.
+     */
+    public static class CachedCount {
+
+        private final long count;
+        private final boolean lowerBound;
+        private final Set<EntityType> dependencies;
+        private long expires;
+
+        /**
+         * @param count The count.
+         * @param lowerBound Flag indicating the real count may be higher.
+         * @param dependencies The entity types the count depends on.
+         */
+        public CachedCount(long count, boolean lowerBound, Set<EntityType> dependencies) {
+            this.count = count;
+            this.lowerBound = lowerBound;
+            this.dependencies = dependencies;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public boolean isLowerBound() {
+            return lowerBound;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValue;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jooq.DSLContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings and background worker for the actualization of the time ranges and
+ * observed areas of Datastreams and MultiDatastreams when Observations are
+ * inserted.
+ *
+ * In the immediate mode, the insert trigger updates the (Multi)Datastream of
+ * each new Observation, which serialises all writers on the same
+ * (Multi)Datastream. In the deferred mode, the trigger only appends to a change
+ * log, that a background worker merges into the (Multi)Datastreams in batches.
+ *
+ * @author scf
+ */
+public class DatastreamActualization implements ConfigDefaults {
+
+    public static final String MODE_IMMEDIATE = "immediate";
+    public static final String MODE_DEFERRED = "deferred";
+
+    /**
+     * The actualization mode: immediate or deferred.
+     */
+    @DefaultValue(MODE_IMMEDIATE)
+    public static final String TAG_ACTUALIZATION_MODE = "actualization.mode";
+    /**
+     * The interval between two runs of the worker in deferred mode, in
+     * seconds.
+     */
+    @DefaultValueInt(10)
+    public static final String TAG_ACTUALIZATION_INTERVAL = "actualization.interval";
+
+    public static final String LIQUIBASE_CHANGELOG_FILENAME = "liquibase/actualization.xml";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatastreamActualization.class.getName());
+
+    private static final BackgroundSqlTask WORKER = new BackgroundSqlTask("DatastreamActualization", DatastreamActualization::process);
+
+    private DatastreamActualization() {
+        // Utility class, should not be instantiated.
+    }
+
+    /**
+     * Returns the configured actualization mode. Unknown modes are logged and
+     * treated as immediate.
+     *
+     * @param customSettings The persistence settings.
+     * @return The actualization mode.
+     */
+    public static String getMode(Settings customSettings) {
+        String mode = customSettings.get(TAG_ACTUALIZATION_MODE, DatastreamActualization.class).trim().toLowerCase(Locale.ROOT);
+        if (MODE_IMMEDIATE.equals(mode) || MODE_DEFERRED.equals(mode)) {
+            return mode;
+        }
+        LOGGER.error("Unknown value for {}: {}, using {}.", TAG_ACTUALIZATION_MODE, mode, MODE_IMMEDIATE);
+        return MODE_IMMEDIATE;
+    }
+
+    public static boolean isDeferred(Settings customSettings) {
+        return MODE_DEFERRED.equals(getMode(customSettings));
+    }
+
+    /**
+     * The parameters used in the actualization changelog.
+     *
+     * @param customSettings The persistence settings.
+     * @return The changelog parameters.
+     */
+    public static Map<String, Object> getChangeLogParameters(Settings customSettings) {
+        return Collections.singletonMap("actualizationMode", getMode(customSettings));
+    }
+
+    /**
+     * Starts the background worker, if it is not running yet.
+     *
+     * @param customSettings The persistence settings.
+     */
+    public static void startWorker(Settings customSettings) {
+        int interval = Math.max(1, customSettings.getInt(TAG_ACTUALIZATION_INTERVAL, DatastreamActualization.class));
+        if (WORKER.start(customSettings, interval, interval, TimeUnit.SECONDS)) {
+            LOGGER.info("Started deferred Datastream actualization every {} seconds.", interval);
+        }
+    }
+
+    /**
+     * Stops the background worker, if it is running.
+     */
+    public static void stopWorker() {
+        WORKER.stop();
+    }
+
+    /**
+     * Merges the pending changes into the (Multi)Datastreams.
+     *
+     * @param customSettings The persistence settings.
+     */
+    public static void processChanges(Settings customSettings) {
+        WORKER.runOnce(customSettings);
+    }
+
+    private static void process(DSLContext dslContext, Settings customSettings) {
+        Integer count = BackgroundSqlTask.callFunction(dslContext, "frost_process_datastream_changes()");
+        LOGGER.trace("Processed {} Datastream changes.", count);
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueBoolean;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
+import java.sql.Connection;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.ResultQuery;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings, background worker and queries for the rollups: precomputed
+ * statistics of the numeric results of the Observations of each Datastream,
+ * per minute, hour and day.
+ *
+ * A trigger on the Observations table records which minute buckets changed.
+ * The background worker recalculates these buckets from the Observations, and
+ * the hour and day buckets containing them from the lower rollups. Long-range
+ * queries can then read the day or hour rollups, instead of all Observations.
+ *
+ * @author scf
+ */
+public class DatastreamRollups implements ConfigDefaults {
+
+    /**
+     * Flag indicating the rollups should be maintained.
+     */
+    @DefaultValueBoolean(false)
+    public static final String TAG_ROLLUPS_ENABLE = "rollups.enable";
+    /**
+     * The interval between two runs of the worker, in seconds.
+     */
+    @DefaultValueInt(10)
+    public static final String TAG_ROLLUPS_INTERVAL = "rollups.interval";
+    /**
+     * The maximum number of changed minute buckets to recalculate in one
+     * transaction.
+     */
+    @DefaultValueInt(10000)
+    public static final String TAG_ROLLUPS_BATCH_SIZE = "rollups.batchSize";
+
+    public static final String LIQUIBASE_CHANGELOG_FILENAME = "liquibase/rollups.xml";
+
+    /**
+     * The bucket sizes for which rollups are maintained.
+     */
+    public static final List<String> UNITS = Collections.unmodifiableList(Arrays.asList("minute", "hour", "day"));
+
+    public static final Table<Record> TABLE_ROLLUPS = DSL.table(DSL.name("DATASTREAM_ROLLUPS"));
+    public static final Field<Object> COL_DATASTREAM_ID = DSL.field(DSL.name("DATASTREAM_ID"));
+    public static final Field<String> COL_BUCKET_UNIT = DSL.field(DSL.name("BUCKET_UNIT"), SQLDataType.VARCHAR);
+    public static final Field<OffsetDateTime> COL_BUCKET_START = DSL.field(DSL.name("BUCKET_START"), SQLDataType.TIMESTAMPWITHTIMEZONE);
+    public static final Field<Long> COL_RESULT_COUNT = DSL.field(DSL.name("RESULT_COUNT"), SQLDataType.BIGINT);
+    public static final Field<Double> COL_RESULT_MIN = DSL.field(DSL.name("RESULT_MIN"), SQLDataType.DOUBLE);
+    public static final Field<Double> COL_RESULT_MAX = DSL.field(DSL.name("RESULT_MAX"), SQLDataType.DOUBLE);
+    public static final Field<Double> COL_RESULT_SUM = DSL.field(DSL.name("RESULT_SUM"), SQLDataType.DOUBLE);
+    public static final Field<OffsetDateTime> COL_LAST_TIME = DSL.field(DSL.name("LAST_TIME"), SQLDataType.TIMESTAMPWITHTIMEZONE);
+    public static final Field<Double> COL_LAST_VALUE = DSL.field(DSL.name("LAST_VALUE"), SQLDataType.DOUBLE);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatastreamRollups.class.getName());
+
+    private static final BackgroundSqlTask WORKER = new BackgroundSqlTask("DatastreamRollups", DatastreamRollups::process);
+
+    private DatastreamRollups() {
+        // Utility class, should not be instantiated.
+    }
+
+    public static boolean isEnabled(Settings customSettings) {
+        return customSettings.getBoolean(TAG_ROLLUPS_ENABLE, DatastreamRollups.class);
+    }
+
+    /**
+     * The parameters used in the rollups changelog.
+     *
+     * @param customSettings The persistence settings.
+     * @return The changelog parameters.
+     */
+    public static Map<String, Object> getChangeLogParameters(Settings customSettings) {
+        return Collections.singletonMap("rollupsEnabled", Boolean.toString(isEnabled(customSettings)));
+    }
+
+    /**
+     * Starts the background worker, if it is not running yet.
+     *
+     * @param customSettings The persistence settings.
+     */
+    public static void startWorker(Settings customSettings) {
+        int interval = Math.max(1, customSettings.getInt(TAG_ROLLUPS_INTERVAL, DatastreamRollups.class));
+        if (WORKER.start(customSettings, interval, interval, TimeUnit.SECONDS)) {
+            LOGGER.info("Started updating the Datastream rollups every {} seconds.", interval);
+        }
+    }
+
+    /**
+     * Stops the background worker, if it is running.
+     */
+    public static void stopWorker() {
+        WORKER.stop();
+    }
+
+    /**
+     * Recalculates the rollups of the changed buckets.
+     *
+     * @param customSettings The persistence settings.
+     */
+    public static void processChanges(Settings customSettings) {
+        WORKER.runOnce(customSettings);
+    }
+
+    private static void process(DSLContext dslContext, Settings customSettings) {
+        int batchSize = Math.max(1, customSettings.getInt(TAG_ROLLUPS_BATCH_SIZE, DatastreamRollups.class));
+        int total = 0;
+        Integer count;
+        do {
+            // Commit each batch, so a large backlog, like the one after
+            // enabling the rollups, is not processed in one huge transaction.
+            count = BackgroundSqlTask.callFunction(dslContext, "frost_process_rollups(?)", batchSize);
+            dslContext.connection(Connection::commit);
+            total += count == null ? 0 : count;
+        } while (count != null && count >= batchSize && !Thread.currentThread().isInterrupted());
+        LOGGER.trace("Processed {} changed rollup buckets.", total);
+    }
+
+    /**
+     * Builds the query for the rollups of one Datastream, ordered by time.
+     * The average is calculated from the sum and the count.
+     *
+     * @param dslContext The DSLContext to build the query with.
+     * @param datastreamId The id of the Datastream.
+     * @param unit The bucket size: minute, hour or day.
+     * @param start The start of the time range, inclusive, or null.
+     * @param end The end of the time range, exclusive, or null.
+     * @param limit The maximum number of rows to return.
+     * @return The query.
+     */
+    public static ResultQuery<? extends Record> buildQuery(DSLContext dslContext, Object datastreamId, String unit, OffsetDateTime start, OffsetDateTime end, int limit) {
+        if (!UNITS.contains(unit)) {
+            throw new IllegalArgumentException("Unknown rollup unit: " + unit + ", should be one of " + UNITS);
+        }
+        Condition where = COL_DATASTREAM_ID.eq(datastreamId)
+                .and(COL_BUCKET_UNIT.eq(unit));
+        if (start != null) {
+            // Include the bucket that contains the start.
+            where = where.and(COL_BUCKET_START.ge(DSL.field("frost_rollup_bucket({0}, {1})", SQLDataType.TIMESTAMPWITHTIMEZONE, DSL.inline(unit), DSL.val(start))));
+        }
+        if (end != null) {
+            where = where.and(COL_BUCKET_START.lt(end));
+        }
+        return dslContext.select(
+                COL_BUCKET_START,
+                COL_RESULT_COUNT,
+                COL_RESULT_MIN,
+                COL_RESULT_MAX,
+                COL_RESULT_SUM.div(COL_RESULT_COUNT),
+                COL_LAST_VALUE)
+                .from(TABLE_ROLLUPS)
+                .where(where)
+                .orderBy(COL_BUCKET_START)
+                .limit(limit);
+    }
+
+}
@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.sql.Connection;
+import java.util.Collections;
+import java.util.Map;
 import liquibase.Contexts;
 import liquibase.Liquibase;
 import liquibase.database.Database;
@@ -47,10 +49,14 @@ public class LiquibaseHelper {
     }
 
     public static String checkForUpgrades(Connection connection, String liquibaseChangelogFilename) {
+        return checkForUpgrades(connection, liquibaseChangelogFilename, Collections.emptyMap());
+    }
+
+    public static String checkForUpgrades(Connection connection, String liquibaseChangelogFilename, Map<String, Object> parameters) {
         StringWriter out = new StringWriter();
         try {
             Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
-            runLiquibaseCheck(liquibaseChangelogFilename, database, out);
+            runLiquibaseCheck(liquibaseChangelogFilename, parameters, database, out);
         } catch (DatabaseException ex) {
             outputError(ex, out, "Failed to initialise database");
         }
@@ -58,9 +64,13 @@ public class LiquibaseHelper {
     }
 
     public static boolean doUpgrades(Connection connection, String liquibaseChangelogFilename, Writer out) throws UpgradeFailedException, IOException {
+        return doUpgrades(connection, liquibaseChangelogFilename, Collections.emptyMap(), out);
+    }
+
+    public static boolean doUpgrades(Connection connection, String liquibaseChangelogFilename, Map<String, Object> parameters, Writer out) throws UpgradeFailedException, IOException {
         try {
             Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
-            runLiquibaseUpdate(liquibaseChangelogFilename, database, out);
+            runLiquibaseUpdate(liquibaseChangelogFilename, parameters, database, out);
         } catch (DatabaseException ex) {
             outputError(ex, out, "Failed to initialise database");
             return false;
@@ -68,8 +78,9 @@ public class LiquibaseHelper {
         return true;
     }
 
-    private static void runLiquibaseCheck(String liquibaseChangelogFilename, Database database, StringWriter out) {
+    private static void runLiquibaseCheck(String liquibaseChangelogFilename, Map<String, Object> parameters, Database database, StringWriter out) {
         try (Liquibase liquibase = new Liquibase(liquibaseChangelogFilename, new ClassLoaderResourceAccessor(), database)) {
+            parameters.forEach(liquibase::setChangeLogParameter);
             liquibase.update(new Contexts(), out);
         } catch (LiquibaseException ex) {
             outputError(ex, out, "Failed to upgrade database");
@@ -78,8 +89,9 @@ public class LiquibaseHelper {
         }
     }
 
-    private static void runLiquibaseUpdate(String liquibaseChangelogFilename, Database database, Writer out) throws UpgradeFailedException, IOException {
+    private static void runLiquibaseUpdate(String liquibaseChangelogFilename, Map<String, Object> parameters, Database database, Writer out) throws UpgradeFailedException, IOException {
         try (Liquibase liquibase = new Liquibase(liquibaseChangelogFilename, new ClassLoaderResourceAccessor(), database)) {
+            parameters.forEach(liquibase::setChangeLogParameter);
             liquibase.update(new Contexts());
         } catch (LiquibaseException ex) {
             outputError(ex, out, "Failed to upgrade database");
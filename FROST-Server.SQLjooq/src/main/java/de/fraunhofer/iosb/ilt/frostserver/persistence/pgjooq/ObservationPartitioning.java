@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValue;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jooq.DSLContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings and maintenance for the optional range-partitioning of the
+ * Observations table on the start of the phenomenonTime.
+ *
+ * The conversion of the table is done by the Liquibase changelog
+ * {@link #LIQUIBASE_CHANGELOG_FILENAME}. After that, a background task
+ * periodically creates the partitions for the coming periods, and drops the
+ * partitions that are older than the retention period.
+ *
+ * @author scf
+ */
+public class ObservationPartitioning implements ConfigDefaults {
+
+    /**
+     * The size of the partitions: day, week, month or year. Empty to disable
+     * partitioning.
+     */
+    @DefaultValue("")
+    public static final String TAG_PARTITION_UNIT = "partitioning.unit";
+    /**
+     * The number of partitions to create ahead of the current one.
+     */
+    @DefaultValueInt(3)
+    public static final String TAG_PARTITION_AHEAD = "partitioning.ahead";
+    /**
+     * The PostgreSQL interval after which partitions are dropped, like "2
+     * years". Empty to keep all partitions.
+     */
+    @DefaultValue("")
+    public static final String TAG_PARTITION_RETENTION = "partitioning.retention";
+    /**
+     * The interval between two maintenance runs, in minutes.
+     */
+    @DefaultValueInt(60)
+    public static final String TAG_PARTITION_MAINTENANCE_INTERVAL = "partitioning.maintenanceInterval";
+
+    public static final String LIQUIBASE_CHANGELOG_FILENAME = "liquibase/observationPartitioning.xml";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationPartitioning.class.getName());
+    private static final List<String> UNITS = Arrays.asList("day", "week", "month", "year");
+
+    private static final BackgroundSqlTask MAINTENANCE = new BackgroundSqlTask("PartitionMaintenance", ObservationPartitioning::maintain);
+
+    private ObservationPartitioning() {
+        // Utility class, should not be instantiated.
+    }
+
+    /**
+     * Returns the configured partition unit, or an empty String if
+     * partitioning is not enabled or the unit is not valid.
+     *
+     * @param customSettings The persistence settings.
+     * @return The partition unit.
+     */
+    public static String getUnit(Settings customSettings) {
+        String unit = customSettings.get(TAG_PARTITION_UNIT, ObservationPartitioning.class).trim().toLowerCase(Locale.ROOT);
+        if (unit.isEmpty() || UNITS.contains(unit)) {
+            return unit;
+        }
+        LOGGER.error("Unknown value for {}: {}, should be one of {}. Partitioning disabled.", TAG_PARTITION_UNIT, unit, UNITS);
+        return "";
+    }
+
+    public static boolean isEnabled(Settings customSettings) {
+        return !getUnit(customSettings).isEmpty();
+    }
+
+    /**
+     * The parameters used in the partitioning changelog.
+     *
+     * @param customSettings The persistence settings.
+     * @return The changelog parameters.
+     */
+    public static Map<String, Object> getChangeLogParameters(Settings customSettings) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("partitionUnit", getUnit(customSettings));
+        parameters.put("partitionAhead", customSettings.getInt(TAG_PARTITION_AHEAD, ObservationPartitioning.class));
+        return parameters;
+    }
+
+    /**
+     * Starts the periodic maintenance of the partitions, if it is not running
+     * yet.
+     *
+     * @param customSettings The persistence settings.
+     */
+    public static void startMaintenance(Settings customSettings) {
+        int interval = Math.max(1, customSettings.getInt(TAG_PARTITION_MAINTENANCE_INTERVAL, ObservationPartitioning.class));
+        if (MAINTENANCE.start(customSettings, 0, interval, TimeUnit.MINUTES)) {
+            LOGGER.info("Started partition maintenance every {} minutes.", interval);
+        }
+    }
+
+    /**
+     * Stops the periodic maintenance of the partitions, if it is running.
+     */
+    public static void stopMaintenance() {
+        MAINTENANCE.stop();
+    }
+
+    /**
+     * Creates the partitions for the coming periods, and drops the partitions
+     * that are older than the retention period.
+     *
+     * @param customSettings The persistence settings.
+     */
+    public static void runMaintenance(Settings customSettings) {
+        MAINTENANCE.runOnce(customSettings);
+    }
+
+    private static void maintain(DSLContext dslContext, Settings customSettings) {
+        String unit = getUnit(customSettings);
+        if (unit.isEmpty()) {
+            return;
+        }
+        int ahead = customSettings.getInt(TAG_PARTITION_AHEAD, ObservationPartitioning.class);
+        String retention = customSettings.get(TAG_PARTITION_RETENTION, ObservationPartitioning.class).trim();
+        Integer created = BackgroundSqlTask.callFunction(dslContext, "frost_create_observation_partitions(?, ?)", unit, ahead);
+        LOGGER.debug("Created {} Observation partitions.", created);
+        if (!retention.isEmpty()) {
+            Integer dropped = BackgroundSqlTask.callFunction(dslContext, "frost_drop_observation_partitions(now() - ?::interval)", retention);
+            if (dropped != null && dropped > 0) {
+                LOGGER.info("Dropped {} Observation partitions older than {}.", dropped, retention);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageBusFactory;
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageListener;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which Datastreams and MultiDatastreams exist, how many
+ * ObservedProperties the MultiDatastreams have, and which FeatureOfInterest
+ * was generated from the Location of their Thing, so that inserting an
+ * Observation does not need to look these up in the database.
+ *
+ * Entries are only added when the transaction that found them commits, and
+ * are removed when the message bus reports a change that affects them. Since
+ * the message bus can be shared between instances, changes on other instances
+ * are also seen. When the cache is full, the least recently used entries are
+ * dropped.
+ *
+ * @author scf
+ */
+public class ParentExistenceCache {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParentExistenceCache.class);
+
+    /**
+     * The value stored for parents of which the number of ObservedProperties
+     * is not known.
+     */
+    private static final int UNKNOWN_COUNT = -1;
+
+    private static final Map<ParentKey, Integer> PARENTS = createLruMap();
+    private static final Map<ParentKey, Object> GENERATED_FEATURES = createLruMap();
+    /**
+     * Increased every time entries are removed, so that transactions that
+     * started before the removal do not add stale entries.
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+    private static volatile int maxSize = 0;
+    private static boolean listening = false;
+
+    private ParentExistenceCache() {
+        // Utility class.
+    }
+
+    /**
+     * Enables the cache, if maxSize is larger than 0, and registers it on the
+     * message bus.
+     *
+     * @param maxSize The maximum number of (Multi)Datastreams to cache.
+     */
+    public static synchronized void init(int maxSize) {
+        if (maxSize <= 0) {
+            return;
+        }
+        if (!listening) {
+            try {
+                MessageBusFactory.getMessageBus().addMessageListener(new InvalidationListener());
+                listening = true;
+            } catch (IllegalStateException exc) {
+                LOGGER.warn("No message bus available, not caching the existence of (Multi)Datastreams: {}", exc.getMessage());
+                return;
+            }
+        }
+        if (ParentExistenceCache.maxSize != maxSize) {
+            ParentExistenceCache.maxSize = maxSize;
+            LOGGER.info("Caching the existence of up to {} (Multi)Datastreams.", maxSize);
+        }
+    }
+
+    private static <V> Map<ParentKey, V> createLruMap() {
+        return new LinkedHashMap<ParentKey, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ParentKey, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public static boolean isCached(EntityType type) {
+        return type == EntityType.DATASTREAM || type == EntityType.MULTIDATASTREAM;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public static synchronized void clear() {
+        GENERATION.incrementAndGet();
+        PARENTS.clear();
+        GENERATED_FEATURES.clear();
+    }
+
+    /**
+     * Removes all generated FeaturesOfInterest, for instance because the
+     * Locations of a Thing changed.
+     */
+    public static synchronized void clearGeneratedFeatures() {
+        if (isEnabled()) {
+            GENERATION.incrementAndGet();
+            GENERATED_FEATURES.clear();
+        }
+    }
+
+    /**
+     * Removes all entries if entities of the given type were deleted, and the
+     * delete can cascade to (Multi)Datastreams or generated
+     * FeaturesOfInterest.
+     *
+     * @param type The type of the deleted entities.
+     */
+    public static void entitiesDeleted(EntityType type) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (affectsParents(type)) {
+            clear();
+        } else if (affectsFeatures(type)) {
+            clearGeneratedFeatures();
+        }
+    }
+
+    private static boolean affectsParents(EntityType type) {
+        switch (type) {
+            case DATASTREAM:
+            case MULTIDATASTREAM:
+            case THING:
+            case SENSOR:
+            case OBSERVEDPROPERTY:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private static boolean affectsFeatures(EntityType type) {
+        return type == EntityType.LOCATION
+                || type == EntityType.HISTORICALLOCATION
+                || type == EntityType.FEATUREOFINTEREST;
+    }
+
+    private static synchronized void remove(EntityType type, Object id) {
+        GENERATION.incrementAndGet();
+        ParentKey key = new ParentKey(type, id);
+        PARENTS.remove(key);
+        GENERATED_FEATURES.remove(key);
+    }
+
+    private static synchronized Integer getParent(ParentKey key) {
+        return PARENTS.get(key);
+    }
+
+    private static synchronized Object getGeneratedFeature(ParentKey key) {
+        return GENERATED_FEATURES.get(key);
+    }
+
+    private static synchronized void putAll(Map<ParentKey, Integer> parents, Map<ParentKey, Object> features, long generation) {
+        if (GENERATION.get() != generation) {
+            // Something was removed since the transaction started, the found
+            // entries may be stale.
+            return;
+        }
+        for (Map.Entry<ParentKey, Integer> entry : parents.entrySet()) {
+            if (!isCached(entry.getKey().type)) {
+                continue;
+            }
+            Integer known = PARENTS.get(entry.getKey());
+            if (entry.getValue() != UNKNOWN_COUNT || known == null) {
+                PARENTS.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<ParentKey, Object> entry : features.entrySet()) {
+            if (isCached(entry.getKey().type)) {
+                GENERATED_FEATURES.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The parents that were found in the database, or created, by one
+     * transaction. These are remembered for the duration of the transaction
+     * for all entity types, even when the cache is disabled, so that inserting
+     * many Observations checks each parent only once. The (Multi)Datastreams
+     * are added to the cache when the transaction is committed.
+     *
+     * The generation of the cache is taken at the first lookup, before the
+     * database is queried, so that a removal that happens between the query
+     * and the commit keeps the found parents out of the cache.
+     */
+    public static class Transaction {
+
+        private final Map<ParentKey, Integer> foundParents = new HashMap<>();
+        private final Map<ParentKey, Object> foundFeatures = new HashMap<>();
+        private boolean started;
+        private long generation;
+
+        /**
+         * Checks if the given parent is known to exist.
+         *
+         * @param type The type of the parent.
+         * @param id The id of the parent.
+         * @return true if the parent is known to exist, false if it is not
+         * known.
+         */
+        public boolean exists(EntityType type, Object id) {
+            start();
+            ParentKey key = new ParentKey(type, id);
+            return foundParents.containsKey(key) || getParent(key) != null;
+        }
+
+        /**
+         * Returns the number of ObservedProperties of the given
+         * MultiDatastream, if it is known.
+         *
+         * @param mdsId The id of the MultiDatastream.
+         * @return The number of ObservedProperties, or null if not known.
+         */
+        public Integer getObservedPropertyCount(Object mdsId) {
+            start();
+            ParentKey key = new ParentKey(EntityType.MULTIDATASTREAM, mdsId);
+            Integer count = foundParents.get(key);
+            if (count == null || count == UNKNOWN_COUNT) {
+                count = getParent(key);
+            }
+            if (count == null || count == UNKNOWN_COUNT) {
+                return null;
+            }
+            return count;
+        }
+
+        /**
+         * Returns the id of the FeatureOfInterest that was generated for
+         * Observations of the given (Multi)Datastream, if it is known.
+         *
+         * @param type The type of the parent.
+         * @param id The id of the parent.
+         * @return The id of the generated FeatureOfInterest, or null.
+         */
+        public Object getGeneratedFeatureId(EntityType type, Object id) {
+            start();
+            ParentKey key = new ParentKey(type, id);
+            Object featureId = foundFeatures.get(key);
+            if (featureId == null) {
+                featureId = getGeneratedFeature(key);
+            }
+            return featureId;
+        }
+
+        /**
+         * Registers that the given parent was found in the database.
+         *
+         * @param type The type of the parent.
+         * @param id The id of the parent.
+         */
+        public void addExisting(EntityType type, Object id) {
+            start();
+            foundParents.putIfAbsent(new ParentKey(type, id), UNKNOWN_COUNT);
+        }
+
+        /**
+         * Registers the number of ObservedProperties found for the given
+         * MultiDatastream.
+         *
+         * @param mdsId The id of the MultiDatastream.
+         * @param count The number of ObservedProperties.
+         */
+        public void addObservedPropertyCount(Object mdsId, int count) {
+            start();
+            foundParents.put(new ParentKey(EntityType.MULTIDATASTREAM, mdsId), count);
+        }
+
+        /**
+         * Registers the FeatureOfInterest that was found or generated for
+         * Observations of the given (Multi)Datastream.
+         *
+         * @param type The type of the parent.
+         * @param id The id of the parent.
+         * @param featureId The id of the generated FeatureOfInterest.
+         */
+        public void addGeneratedFeature(EntityType type, Object id, Object featureId) {
+            start();
+            foundFeatures.put(new ParentKey(type, id), featureId);
+        }
+
+        /**
+         * Removes all generated FeaturesOfInterest, both from this
+         * transaction and from the cache. Call when the Locations of a Thing
+         * change, or the Thing of a (Multi)Datastream changes.
+         */
+        public void clearGeneratedFeatures() {
+            foundFeatures.clear();
+            ParentExistenceCache.clearGeneratedFeatures();
+        }
+
+        private void start() {
+            if (!started) {
+                generation = GENERATION.get();
+                started = true;
+            }
+        }
+
+        /**
+         * Forgets the found parents, and removes entries from the cache, if
+         * entities of the given type were deleted. Call after deleting an
+         * entity.
+         *
+         * @param type The type of the deleted entity.
+         */
+        public void entitiesDeleted(EntityType type) {
+            clear();
+            ParentExistenceCache.entitiesDeleted(type);
+        }
+
+        /**
+         * Adds the found (Multi)Datastreams to the cache, if the cache is
+         * enabled. Call after the transaction is committed.
+         */
+        public void commit() {
+            if (isEnabled() && (!foundParents.isEmpty() || !foundFeatures.isEmpty())) {
+                putAll(foundParents, foundFeatures, generation);
+            }
+            clear();
+        }
+
+        /**
+         * Forgets the found parents. Call after the transaction is rolled
+         * back.
+         */
+        public void clear() {
+            foundParents.clear();
+            foundFeatures.clear();
+            started = false;
+        }
+    }
+
+    private static class InvalidationListener implements MessageListener {
+
+        @Override
+        public void messageReceived(EntityChangedMessage message) {
+            EntityType type = message.getEntityType();
+            Entity entity = message.getEntity();
+            boolean isDelete = message.getEventType() == EntityChangedMessage.Type.DELETE;
+            if (isCached(type)) {
+                if (entity == null || entity.getId() == null) {
+                    clear();
+                } else if (isDelete
+                        || type == EntityType.MULTIDATASTREAM
+                        || (message.getNpFields() != null && message.getNpFields().contains(NavigationPropertyMain.THING))) {
+                    // Updates can change the ObservedProperties of a
+                    // MultiDatastream, or the Thing of a Datastream.
+                    remove(type, entity.getId().getValue());
+                }
+            } else if (isDelete && affectsParents(type)) {
+                // Deletes of Things, Sensors and ObservedProperties cascade to (Multi)Datastreams.
+                clear();
+            } else if (type == EntityType.FEATUREOFINTEREST) {
+                if (isDelete) {
+                    clearGeneratedFeatures();
+                }
+            } else if (affectsFeatures(type)) {
+                // Changes of the Locations of a Thing create HistoricalLocations.
+                clearGeneratedFeatures();
+            }
+        }
+
+        @Override
+        public boolean isInterestedIn(EntityType type) {
+            return affectsParents(type) || affectsFeatures(type);
+        }
+    }
+
+    private static class ParentKey {
+
+        private final EntityType type;
+        private final Object id;
+
+        public ParentKey(EntityType type, Object id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, id);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final ParentKey other = (ParentKey) obj;
+            return type == other.type && Objects.equals(id, other.id);
+        }
+    }
+}
@@ -24,8 +24,10 @@ import de.fraunhofer.iosb.ilt.frostserver.json.deserialize.JsonReader;
 import de.fraunhofer.iosb.ilt.frostserver.json.serialize.JsonWriter;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.Observation;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.ObservationRows;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
@@ -34,6 +36,8 @@ import de.fraunhofer.iosb.ilt.frostserver.persistence.AbstractPersistenceManager
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ConnectionUtils.ConnectionWrapper;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.factories.EntityFactories;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.factories.EntityFactory;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.factories.ObservationFactory;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.tables.StaMainTable;
 import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
@@ -48,12 +52,20 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.jooq.DSLContext;
 import org.jooq.Delete;
+import org.jooq.Field;
 import org.jooq.Record;
 import org.jooq.Record1;
+import org.jooq.Result;
 import org.jooq.ResultQuery;
 import org.jooq.SQLDialect;
 import org.jooq.impl.DSL;
@@ -75,15 +87,50 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PostgresPersistenceManager.class.getName());
 
+    /**
+     * The maximum number of entities to fetch with one query, when fetching
+     * entities by id.
+     */
+    private static final int FETCH_BATCH_SIZE = 1000;
+
     private CoreSettings settings;
     private ConnectionWrapper connectionProvider;
     private DSLContext dslContext;
+    private final ParentExistenceCache.Transaction parentExistenceCache = new ParentExistenceCache.Transaction();
+    /**
+     * The types of the entities changed in the current transaction, for the
+     * invalidation of the CountCache.
+     */
+    private final Set<EntityType> changedTypes = EnumSet.noneOf(EntityType.class);
+    private boolean deletedEntities;
 
     @Override
     public void init(CoreSettings settings) {
         this.settings = settings;
         Settings customSettings = settings.getPersistenceSettings().getCustomSettings();
         connectionProvider = new ConnectionWrapper(customSettings);
+        ParentExistenceCache.init(settings.getPersistenceSettings().getParentCacheSize());
+    }
+
+    @Override
+    public void startBackgroundTasks() {
+        Settings customSettings = settings.getPersistenceSettings().getCustomSettings();
+        if (ObservationPartitioning.isEnabled(customSettings)) {
+            ObservationPartitioning.startMaintenance(customSettings);
+        }
+        if (DatastreamActualization.isDeferred(customSettings)) {
+            DatastreamActualization.startWorker(customSettings);
+        }
+        if (DatastreamRollups.isEnabled(customSettings)) {
+            DatastreamRollups.startWorker(customSettings);
+        }
+    }
+
+    @Override
+    public void stopBackgroundTasks() {
+        ObservationPartitioning.stopMaintenance();
+        DatastreamActualization.stopWorker();
+        DatastreamRollups.stopWorker();
     }
 
     @Override
@@ -93,6 +140,16 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
 
     public abstract PropertyResolver<J> getPropertyResolver();
 
+    /**
+     * The parents of Observations that are known to exist, and those that
+     * were found in the current transaction.
+     *
+     * @return The parents that are known to exist.
+     */
+    public ParentExistenceCache.Transaction getParentExistenceCache() {
+        return parentExistenceCache;
+    }
+
     public abstract EntityFactories<J> getEntityFactories();
 
     public abstract IdGenerationHandler createIdGenerationHanlder(Entity e);
@@ -110,6 +167,16 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
         return connectionProvider;
     }
 
+    @Override
+    public void setReadOnly(boolean readOnly) {
+        connectionProvider.setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadFromReplica() {
+        return connectionProvider.isUsedReplica();
+    }
+
     @Override
     public boolean validatePath(ResourcePath path) {
         PathElement element = path.getIdentifiedElement();
@@ -180,6 +247,28 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
 
     @Override
     public Object get(ResourcePath path, Query query) {
+        return get(path, query, false);
+    }
+
+    @Override
+    public Object getLazy(ResourcePath path, Query query) {
+        return get(path, query, true);
+    }
+
+    @Override
+    public ObservationRows getObservationRows(ResourcePath path, Query query) {
+        PathElement lastElement = path.getLastElement();
+        if (!(lastElement instanceof PathElementEntitySet)
+                || ((PathElementEntitySet) lastElement).getEntityType() != EntityType.OBSERVATION) {
+            throw new IllegalArgumentException("Only sets of Observations can be loaded as rows.");
+        }
+        QueryBuilder<J> psb = new QueryBuilder<>(this, settings, getPropertyResolver())
+                .forPath(path)
+                .usingQuery(query);
+        return new ResultBuilder<>(this, path, query, psb, true).createObservationRows();
+    }
+
+    private Object get(ResourcePath path, Query query, boolean lazy) {
         PathElement lastElement = path.getLastElement();
         if (!(lastElement instanceof PathElementEntity) && !(lastElement instanceof PathElementEntitySet)) {
             if (!query.getExpand().isEmpty()) {
@@ -196,7 +285,7 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
                 .forPath(path)
                 .usingQuery(query);
 
-        ResultBuilder<J> entityCreator = new ResultBuilder<>(this, path, query, psb);
+        ResultBuilder<J> entityCreator = new ResultBuilder<>(this, path, query, psb, lazy);
         lastElement.visit(entityCreator);
         Object entity = entityCreator.getEntity();
 
@@ -219,9 +308,75 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
         EntityFactories<J> ef = getEntityFactories();
         EntityFactory<Entity, J> factory = ef.getFactoryFor(entity.getEntityType());
         factory.insert(this, entity);
+        changedTypes.add(entity.getEntityType());
         return true;
     }
 
+    /**
+     * Inserts lists of Observations in bulk. Other lists are inserted one
+     * entity at a time.
+     *
+     * @param entities The entities to insert.
+     * @return A list with, for each given entity, null if the entity was
+     * inserted, or the exception describing why it was not inserted.
+     */
+    @Override
+    public List<Exception> doInsert(List<? extends Entity> entities) {
+        List<Observation> observations = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            if (!(entity instanceof Observation)) {
+                return super.doInsert(entities);
+            }
+            observations.add((Observation) entity);
+        }
+        EntityFactory<Observation, J> factory = getEntityFactories().getFactoryFor(EntityType.OBSERVATION);
+        if (!(factory instanceof ObservationFactory)) {
+            return super.doInsert(entities);
+        }
+        changedTypes.add(EntityType.OBSERVATION);
+        return ((ObservationFactory<J>) factory).insert(this, observations);
+    }
+
+    @Override
+    protected List<Entity> fetchEntities(List<Entity> entities) {
+        if (entities.isEmpty()) {
+            return entities;
+        }
+        EntityType type = entities.get(0).getEntityType();
+        for (Entity entity : entities) {
+            if (entity.getEntityType() != type) {
+                return super.fetchEntities(entities);
+            }
+        }
+        StaMainTable<J> table = getEntityFactories().getTableCollection().getTableForType(type);
+        EntityFactory<Entity, J> factory = getEntityFactories().getFactoryFor(type);
+        Set<Field> fields = getPropertyResolver().getFieldsForProperties(table, Collections.emptySet());
+        Map<J, Entity> fetched = new HashMap<>();
+        List<J> ids = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            ids.add((J) entity.getId().asBasicPersistenceType());
+        }
+        for (int start = 0; start < ids.size(); start += FETCH_BATCH_SIZE) {
+            List<J> batchIds = ids.subList(start, Math.min(start + FETCH_BATCH_SIZE, ids.size()));
+            Result<Record> records = getDslContext().select(fields)
+                    .from(table)
+                    .where(table.getId().in(batchIds))
+                    .fetch();
+            for (Record tuple : records) {
+                Entity entity = factory.create(tuple, null, new DataSize());
+                fetched.put((J) entity.getId().asBasicPersistenceType(), entity);
+            }
+        }
+        List<Entity> result = new ArrayList<>(entities.size());
+        for (J id : ids) {
+            Entity entity = fetched.get(id);
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
     @Override
     public EntityChangedMessage doUpdate(PathElementEntity pathElement, Entity entity) throws NoSuchEntityException, IncompleteEntityException {
         EntityFactories<J> ef = getEntityFactories();
@@ -233,6 +388,7 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
         }
 
         EntityFactory<Entity, J> factory = ef.getFactoryFor(entity.getEntityType());
+        changedTypes.add(entity.getEntityType());
         return factory.update(this, entity, id);
     }
 
@@ -275,6 +431,7 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
         EntityFactories<J> ef = getEntityFactories();
         EntityFactory<Entity, J> factory = ef.getFactoryFor(entityType);
         factory.update(this, newEntity, (J) id.getValue());
+        changedTypes.add(entityType);
 
         message.setEntity(newEntity);
         message.setEventType(EntityChangedMessage.Type.UPDATE);
@@ -287,6 +444,9 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
         EntityType type = pathElement.getEntityType();
         EntityFactory<Entity, J> factory = ef.getFactoryFor(type);
         factory.delete(this, (J) pathElement.getId().getValue());
+        // Deletes cascade, and the messages only arrive after the commit.
+        parentExistenceCache.entitiesDeleted(type);
+        deletedEntities = true;
         return true;
     }
 
@@ -302,20 +462,56 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
 
         long rowCount = sqlDelete.execute();
         LOGGER.debug("Deleted {} rows using query {}", rowCount, sqlDelete);
+        // Bulk deletes do not send messages for the deleted entities.
+        parentExistenceCache.entitiesDeleted(path.getMainElementType());
+        deletedEntities = true;
     }
 
     @Override
     protected boolean doCommit() {
-        return connectionProvider.doCommit();
+        boolean committed = connectionProvider.doCommit();
+        if (committed) {
+            parentExistenceCache.commit();
+            invalidateCounts();
+        } else {
+            parentExistenceCache.clear();
+        }
+        clearChanges();
+        return committed;
+    }
+
+    /**
+     * Removes the cached counts that the changes of the committed transaction
+     * may have made invalid. Deletes cascade, so they invalidate all counts.
+     */
+    private void invalidateCounts() {
+        if (settings.getPersistenceSettings().getCountCacheTtl() <= 0) {
+            return;
+        }
+        CountCache countCache = CountCache.getInstance(settings.getPersistenceSettings());
+        if (deletedEntities) {
+            countCache.invalidateAll();
+        } else {
+            countCache.entitiesChanged(changedTypes);
+        }
+    }
+
+    private void clearChanges() {
+        changedTypes.clear();
+        deletedEntities = false;
     }
 
     @Override
     protected boolean doRollback() {
+        parentExistenceCache.clear();
+        clearChanges();
         return connectionProvider.doRollback();
     }
 
     @Override
     protected boolean doClose() {
+        parentExistenceCache.clear();
+        clearChanges();
         return connectionProvider.doClose();
     }
 
@@ -323,9 +519,28 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
     public String checkForUpgrades() {
         try {
             Settings customSettings = settings.getPersistenceSettings().getCustomSettings();
-            Connection connection = ConnectionUtils.getConnection("FROST-Source", customSettings);
+            Connection connection = ConnectionUtils.getConnection(ConnectionUtils.SOURCE_NAME, customSettings);
             String liquibaseChangelogFilename = getLiquibaseChangelogFilename();
-            return LiquibaseHelper.checkForUpgrades(connection, liquibaseChangelogFilename);
+            String result = LiquibaseHelper.checkForUpgrades(connection, liquibaseChangelogFilename);
+            if (ObservationPartitioning.isEnabled(customSettings)) {
+                // Liquibase closes the connection when it is done.
+                connection = ConnectionUtils.getConnection(ConnectionUtils.SOURCE_NAME, customSettings);
+                result += LiquibaseHelper.checkForUpgrades(
+                        connection,
+                        ObservationPartitioning.LIQUIBASE_CHANGELOG_FILENAME,
+                        ObservationPartitioning.getChangeLogParameters(customSettings));
+            }
+            connection = ConnectionUtils.getConnection(ConnectionUtils.SOURCE_NAME, customSettings);
+            result += LiquibaseHelper.checkForUpgrades(
+                    connection,
+                    DatastreamActualization.LIQUIBASE_CHANGELOG_FILENAME,
+                    DatastreamActualization.getChangeLogParameters(customSettings));
+            connection = ConnectionUtils.getConnection(ConnectionUtils.SOURCE_NAME, customSettings);
+            result += LiquibaseHelper.checkForUpgrades(
+                    connection,
+                    DatastreamRollups.LIQUIBASE_CHANGELOG_FILENAME,
+                    DatastreamRollups.getChangeLogParameters(customSettings));
+            return result;
         } catch (SQLException ex) {
             LOGGER.error("Could not initialise database.", ex);
             return "Failed to initialise database:\n"
@@ -337,9 +552,39 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
     @Override
     public boolean doUpgrades(Writer out) throws UpgradeFailedException, IOException {
         Settings customSettings = settings.getPersistenceSettings().getCustomSettings();
+        boolean success = doUpgrades(customSettings, getLiquibaseChangelogFilename(), Collections.emptyMap(), out);
+        if (success && ObservationPartitioning.isEnabled(customSettings)) {
+            success = doUpgrades(
+                    customSettings,
+                    ObservationPartitioning.LIQUIBASE_CHANGELOG_FILENAME,
+                    ObservationPartitioning.getChangeLogParameters(customSettings),
+                    out);
+        }
+        if (success) {
+            success = doUpgrades(
+                    customSettings,
+                    DatastreamActualization.LIQUIBASE_CHANGELOG_FILENAME,
+                    DatastreamActualization.getChangeLogParameters(customSettings),
+                    out);
+        }
+        if (success) {
+            success = doUpgrades(
+                    customSettings,
+                    DatastreamRollups.LIQUIBASE_CHANGELOG_FILENAME,
+                    DatastreamRollups.getChangeLogParameters(customSettings),
+                    out);
+        }
+        if (success) {
+            // The background tasks need the tables and functions created above.
+            startBackgroundTasks();
+        }
+        return success;
+    }
+
+    private boolean doUpgrades(Settings customSettings, String liquibaseChangelogFilename, Map<String, Object> parameters, Writer out) throws UpgradeFailedException, IOException {
         Connection connection;
         try {
-            connection = ConnectionUtils.getConnection("FROST-Source", customSettings);
+            connection = ConnectionUtils.getConnection(ConnectionUtils.SOURCE_NAME, customSettings);
         } catch (SQLException ex) {
             LOGGER.error("Could not initialise database.", ex);
             out.append("Failed to initialise database:\n");
@@ -347,8 +592,7 @@ public abstract class PostgresPersistenceManager<J extends Comparable> extends A
             out.append("\n");
             return false;
         }
-        String liquibaseChangelogFilename = getLiquibaseChangelogFilename();
-        return LiquibaseHelper.doUpgrades(connection, liquibaseChangelogFilename, out);
+        return LiquibaseHelper.doUpgrades(connection, liquibaseChangelogFilename, parameters, out);
     }
 
 }
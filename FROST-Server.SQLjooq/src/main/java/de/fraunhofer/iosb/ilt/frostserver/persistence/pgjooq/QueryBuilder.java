@@ -27,22 +27,29 @@ import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementProperty;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePathVisitor;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.tables.AbstractTableObservations;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.tables.StaMainTable;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.tables.TableCollection;
 import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
 import de.fraunhofer.iosb.ilt.frostserver.property.NavigationProperty;
 import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Aggregation;
 import de.fraunhofer.iosb.ilt.frostserver.query.Expand;
 import de.fraunhofer.iosb.ilt.frostserver.query.OrderBy;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import de.fraunhofer.iosb.ilt.frostserver.query.expression.Expression;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import org.jooq.AggregateFunction;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.Delete;
 import org.jooq.DeleteConditionStep;
@@ -50,13 +57,19 @@ import org.jooq.Field;
 import org.jooq.OrderField;
 import org.jooq.Record;
 import org.jooq.Record1;
+import org.jooq.Record2;
 import org.jooq.ResultQuery;
 import org.jooq.SelectConditionStep;
 import org.jooq.SelectIntoStep;
 import org.jooq.SelectSeekStepN;
+import org.jooq.SelectSelectStep;
 import org.jooq.SelectWithTiesAfterOffsetStep;
+import org.jooq.SortField;
+import org.jooq.SortOrder;
+import org.jooq.Table;
 import org.jooq.conf.ParamType;
 import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -81,6 +94,30 @@ public class QueryBuilder<J extends Comparable> implements ResourcePathVisitor {
      */
     public static final String ALIAS_PREFIX = "e";
 
+    /**
+     * The name of the column holding the id of the parent entity, in queries
+     * generated by buildSelectBatched and buildCountBatched.
+     */
+    public static final String BATCH_PARENT_ID = "batch_parent_id";
+    private static final String BATCH_ROW_NUMBER = "batch_row_number";
+    private static final String BATCH_TABLE = "batch";
+    /**
+     * The prefix of the aliases of the sort fields that are added to the
+     * select, to generate the $skiptoken from.
+     */
+    private static final String SKIP_TOKEN_PREFIX = "skiptoken_";
+    static final String COUNT_ROWS_TABLE = "count_rows";
+    /**
+     * The name of the column holding the Datastream id, in queries generated
+     * by buildAggregate.
+     */
+    public static final String AGGREGATE_DATASTREAM = "aggregate_datastream";
+    /**
+     * The name of the column holding the start of the time bucket, in queries
+     * generated by buildAggregate.
+     */
+    public static final String AGGREGATE_BUCKET = "aggregate_bucket";
+
     private final PostgresPersistenceManager<J> pm;
     private final CoreSettings coreSettings;
     private final PersistenceSettings settings;
@@ -102,6 +139,16 @@ public class QueryBuilder<J extends Comparable> implements ResourcePathVisitor {
     private boolean single = false;
     private boolean parsed = false;
 
+    /**
+     * Flag indicating the selected rows contain the sort values needed to
+     * generate a $skiptoken.
+     */
+    private boolean keyset = false;
+    /**
+     * The number of rows before the first row selected by buildSelect.
+     */
+    private int pageOffset = 0;
+
     private final QueryState<J> queryState = new QueryState<>();
 
     public QueryBuilder(PostgresPersistenceManager<J> pm, CoreSettings coreSettings, PropertyResolver<J> propertyResolver) {
@@ -120,33 +167,55 @@ public class QueryBuilder<J extends Comparable> implements ResourcePathVisitor {
         }
 
         DSLContext dslContext = pm.getDslContext();
-        SelectIntoStep<Record> selectStep;
-        if (queryState.isDistinctRequired()) {
-            if (queryState.isSqlSortFieldsSet()) {
-                queryState.getSqlSortFields().add(queryState.getSqlMainIdField(), OrderBy.OrderType.ASCENDING);
-                selectStep = dslContext.select(queryState.getSqlSelectFields()).distinctOn(queryState.getSqlSortFields().getSqlSortSelectFields());
-            } else {
-                selectStep = dslContext.select(queryState.getSqlSelectFields()).distinctOn(queryState.getSqlMainIdField());
-            }
-        } else {
-            selectStep = dslContext.select(queryState.getSqlSelectFields());
-        }
-        SelectConditionStep<Record> whereStep = selectStep.from(queryState.getSqlFrom())
-                .where(queryState.getSqlWhere());
-
         final List<OrderField> sortFields = queryState.getSqlSortFields().getSqlSortFields();
-        SelectSeekStepN<Record> orderByStep = whereStep.orderBy(sortFields.toArray(new OrderField[sortFields.size()]));
-
         int skip = 0;
         int count;
+        Condition seekCondition = DSL.noCondition();
         if (single) {
             count = 2;
         } else if (staQuery != null) {
             count = staQuery.getTopOrDefault() + 1;
             skip = staQuery.getSkip(0);
+            SkipToken skipToken = null;
+            if (staQuery.getSkipToken() != null) {
+                skipToken = SkipToken.decode(staQuery.getSkipToken());
+                skip = skipToken.getOffset();
+            }
+            pageOffset = skip;
+            if (skipToken != null && !skipToken.getValues().isEmpty() && !queryState.isDistinctRequired()) {
+                seekCondition = createSeekCondition(skipToken.getValues());
+                skip = 0;
+            }
+            keyset = settings.isKeysetPagination() && !forUpdate && !queryState.isDistinctRequired();
         } else {
             count = 1;
         }
+
+        Collection<Field> selectFields = queryState.getSqlSelectFields();
+        if (keyset) {
+            selectFields = new ArrayList<>(selectFields);
+            int idx = 0;
+            for (Field field : queryState.getSqlSortFields().getSqlSortSelectFields()) {
+                selectFields.add(field.as(SKIP_TOKEN_PREFIX + idx++));
+            }
+        }
+
+        SelectIntoStep<Record> selectStep;
+        if (queryState.isDistinctRequired()) {
+            if (queryState.isSqlSortFieldsSet()) {
+                queryState.getSqlSortFields().add(queryState.getSqlMainIdField(), OrderBy.OrderType.ASCENDING);
+                selectStep = dslContext.select(selectFields).distinctOn(queryState.getSqlSortFields().getSqlSortSelectFields());
+            } else {
+                selectStep = dslContext.select(selectFields).distinctOn(queryState.getSqlMainIdField());
+            }
+        } else {
+            selectStep = dslContext.select(selectFields);
+        }
+        SelectConditionStep<Record> whereStep = selectStep.from(queryState.getSqlFrom())
+                .where(queryState.getSqlWhere())
+                .and(seekCondition);
+
+        SelectSeekStepN<Record> orderByStep = whereStep.orderBy(sortFields.toArray(new OrderField[sortFields.size()]));
         SelectWithTiesAfterOffsetStep<Record> limit = orderByStep.limit(skip, count);
 
         if (forUpdate) {
@@ -159,6 +228,195 @@ public class QueryBuilder<J extends Comparable> implements ResourcePathVisitor {
         return limit;
     }
 
+    /**
+     * Build the query for the $aggregate of the query. The Observations
+     * selected by the path and $filter are grouped per Datastream, and in
+     * buckets of phenomenonTime, and the numeric results in each bucket are
+     * reduced using the requested aggregate functions. The first two columns
+     * are {@link #AGGREGATE_DATASTREAM} and {@link #AGGREGATE_BUCKET},
+     * followed by one column per aggregate function. The $top and $skip of the
+     * query apply to the buckets.
+     *
+     * @return the aggregate query.
+     */
+    public ResultQuery<Record> buildAggregate() {
+        gatherData();
+
+        final StaMainTable<J> table = mainTable.getTable();
+        if (!(table instanceof AbstractTableObservations)) {
+            throw new IllegalArgumentException("$aggregate is only supported on Observations.");
+        }
+        final AbstractTableObservations<J> obsTable = (AbstractTableObservations<J>) table;
+        final Aggregation aggregation = staQuery.getAggregation();
+        final Field<J> dsIdField = obsTable.getDatastreamId();
+        final Field<OffsetDateTime> timeField = obsTable.colPhenomenonTimeStart;
+        final Field<OffsetDateTime> bucketField;
+        if (aggregation.getCalendarUnit() == null) {
+            bucketField = DSL.field(
+                    "to_timestamp(floor(extract(epoch from {0}) / {1}) * {1})",
+                    SQLDataType.TIMESTAMPWITHTIMEZONE,
+                    timeField, DSL.inline(aggregation.getSeconds()));
+        } else {
+            bucketField = DSL.field(
+                    "date_trunc({0}, {1} at time zone 'UTC') at time zone 'UTC'",
+                    SQLDataType.TIMESTAMPWITHTIMEZONE,
+                    DSL.inline(aggregation.getCalendarUnit()), timeField);
+        }
+        final Field<Double> resultField = obsTable.colResultNumber;
+        List<Field<?>> selectFields = new ArrayList<>();
+        selectFields.add(dsIdField.as(AGGREGATE_DATASTREAM));
+        selectFields.add(bucketField.as(AGGREGATE_BUCKET));
+        for (Aggregation.AggregateFunction function : aggregation.getFunctions()) {
+            switch (function) {
+                case MIN:
+                    selectFields.add(DSL.min(resultField));
+                    break;
+
+                case MAX:
+                    selectFields.add(DSL.max(resultField));
+                    break;
+
+                case AVG:
+                    selectFields.add(DSL.field("avg({0})", SQLDataType.DOUBLE, resultField));
+                    break;
+
+                case COUNT:
+                    selectFields.add(DSL.count(resultField));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unsupported aggregate function: " + function);
+            }
+        }
+
+        Table<?> from = queryState.getSqlFrom();
+        Condition where = queryState.getSqlWhere();
+        if (queryState.isDistinctRequired()) {
+            // Joins could duplicate Observations, which would skew the aggregates.
+            where = obsTable.getId().in(DSL.select(queryState.getSqlMainIdField()).from(from).where(where));
+            from = obsTable;
+        }
+        int skip = staQuery.getSkip(0);
+        int count = staQuery.getTopOrDefault() + 1;
+        DSLContext dslContext = pm.getDslContext();
+        ResultQuery<Record> query = dslContext.select(selectFields)
+                .from(from)
+                .where(where)
+                .and(dsIdField.isNotNull())
+                .groupBy(dsIdField, bucketField)
+                .orderBy(dsIdField, bucketField)
+                .limit(skip, count);
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(GENERATED_SQL, query.getSQL(ParamType.INDEXED));
+        }
+        return query;
+    }
+
+    /**
+     * Creates the condition that selects the rows sorted after the row with
+     * the given sort values. This does the same as jOOQ's seek(), but also
+     * works for sort fields that contain NULL values, which PostgreSQL sorts
+     * after all other values.
+     *
+     * @param values The sort values of the last row of the previous page.
+     * @return The condition selecting the rows after the given row.
+     */
+    private Condition createSeekCondition(List<Object> values) {
+        final List<OrderField> sortFields = queryState.getSqlSortFields().getSqlSortFields();
+        final List<Field> sortSelectFields = queryState.getSqlSortFields().getSqlSortSelectFields();
+        if (values.size() != sortSelectFields.size()) {
+            throw new IllegalArgumentException("Invalid $skiptoken, it does not match the $orderby.");
+        }
+        final Field<J> idField = queryState.getSqlMainIdField();
+        Condition result = null;
+        Condition equalSoFar = DSL.noCondition();
+        for (int i = 0; i < values.size(); i++) {
+            Field field = sortSelectFields.get(i);
+            boolean descending = ((SortField) sortFields.get(i)).getOrder() == SortOrder.DESC;
+            Object value = values.get(i);
+            Condition after;
+            Condition equal;
+            if (value == null) {
+                after = descending ? field.isNotNull() : null;
+                equal = field.isNull();
+            } else {
+                Field valueField = DSL.val(value, field);
+                if (descending) {
+                    after = field.lt(valueField);
+                } else if (field == idField) {
+                    after = field.gt(valueField);
+                } else {
+                    after = field.gt(valueField).or(field.isNull());
+                }
+                equal = field.eq(valueField);
+            }
+            if (after != null) {
+                Condition option = equalSoFar.and(after);
+                result = result == null ? option : result.or(option);
+            }
+            equalSoFar = equalSoFar.and(equal);
+        }
+        if (result == null) {
+            return DSL.falseCondition();
+        }
+        return result;
+    }
+
+    /**
+     * The shape key of the last select built, used to cache the rendered SQL
+     * of the select. Only selects for a path, without a $skiptoken, have a
+     * shape key.
+     *
+     * @return The shape key of the select, or null if the select can not be
+     * cached.
+     */
+    public String getShapeKey() {
+        if (!forPath || forUpdate || staQuery == null || staQuery.getSkipToken() != null) {
+            return null;
+        }
+        return QueryShapeCache.createKey(requestedPath, staQuery, pageOffset == 0);
+    }
+
+    /**
+     * The number of rows before the first row of the last select built.
+     *
+     * @return The number of rows before the first row of the last select.
+     */
+    public int getPageOffset() {
+        return pageOffset;
+    }
+
+    /**
+     * Generates the $skiptoken for the page starting after the given record.
+     *
+     * @param lastRecord The last record of the current page, loaded by the
+     * select built by this builder.
+     * @param nextOffset The number of rows before the next page.
+     * @return the $skiptoken, or null if the nextLink should use $skip.
+     */
+    public String createSkipToken(Record lastRecord, int nextOffset) {
+        if (!keyset) {
+            if (staQuery == null || staQuery.getSkipToken() == null) {
+                return null;
+            }
+            // The request used a token, so the next one also uses a token.
+            return new SkipToken(nextOffset, Collections.emptyList()).encode();
+        }
+        int fieldCount = queryState.getSqlSortFields().getSqlSortSelectFields().size();
+        List<Object> values = new ArrayList<>(fieldCount);
+        for (int idx = 0; idx < fieldCount && lastRecord != null; idx++) {
+            Object value = lastRecord.get(SKIP_TOKEN_PREFIX + idx);
+            if (!SkipToken.canEncode(value)) {
+                // Can not seek on this value, fall back to using the offset.
+                values.clear();
+                break;
+            }
+            values.add(value);
+        }
+        return new SkipToken(nextOffset, values).encode();
+    }
+
     /**
      * Build a count query.
      *
@@ -184,6 +442,151 @@ public class QueryBuilder<J extends Comparable> implements ResourcePathVisitor {
         return query;
     }
 
+    /**
+     * Build a count query that counts at most the given number of rows.
+     *
+     * @param limit The maximum number of rows to count.
+     * @return the count query.
+     */
+    public ResultQuery<Record1<Integer>> buildCountLimited(int limit) {
+        gatherData();
+
+        DSLContext dslContext = pm.getDslContext();
+        Table<?> rows = buildCountRows().limit(limit).asTable(COUNT_ROWS_TABLE);
+        ResultQuery<Record1<Integer>> query = dslContext.selectCount().from(rows);
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(GENERATED_SQL, query.getSQL(ParamType.INDEXED));
+        }
+        return query;
+    }
+
+    /**
+     * Build a query that returns the query plan, in JSON, of the query that
+     * selects the rows to count. The plan contains the estimate of the
+     * database for the number of rows.
+     *
+     * @return the explain query.
+     */
+    public ResultQuery<Record> buildCountEstimate() {
+        gatherData();
+
+        DSLContext dslContext = pm.getDslContext();
+        ResultQuery<Record> query = dslContext.resultQuery("EXPLAIN (FORMAT JSON) " + dslContext.renderInlined(buildCountRows()));
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(GENERATED_SQL, query.getSQL(ParamType.INDEXED));
+        }
+        return query;
+    }
+
+    private SelectConditionStep<Record1<J>> buildCountRows() {
+        DSLContext dslContext = pm.getDslContext();
+        SelectSelectStep<Record1<J>> select;
+        if (queryState.isDistinctRequired()) {
+            select = dslContext.selectDistinct(queryState.getSqlMainIdField());
+        } else {
+            select = dslContext.select(queryState.getSqlMainIdField());
+        }
+        return select.from(queryState.getSqlFrom())
+                .where(queryState.getSqlWhere());
+    }
+
+    /**
+     * Checks if this query can be used to load the related entities of several
+     * parent entities in one go, using buildSelectBatched and
+     * buildCountBatched. The path of this builder must be of the form
+     * ParentType/ParentType(null)/RelatedType, and the query must not require
+     * DISTINCT.
+     *
+     * @return true if the query can be used for batch loading.
+     */
+    public boolean isBatchable() {
+        gatherData();
+        return forPath
+                && !forUpdate
+                && !queryState.isDistinctRequired()
+                && lastPath != null
+                && lastPath != mainTable;
+    }
+
+    /**
+     * Build a select query that loads the related entities for all given
+     * parents in one go. The $top, $skip and $orderby of the query are applied
+     * per parent, using a row_number() window partitioned by the parent id.
+     * The id of the parent of each row is in the column
+     * {@link #BATCH_PARENT_ID}, and the rows are ordered by parent.
+     *
+     * @param parentIds The ids of the parent entities to load the related
+     * entities for.
+     * @return the select query.
+     */
+    public ResultQuery<Record> buildSelectBatched(Collection<J> parentIds) {
+        if (!isBatchable()) {
+            throw new IllegalStateException("Query can not be batched.");
+        }
+        if (queryState.getSqlSelectFields() == null) {
+            queryState.setSqlSelectFields(Collections.emptySet());
+        }
+        Field<J> parentIdField = lastPath.getTable().getId();
+        final List<OrderField> sortFields = queryState.getSqlSortFields().getSqlSortFields();
+        Set<Field> selectFields = new LinkedHashSet<>(queryState.getSqlSelectFields());
+        selectFields.add(parentIdField.as(BATCH_PARENT_ID));
+        selectFields.add(DSL.rowNumber()
+                .over()
+                .partitionBy(parentIdField)
+                .orderBy(sortFields.toArray(new OrderField[sortFields.size()]))
+                .as(BATCH_ROW_NUMBER));
+
+        DSLContext dslContext = pm.getDslContext();
+        Table<Record> batch = dslContext.select(selectFields)
+                .from(queryState.getSqlFrom())
+                .where(queryState.getSqlWhere().and(parentIdField.in(parentIds)))
+                .asTable(BATCH_TABLE);
+
+        int skip = 0;
+        int count = 1;
+        if (staQuery != null) {
+            count = staQuery.getTopOrDefault() + 1;
+            skip = staQuery.getSkip(0);
+        }
+        Field<Integer> rowNumber = batch.field(BATCH_ROW_NUMBER, Integer.class);
+        ResultQuery<Record> query = dslContext.select(batch.fields())
+                .from(batch)
+                .where(rowNumber.gt(skip).and(rowNumber.le(skip + count)))
+                .orderBy(batch.field(BATCH_PARENT_ID), rowNumber);
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(GENERATED_SQL, query.getSQL(ParamType.INDEXED));
+        }
+        return query;
+    }
+
+    /**
+     * Build a query that counts the related entities for all given parents in
+     * one go.
+     *
+     * @param parentIds The ids of the parent entities to count the related
+     * entities for.
+     * @return the count query, returning the parent id and the count.
+     */
+    public ResultQuery<Record2<J, Integer>> buildCountBatched(Collection<J> parentIds) {
+        if (!isBatchable()) {
+            throw new IllegalStateException("Query can not be batched.");
+        }
+        Field<J> parentIdField = lastPath.getTable().getId();
+        DSLContext dslContext = pm.getDslContext();
+        ResultQuery<Record2<J, Integer>> query = dslContext.select(parentIdField.as(BATCH_PARENT_ID), DSL.count(queryState.getSqlMainIdField()))
+                .from(queryState.getSqlFrom())
+                .where(queryState.getSqlWhere().and(parentIdField.in(parentIds)))
+                .groupBy(parentIdField);
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(GENERATED_SQL, query.getSQL(ParamType.INDEXED));
+        }
+        return query;
+    }
+
     public Delete buildDelete(PathElementEntitySet set) {
         gatherData();
 
@@ -300,7 +703,7 @@ public class QueryBuilder<J extends Comparable> implements ResourcePathVisitor {
             for (OrderBy ob : query.getOrderBy()) {
                 handler.addOrderbyToQuery(ob, queryState.getSqlSortFields());
             }
-            if (settings.getAlwaysOrderbyId()) {
+            if (settings.getAlwaysOrderbyId() || settings.isKeysetPagination()) {
                 queryState.getSqlSortFields().add(queryState.getSqlMainIdField(), OrderBy.OrderType.ASCENDING);
             }
         }
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Expand;
+import de.fraunhofer.iosb.ilt.frostserver.query.OrderBy;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.Expression;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.constant.Constant;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.constant.DoubleConstant;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.constant.GeoJsonConstant;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.constant.IntegerConstant;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.constant.StringConstant;
+import de.fraunhofer.iosb.ilt.frostserver.query.expression.function.Function;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Select;
+import org.jooq.exception.DataAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of rendered SQL, keyed on the shape of the request. Requests that
+ * only differ in the ids in the path and the literal values in the filter have
+ * the same shape, and thus the same SQL, with different bind values. For those
+ * requests the SQL does not have to be rendered again, only the bind values of
+ * the new query are bound to a statement with the cached SQL. Since the SQL
+ * string is identical, the JDBC driver can re-use its server-side prepared
+ * statement.
+ *
+ * There is one cache for each set of persistence settings, since the SQL
+ * depends on the database the settings point to.
+ *
+ * @author scf
+ */
+public class QueryShapeCache {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryShapeCache.class);
+
+    /**
+     * The types of bind values that the JDBC driver binds the same way as
+     * jOOQ does. Queries with other bind values, like JSON or geometries that
+     * use a custom binding, are rendered every time.
+     */
+    private static final Set<Class<?>> BINDABLE_TYPES = new HashSet<>(Arrays.asList(
+            String.class,
+            Boolean.class,
+            Short.class,
+            Integer.class,
+            Long.class,
+            Float.class,
+            Double.class,
+            BigDecimal.class,
+            OffsetDateTime.class,
+            UUID.class));
+
+    private static final Map<PersistenceSettings, QueryShapeCache> INSTANCES = new WeakHashMap<>();
+
+    private final Map<String, CachedSql> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxSize;
+
+    /**
+     * @param maxSize The maximum number of shapes to cache.
+     */
+    public QueryShapeCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache for the given persistence settings.
+     *
+     * @param settings The persistence settings to get the cache for.
+     * @return The cache for the given settings.
+     */
+    public static QueryShapeCache getInstance(PersistenceSettings settings) {
+        synchronized (INSTANCES) {
+            return INSTANCES.computeIfAbsent(settings, s -> new QueryShapeCache(s.getQueryShapeCacheSize()));
+        }
+    }
+
+    /**
+     * Creates the shape key for the given path and query. Ids in the path, and
+     * the literal values in the filter that are sent to the database as bind
+     * values, are replaced by placeholders. Literals that are inlined in the
+     * SQL, like times and durations, stay part of the key.
+     *
+     * @param path The path of the request.
+     * @param query The query of the request.
+     * @param skipZero Flag indicating the query has no offset.
+     * @return The shape key.
+     */
+    public static String createKey(ResourcePath path, Query query, boolean skipZero) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < path.size(); i++) {
+            PathElement element = path.get(i);
+            key.append('/').append(element.toString());
+            if (element instanceof PathElementEntity && ((PathElementEntity) element).getId() != null) {
+                key.append("(?)");
+            }
+        }
+        key.append(path.isRef() ? "/$ref" : "");
+        key.append("?$select=");
+        for (Property property : query.getSelect()) {
+            key.append(property.getName()).append(',');
+        }
+        key.append("&$expand=");
+        for (Expand expand : query.getExpand()) {
+            key.append(expand.getPath().getName()).append(',');
+        }
+        key.append("&$filter=");
+        if (query.getFilter() != null) {
+            appendShape(key, query.getFilter());
+        }
+        key.append("&$orderby=");
+        for (OrderBy orderBy : query.getOrderBy()) {
+            appendShape(key, orderBy.getExpression());
+            key.append(' ').append(orderBy.getType()).append(',');
+        }
+        key.append("&skipZero=").append(skipZero);
+        return key.toString();
+    }
+
+    private static void appendShape(StringBuilder key, Expression expression) {
+        if (expression instanceof Function) {
+            Function function = (Function) expression;
+            key.append(function.getClass().getSimpleName()).append('(');
+            for (Expression parameter : function.getParameters()) {
+                appendShape(key, parameter);
+                key.append(',');
+            }
+            key.append(')');
+        } else if (expression instanceof StringConstant
+                || expression instanceof IntegerConstant
+                || expression instanceof DoubleConstant) {
+            // Sent as bind value, only the type matters.
+            key.append("?:").append(((Constant) expression).getValue().getClass().getSimpleName());
+        } else if (expression instanceof GeoJsonConstant) {
+            key.append("?:").append(expression.getClass().getSimpleName());
+        } else {
+            // Paths, and constants that are inlined in the SQL.
+            key.append(expression.getClass().getSimpleName()).append(':').append(expression.toUrl());
+        }
+    }
+
+    /**
+     * Executes the given select using the cached SQL for the given shape key.
+     * If the shape key is not in the cache yet, the query is rendered and the
+     * SQL is added to the cache.
+     *
+     * @param pm The persistence manager to get the DSLContext and connection
+     * from.
+     * @param shapeKey The shape key of the query.
+     * @param query The query to get the bind values from.
+     * @param fetchSize The fetch size to use, or 0 for the default.
+     * @param timeout The query timeout to use, in seconds, or 0 for none.
+     * @return A lazy cursor on the results of the query.
+     */
+    public Cursor<Record> fetchLazy(PostgresPersistenceManager<?> pm, String shapeKey, Select<Record> query, int fetchSize, int timeout) {
+        DSLContext dslContext = pm.getDslContext();
+        List<Object> bindValues = dslContext.extractBindValues(query);
+        if (!canBind(bindValues)) {
+            return query.fetchLazy();
+        }
+        CachedSql cached = get(shapeKey);
+        String sql;
+        if (cached == null) {
+            sql = dslContext.render(query);
+            put(shapeKey, new CachedSql(sql, bindValues.size()));
+        } else if (cached.bindCount != bindValues.size()) {
+            LOGGER.warn("Cached SQL for shape {} expects {} bind values, got {}. Not using cache.", shapeKey, cached.bindCount, bindValues.size());
+            remove(shapeKey);
+            return query.fetchLazy();
+        } else {
+            sql = cached.sql;
+        }
+        Connection connection = pm.getConnectionProvider().get();
+        PreparedStatement statement = null;
+        try {
+            statement = connection.prepareStatement(sql);
+            for (int i = 0; i < bindValues.size(); i++) {
+                statement.setObject(i + 1, bindValues.get(i));
+            }
+            if (fetchSize > 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            if (timeout > 0) {
+                statement.setQueryTimeout(timeout);
+            }
+            statement.closeOnCompletion();
+            ResultSet resultSet = statement.executeQuery();
+            return dslContext.fetchLazy(resultSet, query.getSelect().toArray(new Field<?>[0]));
+        } catch (SQLException ex) {
+            closeQuietly(statement);
+            throw new DataAccessException("Failed to execute cached query: " + ex.getMessage(), ex);
+        } catch (RuntimeException ex) {
+            closeQuietly(statement);
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks if the given bind values can be bound directly by the JDBC
+     * driver.
+     *
+     * @param bindValues The bind values to check.
+     * @return true if all bind values have a type that can be bound directly.
+     */
+    static boolean canBind(List<Object> bindValues) {
+        for (Object value : bindValues) {
+            if (value == null || !BINDABLE_TYPES.contains(value.getClass())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        if (statement == null) {
+            return;
+        }
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            LOGGER.trace("Failed to close statement.", ex);
+        }
+    }
+
+    private CachedSql get(String shapeKey) {
+        synchronized (cache) {
+            return cache.get(shapeKey);
+        }
+    }
+
+    private void put(String shapeKey, CachedSql cachedSql) {
+        synchronized (cache) {
+            cache.put(shapeKey, cachedSql);
+            while (cache.size() > maxSize) {
+                cache.remove(cache.keySet().iterator().next());
+            }
+        }
+    }
+
+    private void remove(String shapeKey) {
+        synchronized (cache) {
+            cache.remove(shapeKey);
+        }
+    }
+
+    /**
+     * Removes all cached SQL.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static class CachedSql {
+
+        private final String sql;
+        private final int bindCount;
+
+        public CachedSql(String sql, int bindCount) {
+            this.sql = sql;
+            this.bindCount = bindCount;
+        }
+    }
+}
@@ -17,11 +17,18 @@
  */
 package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetImpl;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetLazy;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
 import de.fraunhofer.iosb.ilt.frostserver.model.core.NavigableElement;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.AggregateResult;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.ObservationRows;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInterval;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementArrayIndex;
 import de.fraunhofer.iosb.ilt.frostserver.path.PathElementCustomProperty;
@@ -32,20 +39,37 @@ import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
 import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePathVisitor;
 import de.fraunhofer.iosb.ilt.frostserver.path.UrlHelper;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.factories.EntityFactory;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.tables.AbstractTableObservations;
 import de.fraunhofer.iosb.ilt.frostserver.property.NavigationProperty;
 import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyCustom;
+import de.fraunhofer.iosb.ilt.frostserver.query.Aggregation;
 import de.fraunhofer.iosb.ilt.frostserver.query.Expand;
 import de.fraunhofer.iosb.ilt.frostserver.query.Query;
 import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.CustomLinksHelper;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.jooq.Cursor;
 import org.jooq.Record;
 import org.jooq.Record1;
+import org.jooq.Record2;
 import org.jooq.Result;
 import org.jooq.ResultQuery;
+import org.jooq.Select;
 import org.jooq.conf.ParamType;
 import org.jooq.exception.DataAccessException;
 import org.slf4j.Logger;
@@ -63,12 +87,36 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
      * The logger for this class.
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(ResultBuilder.class);
+    /**
+     * The number of rows to fetch from the database at once, when loading an
+     * EntitySet lazily.
+     */
+    private static final int LAZY_FETCH_SIZE = 500;
+    /**
+     * The number of rows to fetch from the database at once, when loading
+     * Observations as rows.
+     */
+    private static final int ROWS_FETCH_SIZE = 5000;
+    /**
+     * The maximum number of parent entities for which related entities are
+     * loaded in one query, when expanding.
+     */
+    private static final int EXPAND_BATCH_SIZE = 500;
     private final PostgresPersistenceManager<J> pm;
     private final PersistenceSettings persistenceSettings;
     private final ResourcePath path;
     private final Query staQuery;
     private final QueryBuilder<J> sqlQueryBuilder;
     private final ResultQuery<Record> sqlQuery;
+    /**
+     * Flag indicating the top-level EntitySet should be loaded lazily, while
+     * it is iterated.
+     */
+    private final boolean lazy;
+    /**
+     * The fetch size to use for the main query, 0 for the default.
+     */
+    private int fetchSize = 0;
 
     private Object resultObject;
     /**
@@ -86,12 +134,28 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
      * generating select and count queries.
      */
     public ResultBuilder(PostgresPersistenceManager<J> pm, ResourcePath path, Query query, QueryBuilder<J> sqlQueryBuilder) {
+        this(pm, path, query, sqlQueryBuilder, false);
+    }
+
+    /**
+     *
+     * @param pm The persistence manager.
+     * @param path The path leading to the items.
+     * @param query The query parameters to use when fetching expanded items.
+     * @param sqlQueryBuilder The configured sql query builder to use for
+     * generating select and count queries.
+     * @param lazy Flag indicating a top-level EntitySet should be loaded
+     * lazily, while it is iterated. Such a set is only valid until the
+     * transaction ends.
+     */
+    public ResultBuilder(PostgresPersistenceManager<J> pm, ResourcePath path, Query query, QueryBuilder<J> sqlQueryBuilder, boolean lazy) {
         this.pm = pm;
         this.path = path;
         this.staQuery = query;
         this.sqlQueryBuilder = sqlQueryBuilder;
         this.sqlQuery = sqlQueryBuilder.buildSelect();
         this.persistenceSettings = pm.getCoreSettings().getPersistenceSettings();
+        this.lazy = lazy;
     }
 
     public Object getEntity() {
@@ -131,15 +195,58 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
     }
 
     private void expandEntity(Entity entity, Query query) {
-        if (query == null) {
+        expandEntities(Collections.singletonList(entity), query);
+    }
+
+    /**
+     * Expands the given entities according to the given query. Related
+     * entities that need to be loaded are loaded for all entities at once,
+     * instead of with a query for each entity.
+     *
+     * @param entities The entities to expand.
+     * @param query The query holding the expands.
+     */
+    private void expandEntities(Collection<? extends Entity> entities, Query query) {
+        if (query == null || entities.isEmpty()) {
             return;
         }
-        CustomLinksHelper.expandCustomLinks(pm.getCoreSettings(), entity, path);
+        for (Entity entity : entities) {
+            CustomLinksHelper.expandCustomLinks(pm.getCoreSettings(), entity, path);
+        }
         for (Expand expand : query.getExpand()) {
-            addExpandToEntity(entity, expand);
+            addExpandToEntities(entities, expand);
         }
     }
 
+    private void addExpandToEntities(Collection<? extends Entity> entities, Expand expand) {
+        NavigationProperty firstNp = expand.getPath();
+        Query subQuery = expand.getSubQuery();
+        if (firstNp instanceof NavigationPropertyCustom || subQuery == null) {
+            for (Entity entity : entities) {
+                addExpandToEntity(entity, expand);
+            }
+            return;
+        }
+        List<Entity> toLoad = new ArrayList<>();
+        List<Entity> toExpand = new ArrayList<>();
+        for (Entity entity : entities) {
+            Object existing = entity.getProperty(firstNp);
+            if (!(existing instanceof NavigableElement) || ((NavigableElement) existing).isEmpty()) {
+                toLoad.add(entity);
+            } else if (existing instanceof EntitySet) {
+                for (Object subEntity : (EntitySet) existing) {
+                    if (subEntity instanceof Entity) {
+                        toExpand.add((Entity) subEntity);
+                    }
+                }
+            } else if (existing instanceof Entity) {
+                toExpand.add((Entity) existing);
+            }
+        }
+        expandEntities(toExpand, subQuery);
+        loadExpandedElements(toLoad, firstNp, subQuery);
+    }
+
     private void addExpandToEntity(Entity entity, Expand expand) {
         NavigationProperty firstNp = expand.getPath();
         NavigableElement existing = null;
@@ -163,7 +270,7 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
         if (existing == null || existing.isEmpty()) {
             createExpandedElement(entity, firstNp, subQuery);
         } else if (existing instanceof EntitySet) {
-            expandEntitySet((EntitySet) existing, subQuery);
+            expandEntities((EntitySet) existing, subQuery);
         } else if (existing instanceof Entity) {
             expandEntity((Entity) existing, subQuery);
         }
@@ -178,9 +285,9 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
         return null;
     }
 
-    private void createExpandedElement(Entity entity, NavigationProperty firstNp, Query subQuery) {
-        PathElement parentCollection = new PathElementEntitySet(entity.getEntityType(), null);
-        PathElement parent = new PathElementEntity(entity.getId(), entity.getEntityType(), parentCollection);
+    private ResourcePath createExpandPath(EntityType parentType, Id parentId, NavigationProperty firstNp) {
+        PathElement parentCollection = new PathElementEntitySet(parentType, null);
+        PathElement parent = new PathElementEntity(parentId, parentType, parentCollection);
         ResourcePath ePath = new ResourcePath(path.getServiceRootUrl(), path.getVersion(), null);
         ePath.addPathElement(parentCollection, false, false);
         ePath.addPathElement(parent, false, true);
@@ -191,29 +298,167 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
             PathElementEntity childPe = new PathElementEntity(null, firstNp.getType(), parent);
             ePath.addPathElement(childPe, true, false);
         }
+        return ePath;
+    }
+
+    private void createExpandedElement(Entity entity, NavigationProperty firstNp, Query subQuery) {
+        ResourcePath ePath = createExpandPath(entity.getEntityType(), entity.getId(), firstNp);
         Object child = pm.get(ePath, subQuery);
         entity.setProperty(firstNp, child);
     }
 
-    private void expandEntitySet(EntitySet entitySet, Query subQuery) {
-        for (Object subEntity : entitySet) {
-            if (subEntity instanceof Entity) {
-                expandEntity((Entity) subEntity, subQuery);
+    /**
+     * Loads the related entities of the given navigation property, for all
+     * given parent entities, in as few queries as possible, and sets them on
+     * the parents.
+     *
+     * @param parents The parent entities, all of the same type.
+     * @param firstNp The navigation property to load.
+     * @param subQuery The query to use for the related entities.
+     */
+    private void loadExpandedElements(List<Entity> parents, NavigationProperty firstNp, Query subQuery) {
+        if (parents.isEmpty()) {
+            return;
+        }
+        Map<J, List<Entity>> parentsById = new LinkedHashMap<>();
+        for (Entity parent : parents) {
+            Id parentId = parent.getId();
+            if (parentId == null) {
+                createExpandedElement(parent, firstNp, subQuery);
+                continue;
+            }
+            parentsById.computeIfAbsent((J) parentId.asBasicPersistenceType(), k -> new ArrayList<>())
+                    .add(parent);
+        }
+        if (parentsById.isEmpty()) {
+            return;
+        }
+        EntityType parentType = parents.get(0).getEntityType();
+        List<J> allIds = new ArrayList<>(parentsById.keySet());
+        List<Entity> children = new ArrayList<>();
+        for (int start = 0; start < allIds.size(); start += EXPAND_BATCH_SIZE) {
+            List<J> batchIds = allIds.subList(start, Math.min(start + EXPAND_BATCH_SIZE, allIds.size()));
+            QueryBuilder<J> batchQueryBuilder = new QueryBuilder<>(pm, pm.getCoreSettings(), pm.getPropertyResolver())
+                    .forPath(createExpandPath(parentType, null, firstNp))
+                    .usingQuery(subQuery);
+            if (!batchQueryBuilder.isBatchable()) {
+                for (J parentId : batchIds) {
+                    for (Entity parent : parentsById.get(parentId)) {
+                        createExpandedElement(parent, firstNp, subQuery);
+                    }
+                }
+                continue;
+            }
+            Map<J, ExpandedElement> loaded = loadExpandedBatch(batchQueryBuilder, batchIds, firstNp, subQuery);
+            for (J parentId : batchIds) {
+                ExpandedElement element = loaded.get(parentId);
+                List<Entity> parentsWithId = parentsById.get(parentId);
+                Object child = createExpandedChild(element, parentsWithId.get(0), firstNp, subQuery);
+                if (element != null) {
+                    children.addAll(element.entities);
+                }
+                for (Entity parent : parentsWithId) {
+                    parent.setProperty(firstNp, child);
+                }
             }
         }
+        expandEntities(children, subQuery);
+    }
+
+    private Map<J, ExpandedElement> loadExpandedBatch(QueryBuilder<J> batchQueryBuilder, List<J> batchIds, NavigationProperty firstNp, Query subQuery) {
+        Map<J, ExpandedElement> loaded = new HashMap<>();
+        EntityFactory factory = pm.getEntityFactories().getFactoryFor(firstNp.getType());
+        int top = firstNp.isEntitySet() ? subQuery.getTopOrDefault() : 1;
+        long maxDataSize = pm.getCoreSettings().getDataSizeMax();
+        try (Cursor<Record> results = timeQuery(batchQueryBuilder.buildSelectBatched(batchIds))) {
+            while (results.hasNext()) {
+                Record tuple = results.fetchNext();
+                J parentId = (J) tuple.get(QueryBuilder.BATCH_PARENT_ID);
+                ExpandedElement element = loaded.computeIfAbsent(parentId, k -> new ExpandedElement());
+                if (element.entities.size() >= top || element.size.getDataSize() > maxDataSize) {
+                    element.hasMore = true;
+                    continue;
+                }
+                Entity entity = factory.create(tuple, subQuery, element.size);
+                entity.setQuery(subQuery);
+                element.entities.add(entity);
+            }
+        }
+        if (firstNp.isEntitySet() && subQuery.isCountOrDefault()) {
+            try (Cursor<Record2<J, Integer>> countCursor = timeQuery(batchQueryBuilder.buildCountBatched(batchIds))) {
+                for (Record2<J, Integer> countRecord : countCursor) {
+                    loaded.computeIfAbsent(countRecord.component1(), k -> new ExpandedElement())
+                            .count = countRecord.component2();
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private Object createExpandedChild(ExpandedElement element, Entity parent, NavigationProperty firstNp, Query subQuery) {
+        if (!firstNp.isEntitySet()) {
+            if (element == null || element.entities.isEmpty()) {
+                return null;
+            }
+            return element.entities.get(0);
+        }
+        EntitySet entitySet = new EntitySetImpl(firstNp.getType());
+        if (subQuery.isCountOrDefault()) {
+            entitySet.setCount(element == null ? 0 : element.count);
+        }
+        if (element == null) {
+            return entitySet;
+        }
+        entitySet.addAll(element.entities);
+        int top = subQuery.getTopOrDefault();
+        if (element.hasMore && top > 0) {
+            ResourcePath ePath = createExpandPath(parent.getEntityType(), parent.getId(), firstNp);
+            int entityCount = element.entities.size();
+            if (entityCount < top) {
+                // The loading was aborted, probably due to size constraints.
+                // The query is shared with the other parents, so restore it.
+                subQuery.setTop(entityCount);
+                entitySet.setNextLink(UrlHelper.generateNextLink(ePath, subQuery));
+                subQuery.setTop(top);
+            } else {
+                entitySet.setNextLink(UrlHelper.generateNextLink(ePath, subQuery));
+            }
+        }
+        return entitySet;
+    }
+
+    /**
+     * Runs the main select, using the cached SQL for its shape if the query
+     * shape cache is enabled.
+     *
+     * @return A cursor on the results of the main select.
+     */
+    private Cursor<Record> timeMainQuery() {
+        int cacheSize = persistenceSettings.getQueryShapeCacheSize();
+        String shapeKey = cacheSize > 0 ? sqlQueryBuilder.getShapeKey() : null;
+        if (shapeKey == null || !(sqlQuery instanceof Select)) {
+            return timeQuery(sqlQuery);
+        }
+        int timeout = persistenceSettings.isTimeoutQueries() ? persistenceSettings.getQueryTimeout() : 0;
+        QueryShapeCache shapeCache = QueryShapeCache.getInstance(persistenceSettings);
+        return timeQuery(sqlQuery, () -> shapeCache.fetchLazy(pm, shapeKey, (Select<Record>) sqlQuery, fetchSize, timeout));
     }
 
     private <R extends Record> Cursor<R> timeQuery(ResultQuery<R> query) {
+        return timeQuery(query, query::fetchLazy);
+    }
+
+    private <R extends Record> Cursor<R> timeQuery(ResultQuery<R> query, Supplier<Cursor<R>> fetcher) {
         if (persistenceSettings.isTimeoutQueries()) {
             query.queryTimeout(persistenceSettings.getQueryTimeout());
         }
         if (!persistenceSettings.isLogSlowQueries()) {
-            return query.fetchLazy();
+            return fetcher.get();
         }
         long start = System.currentTimeMillis();
         Cursor<R> result;
         try {
-            result = query.fetchLazy();
+            result = fetcher.get();
         } catch (DataAccessException exc) {
             if (LOGGER.isWarnEnabled()) {
                 LOGGER.info("Failed to run query:\n{}", query.getSQL(ParamType.INLINED));
@@ -230,12 +475,21 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
 
     @Override
     public void visit(PathElementEntitySet element) {
+        if (staQuery.getAggregation() != null) {
+            createAggregateResult();
+            return;
+        }
+        if (lazy) {
+            createLazyEntitySet(element);
+            return;
+        }
         int top = staQuery.getTopOrDefault();
-        try (Cursor<Record> results = timeQuery(sqlQuery)) {
+        try (Cursor<Record> results = timeMainQuery()) {
             EntityFactory factory;
             factory = pm.getEntityFactories().getFactoryFor(element.getEntityType());
+            Record[] lastRecord = new Record[1];
             EntitySet<? extends Entity> entitySet = pm.getEntityFactories()
-                    .createSetFromRecords(factory, results, staQuery, pm.getCoreSettings().getDataSizeMax());
+                    .createSetFromRecords(factory, results, staQuery, pm.getCoreSettings().getDataSizeMax(), r -> lastRecord[0] = r);
 
             if (entitySet == null) {
                 throw new IllegalStateException("Empty set!");
@@ -250,26 +504,191 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
                 staQuery.setTop(entityCount);
             }
             if (hasMore && top > 0) {
-                entitySet.setNextLink(UrlHelper.generateNextLink(path, staQuery));
+                entitySet.setNextLink(generateNextLink(lastRecord[0]));
             }
             for (Entity e : entitySet) {
                 e.setQuery(staQuery);
-                expandEntity(e, staQuery);
             }
+            expandEntities(entitySet, staQuery);
             resultObject = entitySet;
         }
     }
 
+    /**
+     * Runs the $aggregate query and groups the resulting buckets per
+     * Datastream.
+     */
+    private void createAggregateResult() {
+        final Aggregation aggregation = staQuery.getAggregation();
+        final List<String> components = aggregation.getComponents();
+        final int functionCount = aggregation.getFunctions().size();
+        final int top = staQuery.getTopOrDefault();
+        AggregateResult result = new AggregateResult();
+        try (Cursor<Record> results = timeQuery(sqlQueryBuilder.buildAggregate())) {
+            Object lastDsId = null;
+            AggregateResult.Value value = null;
+            int rowCount = 0;
+            while (results.hasNext()) {
+                Record row = results.fetchNext();
+                if (rowCount++ >= top) {
+                    result.setNextLink(UrlHelper.generateNextLink(path, staQuery));
+                    break;
+                }
+                Object dsId = row.get(QueryBuilder.AGGREGATE_DATASTREAM);
+                if (value == null || !dsId.equals(lastDsId)) {
+                    String dsLink = UrlHelper.generateSelfLink(path.getServiceRootUrl(), path.getVersion(), EntityType.DATASTREAM, dsId);
+                    value = new AggregateResult.Value(dsLink, components);
+                    result.getValue().add(value);
+                    lastDsId = dsId;
+                }
+                long start = row.get(QueryBuilder.AGGREGATE_BUCKET, OffsetDateTime.class).toInstant().toEpochMilli();
+                long end = new DateTime(start, DateTimeZone.UTC).plus(aggregation.getInterval()).getMillis();
+                List<Object> dataRow = new ArrayList<>(functionCount + 1);
+                dataRow.add(TimeInterval.create(start, end));
+                for (int idx = 0; idx < functionCount; idx++) {
+                    dataRow.add(row.get(idx + 2));
+                }
+                value.getDataArray().add(dataRow);
+            }
+        }
+        resultObject = result;
+    }
+
+    /**
+     * Generates the nextLink for the current page of the main entity set. If
+     * the QueryBuilder generates a $skiptoken, this is used instead of $skip.
+     *
+     * @param lastRecord The last record of the current page.
+     * @return The nextLink.
+     */
+    private String generateNextLink(Record lastRecord) {
+        int nextOffset = sqlQueryBuilder.getPageOffset() + staQuery.getTopOrDefault();
+        String skipToken = sqlQueryBuilder.createSkipToken(lastRecord, nextOffset);
+        if (skipToken == null) {
+            return UrlHelper.generateNextLink(path, staQuery);
+        }
+        return UrlHelper.generateNextLink(path, staQuery, skipToken);
+    }
+
+    private void createLazyEntitySet(PathElementEntitySet element) {
+        sqlQuery.fetchSize(LAZY_FETCH_SIZE);
+        fetchSize = LAZY_FETCH_SIZE;
+        Cursor<Record> results = timeMainQuery();
+        EntityFactory factory = pm.getEntityFactories().getFactoryFor(element.getEntityType());
+        LazyEntityIterator iterator = new LazyEntityIterator(results, factory);
+        EntitySetLazy entitySet = new EntitySetLazy(element.getEntityType(), iterator);
+        iterator.setEntitySet(entitySet);
+        fetchAndAddCount(entitySet);
+        resultObject = entitySet;
+    }
+
+    /**
+     * Creates a cursor over the rows of the requested set of Observations,
+     * reading the column values directly from the database cursor. The
+     * Observations are not expanded.
+     *
+     * @return The cursor over the rows of the Observations.
+     */
+    public ObservationRows createObservationRows() {
+        sqlQuery.fetchSize(ROWS_FETCH_SIZE);
+        fetchSize = ROWS_FETCH_SIZE;
+        Cursor<Record> results = timeMainQuery();
+        long count = staQuery.isCountOrDefault() ? fetchCount().getCount() : -1;
+        return new ObservationRowCursor(results, count);
+    }
+
     private void fetchAndAddCount(EntitySet<? extends Entity> entitySet) {
         if (staQuery.isCountOrDefault()) {
-            ResultQuery<Record1<Integer>> countQuery = sqlQueryBuilder.buildCount();
-            try (Cursor<Record1<Integer>> countCursor = timeQuery(countQuery)) {
-                Integer count = countCursor
-                        .fetchNext()
-                        .component1();
-                entitySet.setCount(count);
+            CountCache.CachedCount count = fetchCount();
+            entitySet.setCount(count.getCount());
+            entitySet.setCountLowerBound(count.isLowerBound());
+        }
+    }
+
+    /**
+     * Counts the entities in the requested set, using the configured count
+     * mode, and the count cache if enabled.
+     *
+     * @return The (estimated) number of entities.
+     */
+    private CountCache.CachedCount fetchCount() {
+        PersistenceSettings settings = pm.getCoreSettings().getPersistenceSettings();
+        ResultQuery<Record1<Integer>> countQuery = sqlQueryBuilder.buildCount();
+        int cacheTtl = settings.getCountCacheTtl();
+        CountCache countCache = null;
+        String cacheKey = null;
+        long[] countersAtStart = null;
+        if (cacheTtl > 0) {
+            countCache = CountCache.getInstance(settings);
+            cacheKey = settings.getCountMode() + ":" + pm.getDslContext().renderInlined(countQuery);
+            CountCache.CachedCount cached = countCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+            countersAtStart = countCache.getChangeCounters();
+        }
+        int threshold = settings.getCountEstimateThreshold();
+        long count;
+        boolean lowerBound = false;
+        switch (settings.getCountMode()) {
+            case LIMIT:
+                // Count one more than the threshold, to know if there are more.
+                count = fetchCount(sqlQueryBuilder.buildCountLimited(threshold + 1));
+                if (count > threshold) {
+                    count = threshold;
+                    lowerBound = true;
+                }
+                break;
+
+            case ESTIMATE:
+                count = fetchCountEstimate();
+                if (count < threshold) {
+                    count = fetchCount(countQuery);
+                }
+                break;
+
+            default:
+                count = fetchCount(countQuery);
+        }
+        CountCache.CachedCount result = new CountCache.CachedCount(count, lowerBound, CountCache.findDependencies(path, staQuery));
+        if (countCache != null) {
+            countCache.put(cacheKey, result, cacheTtl * 1000L, countersAtStart);
+        }
+        return result;
+    }
+
+    private long fetchCount(ResultQuery<Record1<Integer>> countQuery) {
+        try (Cursor<Record1<Integer>> countCursor = timeQuery(countQuery)) {
+            return countCursor
+                    .fetchNext()
+                    .component1();
+        }
+    }
+
+    /**
+     * Asks the query planner of the database for its estimate of the number
+     * of entities in the requested set.
+     *
+     * @return The estimate, or -1 if no estimate could be made.
+     */
+    private long fetchCountEstimate() {
+        String plan;
+        try (Cursor<Record> planCursor = timeQuery(sqlQueryBuilder.buildCountEstimate())) {
+            plan = planCursor.fetchNext().get(0, String.class);
+        }
+        try {
+            JsonNode planTree = Utils.jsonToTree(plan);
+            if (planTree != null) {
+                JsonNode planRows = planTree.path(0).path("Plan").path("Plan Rows");
+                if (planRows.isNumber()) {
+                    return planRows.asLong();
+                }
             }
+        } catch (IllegalStateException ex) {
+            LOGGER.trace("Failed to parse query plan.", ex);
         }
+        LOGGER.warn("No row estimate found in query plan: {}", plan);
+        return -1;
     }
 
     @Override
@@ -335,4 +754,228 @@ public class ResultBuilder<J extends Comparable> implements ResourcePathVisitor
         entityName = null;
     }
 
+    /**
+     * Holds the related entities loaded for one parent in a batch.
+     */
+    private static class ExpandedElement {
+
+        private final List<Entity> entities = new ArrayList<>();
+        private final DataSize size = new DataSize();
+        private boolean hasMore = false;
+        private long count;
+    }
+
+    /**
+     * Creates and expands entities from a Cursor, while the set is iterated.
+     * Entities are created and expanded in batches, so that related entities
+     * can be loaded for the entire batch at once. Stops when $top entities are
+     * created, or when the maximum data size is reached. When done, the cursor
+     * is closed and the nextLink of the set is generated.
+     */
+    private class LazyEntityIterator implements Iterator<Entity> {
+
+        private final Cursor<Record> results;
+        private final EntityFactory factory;
+        private final DataSize size = new DataSize();
+        private final Deque<Entity> buffer = new ArrayDeque<>();
+        private final int top;
+        private final long maxDataSize;
+        private EntitySet entitySet;
+        private int count = 0;
+        private boolean done = false;
+        private Record lastRecord;
+
+        public LazyEntityIterator(Cursor<Record> results, EntityFactory factory) {
+            this.results = results;
+            this.factory = factory;
+            this.top = staQuery.getTopOrDefault();
+            this.maxDataSize = pm.getCoreSettings().getDataSizeMax();
+        }
+
+        public void setEntitySet(EntitySet entitySet) {
+            this.entitySet = entitySet;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!buffer.isEmpty()) {
+                return true;
+            }
+            if (done) {
+                return false;
+            }
+            fillBuffer();
+            if (!buffer.isEmpty()) {
+                return true;
+            }
+            if (size.getDataSize() > maxDataSize) {
+                LOGGER.debug("Size limit reached: {} > {}.", size.getDataSize(), maxDataSize);
+            }
+            finish();
+            return false;
+        }
+
+        /**
+         * Creates the next batch of entities, and expands them together.
+         */
+        private void fillBuffer() {
+            while (buffer.size() < EXPAND_BATCH_SIZE && count < top && size.getDataSize() <= maxDataSize && results.hasNext()) {
+                lastRecord = results.fetchNext();
+                Entity entity = factory.create(lastRecord, staQuery, size);
+                count++;
+                entity.setQuery(staQuery);
+                buffer.add(entity);
+            }
+            expandEntities(buffer, staQuery);
+        }
+
+        @Override
+        public Entity next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more entities.");
+            }
+            return buffer.poll();
+        }
+
+        private void finish() {
+            done = true;
+            boolean hasMore = results.hasNext();
+            results.close();
+            if (count < top && hasMore) {
+                // The loading was aborted, probably due to size constraints.
+                staQuery.setTop(count);
+            }
+            if (hasMore && top > 0) {
+                entitySet.setNextLink(generateNextLink(lastRecord));
+            }
+        }
+    }
+
+    /**
+     * Reads Observation column values from a Cursor, without creating
+     * entities. Stops when $top rows are read, closing the cursor.
+     */
+    private class ObservationRowCursor implements ObservationRows {
+
+        private final Cursor<Record> results;
+        private final AbstractTableObservations<J> table;
+        private final long count;
+        private final int top;
+        private int rowCount = 0;
+        private boolean done = false;
+        private Record record;
+
+        public ObservationRowCursor(Cursor<Record> results, long count) {
+            this.results = results;
+            this.table = pm.getEntityFactories().getTableCollection().getTableObservations();
+            this.count = count;
+            this.top = staQuery.getTopOrDefault();
+        }
+
+        @Override
+        public Class<?> getIdType() {
+            return table.getId().getType();
+        }
+
+        @Override
+        public boolean next() {
+            if (done) {
+                return false;
+            }
+            if (rowCount < top && results.hasNext()) {
+                record = results.fetchNext();
+                rowCount++;
+                return true;
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public Object getId() {
+            return Utils.getFieldOrNull(record, table.getId());
+        }
+
+        @Override
+        public Instant getPhenomenonTimeStart() {
+            return toInstant(Utils.getFieldOrNull(record, table.colPhenomenonTimeStart));
+        }
+
+        @Override
+        public Instant getPhenomenonTimeEnd() {
+            return toInstant(Utils.getFieldOrNull(record, table.colPhenomenonTimeEnd));
+        }
+
+        @Override
+        public Instant getResultTime() {
+            return toInstant(Utils.getFieldOrNull(record, table.colResultTime));
+        }
+
+        @Override
+        public ResultKind getResultKind() {
+            Short resultTypeOrd = Utils.getFieldOrNull(record, table.colResultType);
+            if (resultTypeOrd == null) {
+                return null;
+            }
+            switch (ResultType.fromSqlValue(resultTypeOrd)) {
+                case NUMBER:
+                    return ResultKind.NUMBER;
+
+                case BOOLEAN:
+                    return ResultKind.BOOLEAN;
+
+                case STRING:
+                    return ResultKind.STRING;
+
+                default:
+                    return ResultKind.JSON;
+            }
+        }
+
+        @Override
+        public Double getResultNumber() {
+            return Utils.getFieldOrNull(record, table.colResultNumber);
+        }
+
+        @Override
+        public Boolean getResultBoolean() {
+            return Utils.getFieldOrNull(record, table.colResultBoolean);
+        }
+
+        @Override
+        public String getResultString() {
+            if (getResultKind() == ResultKind.JSON) {
+                return Utils.getFieldJsonValue(record, table.colResultJson).getStringValue();
+            }
+            return Utils.getFieldOrNull(record, table.colResultString);
+        }
+
+        @Override
+        public Object getDatastreamId() {
+            return Utils.getFieldOrNull(record, table.getDatastreamId());
+        }
+
+        @Override
+        public Object getMultiDatastreamId() {
+            return Utils.getFieldOrNull(record, table.getMultiDatastreamId());
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (!done) {
+                done = true;
+                results.close();
+            }
+        }
+
+        private Instant toInstant(OffsetDateTime time) {
+            return time == null ? null : time.toInstant();
+        }
+    }
+
 }
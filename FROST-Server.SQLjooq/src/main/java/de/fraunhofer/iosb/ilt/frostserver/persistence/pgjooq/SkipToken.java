@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import de.fraunhofer.iosb.ilt.frostserver.util.SimpleJsonMapper;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The contents of a $skiptoken: the number of entities before the page, and
+ * the values of the sort fields of the last entity before the page. The token
+ * is a base64url encoded JSON array, so it can be used in a URL unchanged.
+ *
+ * @author scf
+ */
+public class SkipToken {
+
+    private static final TypeReference<List<Object>> TYPE_LIST_OBJECT = new TypeReference<List<Object>>() {
+        // Empty by design.
+    };
+
+    private static final char TYPE_NUMBER = 'N';
+    private static final char TYPE_STRING = 'S';
+    private static final char TYPE_BOOLEAN = 'B';
+    private static final char TYPE_TIME = 'T';
+    private static final char TYPE_UUID = 'U';
+
+    private final int offset;
+    private final List<Object> values;
+
+    public SkipToken(int offset, List<Object> values) {
+        this.offset = offset;
+        this.values = values;
+    }
+
+    /**
+     * The number of entities before the page.
+     *
+     * @return The number of entities before the page.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * The values of the sort fields of the last entity before the page. Can
+     * contain null values.
+     *
+     * @return The values of the sort fields.
+     */
+    public List<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Checks if the given value can be stored in a token.
+     *
+     * @param value The value to check.
+     * @return true if the value can be stored in a token.
+     */
+    public static boolean canEncode(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        }
+        return value == null
+                || value instanceof Integer
+                || value instanceof Long
+                || value instanceof Short
+                || value instanceof BigInteger
+                || value instanceof BigDecimal
+                || value instanceof String
+                || value instanceof Boolean
+                || value instanceof OffsetDateTime
+                || value instanceof UUID;
+    }
+
+    /**
+     * Encodes this token into a String that can be used in a URL.
+     *
+     * @return The encoded token.
+     * @throws IllegalArgumentException if one of the values can not be stored
+     * in a token.
+     */
+    public String encode() {
+        List<Object> items = new ArrayList<>(values.size() + 1);
+        items.add(offset);
+        for (Object value : values) {
+            items.add(encodeValue(value));
+        }
+        try {
+            byte[] json = SimpleJsonMapper.getSimpleObjectMapper().writeValueAsBytes(items);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Failed to encode skipToken.", ex);
+        }
+    }
+
+    private static String encodeValue(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof BigDecimal) {
+            return TYPE_NUMBER + ((BigDecimal) value).toString();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return TYPE_NUMBER + new BigDecimal(value.toString()).toString();
+        }
+        if (value instanceof Number) {
+            return TYPE_NUMBER + value.toString();
+        }
+        if (value instanceof String) {
+            return TYPE_STRING + (String) value;
+        }
+        if (value instanceof Boolean) {
+            return TYPE_BOOLEAN + value.toString();
+        }
+        if (value instanceof OffsetDateTime) {
+            return TYPE_TIME + value.toString();
+        }
+        if (value instanceof UUID) {
+            return TYPE_UUID + value.toString();
+        }
+        throw new IllegalArgumentException("Can not store values of type " + value.getClass().getName() + " in a skipToken.");
+    }
+
+    /**
+     * Decodes the given token.
+     *
+     * @param token The token to decode.
+     * @return The decoded token.
+     * @throws IllegalArgumentException if the token is not valid.
+     */
+    public static SkipToken decode(String token) {
+        try {
+            byte[] json = Base64.getUrlDecoder().decode(token.getBytes(StandardCharsets.US_ASCII));
+            List<Object> items = SimpleJsonMapper.getSimpleObjectMapper().readValue(json, TYPE_LIST_OBJECT);
+            if (items.isEmpty() || !(items.get(0) instanceof Integer)) {
+                throw new IllegalArgumentException("Invalid $skiptoken.");
+            }
+            int offset = (Integer) items.get(0);
+            if (items.size() == 1) {
+                return new SkipToken(offset, Collections.emptyList());
+            }
+            List<Object> values = new ArrayList<>(items.size() - 1);
+            for (Object item : items.subList(1, items.size())) {
+                values.add(decodeValue(item));
+            }
+            return new SkipToken(offset, values);
+        } catch (IOException | ClassCastException | DateTimeParseException | IllegalArgumentException | StringIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Invalid $skiptoken.", ex);
+        }
+    }
+
+    private static Object decodeValue(Object item) {
+        if (item == null) {
+            return null;
+        }
+        String value = (String) item;
+        String content = value.substring(1);
+        switch (value.charAt(0)) {
+            case TYPE_NUMBER:
+                return new BigDecimal(content);
+
+            case TYPE_STRING:
+                return content;
+
+            case TYPE_BOOLEAN:
+                return Boolean.valueOf(content);
+
+            case TYPE_TIME:
+                return OffsetDateTime.parse(content);
+
+            case TYPE_UUID:
+                return UUID.fromString(content);
+
+            default:
+                throw new IllegalArgumentException("Unknown value type in $skiptoken.");
+        }
+    }
+
+}
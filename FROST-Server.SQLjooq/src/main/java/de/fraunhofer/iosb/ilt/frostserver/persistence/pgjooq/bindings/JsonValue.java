@@ -19,6 +19,7 @@ package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.bindings;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.RawJsonMap;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.Utils;
 import java.util.Map;
 import org.slf4j.Logger;
@@ -67,6 +68,31 @@ public class JsonValue {
         return getValue(Utils.TYPE_MAP_STRING_OBJECT);
     }
 
+    /**
+     * Returns the value as a Map that is only parsed when its content is
+     * accessed, so that it can be written out without parsing it.
+     *
+     * @return The value as a lazily parsed Map.
+     */
+    public Map<String, Object> getLazyMapValue() {
+        if (value == null && RawJsonMap.isJsonObject(stringValue)) {
+            return new RawJsonMap(stringValue);
+        }
+        return getMapValue();
+    }
+
+    /**
+     * Returns the value, as a lazily parsed Map if it is a JSON object.
+     *
+     * @return The value, as a lazily parsed Map if it is a JSON object.
+     */
+    public Object getLazyValue() {
+        if (value == null && RawJsonMap.isJsonObject(stringValue)) {
+            return new RawJsonMap(stringValue);
+        }
+        return getValue();
+    }
+
     public <T> T getValue(TypeReference<T> typeReference) {
         if (type != null && !type.equals(typeReference)) {
             LOGGER.warn("Type Switch, from {} to {}", type, typeReference);
@@ -83,7 +83,7 @@ public class ActuatorFactory<J extends Comparable> implements EntityFactory<Actu
         if (select.isEmpty() || select.contains(EntityPropertyMain.PROPERTIES)) {
             JsonValue props = Utils.getFieldJsonValue(record, table.colProperties);
             dataSize.increase(props.getStringLength());
-            entity.setProperties(props.getMapValue());
+            entity.setProperties(props.getLazyMapValue());
         }
         if (select.isEmpty() || select.contains(EntityPropertyMain.METADATA)) {
             String metaDataString = getFieldOrNull(record, table.colMetadata);
@@ -110,7 +110,7 @@ public class DatastreamFactory<J extends Comparable> implements EntityFactory<Da
         if (select.isEmpty() || select.contains(EntityPropertyMain.PROPERTIES)) {
             JsonValue props = Utils.getFieldJsonValue(tuple, table.colProperties);
             dataSize.increase(props.getStringLength());
-            entity.setProperties(props.getMapValue());
+            entity.setProperties(props.getLazyMapValue());
         }
         entity.setSensor(entityFactories.sensorFromId(tuple, table.getSensorId()));
         entity.setThing(entityFactories.thingFromId(tuple, table.getThingId()));
@@ -218,6 +218,7 @@ public class DatastreamFactory<J extends Comparable> implements EntityFactory<Da
             }
             update.put(table.getThingId(), datastream.getThing().getId().getValue());
             message.addField(NavigationPropertyMain.THING);
+            pm.getParentExistenceCache().clearGeneratedFeatures();
         }
     }
 
@@ -41,6 +41,7 @@ import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeValue;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.IdManager;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.DataSize;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.IdGenerationHandler;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ParentExistenceCache;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.PostgresPersistenceManager;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.QueryBuilder;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.Utils;
@@ -63,6 +64,7 @@ import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.util.EnumMap;
 import java.util.Map;
+import java.util.function.Consumer;
 import org.geojson.Crs;
 import org.geojson.Feature;
 import org.geojson.GeoJsonObject;
@@ -160,12 +162,32 @@ public class EntityFactories<J extends Comparable> {
     }
 
     public <T extends Entity<T>> EntitySet<T> createSetFromRecords(EntityFactory<T, J> factory, Cursor<Record> tuples, Query query, long maxDataSize) {
+        return createSetFromRecords(factory, tuples, query, maxDataSize, null);
+    }
+
+    /**
+     * Create an EntitySet from the given records, until $top entities are
+     * created, or the maximum data size is reached.
+     *
+     * @param <T> The type of the entities.
+     * @param factory The factory to create the entities with.
+     * @param tuples The records to create the entities from.
+     * @param query The query used to load the records.
+     * @param maxDataSize The maximum data size of the set.
+     * @param recordListener Optional listener that is passed each record that
+     * an entity is created from, in order.
+     * @return The EntitySet.
+     */
+    public <T extends Entity<T>> EntitySet<T> createSetFromRecords(EntityFactory<T, J> factory, Cursor<Record> tuples, Query query, long maxDataSize, Consumer<Record> recordListener) {
         EntitySet<T> entitySet = new EntitySetImpl<>(factory.getEntityType());
         int count = 0;
         DataSize size = new DataSize();
         int top = query.getTopOrDefault();
         while (tuples.hasNext() && count < top) {
             Record tuple = tuples.fetchNext();
+            if (recordListener != null) {
+                recordListener.accept(tuple);
+            }
             entitySet.add(factory.create(tuple, query, size));
             count++;
             if (size.getDataSize() > maxDataSize) {
@@ -297,6 +319,12 @@ public class EntityFactories<J extends Comparable> {
 
     public FeatureOfInterest generateFeatureOfInterest(PostgresPersistenceManager<J> pm, Id datastreamId, boolean isMultiDatastream) throws NoSuchEntityException, IncompleteEntityException {
         J dsId = (J) datastreamId.getValue();
+        EntityType streamType = isMultiDatastream ? EntityType.MULTIDATASTREAM : EntityType.DATASTREAM;
+        ParentExistenceCache.Transaction parentCache = pm.getParentExistenceCache();
+        J cachedFoiId = (J) parentCache.getGeneratedFeatureId(streamType, dsId);
+        if (cachedFoiId != null) {
+            return new FeatureOfInterest(idFromObject(cachedFoiId));
+        }
         DSLContext dslContext = pm.getDslContext();
         AbstractTableLocations<J> ql = tableCollection.getTableLocations();
         AbstractTableThingsLocations<J> qtl = tableCollection.getTableThingsLocations();
@@ -369,6 +397,7 @@ public class EntityFactories<J extends Comparable> {
             // Can not generate foi from Thing with no locations.
             throw new NoSuchEntityException("Can not generate foi for Thing, all locations have an un supported encoding type.");
         }
+        parentCache.addGeneratedFeature(streamType, dsId, foi.getId().getValue());
         return foi;
     }
 
@@ -400,6 +429,7 @@ public class EntityFactories<J extends Comparable> {
             e.complete();
             // no id but complete -> create
             pm.insert(e);
+            pm.getParentExistenceCache().addExisting(e.getEntityType(), e.getId().getValue());
             return;
         }
 
@@ -417,10 +447,15 @@ public class EntityFactories<J extends Comparable> {
 
         // complete with id -> create
         pm.insert(e);
+        pm.getParentExistenceCache().addExisting(e.getEntityType(), e.getId().getValue());
     }
 
     public boolean entityExists(PostgresPersistenceManager<J> pm, EntityType type, Id entityId) {
         J id = (J) entityId.getValue();
+        ParentExistenceCache.Transaction parentCache = pm.getParentExistenceCache();
+        if (parentCache.exists(type, id)) {
+            return true;
+        }
         StaMainTable<J> table = tableCollection.getTablesByType().get(type);
 
         DSLContext dslContext = pm.getDslContext();
@@ -434,7 +469,11 @@ public class EntityFactories<J extends Comparable> {
         if (count > 1) {
             LOGGER.error("More than one instance of {} with id {}.", type, id);
         }
-        return count > 0;
+        if (count > 0) {
+            parentCache.addExisting(type, id);
+            return true;
+        }
+        return false;
 
     }
 
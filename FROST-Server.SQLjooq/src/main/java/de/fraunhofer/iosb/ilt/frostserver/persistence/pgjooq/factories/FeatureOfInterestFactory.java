@@ -87,7 +87,7 @@ public class FeatureOfInterestFactory<J extends Comparable> implements EntityFac
         if (select.isEmpty() || select.contains(EntityPropertyMain.PROPERTIES)) {
             JsonValue props = Utils.getFieldJsonValue(record, table.colProperties);
             dataSize.increase(props.getStringLength());
-            entity.setProperties(props.getMapValue());
+            entity.setProperties(props.getLazyMapValue());
         }
         return entity;
     }
@@ -235,6 +235,7 @@ public class FeatureOfInterestFactory<J extends Comparable> implements EntityFac
                 .set(tLoc.getGenFoiId(), (J) null)
                 .where(tLoc.getGenFoiId().eq(entityId))
                 .execute();
+        pm.getParentExistenceCache().clearGeneratedFeatures();
     }
 
     @Override
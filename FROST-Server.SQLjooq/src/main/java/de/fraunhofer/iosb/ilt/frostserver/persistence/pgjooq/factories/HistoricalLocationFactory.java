@@ -140,6 +140,7 @@ public class HistoricalLocationFactory<J extends Comparable> implements EntityFa
                     .where(qtl.getThingId().eq(thingId))
                     .execute();
             LOGGER.debug(UNLINKED_L_FROM_T, count, thingId);
+            pm.getParentExistenceCache().clearGeneratedFeatures();
 
             // Link new locations to Thing, track the ids.
             for (Location l : h.getLocations()) {
@@ -99,7 +99,7 @@ public class LocationFactory<J extends Comparable> implements EntityFactory<Loca
         if (select.isEmpty() || select.contains(EntityPropertyMain.PROPERTIES)) {
             JsonValue props = Utils.getFieldJsonValue(tuple, table.colProperties);
             dataSize.increase(props.getStringLength());
-            entity.setProperties(props.getMapValue());
+            entity.setProperties(props.getLazyMapValue());
         }
         return entity;
     }
@@ -132,7 +132,7 @@ public class LocationFactory<J extends Comparable> implements EntityFactory<Loca
         EntitySet<Thing> things = l.getThings();
         for (Thing t : things) {
             entityFactories.entityExistsOrCreate(pm, t);
-            linkThingToLocation(entityFactories, dslContext, t, locationId);
+            linkThingToLocation(pm, entityFactories, dslContext, t, locationId);
         }
 
         return true;
@@ -231,7 +231,7 @@ public class LocationFactory<J extends Comparable> implements EntityFactory<Loca
             if (!entityFactories.entityExists(pm, t)) {
                 throw new NoSuchEntityException("Thing not found.");
             }
-            linkThingToLocation(entityFactories, dslContext, t, locationId);
+            linkThingToLocation(pm, entityFactories, dslContext, t, locationId);
         }
     }
 
@@ -276,7 +276,7 @@ public class LocationFactory<J extends Comparable> implements EntityFactory<Loca
         LOGGER.debug("Deleted {} HistoricalLocations", count);
     }
 
-    private static <J extends Comparable> void linkThingToLocation(EntityFactories<J> entityFactories, DSLContext dslContext, Thing t, J locationId) {
+    private static <J extends Comparable> void linkThingToLocation(PostgresPersistenceManager<J> pm, EntityFactories<J> entityFactories, DSLContext dslContext, Thing t, J locationId) {
         J thingId = (J) t.getId().getValue();
 
         // Unlink old Locations from Thing.
@@ -290,6 +290,7 @@ public class LocationFactory<J extends Comparable> implements EntityFactory<Loca
                 .set(qtl.getLocationId(), locationId)
                 .execute();
         LOGGER.debug(LINKED_L_TO_T, locationId, thingId);
+        pm.getParentExistenceCache().clearGeneratedFeatures();
 
         // Create HistoricalLocation for Thing
         AbstractTableHistLocations<J> qhl = entityFactories.tableCollection.getTableHistLocations();
@@ -115,7 +115,7 @@ public class MultiDatastreamFactory<J extends Comparable> implements EntityFacto
         if (select.isEmpty() || select.contains(EntityPropertyMain.PROPERTIES)) {
             JsonValue props = Utils.getFieldJsonValue(tuple, table.colProperties);
             dataSize.increase(props.getStringLength());
-            entity.setProperties(props.getMapValue());
+            entity.setProperties(props.getLazyMapValue());
         }
         entity.setSensor(entityFactories.sensorFromId(tuple, table.getSensorId()));
         entity.setThing(entityFactories.thingFromId(tuple, table.getThingId()));
@@ -274,6 +274,7 @@ public class MultiDatastreamFactory<J extends Comparable> implements EntityFacto
             }
             update.put(table.getThingId(), md.getThing().getId().getValue());
             message.addField(NavigationPropertyMain.THING);
+            pm.getParentExistenceCache().clearGeneratedFeatures();
         }
     }
 
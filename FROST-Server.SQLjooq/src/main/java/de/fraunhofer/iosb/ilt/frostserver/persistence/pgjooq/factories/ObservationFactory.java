@@ -27,6 +27,7 @@ import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
 import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInstant;
 import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeValue;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.DataSize;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ParentExistenceCache;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.PostgresPersistenceManager;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ResultType;
 import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.Utils;
@@ -44,15 +45,22 @@ import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncompleteEntityExcepti
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.NoSuchEntityException;
 import java.math.BigDecimal;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.jooq.DSLContext;
 import org.jooq.Field;
+import org.jooq.InsertSetMoreStep;
+import org.jooq.InsertSetStep;
 import org.jooq.Record;
 import org.jooq.Record1;
+import org.jooq.Result;
+import org.jooq.impl.DSL;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,9 +76,20 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(ObservationFactory.class);
 
+    /**
+     * The maximum number of Observations to insert with one statement.
+     */
+    private static final int BULK_INSERT_SIZE = 1000;
+
     private final EntityFactories<J> entityFactories;
     private final AbstractTableObservations<J> table;
     private final TableCollection<J> tableCollection;
+    /**
+     * The SQL expression that the database uses to generate Observation ids,
+     * read from the default of the id column. Empty if the column has no
+     * default, null if not read yet.
+     */
+    private String idGenerator;
 
     public ObservationFactory(EntityFactories<J> factories, AbstractTableObservations<J> table) {
         this.entityFactories = factories;
@@ -103,7 +122,7 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
         if (select.isEmpty() || select.contains(EntityPropertyMain.PARAMETERS)) {
             JsonValue props = Utils.getFieldJsonValue(tuple, table.colParameters);
             dataSize.increase(props.getStringLength());
-            entity.setParameters(props.getMapValue());
+            entity.setParameters(props.getLazyMapValue());
         }
 
         OffsetDateTime pTimeStart = Utils.getFieldOrNull(tuple, table.colPhenomenonTimeStart);
@@ -126,7 +145,7 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
         if (select.isEmpty() || select.contains(EntityPropertyMain.RESULTQUALITY)) {
             JsonValue resultQuality = Utils.getFieldJsonValue(tuple, table.colResultQuality);
             dataSize.increase(resultQuality.getStringLength());
-            entity.setResultQuality(resultQuality.getValue());
+            entity.setResultQuality(resultQuality.getLazyValue());
         }
     }
 
@@ -154,7 +173,7 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
                 case OBJECT_ARRAY:
                     JsonValue jsonData = Utils.getFieldJsonValue(tuple, table.colResultJson);
                     dataSize.increase(jsonData.getStringLength());
-                    entity.setResult(jsonData.getValue());
+                    entity.setResult(jsonData.getLazyValue());
                     break;
 
                 case STRING:
@@ -172,6 +191,133 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
 
     @Override
     public boolean insert(PostgresPersistenceManager<J> pm, Observation newObservation) throws NoSuchEntityException, IncompleteEntityException {
+        Map<Field, Object> insert = createInsertRecord(pm, newObservation);
+
+        DSLContext dslContext = pm.getDslContext();
+        Record1<J> result = dslContext.insertInto(table)
+                .set(insert)
+                .returningResult(table.getId())
+                .fetchOne();
+        J generatedId = result.component1();
+        LOGGER.debug("Inserted Observation. Created id = {}.", generatedId);
+        newObservation.setId(entityFactories.idFromObject(generatedId));
+        return true;
+    }
+
+    /**
+     * Insert the given Observations into the database, using multi-row
+     * inserts. The Datastreams, MultiDatastreams and FeaturesOfInterest the
+     * Observations link to are checked, or generated, only once for all
+     * Observations.
+     *
+     * @param pm The persistenceManager to use to access the database.
+     * @param observations The Observations to insert.
+     * @return A list with, for each given Observation, null if it was
+     * inserted, or the exception describing why it was not inserted.
+     */
+    public List<Exception> insert(PostgresPersistenceManager<J> pm, List<Observation> observations) {
+        List<Exception> failures = new ArrayList<>(observations.size());
+        // A multi-row insert needs the same columns for all rows.
+        Map<Set<Field>, List<Integer>> rowsByColumns = new LinkedHashMap<>();
+        List<Map<Field, Object>> records = new ArrayList<>(observations.size());
+        for (int i = 0; i < observations.size(); i++) {
+            try {
+                Map<Field, Object> insert = createInsertRecord(pm, observations.get(i));
+                records.add(insert);
+                failures.add(null);
+                rowsByColumns.computeIfAbsent(new HashSet<>(insert.keySet()), k -> new ArrayList<>())
+                        .add(i);
+            } catch (NoSuchEntityException | IncompleteEntityException | IllegalArgumentException exc) {
+                records.add(null);
+                failures.add(exc);
+            }
+        }
+        for (List<Integer> rows : rowsByColumns.values()) {
+            for (int start = 0; start < rows.size(); start += BULK_INSERT_SIZE) {
+                insertRows(pm, observations, records, rows.subList(start, Math.min(start + BULK_INSERT_SIZE, rows.size())));
+            }
+        }
+        return failures;
+    }
+
+    private void insertRows(PostgresPersistenceManager<J> pm, List<Observation> observations, List<Map<Field, Object>> records, List<Integer> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        // PostgreSQL does not guarantee that RETURNING gives the ids in the
+        // order of the inserted rows, so the ids must be known up front.
+        boolean hasIds = records.get(rows.get(0)).containsKey(table.getId());
+        if (!hasIds && !generateIds(pm, records, rows)) {
+            for (Integer row : rows) {
+                Record1<J> result = pm.getDslContext().insertInto(table)
+                        .set(records.get(row))
+                        .returningResult(table.getId())
+                        .fetchOne();
+                observations.get(row).setId(entityFactories.idFromObject(result.component1()));
+            }
+            LOGGER.debug("Inserted {} Observations one by one.", rows.size());
+            return;
+        }
+        InsertSetStep<Record> insertStep = pm.getDslContext().insertInto(table);
+        InsertSetMoreStep<Record> valuesStep = null;
+        for (Integer row : rows) {
+            if (valuesStep == null) {
+                valuesStep = insertStep.set(records.get(row));
+            } else {
+                valuesStep = valuesStep.newRecord().set(records.get(row));
+            }
+        }
+        int count = valuesStep.execute();
+        if (count != rows.size()) {
+            throw new IllegalStateException("Inserted " + count + " Observations, expected " + rows.size() + ".");
+        }
+        for (Integer row : rows) {
+            J id = (J) records.get(row).get(table.getId());
+            observations.get(row).setId(entityFactories.idFromObject(id));
+        }
+        LOGGER.debug("Inserted {} Observations.", rows.size());
+    }
+
+    /**
+     * Generates ids for the given rows using the default of the id column,
+     * and adds them to the records.
+     *
+     * @param pm The persistenceManager to use to access the database.
+     * @param records The records to insert.
+     * @param rows The indices of the records to generate ids for.
+     * @return false if the id column has no default to generate ids with.
+     */
+    private boolean generateIds(PostgresPersistenceManager<J> pm, List<Map<Field, Object>> records, List<Integer> rows) {
+        String generator = getIdGenerator(pm);
+        if (generator.isEmpty()) {
+            return false;
+        }
+        Result<Record1<J>> ids = pm.getDslContext()
+                .select(DSL.field(generator, table.getId().getDataType()))
+                .from("generate_series(1, {0})", DSL.val(rows.size()))
+                .fetch();
+        for (int i = 0; i < rows.size(); i++) {
+            records.get(rows.get(i)).put(table.getId(), ids.get(i).component1());
+        }
+        return true;
+    }
+
+    private String getIdGenerator(PostgresPersistenceManager<J> pm) {
+        if (idGenerator == null) {
+            String expression = pm.getDslContext().resultQuery(
+                    "select pg_get_expr(d.adbin, d.adrelid) from pg_attrdef d"
+                    + " join pg_attribute a on a.attrelid = d.adrelid and a.attnum = d.adnum"
+                    + " where d.adrelid = {0}::regclass and a.attname = {1}",
+                    DSL.val('"' + table.getName() + '"'),
+                    DSL.val(table.getId().getName()))
+                    .fetchOne(0, String.class);
+            idGenerator = expression == null ? "" : expression;
+            LOGGER.debug("Generating Observation ids using: {}", idGenerator);
+        }
+        return idGenerator;
+    }
+
+    private Map<Field, Object> createInsertRecord(PostgresPersistenceManager<J> pm, Observation newObservation) throws NoSuchEntityException, IncompleteEntityException {
         Datastream ds = newObservation.getDatastream();
         MultiDatastream mds = newObservation.getMultiDatastream();
         Id streamId;
@@ -220,16 +366,7 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
         insert.put(table.getFeatureId(), f.getId().getValue());
 
         entityFactories.insertUserDefinedId(pm, insert, table.getId(), newObservation);
-
-        DSLContext dslContext = pm.getDslContext();
-        Record1<J> result = dslContext.insertInto(table)
-                .set(insert)
-                .returningResult(table.getId())
-                .fetchOne();
-        J generatedId = result.component1();
-        LOGGER.debug("Inserted Observation. Created id = {}.", generatedId);
-        newObservation.setId(entityFactories.idFromObject(generatedId));
-        return true;
+        return insert;
     }
 
     @Override
@@ -306,13 +443,7 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
             }
             List list = (List) result;
             MultiDatastream mds = newObservation.getMultiDatastream();
-            J mdsId = (J) mds.getId().getValue();
-            AbstractTableMultiDatastreamsObsProperties<J> tableMdsOps = tableCollection.getTableMultiDatastreamsObsProperties();
-            Integer count = pm.getDslContext()
-                    .selectCount()
-                    .from(tableMdsOps)
-                    .where(tableMdsOps.getMultiDatastreamId().eq(mdsId))
-                    .fetchOne().component1();
+            int count = getObservedPropertyCount(pm, (J) mds.getId().getValue());
             if (count != list.size()) {
                 throw new IllegalArgumentException("Size of result array (" + list.size() + ") must match number of observed properties (" + count + ") in the MultiDatastream.");
             }
@@ -345,6 +476,22 @@ public class ObservationFactory<J extends Comparable> implements EntityFactory<O
         }
     }
 
+    private int getObservedPropertyCount(PostgresPersistenceManager<J> pm, J mdsId) {
+        ParentExistenceCache.Transaction parentCache = pm.getParentExistenceCache();
+        Integer count = parentCache.getObservedPropertyCount(mdsId);
+        if (count != null) {
+            return count;
+        }
+        AbstractTableMultiDatastreamsObsProperties<J> tableMdsOps = tableCollection.getTableMultiDatastreamsObsProperties();
+        count = pm.getDslContext()
+                .selectCount()
+                .from(tableMdsOps)
+                .where(tableMdsOps.getMultiDatastreamId().eq(mdsId))
+                .fetchOne().component1();
+        parentCache.addObservedPropertyCount(mdsId, count);
+        return count;
+    }
+
     private boolean checkMultiDatastreamSet(Observation oldObservation, Observation newObservation, EntityChangedMessage message, Map<Field, Object> update, PostgresPersistenceManager<J> pm) throws IncompleteEntityException {
         MultiDatastream mds = oldObservation.getMultiDatastream();
         boolean newHasMultiDatastream = mds != null;
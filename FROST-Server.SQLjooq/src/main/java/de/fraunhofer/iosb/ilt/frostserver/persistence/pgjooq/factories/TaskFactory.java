@@ -79,7 +79,7 @@ public class TaskFactory<J extends Comparable> implements EntityFactory<Task, J>
         if (select.isEmpty() || select.contains(EntityPropertyMain.TASKINGPARAMETERS)) {
             JsonValue taskingParams = Utils.getFieldJsonValue(record, table.colTaskingParameters);
             dataSize.increase(taskingParams.getStringLength());
-            entity.setTaskingParameters(taskingParams.getMapValue());
+            entity.setTaskingParameters(taskingParams.getLazyMapValue());
         }
 
         return entity;
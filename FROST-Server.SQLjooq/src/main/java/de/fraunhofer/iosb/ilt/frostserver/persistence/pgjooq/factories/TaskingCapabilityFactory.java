@@ -86,12 +86,12 @@ public class TaskingCapabilityFactory<J extends Comparable> implements EntityFac
         if (select.isEmpty() || select.contains(EntityPropertyMain.PROPERTIES)) {
             JsonValue props = Utils.getFieldJsonValue(record, table.colProperties);
             dataSize.increase(props.getStringLength());
-            entity.setProperties(props.getMapValue());
+            entity.setProperties(props.getLazyMapValue());
         }
         if (select.isEmpty() || select.contains(EntityPropertyMain.TASKINGPARAMETERS)) {
             JsonValue taskingParams = Utils.getFieldJsonValue(record, table.colTaskingParameters);
             dataSize.increase(taskingParams.getStringLength());
-            entity.setTaskingParameters(taskingParams.getMapValue());
+            entity.setTaskingParameters(taskingParams.getLazyMapValue());
         }
         entity.setActuator(entityFactories.actuatorFromId(record, table.getActuatorId()));
         entity.setThing(entityFactories.thingFromId(record, table.getThingId()));
@@ -99,7 +99,7 @@ public class ThingFactory<J extends Comparable> implements EntityFactory<Thing,
         if (select.isEmpty() || select.contains(EntityPropertyMain.PROPERTIES)) {
             JsonValue props = Utils.getFieldJsonValue(tuple, table.colProperties);
             dataSize.increase(props.getStringLength());
-            entity.setProperties(props.getMapValue());
+            entity.setProperties(props.getLazyMapValue());
         }
         return entity;
     }
@@ -242,6 +242,7 @@ public class ThingFactory<J extends Comparable> implements EntityFactory<Thing,
         AbstractTableThingsLocations<J> ttl = tableCollection.getTableThingsLocations();
         long count = dslContext.delete(ttl).where(ttl.getThingId().eq(thingId)).execute();
         LOGGER.debug(UNLINKED_L_FROM_T, count, thingId);
+        pm.getParentExistenceCache().clearGeneratedFeatures();
 
         // Link new locations to Thing, track the ids.
         List<J> locationIds = new ArrayList<>();
@@ -162,6 +162,11 @@ public class StaDateTimeWrapper implements TimeFieldWrapper {
         }
     }
 
+    /**
+     * Compares this time with an interval. Where the comparison only limits
+     * the end of the interval, the implied limit on the start is added, so
+     * that range-partitioned tables can be pruned.
+     */
     private Condition specificOpBool(String op, StaTimeIntervalWrapper other) {
         Field<OffsetDateTime> t1 = field;
         Field<OffsetDateTime> s2 = other.getStart();
@@ -177,7 +182,7 @@ public class StaDateTimeWrapper implements TimeFieldWrapper {
                 return t1.greaterOrEqual(e2).and(t1.greaterThan(s2));
 
             case ">=":
-                return t1.greaterOrEqual(e2);
+                return t1.greaterOrEqual(e2).and(t1.greaterOrEqual(s2));
 
             case "<":
                 return t1.lessThan(s2);
@@ -195,16 +200,16 @@ public class StaDateTimeWrapper implements TimeFieldWrapper {
                 throw new UnsupportedOperationException("First parameter of contains must be an interval.");
 
             case "m":
-                return t1.equal(s2).or(t1.equal(e2));
+                return s2.lessOrEqual(t1).and(t1.equal(s2).or(t1.equal(e2)));
 
             case "o":
-                return t1.equal(s2).or(s2.lessOrEqual(t1).and(e2.greaterThan(t1)));
+                return s2.lessOrEqual(t1).and(t1.equal(s2).or(e2.greaterThan(t1)));
 
             case "s":
                 return t1.equal(s2);
 
             case "f":
-                return t1.equal(e2);
+                return t1.equal(e2).and(s2.lessOrEqual(t1));
 
             default:
                 throw new UnsupportedOperationException("Unknown boolean operation: " + op);
@@ -144,6 +144,11 @@ public class StaTimeIntervalWrapper implements TimeFieldWrapper {
         throw new UnsupportedOperationException("Can not add, sub, mul or div with Duration and " + other.getClass().getName());
     }
 
+    /**
+     * Compares this interval with a time. Where the comparison only limits the
+     * end of this interval, the implied limit on the start is added, so that
+     * tables that are range-partitioned on the start can be pruned.
+     */
     private Condition specificOpBool(String op, StaDateTimeWrapper other) {
         Field<OffsetDateTime> s1 = start;
         Field<OffsetDateTime> e1 = end;
@@ -165,7 +170,7 @@ public class StaTimeIntervalWrapper implements TimeFieldWrapper {
                 return e1.lessOrEqual(t2).and(s1.lessThan(t2));
 
             case "<=":
-                return e1.lessOrEqual(t2);
+                return e1.lessOrEqual(t2).and(s1.lessOrEqual(t2));
 
             case "a":
                 return s1.greaterThan(t2);
@@ -177,22 +182,26 @@ public class StaTimeIntervalWrapper implements TimeFieldWrapper {
                 return s1.lessOrEqual(t2).and(e1.greaterThan(t2));
 
             case "m":
-                return s1.equal(t2).or(e1.equal(t2));
+                return s1.lessOrEqual(t2).and(s1.equal(t2).or(e1.equal(t2)));
 
             case "o":
-                return s1.equal(t2).or(s1.lessOrEqual(t2).and(e1.greaterThan(t2)));
+                return s1.lessOrEqual(t2).and(s1.equal(t2).or(e1.greaterThan(t2)));
 
             case "s":
                 return s1.equal(t2);
 
             case "f":
-                return e1.equal(t2);
+                return e1.equal(t2).and(s1.lessOrEqual(t2));
 
             default:
                 throw new UnsupportedOperationException("Unknown boolean operation: " + op);
         }
     }
 
+    /**
+     * Compares this interval with another interval. As for the comparison with
+     * a time, implied limits on the starts of both intervals are added.
+     */
     private Condition specificOpBool(String op, StaTimeIntervalWrapper other) {
         Field<OffsetDateTime> s1 = start;
         Field<OffsetDateTime> e1 = end;
@@ -227,16 +236,16 @@ public class StaTimeIntervalWrapper implements TimeFieldWrapper {
                 return s1.lessOrEqual(s2).and(e1.greaterThan(s2)).and(e1.greaterOrEqual(e2));
 
             case "m":
-                return s1.equal(e2).or(e1.equal(s2));
+                return s1.lessOrEqual(e2).and(s2.lessOrEqual(e1)).and(s1.equal(e2).or(e1.equal(s2)));
 
             case "o":
-                return s1.greaterOrEqual(e2).or(s2.greaterOrEqual(e1)).not().or(s1.equal(s2));
+                return s1.lessOrEqual(e2).and(s2.lessOrEqual(e1)).and(s1.greaterOrEqual(e2).or(s2.greaterOrEqual(e1)).not().or(s1.equal(s2)));
 
             case "s":
                 return s1.equal(s2);
 
             case "f":
-                return e1.equal(e2);
+                return e1.equal(e2).and(s1.lessOrEqual(e2)).and(s2.lessOrEqual(e1));
 
             default:
                 throw new UnsupportedOperationException("Unknown boolean operation: " + op);
@@ -0,0 +1,348 @@
+-- Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+-- Karlsruhe, Germany.
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Lesser General Public License as published by
+-- the Free Software Foundation, either version 3 of the License, or
+-- (at your option) any later version.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Lesser General Public License for more details.
+--
+-- You should have received a copy of the GNU Lesser General Public License
+-- along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+-- ---------------------------------------
+-- Function: frost_observations_partitioned()
+--
+-- Returns true if the OBSERVATIONS table is a partitioned table.
+-- ---------------------------------------
+create or replace function frost_observations_partitioned()
+  returns boolean as
+$BODY$
+begin
+	return exists (select 1 from pg_partitioned_table where partrelid = to_regclass('"OBSERVATIONS"'));
+end;
+$BODY$
+  language plpgsql stable;
+
+
+-- ---------------------------------------
+-- Function: frost_observation_partition_lock()
+--
+-- Takes the transaction-level advisory lock that serialises the changes to
+-- the partitions of OBSERVATIONS, so that several nodes running the
+-- maintenance at the same time do not create, fill or drop the same partition.
+-- Returns false if another transaction holds the lock. The lock is re-entrant
+-- within a transaction.
+-- ---------------------------------------
+create or replace function frost_observation_partition_lock()
+  returns boolean as
+$BODY$
+begin
+	return pg_try_advisory_xact_lock(hashtext('frost_observation_partitions'));
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_observation_partition_start(text, timestamptz)
+--
+-- Returns the start of the partition of one p_unit that contains p_time,
+-- aligned in UTC, so that it does not depend on the TimeZone of the session.
+-- ---------------------------------------
+create or replace function frost_observation_partition_start(p_unit text, p_time timestamptz)
+  returns timestamptz as
+$BODY$
+	select date_trunc(p_unit, p_time at time zone 'UTC') at time zone 'UTC';
+$BODY$
+  language sql immutable;
+
+
+-- ---------------------------------------
+-- Function: frost_observation_partition_next(text, timestamptz)
+--
+-- Returns the start of the partition following the one starting at p_start,
+-- calculated in UTC.
+-- ---------------------------------------
+create or replace function frost_observation_partition_next(p_unit text, p_start timestamptz)
+  returns timestamptz as
+$BODY$
+	select ((p_start at time zone 'UTC') + ('1 ' || p_unit)::interval) at time zone 'UTC';
+$BODY$
+  language sql immutable;
+
+
+-- ---------------------------------------
+-- Function: frost_create_observation_partition(timestamptz, text)
+--
+-- Creates the partition of OBSERVATIONS that contains the given time, for a
+-- partition size of one p_unit (day, week, month or year), if it does not
+-- exist yet. Rows in the default partition that belong in the new partition
+-- are moved there. Returns true if a partition was created, false if it
+-- already existed or another transaction is changing the partitions.
+-- ---------------------------------------
+create or replace function frost_create_observation_partition(p_time timestamptz, p_unit text)
+  returns boolean as
+$BODY$
+declare
+	v_start timestamptz := frost_observation_partition_start(p_unit, p_time);
+	v_end timestamptz := frost_observation_partition_next(p_unit, v_start);
+	v_name text := 'OBSERVATIONS_P' || to_char(v_start at time zone 'UTC', 'YYYYMMDD');
+	v_move boolean := false;
+begin
+	if not frost_observation_partition_lock() then
+		return false;
+	end if;
+	if to_regclass(format('%I', v_name)) is not null then
+		return false;
+	end if;
+
+	if to_regclass('"OBSERVATIONS_DEFAULT"') is not null then
+		select exists (select 1 from "OBSERVATIONS_DEFAULT" where "PHENOMENON_TIME_START" >= v_start and "PHENOMENON_TIME_START" < v_end) into v_move;
+	end if;
+	if v_move then
+		create temporary table "FROST_MOVED_OBSERVATIONS" on commit drop as
+			select * from "OBSERVATIONS_DEFAULT" where "PHENOMENON_TIME_START" >= v_start and "PHENOMENON_TIME_START" < v_end;
+		delete from "OBSERVATIONS_DEFAULT" where "PHENOMENON_TIME_START" >= v_start and "PHENOMENON_TIME_START" < v_end;
+	end if;
+
+	execute format('create table %I partition of "OBSERVATIONS" for values from (%L) to (%L)', v_name, v_start, v_end);
+
+	if v_move then
+		insert into "OBSERVATIONS" select * from "FROST_MOVED_OBSERVATIONS";
+		drop table "FROST_MOVED_OBSERVATIONS";
+	end if;
+	return true;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_create_observation_partitions(text, integer)
+--
+-- Makes sure the partitions of OBSERVATIONS exist for the current period and
+-- the p_ahead periods after it. Only one caller at a time does the work,
+-- concurrent callers return immediately. Returns the number of created
+-- partitions.
+-- ---------------------------------------
+create or replace function frost_create_observation_partitions(p_unit text, p_ahead integer)
+  returns integer as
+$BODY$
+declare
+	v_count integer := 0;
+begin
+	if not frost_observations_partitioned() then
+		return 0;
+	end if;
+	if not frost_observation_partition_lock() then
+		return 0;
+	end if;
+	for i in 0..p_ahead loop
+		if frost_create_observation_partition(now() + (i || ' ' || p_unit)::interval, p_unit) then
+			v_count := v_count + 1;
+		end if;
+	end loop;
+	return v_count;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_drop_observation_partitions(timestamptz)
+--
+-- Drops all partitions of OBSERVATIONS that only contain observations with a
+-- phenomenonTime before p_before. Since dropping a partition does not fire the
+-- delete triggers, the times of the affected (Multi)Datastreams, and the ids
+-- in OBSERVATION_IDS, are updated by this function. Only one caller at a time
+-- does the work, concurrent callers return immediately. Returns the number of
+-- dropped partitions.
+-- ---------------------------------------
+create or replace function frost_drop_observation_partitions(p_before timestamptz)
+  returns integer as
+$BODY$
+declare
+	v_partition record;
+	v_count integer := 0;
+begin
+	if not frost_observations_partitioned() then
+		return 0;
+	end if;
+	if not frost_observation_partition_lock() then
+		return 0;
+	end if;
+	for v_partition in
+		select c.oid::regclass as name, substring(pg_get_expr(c.relpartbound, c.oid) from 'TO \(''([^'']*)''\)')::timestamptz as upper_bound
+			from pg_inherits i join pg_class c on c.oid = i.inhrelid
+			where i.inhparent = to_regclass('"OBSERVATIONS"')
+	loop
+		if v_partition.upper_bound is not null and v_partition.upper_bound <= p_before then
+			execute format('delete from "OBSERVATION_IDS" "I" using %s "P" where "I"."ID" = "P"."ID"', v_partition.name);
+			execute format('drop table %s', v_partition.name);
+			v_count := v_count + 1;
+		end if;
+	end loop;
+
+	if v_count > 0 then
+		update "DATASTREAMS" set
+				"PHENOMENON_TIME_START" = (select min("PHENOMENON_TIME_START") from "OBSERVATIONS" where "OBSERVATIONS"."DATASTREAM_ID" = "DATASTREAMS"."ID"),
+				"PHENOMENON_TIME_END" = (select max(coalesce("PHENOMENON_TIME_END", "PHENOMENON_TIME_START")) from "OBSERVATIONS" where "OBSERVATIONS"."DATASTREAM_ID" = "DATASTREAMS"."ID"),
+				"RESULT_TIME_START" = (select min("RESULT_TIME") from "OBSERVATIONS" where "OBSERVATIONS"."DATASTREAM_ID" = "DATASTREAMS"."ID"),
+				"RESULT_TIME_END" = (select max("RESULT_TIME") from "OBSERVATIONS" where "OBSERVATIONS"."DATASTREAM_ID" = "DATASTREAMS"."ID")
+			where "PHENOMENON_TIME_START" < p_before;
+		update "MULTI_DATASTREAMS" set
+				"PHENOMENON_TIME_START" = (select min("PHENOMENON_TIME_START") from "OBSERVATIONS" where "OBSERVATIONS"."MULTI_DATASTREAM_ID" = "MULTI_DATASTREAMS"."ID"),
+				"PHENOMENON_TIME_END" = (select max(coalesce("PHENOMENON_TIME_END", "PHENOMENON_TIME_START")) from "OBSERVATIONS" where "OBSERVATIONS"."MULTI_DATASTREAM_ID" = "MULTI_DATASTREAMS"."ID"),
+				"RESULT_TIME_START" = (select min("RESULT_TIME") from "OBSERVATIONS" where "OBSERVATIONS"."MULTI_DATASTREAM_ID" = "MULTI_DATASTREAMS"."ID"),
+				"RESULT_TIME_END" = (select max("RESULT_TIME") from "OBSERVATIONS" where "OBSERVATIONS"."MULTI_DATASTREAM_ID" = "MULTI_DATASTREAMS"."ID")
+			where "PHENOMENON_TIME_START" < p_before;
+	end if;
+	return v_count;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_observation_ids()
+--
+-- Trigger function that keeps OBSERVATION_IDS in sync with the ids in
+-- OBSERVATIONS. Since the primary key of the partitioned table also contains
+-- the partition key, the unique index on OBSERVATION_IDS is what keeps the
+-- ids unique over all partitions.
+-- ---------------------------------------
+create or replace function frost_observation_ids()
+  returns trigger as
+$BODY$
+begin
+	if TG_OP = 'DELETE' or (TG_OP = 'UPDATE' and OLD."ID" is distinct from NEW."ID") then
+		delete from "OBSERVATION_IDS" where "ID" = OLD."ID";
+	end if;
+	if TG_OP = 'INSERT' or (TG_OP = 'UPDATE' and OLD."ID" is distinct from NEW."ID") then
+		insert into "OBSERVATION_IDS" ("ID") values (NEW."ID");
+	end if;
+	return null;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_partition_observations(text, integer)
+--
+-- Converts the OBSERVATIONS table into a table that is partitioned by range on
+-- PHENOMENON_TIME_START, with one partition per p_unit (day, week, month or
+-- year). Partitions are created for all existing data, and for p_ahead periods
+-- into the future. A default partition catches all other observations.
+-- The primary key, and other unique indexes, are extended with
+-- PHENOMENON_TIME_START, since PostgreSQL requires the partition key to be
+-- part of them. The uniqueness of the ids alone is kept by OBSERVATION_IDS.
+-- Unique indexes that can not be extended, like expression or partial indexes,
+-- make the conversion fail. Non-unique indexes and foreign keys are copied.
+-- The other triggers have to be re-created afterwards.
+-- ---------------------------------------
+create or replace function frost_partition_observations(p_unit text, p_ahead integer)
+  returns void as
+$BODY$
+declare
+	v_index record;
+	v_constraint record;
+	v_index_defs text[] := '{}';
+	v_sequence text;
+	v_pkey text;
+	v_time timestamptz;
+	v_min timestamptz;
+begin
+	if p_unit not in ('day', 'week', 'month', 'year') then
+		raise exception 'Unsupported partition unit: %. Use day, week, month or year.', p_unit;
+	end if;
+	perform pg_advisory_xact_lock(hashtext('frost_observation_partitions'));
+	if frost_observations_partitioned() then
+		return;
+	end if;
+	if exists (select 1 from pg_constraint where confrelid = to_regclass('"OBSERVATIONS"') and contype = 'f') then
+		raise exception 'Can not partition OBSERVATIONS, other tables have foreign keys to it.';
+	end if;
+	if exists (select 1 from "OBSERVATIONS" where "PHENOMENON_TIME_START" is null) then
+		raise exception 'Can not partition OBSERVATIONS, some observations have no phenomenonTime.';
+	end if;
+	select c.relname into v_index
+		from pg_index i join pg_class c on c.oid = i.indexrelid
+		where i.indrelid = to_regclass('"OBSERVATIONS"') and i.indisunique and not i.indisprimary
+			and (i.indexprs is not null or i.indpred is not null)
+		limit 1;
+	if found then
+		raise exception 'Can not partition OBSERVATIONS, the unique index % can not be extended with the partition key.', v_index.relname;
+	end if;
+
+	select conname into v_pkey from pg_constraint where conrelid = to_regclass('"OBSERVATIONS"') and contype = 'p';
+	alter table "OBSERVATIONS" rename to "OBSERVATIONS_UNPARTITIONED";
+	execute format('alter table "OBSERVATIONS_UNPARTITIONED" rename constraint %I to %I', v_pkey, v_pkey || '_UNPARTITIONED');
+	for v_index in
+		select c.relname, i.indisunique, pg_get_indexdef(i.indexrelid) as def, am.amname,
+				(select string_agg(quote_ident(a.attname), ', ' order by k.ord)
+					from unnest(i.indkey) with ordinality as k(attnum, ord)
+					join pg_attribute a on a.attrelid = i.indrelid and a.attnum = k.attnum) as columns,
+				exists (select 1 from unnest(i.indkey) as k(attnum)
+					join pg_attribute a on a.attrelid = i.indrelid and a.attnum = k.attnum
+					where a.attname = 'PHENOMENON_TIME_START') as has_time
+			from pg_index i
+			join pg_class c on c.oid = i.indexrelid
+			join pg_am am on am.oid = c.relam
+			where i.indrelid = to_regclass('"OBSERVATIONS_UNPARTITIONED"') and not i.indisprimary
+	loop
+		if not v_index.indisunique then
+			v_index_defs := v_index_defs || format('create index %I on "OBSERVATIONS" %s', v_index.relname, substring(v_index.def from ' USING .*$'));
+		elsif v_index.has_time then
+			v_index_defs := v_index_defs || format('create unique index %I on "OBSERVATIONS" using %s (%s)', v_index.relname, v_index.amname, v_index.columns);
+		else
+			v_index_defs := v_index_defs || format('create unique index %I on "OBSERVATIONS" using %s (%s, "PHENOMENON_TIME_START")', v_index.relname, v_index.amname, v_index.columns);
+		end if;
+		execute format('alter index %I rename to %I', v_index.relname, v_index.relname || '_UNPARTITIONED');
+	end loop;
+
+	create table "OBSERVATIONS" (like "OBSERVATIONS_UNPARTITIONED" including defaults including constraints including storage)
+		partition by range ("PHENOMENON_TIME_START");
+	execute format('alter table "OBSERVATIONS" add constraint %I primary key ("ID", "PHENOMENON_TIME_START")', v_pkey);
+	for v_constraint in
+		select conname, pg_get_constraintdef(oid) as def
+			from pg_constraint
+			where conrelid = to_regclass('"OBSERVATIONS_UNPARTITIONED"') and contype = 'f'
+	loop
+		execute format('alter table "OBSERVATIONS" add constraint %I %s', v_constraint.conname, v_constraint.def);
+	end loop;
+	for i in 1..coalesce(array_length(v_index_defs, 1), 0) loop
+		execute v_index_defs[i];
+	end loop;
+	v_sequence := pg_get_serial_sequence('"OBSERVATIONS_UNPARTITIONED"', 'ID');
+	if v_sequence is not null then
+		execute format('alter sequence %s owned by "OBSERVATIONS"."ID"', v_sequence);
+	end if;
+
+	create table if not exists "OBSERVATION_IDS" as
+		select "ID" from "OBSERVATIONS_UNPARTITIONED" with no data;
+	truncate "OBSERVATION_IDS";
+	create unique index if not exists "OBSERVATION_IDS_PKEY" on "OBSERVATION_IDS" ("ID");
+	create trigger observation_ids
+		after insert or update or delete on "OBSERVATIONS"
+		for each row execute procedure frost_observation_ids();
+
+	create table "OBSERVATIONS_DEFAULT" partition of "OBSERVATIONS" default;
+	select min("PHENOMENON_TIME_START") into v_min from "OBSERVATIONS_UNPARTITIONED";
+	v_time := frost_observation_partition_start(p_unit, least(v_min, now()));
+	while v_time <= now() + (p_ahead || ' ' || p_unit)::interval loop
+		perform frost_create_observation_partition(v_time, p_unit);
+		v_time := frost_observation_partition_next(p_unit, v_time);
+	end loop;
+
+	insert into "OBSERVATIONS" select * from "OBSERVATIONS_UNPARTITIONED";
+	drop table "OBSERVATIONS_UNPARTITIONED";
+end;
+$BODY$
+  language plpgsql volatile;
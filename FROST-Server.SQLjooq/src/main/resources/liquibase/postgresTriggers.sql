@@ -49,6 +49,143 @@ END;
 $$ LANGUAGE plpgsql IMMUTABLE;
 
 
+-- ---------------------------------------
+-- Table: DATASTREAM_CHANGES
+--
+-- Change log for the deferred actualization of (Multi)Datastreams. Has the
+-- same column types as the OBSERVATIONS table it is created from.
+-- ---------------------------------------
+create table if not exists "DATASTREAM_CHANGES" as
+	select "ID", "DATASTREAM_ID", "MULTI_DATASTREAM_ID", "FEATURE_ID", "PHENOMENON_TIME_START", "PHENOMENON_TIME_END", "RESULT_TIME"
+	from "OBSERVATIONS"
+	with no data;
+
+
+-- ---------------------------------------
+-- Function: frost_actualization_deferred()
+--
+-- Returns true if inserted Observations only add a row to DATASTREAM_CHANGES
+-- instead of updating their (Multi)Datastream directly. Re-created by
+-- frost_set_actualization_mode(text), only created here if it does not exist.
+-- ---------------------------------------
+do
+$BODY$
+begin
+	if to_regprocedure('frost_actualization_deferred()') is null then
+		create function frost_actualization_deferred() returns boolean as 'select false' language sql stable;
+	end if;
+end;
+$BODY$;
+
+
+-- ---------------------------------------
+-- Function: frost_process_datastream_changes()
+--
+-- Merges the time ranges and observed areas of the rows in DATASTREAM_CHANGES
+-- into their (Multi)Datastreams, one update per (Multi)Datastream, and removes
+-- the processed rows. Only one caller at a time does the work, concurrent
+-- callers return immediately. Returns the number of processed rows.
+-- ---------------------------------------
+create or replace function frost_process_datastream_changes()
+  returns integer as
+$BODY$
+declare
+	v_count integer;
+begin
+	if not pg_try_advisory_xact_lock(hashtext('frost_process_datastream_changes')) then
+		return 0;
+	end if;
+	create temporary table "FROST_DATASTREAM_CHANGES" (like "DATASTREAM_CHANGES") on commit drop;
+	with "CHANGES" as (delete from "DATASTREAM_CHANGES" returning *)
+		insert into "FROST_DATASTREAM_CHANGES" select * from "CHANGES";
+	get diagnostics v_count = row_count;
+	-- Observations that were deleted or changed in the meantime have been handled by their triggers.
+	delete from "FROST_DATASTREAM_CHANGES" where not exists (
+		select 1 from "OBSERVATIONS"
+		where "OBSERVATIONS"."ID" = "FROST_DATASTREAM_CHANGES"."ID"
+			and "OBSERVATIONS"."PHENOMENON_TIME_START" = "FROST_DATASTREAM_CHANGES"."PHENOMENON_TIME_START");
+
+	update "DATASTREAMS" set
+			"PHENOMENON_TIME_START" = least("DATASTREAMS"."PHENOMENON_TIME_START", "T"."PT_START"),
+			"PHENOMENON_TIME_END" = greatest("DATASTREAMS"."PHENOMENON_TIME_END", "T"."PT_END"),
+			"RESULT_TIME_START" = least("DATASTREAMS"."RESULT_TIME_START", "T"."RT_START"),
+			"RESULT_TIME_END" = greatest("DATASTREAMS"."RESULT_TIME_END", "T"."RT_END"),
+			"OBSERVED_AREA" = ST_ConvexHull(ST_Collect("DATASTREAMS"."OBSERVED_AREA", "A"."AREA"))
+		from (
+			select "DATASTREAM_ID",
+				min("PHENOMENON_TIME_START") as "PT_START",
+				max(coalesce("PHENOMENON_TIME_END", "PHENOMENON_TIME_START")) as "PT_END",
+				min("RESULT_TIME") as "RT_START",
+				max("RESULT_TIME") as "RT_END"
+			from "FROST_DATASTREAM_CHANGES"
+			where "DATASTREAM_ID" is not null
+			group by "DATASTREAM_ID"
+		) "T"
+		left join (
+			select "DF"."DATASTREAM_ID", ST_Collect("FEATURES"."GEOM") as "AREA"
+			from (select distinct "DATASTREAM_ID", "FEATURE_ID" from "FROST_DATASTREAM_CHANGES" where "DATASTREAM_ID" is not null) "DF"
+			join "FEATURES" on "FEATURES"."ID" = "DF"."FEATURE_ID"
+			group by "DF"."DATASTREAM_ID"
+		) "A" on "A"."DATASTREAM_ID" = "T"."DATASTREAM_ID"
+		where "DATASTREAMS"."ID" = "T"."DATASTREAM_ID";
+
+	update "MULTI_DATASTREAMS" set
+			"PHENOMENON_TIME_START" = least("MULTI_DATASTREAMS"."PHENOMENON_TIME_START", "T"."PT_START"),
+			"PHENOMENON_TIME_END" = greatest("MULTI_DATASTREAMS"."PHENOMENON_TIME_END", "T"."PT_END"),
+			"RESULT_TIME_START" = least("MULTI_DATASTREAMS"."RESULT_TIME_START", "T"."RT_START"),
+			"RESULT_TIME_END" = greatest("MULTI_DATASTREAMS"."RESULT_TIME_END", "T"."RT_END"),
+			"OBSERVED_AREA" = ST_ConvexHull(ST_Collect("MULTI_DATASTREAMS"."OBSERVED_AREA", "A"."AREA"))
+		from (
+			select "MULTI_DATASTREAM_ID",
+				min("PHENOMENON_TIME_START") as "PT_START",
+				max(coalesce("PHENOMENON_TIME_END", "PHENOMENON_TIME_START")) as "PT_END",
+				min("RESULT_TIME") as "RT_START",
+				max("RESULT_TIME") as "RT_END"
+			from "FROST_DATASTREAM_CHANGES"
+			where "MULTI_DATASTREAM_ID" is not null
+			group by "MULTI_DATASTREAM_ID"
+		) "T"
+		left join (
+			select "DF"."MULTI_DATASTREAM_ID", ST_Collect("FEATURES"."GEOM") as "AREA"
+			from (select distinct "MULTI_DATASTREAM_ID", "FEATURE_ID" from "FROST_DATASTREAM_CHANGES" where "MULTI_DATASTREAM_ID" is not null) "DF"
+			join "FEATURES" on "FEATURES"."ID" = "DF"."FEATURE_ID"
+			group by "DF"."MULTI_DATASTREAM_ID"
+		) "A" on "A"."MULTI_DATASTREAM_ID" = "T"."MULTI_DATASTREAM_ID"
+		where "MULTI_DATASTREAMS"."ID" = "T"."MULTI_DATASTREAM_ID";
+
+	drop table "FROST_DATASTREAM_CHANGES";
+	return v_count;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_set_actualization_mode(text)
+--
+-- Sets the actualization mode of (Multi)Datastreams for inserted Observations
+-- to 'immediate' (in the insert trigger) or 'deferred' (through
+-- DATASTREAM_CHANGES). When switching to immediate, pending changes are
+-- processed.
+-- ---------------------------------------
+create or replace function frost_set_actualization_mode(p_mode text)
+  returns void as
+$BODY$
+begin
+	if p_mode not in ('immediate', 'deferred') then
+		raise exception 'Unsupported actualization mode: %. Use immediate or deferred.', p_mode;
+	end if;
+	execute format(
+		'create or replace function frost_actualization_deferred() returns boolean as %L language sql stable',
+		'select ' || (p_mode = 'deferred')::text);
+	if p_mode = 'immediate' then
+		perform frost_process_datastream_changes();
+	end if;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
 -- ---------------------------------------
 -- Trigger: datastreams_actualization_insert on OBSERVATIONS
 -- ---------------------------------------
@@ -59,6 +196,7 @@ drop trigger if exists datastreams_actualization_insert ON "OBSERVATIONS";
 --
 -- This function also updates multidatastreams. Updated fields are:
 -- PHENOMENON_TIME_START,PHENOMENON_TIME_END,RESULT_TIME_START,RESULT_TIME_END and OBSERVED_AREA
+-- In deferred actualization mode, the changes are only added to DATASTREAM_CHANGES.
 -- ---------------------------------------
 create or replace function datastreams_update_insert()
   returns trigger as
@@ -68,6 +206,13 @@ declare
 "MDS_ROW" "MULTI_DATASTREAMS"%rowtype;
 begin
 
+if (frost_actualization_deferred())
+then
+	insert into "DATASTREAM_CHANGES" ("ID", "DATASTREAM_ID", "MULTI_DATASTREAM_ID", "FEATURE_ID", "PHENOMENON_TIME_START", "PHENOMENON_TIME_END", "RESULT_TIME")
+		values (NEW."ID", NEW."DATASTREAM_ID", NEW."MULTI_DATASTREAM_ID", NEW."FEATURE_ID", NEW."PHENOMENON_TIME_START", NEW."PHENOMENON_TIME_END", NEW."RESULT_TIME");
+	return new;
+end if;
+
 if (NEW."DATASTREAM_ID" is not null) 
 then 
 	select * into "DS_ROW" from "DATASTREAMS" where "DATASTREAMS"."ID"=NEW."DATASTREAM_ID";
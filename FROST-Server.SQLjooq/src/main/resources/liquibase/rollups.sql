@@ -0,0 +1,247 @@
+-- Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+-- Karlsruhe, Germany.
+--
+-- This program is free software: you can redistribute it and/or modify
+-- it under the terms of the GNU Lesser General Public License as published by
+-- the Free Software Foundation, either version 3 of the License, or
+-- (at your option) any later version.
+--
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Lesser General Public License for more details.
+--
+-- You should have received a copy of the GNU Lesser General Public License
+-- along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+
+
+-- ---------------------------------------
+-- Table: DATASTREAM_ROLLUPS
+--
+-- Precomputed statistics of the numeric results of the Observations of each
+-- Datastream, in buckets of one minute, hour or day (BUCKET_UNIT) of the
+-- phenomenonTime start, aligned in UTC. Has the same column types as the
+-- OBSERVATIONS table it is created from.
+-- ---------------------------------------
+create table if not exists "DATASTREAM_ROLLUPS" as
+	select "DATASTREAM_ID",
+		'minute'::varchar(10) as "BUCKET_UNIT",
+		"PHENOMENON_TIME_START" as "BUCKET_START",
+		0::bigint as "RESULT_COUNT",
+		"RESULT_NUMBER" as "RESULT_MIN",
+		"RESULT_NUMBER" as "RESULT_MAX",
+		"RESULT_NUMBER" as "RESULT_SUM",
+		"PHENOMENON_TIME_START" as "LAST_TIME",
+		"RESULT_NUMBER" as "LAST_VALUE"
+	from "OBSERVATIONS"
+	with no data;
+
+create unique index if not exists "DATASTREAM_ROLLUPS_PKEY" on "DATASTREAM_ROLLUPS" ("DATASTREAM_ID", "BUCKET_UNIT", "BUCKET_START");
+
+
+-- ---------------------------------------
+-- Table: ROLLUP_CHANGES
+--
+-- The minute buckets that changed since the rollups were last updated.
+-- ---------------------------------------
+create table if not exists "ROLLUP_CHANGES" as
+	select "DATASTREAM_ID", "PHENOMENON_TIME_START" as "BUCKET_START"
+	from "OBSERVATIONS"
+	with no data;
+
+create index if not exists "ROLLUP_CHANGES_IDX" on "ROLLUP_CHANGES" ("DATASTREAM_ID", "BUCKET_START");
+
+
+-- ---------------------------------------
+-- Function: frost_rollup_bucket(text, timestamptz)
+--
+-- Returns the start of the bucket of one p_unit that contains p_time, aligned
+-- in UTC.
+-- ---------------------------------------
+create or replace function frost_rollup_bucket(p_unit text, p_time timestamptz)
+  returns timestamptz as
+$BODY$
+	select date_trunc(p_unit, p_time at time zone 'UTC') at time zone 'UTC';
+$BODY$
+  language sql immutable;
+
+
+-- ---------------------------------------
+-- Function: frost_rollup_from_lower(text, text, interval)
+--
+-- Recalculates the p_unit rollups that contain the minute buckets in
+-- FROST_ROLLUP_CHANGES, from the p_source_unit rollups. p_length is the length
+-- of one p_unit.
+-- ---------------------------------------
+create or replace function frost_rollup_from_lower(p_unit text, p_source_unit text, p_length interval)
+  returns void as
+$BODY$
+begin
+	create temporary table "FROST_ROLLUP_BUCKETS" on commit drop as
+		select distinct "DATASTREAM_ID", frost_rollup_bucket(p_unit, "BUCKET_START") as "BUCKET_START"
+		from "FROST_ROLLUP_CHANGES";
+
+	delete from "DATASTREAM_ROLLUPS" "R"
+		using "FROST_ROLLUP_BUCKETS" "B"
+		where "R"."BUCKET_UNIT" = p_unit
+			and "R"."DATASTREAM_ID" = "B"."DATASTREAM_ID"
+			and "R"."BUCKET_START" = "B"."BUCKET_START";
+
+	insert into "DATASTREAM_ROLLUPS" ("DATASTREAM_ID", "BUCKET_UNIT", "BUCKET_START", "RESULT_COUNT", "RESULT_MIN", "RESULT_MAX", "RESULT_SUM", "LAST_TIME", "LAST_VALUE")
+		select "B"."DATASTREAM_ID", p_unit, "B"."BUCKET_START",
+			sum("R"."RESULT_COUNT"),
+			min("R"."RESULT_MIN"),
+			max("R"."RESULT_MAX"),
+			sum("R"."RESULT_SUM"),
+			max("R"."LAST_TIME"),
+			(array_agg("R"."LAST_VALUE" order by "R"."LAST_TIME" desc))[1]
+		from "FROST_ROLLUP_BUCKETS" "B"
+		join "DATASTREAM_ROLLUPS" "R"
+			on "R"."BUCKET_UNIT" = p_source_unit
+			and "R"."DATASTREAM_ID" = "B"."DATASTREAM_ID"
+			and "R"."BUCKET_START" >= "B"."BUCKET_START"
+			and "R"."BUCKET_START" < "B"."BUCKET_START" + p_length
+		group by "B"."DATASTREAM_ID", "B"."BUCKET_START";
+
+	drop table "FROST_ROLLUP_BUCKETS";
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_process_rollups(integer)
+--
+-- Recalculates the minute rollups of at most p_limit of the buckets in
+-- ROLLUP_CHANGES from the Observations, and the hour and day rollups
+-- containing them from the lower rollups, and removes the processed rows.
+-- Only one caller at a time does the work, concurrent callers return
+-- immediately. Returns the number of processed minute buckets, if this is
+-- p_limit, more changes may be waiting.
+-- ---------------------------------------
+drop function if exists frost_process_rollups();
+
+create or replace function frost_process_rollups(p_limit integer)
+  returns integer as
+$BODY$
+declare
+	v_count integer;
+begin
+	if not pg_try_advisory_xact_lock(hashtext('frost_process_rollups')) then
+		return 0;
+	end if;
+	create temporary table "FROST_ROLLUP_CHANGES" (like "ROLLUP_CHANGES") on commit drop;
+	insert into "FROST_ROLLUP_CHANGES"
+		select distinct "DATASTREAM_ID", "BUCKET_START"
+		from "ROLLUP_CHANGES"
+		order by "DATASTREAM_ID", "BUCKET_START"
+		limit p_limit;
+	get diagnostics v_count = row_count;
+	delete from "ROLLUP_CHANGES" "R"
+		using "FROST_ROLLUP_CHANGES" "C"
+		where "R"."DATASTREAM_ID" = "C"."DATASTREAM_ID"
+			and "R"."BUCKET_START" = "C"."BUCKET_START";
+
+	if v_count > 0 then
+		delete from "DATASTREAM_ROLLUPS" "R"
+			using "FROST_ROLLUP_CHANGES" "C"
+			where "R"."BUCKET_UNIT" = 'minute'
+				and "R"."DATASTREAM_ID" = "C"."DATASTREAM_ID"
+				and "R"."BUCKET_START" = "C"."BUCKET_START";
+
+		insert into "DATASTREAM_ROLLUPS" ("DATASTREAM_ID", "BUCKET_UNIT", "BUCKET_START", "RESULT_COUNT", "RESULT_MIN", "RESULT_MAX", "RESULT_SUM", "LAST_TIME", "LAST_VALUE")
+			select "C"."DATASTREAM_ID", 'minute', "C"."BUCKET_START",
+				count(*),
+				min("O"."RESULT_NUMBER"),
+				max("O"."RESULT_NUMBER"),
+				sum("O"."RESULT_NUMBER"),
+				max("O"."PHENOMENON_TIME_START"),
+				(array_agg("O"."RESULT_NUMBER" order by "O"."PHENOMENON_TIME_START" desc, "O"."ID" desc))[1]
+			from "FROST_ROLLUP_CHANGES" "C"
+			join "OBSERVATIONS" "O"
+				on "O"."DATASTREAM_ID" = "C"."DATASTREAM_ID"
+				and "O"."PHENOMENON_TIME_START" >= "C"."BUCKET_START"
+				and "O"."PHENOMENON_TIME_START" < "C"."BUCKET_START" + interval '1 minute'
+				and "O"."RESULT_NUMBER" is not null
+			group by "C"."DATASTREAM_ID", "C"."BUCKET_START";
+
+		perform frost_rollup_from_lower('hour', 'minute', interval '1 hour');
+		perform frost_rollup_from_lower('day', 'hour', interval '24 hours');
+	end if;
+
+	drop table "FROST_ROLLUP_CHANGES";
+	return v_count;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_rollup_changes()
+--
+-- Trigger function that adds the minute buckets touched by inserted, updated
+-- or deleted Observations with a numeric result to ROLLUP_CHANGES.
+-- ---------------------------------------
+create or replace function frost_rollup_changes()
+  returns trigger as
+$BODY$
+begin
+	if TG_OP = 'UPDATE' then
+		if OLD."DATASTREAM_ID" is not distinct from NEW."DATASTREAM_ID"
+				and OLD."PHENOMENON_TIME_START" is not distinct from NEW."PHENOMENON_TIME_START"
+				and OLD."RESULT_NUMBER" is not distinct from NEW."RESULT_NUMBER" then
+			return null;
+		end if;
+	end if;
+	if TG_OP in ('UPDATE', 'DELETE') then
+		if OLD."DATASTREAM_ID" is not null and OLD."RESULT_NUMBER" is not null then
+			insert into "ROLLUP_CHANGES" ("DATASTREAM_ID", "BUCKET_START")
+				values (OLD."DATASTREAM_ID", frost_rollup_bucket('minute', OLD."PHENOMENON_TIME_START"));
+		end if;
+	end if;
+	if TG_OP in ('INSERT', 'UPDATE') then
+		if NEW."DATASTREAM_ID" is not null and NEW."RESULT_NUMBER" is not null then
+			insert into "ROLLUP_CHANGES" ("DATASTREAM_ID", "BUCKET_START")
+				values (NEW."DATASTREAM_ID", frost_rollup_bucket('minute', NEW."PHENOMENON_TIME_START"));
+		end if;
+	end if;
+	return null;
+end;
+$BODY$
+  language plpgsql volatile;
+
+
+-- ---------------------------------------
+-- Function: frost_set_rollups_enabled(boolean)
+--
+-- Creates or drops the trigger that tracks the changed buckets. When the
+-- trigger is created, for instance after enabling the rollups or after the
+-- OBSERVATIONS table was re-created by partitioning, all minute buckets are
+-- marked as changed, and the rollups are rebuilt in batches by the following
+-- runs of frost_process_rollups(integer). When disabled, the rollups are
+-- removed, since they would become stale.
+-- ---------------------------------------
+create or replace function frost_set_rollups_enabled(p_enabled boolean)
+  returns void as
+$BODY$
+declare
+	v_exists boolean;
+begin
+	select exists (select 1 from pg_trigger where tgname = 'rollups_changes' and tgrelid = to_regclass('"OBSERVATIONS"')) into v_exists;
+	if p_enabled and not v_exists then
+		truncate "DATASTREAM_ROLLUPS", "ROLLUP_CHANGES";
+		insert into "ROLLUP_CHANGES" ("DATASTREAM_ID", "BUCKET_START")
+			select distinct "DATASTREAM_ID", frost_rollup_bucket('minute', "PHENOMENON_TIME_START")
+			from "OBSERVATIONS"
+			where "DATASTREAM_ID" is not null and "RESULT_NUMBER" is not null;
+		create trigger rollups_changes
+			after insert or update or delete on "OBSERVATIONS"
+			for each row execute procedure frost_rollup_changes();
+	elsif not p_enabled and v_exists then
+		drop trigger rollups_changes on "OBSERVATIONS";
+		truncate "DATASTREAM_ROLLUPS", "ROLLUP_CHANGES";
+	end if;
+end;
+$BODY$
+  language plpgsql volatile;
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.model.Datastream;
+import de.fraunhofer.iosb.ilt.frostserver.model.Thing;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.imp.PostgresPersistenceManagerLong;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.jooq.DSLContext;
+import org.jooq.ExecuteContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.Select;
+import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultConfiguration;
+import org.jooq.impl.DefaultExecuteListener;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that expanding the related entities of a page of parents in one
+ * batched query gives the same result as loading the related entities for
+ * each parent separately.
+ *
+ * @author scf
+ */
+public class BatchedExpandTest {
+
+    private static final String SERVICE_ROOT_URL = "http://localhost:8080/FROST-Server";
+    private static final Pattern PARENT_IN = Pattern.compile("\"e1\"\\.\"ID\" (?:in \\(([0-9, ]+)\\)|= ([0-9]+))");
+    private static final Pattern ROW_NUMBER_RANGE = Pattern.compile("\"batch_row_number\" > ([0-9]+) and \"batch\"\\.\"batch_row_number\" <= ([0-9]+)");
+    private static final Pattern LIMIT = Pattern.compile(" limit ([0-9]+) offset ([0-9]+)$");
+
+    /**
+     * The Datastreams in the mock database: id, name, Thing id.
+     */
+    private static final Object[][] DATASTREAMS = {
+        {1L, "a", 1L},
+        {2L, "c", 1L},
+        {3L, "b", 1L},
+        {4L, "d", 2L},
+        {5L, "e", 1L}
+    };
+    private static final long[] THINGS = {1L, 2L, 3L};
+
+    private static CoreSettings coreSettings;
+    private static final DSLContext RENDERER = DSL.using(SQLDialect.POSTGRES);
+
+    private final List<String> queries = new ArrayList<>();
+    private org.jooq.Query currentQuery;
+    private PostgresPersistenceManagerLong pm;
+
+    @BeforeClass
+    public static void initClass() {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, SERVICE_ROOT_URL);
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        coreSettings = new CoreSettings(properties);
+    }
+
+    @Before
+    public void init() {
+        DefaultConfiguration config = new DefaultConfiguration();
+        config.set(SQLDialect.POSTGRES);
+        config.set(new DefaultExecuteListenerProvider(new DefaultExecuteListener() {
+            @Override
+            public void executeStart(ExecuteContext ctx) {
+                currentQuery = ctx.query();
+            }
+        }));
+        config.set(new MockConnection(ctx -> new MockResult[]{execute(currentQuery)}));
+        final DSLContext dslContext = DSL.using(config);
+        pm = new PostgresPersistenceManagerLong() {
+            @Override
+            public DSLContext getDslContext() {
+                return dslContext;
+            }
+        };
+        pm.init(coreSettings);
+    }
+
+    /**
+     * Answers the queries for Things, and for the Datastreams of Things, from
+     * the static data, as PostgreSQL would.
+     */
+    private MockResult execute(org.jooq.Query query) {
+        String sql = RENDERER.renderInlined(query);
+        queries.add(sql);
+        List<Field<?>> fields = ((Select<?>) query).getSelect();
+        List<Map<String, Object>> rows = new ArrayList<>();
+        if (sql.startsWith("select count(\"THINGS\".\"ID\")")) {
+            rows.add(row("count", THINGS.length));
+        } else if (sql.startsWith("select \"THINGS\"")) {
+            for (long id : THINGS) {
+                rows.add(row("ID", id, "NAME", "Thing " + id));
+            }
+        } else {
+            rows.addAll(selectDatastreams(sql, fields));
+        }
+        Result<Record> result = RENDERER.newResult(fields.toArray(new Field[fields.size()]));
+        for (Map<String, Object> values : rows) {
+            Record record = RENDERER.newRecord(fields.toArray(new Field[fields.size()]));
+            for (Field field : fields) {
+                record.set(field, field.getDataType().convert(values.get(field.getName())));
+            }
+            result.add(record);
+        }
+        return new MockResult(result.size(), result);
+    }
+
+    private List<Map<String, Object>> selectDatastreams(String sql, List<Field<?>> fields) {
+        Assert.assertTrue(sql, sql.contains("from \"DATASTREAMS\" join \"THINGS\" as \"e1\""));
+        Matcher parentMatcher = PARENT_IN.matcher(sql);
+        Assert.assertTrue(sql, parentMatcher.find());
+        String parentList = parentMatcher.group(1) == null ? parentMatcher.group(2) : parentMatcher.group(1);
+        List<Long> parentIds = Arrays.stream(parentList.split(", ")).map(Long::valueOf).collect(Collectors.toList());
+        boolean batched = sql.contains("batch_parent_id");
+        boolean counting = fields.get(fields.size() - 1).getName().equals("count");
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (long parentId : parentIds) {
+            List<Object[]> related = Arrays.stream(DATASTREAMS)
+                    .filter(ds -> ds[2].equals(parentId))
+                    .sorted(Comparator.comparing((Object[] ds) -> (String) ds[1]).reversed())
+                    .collect(Collectors.toList());
+            if (counting) {
+                if (!batched) {
+                    rows.add(row("count", related.size()));
+                } else if (!related.isEmpty()) {
+                    rows.add(row("batch_parent_id", parentId, "count", related.size()));
+                }
+                continue;
+            }
+            int from;
+            int to;
+            if (batched) {
+                Matcher rangeMatcher = ROW_NUMBER_RANGE.matcher(sql);
+                Assert.assertTrue(sql, rangeMatcher.find());
+                from = Integer.parseInt(rangeMatcher.group(1));
+                to = Integer.parseInt(rangeMatcher.group(2));
+            } else {
+                Matcher limitMatcher = LIMIT.matcher(sql);
+                Assert.assertTrue(sql, limitMatcher.find());
+                from = Integer.parseInt(limitMatcher.group(2));
+                to = from + Integer.parseInt(limitMatcher.group(1));
+            }
+            for (int i = from; i < Math.min(to, related.size()); i++) {
+                Object[] ds = related.get(i);
+                rows.add(row("ID", ds[0], "NAME", ds[1], "batch_parent_id", parentId, "batch_row_number", i + 1));
+            }
+        }
+        return rows;
+    }
+
+    private static Map<String, Object> row(Object... namesAndValues) {
+        Map<String, Object> row = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            row.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    private Object get(String path, String query) {
+        ResourcePath resourcePath = PathParser.parsePath(pm.getIdManager(), SERVICE_ROOT_URL, Version.V_1_1, path);
+        Query parsed = QueryParser.parseQuery(query, coreSettings, resourcePath).validate();
+        return pm.get(resourcePath, parsed);
+    }
+
+    private static List<Object> ids(EntitySet<? extends Entity> set) {
+        List<Object> ids = new ArrayList<>();
+        for (Entity entity : set) {
+            ids.add(entity.getId().getValue());
+        }
+        return ids;
+    }
+
+    private EntitySet<Thing> assertBatchedEqualsPerEntity(String subQuery) {
+        int queriesPerSet = subQuery.contains("$count=true") ? 2 : 1;
+        EntitySet<Thing> things = (EntitySet<Thing>) get("/Things", "$select=id,name&$expand=Datastreams(" + subQuery.replace('&', ';') + ")");
+        Assert.assertEquals(THINGS.length, things.size());
+        Assert.assertEquals("The expand must be loaded for all Things at once.", 2 + queriesPerSet, queries.size());
+
+        for (Thing thing : things) {
+            queries.clear();
+            EntitySet<Datastream> expected = (EntitySet<Datastream>) get("/Things(" + thing.getId() + ")/Datastreams", subQuery);
+            Assert.assertEquals(queriesPerSet, queries.size());
+            EntitySet<Datastream> batched = thing.getDatastreams();
+            String message = "Datastreams of Thing " + thing.getId();
+            Assert.assertEquals(message, ids(expected), ids(batched));
+            Assert.assertEquals(message, expected.getCount(), batched.getCount());
+            Assert.assertEquals(message, expected.getNextLink(), batched.getNextLink());
+        }
+        return things;
+    }
+
+    @Test
+    public void testBatchedEqualsPerEntity() {
+        EntitySet<Thing> things = assertBatchedEqualsPerEntity("$top=2&$orderby=name desc&$count=true&$select=id,name");
+        EntitySet<Datastream> datastreams = things.iterator().next().getDatastreams();
+        Assert.assertEquals(Arrays.asList(5L, 2L), ids(datastreams));
+        Assert.assertEquals(4, datastreams.getCount());
+        Assert.assertNotNull(datastreams.getNextLink());
+    }
+
+    @Test
+    public void testBatchedEqualsPerEntityWithSkip() {
+        assertBatchedEqualsPerEntity("$top=2&$skip=1&$orderby=name desc&$count=true&$select=id,name");
+    }
+
+    @Test
+    public void testBatchedEqualsPerEntityAllFit() {
+        assertBatchedEqualsPerEntity("$top=10&$orderby=name desc&$count=false&$select=id,name");
+    }
+
+}
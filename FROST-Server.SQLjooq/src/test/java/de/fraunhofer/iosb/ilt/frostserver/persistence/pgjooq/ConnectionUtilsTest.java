@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ConnectionUtils.ConnectionSource;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ConnectionUtils.ConnectionWrapper;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ConnectionUtils.ReplicaSelection;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.ConnectionUtils.ReplicaSet;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the selection of read replicas, and the routing of read-only
+ * connections to them.
+ *
+ * @author scf
+ */
+public class ConnectionUtilsTest {
+
+    private static final String URL_PREFIX = "jdbc:frosttest:";
+    private static final String URL_PRIMARY = URL_PREFIX + "primary";
+    private static final String URL_REPLICA_1 = URL_PREFIX + "replica1";
+    private static final String URL_REPLICA_2 = URL_PREFIX + "replica2";
+
+    private static Settings settings;
+
+    @BeforeClass
+    public static void initClass() throws SQLException {
+        DriverManager.registerDriver(new TestDriver());
+        Properties properties = new Properties();
+        properties.setProperty(ConnectionUtils.TAG_DB_DRIVER, TestDriver.class.getName());
+        properties.setProperty(ConnectionUtils.TAG_DB_URL, URL_PRIMARY);
+        properties.setProperty(ConnectionUtils.TAG_REPLICA_URLS, URL_REPLICA_1 + ", " + URL_REPLICA_2);
+        properties.setProperty(ConnectionUtils.TAG_REPLICA_SELECTION, "round_robin");
+        settings = new Settings(properties);
+    }
+
+    @Test
+    public void testMaxConnectionsDefault() {
+        Assert.assertEquals(
+                "The request limits assume the pool size of the BasicDataSource.",
+                new BasicDataSource().getMaxTotal(),
+                new Settings().getInt(ConnectionUtils.TAG_DB_MAXCONN, PersistenceSettings.class));
+    }
+
+    @Test
+    public void testRoundRobin() throws SQLException {
+        ReplicaSet replicas = new ReplicaSet(createSources(3), ReplicaSelection.ROUND_ROBIN);
+        List<Integer> selected = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            selected.add(replicas.select());
+        }
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 0, 1, 2, 0), selected);
+    }
+
+    @Test
+    public void testLeastConnections() throws SQLException {
+        ReplicaSet replicas = new ReplicaSet(createSources(3), ReplicaSelection.LEAST_CONNECTIONS);
+        Assert.assertEquals(0, replicas.select());
+        replicas.getConnection(0);
+        Assert.assertEquals(1, replicas.select());
+        replicas.getConnection(1);
+        replicas.getConnection(1);
+        Assert.assertEquals(2, replicas.select());
+        replicas.getConnection(2);
+        Assert.assertEquals(0, replicas.select());
+        replicas.getConnection(0);
+        Assert.assertEquals(2, replicas.select());
+        replicas.release(1);
+        replicas.release(1);
+        Assert.assertEquals(1, replicas.select());
+    }
+
+    @Test
+    public void testFailedConnectionIsNotCounted() throws SQLException {
+        List<ConnectionSource> sources = new ArrayList<>();
+        sources.add(() -> {
+            throw new SQLException("Replica down.");
+        });
+        sources.add(() -> createConnection("ok"));
+        ReplicaSet replicas = new ReplicaSet(sources, ReplicaSelection.LEAST_CONNECTIONS);
+        try {
+            replicas.getConnection(0);
+            Assert.fail("Expected an SQLException.");
+        } catch (SQLException exc) {
+            // expected
+        }
+        replicas.getConnection(1);
+        Assert.assertEquals(0, replicas.select());
+    }
+
+    @Test
+    public void testReplicaConnectionsAreReadOnly() throws SQLException {
+        ReplicaSet replicas = new ReplicaSet(createSources(1), ReplicaSelection.ROUND_ROBIN);
+        Connection connection = replicas.getConnection(replicas.select());
+        Assert.assertTrue(connection.isReadOnly());
+        Assert.assertFalse(connection.getAutoCommit());
+    }
+
+    @Test
+    public void testReadWriteUsesPrimary() {
+        ConnectionWrapper wrapper = new ConnectionWrapper(settings);
+        Connection connection = wrapper.get();
+        Assert.assertEquals(URL_PRIMARY, getUrl(connection));
+        Assert.assertFalse(wrapper.isUsedReplica());
+        wrapper.doClose();
+    }
+
+    @Test
+    public void testReadOnlyUsesReplicas() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ConnectionWrapper wrapper = new ConnectionWrapper(settings);
+            wrapper.setReadOnly(true);
+            urls.add(getUrl(wrapper.get()));
+            Assert.assertTrue(wrapper.isUsedReplica());
+            wrapper.doClose();
+            Assert.assertTrue("Replica use must be remembered after closing.", wrapper.isUsedReplica());
+        }
+        Assert.assertTrue(urls.contains(URL_REPLICA_1));
+        Assert.assertTrue(urls.contains(URL_REPLICA_2));
+    }
+
+    @Test
+    public void testReadOnlyAfterOpenHasNoEffect() {
+        ConnectionWrapper wrapper = new ConnectionWrapper(settings);
+        Connection connection = wrapper.get();
+        wrapper.setReadOnly(true);
+        Assert.assertSame(connection, wrapper.get());
+        Assert.assertEquals(URL_PRIMARY, getUrl(connection));
+        Assert.assertFalse(wrapper.isUsedReplica());
+        wrapper.doClose();
+    }
+
+    private static List<ConnectionSource> createSources(int count) {
+        List<ConnectionSource> sources = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String url = URL_PREFIX + "source" + i;
+            sources.add(() -> createConnection(url));
+        }
+        return sources;
+    }
+
+    private static String getUrl(Connection connection) {
+        try {
+            return connection.getMetaData().getURL();
+        } catch (SQLException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * Creates a Connection that remembers its url and its read-only and
+     * auto-commit flags, and does nothing else.
+     */
+    private static Connection createConnection(String url) {
+        final boolean[] flags = {false, true, false};
+        final int readOnly = 0;
+        final int autoCommit = 1;
+        final int closed = 2;
+        return (Connection) Proxy.newProxyInstance(
+                ConnectionUtilsTest.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setReadOnly":
+                            flags[readOnly] = (Boolean) args[0];
+                            return null;
+                        case "isReadOnly":
+                            return flags[readOnly];
+                        case "setAutoCommit":
+                            flags[autoCommit] = (Boolean) args[0];
+                            return null;
+                        case "getAutoCommit":
+                            return flags[autoCommit];
+                        case "close":
+                            flags[closed] = true;
+                            return null;
+                        case "isClosed":
+                            return flags[closed];
+                        case "isValid":
+                            return true;
+                        case "getMetaData":
+                            return Proxy.newProxyInstance(
+                                    ConnectionUtilsTest.class.getClassLoader(),
+                                    new Class<?>[]{java.sql.DatabaseMetaData.class},
+                                    (p, m, a) -> "getURL".equals(m.getName()) ? url : null);
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return url;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * A JDBC driver that hands out connections that do nothing, for urls that
+     * start with {@link #URL_PREFIX}.
+     */
+    public static class TestDriver implements Driver {
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            return createConnection(url);
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(URL_PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() {
+            return Logger.getGlobal();
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.imp.PostgresPersistenceManagerLong;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record1;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockDataProvider;
+import org.jooq.tools.jdbc.MockExecuteContext;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the count modes, and the caching of counts.
+ *
+ * @author scf
+ */
+public class CountCacheTest {
+
+    private static final String THINGS = "/Things";
+    private static final int THRESHOLD = 100;
+
+    @Test
+    public void testFullCount() {
+        CountDatabase db = new CountDatabase(12345, 10);
+        EntitySet<?> result = db.count("FULL", 0, THINGS, null);
+        Assert.assertEquals(12345, result.getCount());
+        Assert.assertFalse(result.isCountLowerBound());
+        Assert.assertEquals(1, db.countQueries());
+        Assert.assertEquals(0, db.limitedQueries());
+        Assert.assertEquals(0, db.explainQueries());
+    }
+
+    @Test
+    public void testLimitCount() {
+        CountDatabase db = new CountDatabase(12345, 10);
+        EntitySet<?> result = db.count("LIMIT", 0, THINGS, null);
+        Assert.assertEquals(THRESHOLD, result.getCount());
+        Assert.assertTrue(result.isCountLowerBound());
+        Assert.assertEquals(1, db.limitedQueries());
+        Assert.assertEquals(0, db.countQueries());
+
+        db = new CountDatabase(THRESHOLD, 10);
+        result = db.count("LIMIT", 0, THINGS, null);
+        Assert.assertEquals(THRESHOLD, result.getCount());
+        Assert.assertFalse("Exactly the threshold is not a lower bound.", result.isCountLowerBound());
+
+        db = new CountDatabase(5, 10);
+        result = db.count("LIMIT", 0, THINGS, null);
+        Assert.assertEquals(5, result.getCount());
+        Assert.assertFalse(result.isCountLowerBound());
+    }
+
+    @Test
+    public void testEstimateCount() {
+        CountDatabase db = new CountDatabase(12345, 50000);
+        EntitySet<?> result = db.count("ESTIMATE", 0, THINGS, null);
+        Assert.assertEquals(50000, result.getCount());
+        Assert.assertFalse(result.isCountLowerBound());
+        Assert.assertEquals(1, db.explainQueries());
+        Assert.assertEquals(0, db.countQueries());
+
+        db = new CountDatabase(7, 10);
+        result = db.count("ESTIMATE", 0, THINGS, null);
+        Assert.assertEquals("Small estimates must be replaced by an exact count.", 7, result.getCount());
+        Assert.assertEquals(1, db.explainQueries());
+        Assert.assertEquals(1, db.countQueries());
+    }
+
+    @Test
+    public void testCachedCountInvalidatedByChange() {
+        CountDatabase db = new CountDatabase(12345, 10);
+        Assert.assertEquals(12345, db.count("FULL", 60, THINGS, null).getCount());
+        Assert.assertEquals(12345, db.count("FULL", 60, THINGS, null).getCount());
+        Assert.assertEquals("Second count must come from the cache.", 1, db.countQueries());
+
+        CountCache countCache = CountCache.getInstance(db.getPersistenceSettings());
+        countCache.entitiesChanged(Collections.singleton(EntityType.SENSOR));
+        db.count("FULL", 60, THINGS, null);
+        Assert.assertEquals("Unrelated changes must not invalidate the count.", 1, db.countQueries());
+
+        countCache.entitiesChanged(Collections.singleton(EntityType.THING));
+        db.count("FULL", 60, THINGS, null);
+        Assert.assertEquals(2, db.countQueries());
+
+        countCache.invalidateAll();
+        db.count("FULL", 60, THINGS, null);
+        Assert.assertEquals(3, db.countQueries());
+    }
+
+    @Test
+    public void testCachedCountInvalidatedByFilterType() {
+        CountDatabase db = new CountDatabase(12345, 10);
+        db.count("FULL", 60, THINGS, "$filter=Datastreams/Observations/result gt 5");
+        CountCache countCache = CountCache.getInstance(db.getPersistenceSettings());
+        countCache.entitiesChanged(Collections.singleton(EntityType.OBSERVATION));
+        db.count("FULL", 60, THINGS, "$filter=Datastreams/Observations/result gt 5");
+        Assert.assertEquals(2, db.countQueries());
+    }
+
+    @Test
+    public void testFindDependencies() {
+        CoreSettings settings = createSettings("FULL", 0);
+        ResourcePath path = PathParser.parsePath("", Version.V_1_1, "/Datastreams(1)/Observations");
+        Query query = QueryParser.parseQuery("$filter=FeatureOfInterest/name eq 'x'", settings, path).validate();
+        Assert.assertEquals(
+                EnumSet.of(EntityType.DATASTREAM, EntityType.OBSERVATION, EntityType.FEATUREOFINTEREST),
+                CountCache.findDependencies(path, query));
+    }
+
+    @Test
+    public void testImplicitChanges() {
+        CountCache countCache = new CountCache(10);
+        countCache.put("ds", new CountCache.CachedCount(1, false, EnumSet.of(EntityType.DATASTREAM)), 60_000, countCache.getChangeCounters());
+        countCache.put("hl", new CountCache.CachedCount(1, false, EnumSet.of(EntityType.HISTORICALLOCATION)), 60_000, countCache.getChangeCounters());
+        countCache.entitiesChanged(Collections.singleton(EntityType.OBSERVATION));
+        Assert.assertNull("Observations change the times of Datastreams.", countCache.get("ds"));
+        Assert.assertNotNull(countCache.get("hl"));
+        countCache.entitiesChanged(Collections.singleton(EntityType.LOCATION));
+        Assert.assertNull(countCache.get("hl"));
+    }
+
+    @Test
+    public void testMessageReceived() {
+        CountCache countCache = new CountCache(10);
+        countCache.put("ds", new CountCache.CachedCount(1, false, EnumSet.of(EntityType.DATASTREAM)), 60_000, countCache.getChangeCounters());
+        countCache.put("thing", createCount(1), 60_000, countCache.getChangeCounters());
+        countCache.messageReceived(new EntityChangedMessage()
+                .setEventType(EntityChangedMessage.Type.CREATE)
+                .setEntityType(EntityType.OBSERVATION));
+        Assert.assertNull("Observations change the times of Datastreams.", countCache.get("ds"));
+        Assert.assertNotNull(countCache.get("thing"));
+        countCache.messageReceived(new EntityChangedMessage()
+                .setEventType(EntityChangedMessage.Type.DELETE)
+                .setEntityType(EntityType.SENSOR));
+        Assert.assertNull("Deletes cascade, and invalidate all counts.", countCache.get("thing"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedDropped() {
+        CountCache countCache = new CountCache(2);
+        countCache.put("a", createCount(1), 60_000, countCache.getChangeCounters());
+        countCache.put("b", createCount(2), 60_000, countCache.getChangeCounters());
+        Assert.assertNotNull(countCache.get("a"));
+        countCache.put("c", createCount(3), 60_000, countCache.getChangeCounters());
+        Assert.assertEquals(2, countCache.size());
+        Assert.assertNull(countCache.get("b"));
+        Assert.assertEquals(1, countCache.get("a").getCount());
+        Assert.assertEquals(3, countCache.get("c").getCount());
+    }
+
+    @Test
+    public void testExpired() {
+        CountCache countCache = new CountCache(2);
+        countCache.put("a", createCount(1), 0, countCache.getChangeCounters());
+        Assert.assertNull(countCache.get("a"));
+        Assert.assertEquals(0, countCache.size());
+    }
+
+    @Test
+    public void testCountDuringChangeNotCached() {
+        CountCache countCache = new CountCache(2);
+        long[] countersAtStart = countCache.getChangeCounters();
+        countCache.entitiesChanged(Collections.singleton(EntityType.THING));
+        countCache.put("a", createCount(1), 60_000, countersAtStart);
+        Assert.assertNull(countCache.get("a"));
+    }
+
+    private static CountCache.CachedCount createCount(long count) {
+        return new CountCache.CachedCount(count, false, EnumSet.of(EntityType.THING));
+    }
+
+    private static CoreSettings createSettings(String countMode, int cacheTtl) {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, "http://localhost:8080/FROST-Server");
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_COUNT_MODE, countMode);
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_COUNT_ESTIMATE_THRESHOLD, Integer.toString(THRESHOLD));
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_COUNT_CACHE_TTL, Integer.toString(cacheTtl));
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_QUERY_SHAPE_CACHE_SIZE, "0");
+        return new CoreSettings(properties);
+    }
+
+    /**
+     * A mock database that returns no entities, the given number of entities
+     * for count queries, and the given estimate for query plans.
+     */
+    private static class CountDatabase implements MockDataProvider {
+
+        private static final DSLContext CREATE = DSL.using(SQLDialect.POSTGRES);
+        private static final Field<Integer> COUNT = DSL.field("count", Integer.class);
+        private static final Field<String> PLAN = DSL.field("QUERY PLAN", String.class);
+
+        private final long total;
+        private final long estimate;
+        private final List<String> executed = new ArrayList<>();
+        private CoreSettings settings;
+
+        public CountDatabase(long total, long estimate) {
+            this.total = total;
+            this.estimate = estimate;
+        }
+
+        public EntitySet<?> count(String countMode, int cacheTtl, String path, String query) {
+            if (settings == null) {
+                settings = createSettings(countMode, cacheTtl);
+            }
+            final DSLContext dslContext = DSL.using(new MockConnection(this), SQLDialect.POSTGRES);
+            PostgresPersistenceManagerLong pm = new PostgresPersistenceManagerLong() {
+                @Override
+                public DSLContext getDslContext() {
+                    return dslContext;
+                }
+            };
+            pm.init(settings);
+            ResourcePath resourcePath = PathParser.parsePath(pm.getIdManager(), settings.getQueryDefaults().getServiceRootUrl(), Version.V_1_1, path);
+            String fullQuery = query == null ? "$count=true" : "$count=true&" + query;
+            Query parsed = QueryParser.parseQuery(fullQuery, settings, resourcePath).validate();
+            return (EntitySet<?>) pm.get(resourcePath, parsed);
+        }
+
+        public PersistenceSettings getPersistenceSettings() {
+            return settings.getPersistenceSettings();
+        }
+
+        @Override
+        public MockResult[] execute(MockExecuteContext ctx) {
+            String sql = ctx.sql().toLowerCase(Locale.ROOT);
+            executed.add(sql);
+            if (sql.startsWith("explain")) {
+                Result<Record1<String>> plan = CREATE.newResult(PLAN);
+                plan.add(CREATE.newRecord(PLAN).values("[{\"Plan\": {\"Plan Rows\": " + estimate + "}}]"));
+                return new MockResult[]{new MockResult(1, plan)};
+            }
+            if (sql.contains(QueryBuilder.COUNT_ROWS_TABLE)) {
+                long limit = ((Number) ctx.bindings()[ctx.bindings().length - 1]).longValue();
+                return countResult(Math.min(total, limit));
+            }
+            if (sql.startsWith("select count(")) {
+                return countResult(total);
+            }
+            return new MockResult[]{new MockResult(0, CREATE.newResult())};
+        }
+
+        private static MockResult[] countResult(long count) {
+            Result<Record1<Integer>> result = CREATE.newResult(COUNT);
+            result.add(CREATE.newRecord(COUNT).values((int) count));
+            return new MockResult[]{new MockResult(1, result)};
+        }
+
+        public long countQueries() {
+            return executed.stream()
+                    .filter(sql -> sql.startsWith("select count(") && !sql.contains(QueryBuilder.COUNT_ROWS_TABLE))
+                    .count();
+        }
+
+        public long limitedQueries() {
+            return executed.stream()
+                    .filter(sql -> sql.contains(QueryBuilder.COUNT_ROWS_TABLE))
+                    .count();
+        }
+
+        public long explainQueries() {
+            return executed.stream()
+                    .filter(sql -> sql.startsWith("explain"))
+                    .count();
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import java.time.OffsetDateTime;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the queries on the Datastream rollups.
+ *
+ * @author scf
+ */
+public class DatastreamRollupsTest {
+
+    private static final DSLContext DSL_CONTEXT = DSL.using(SQLDialect.POSTGRES);
+    private static final String SELECT = "select \"BUCKET_START\", \"RESULT_COUNT\", \"RESULT_MIN\", \"RESULT_MAX\", (\"RESULT_SUM\" / \"RESULT_COUNT\"), \"LAST_VALUE\""
+            + " from \"DATASTREAM_ROLLUPS\""
+            + " where (\"DATASTREAM_ID\" = 42 and \"BUCKET_UNIT\" = 'hour'";
+
+    private static String render(String unit, OffsetDateTime start, OffsetDateTime end, int limit) {
+        return DSL_CONTEXT.renderInlined(DatastreamRollups.buildQuery(DSL_CONTEXT, 42L, unit, start, end, limit));
+    }
+
+    @Test
+    public void testBuildQuery() {
+        Assert.assertEquals(
+                SELECT + ") order by \"BUCKET_START\" limit 101",
+                render("hour", null, null, 101));
+    }
+
+    @Test
+    public void testBuildQueryStartEnd() {
+        Assert.assertEquals(
+                SELECT
+                + " and \"BUCKET_START\" >= frost_rollup_bucket('hour', timestamp with time zone '2020-01-01 01:30:00+00:00')"
+                + " and \"BUCKET_START\" < timestamp with time zone '2020-01-02 00:00:00+00:00'"
+                + ") order by \"BUCKET_START\" limit 11",
+                render("hour", OffsetDateTime.parse("2020-01-01T01:30:00Z"), OffsetDateTime.parse("2020-01-02T00:00:00Z"), 11));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuildQueryUnknownUnit() {
+        render("week", null, null, 10);
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageBusFactory;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.imp.PostgresPersistenceManagerLong;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import de.fraunhofer.iosb.ilt.frostserver.util.exception.NoSuchEntityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the ParentExistenceCache only publishes parents of committed
+ * transactions, and forgets them when they may have been deleted.
+ *
+ * @author scf
+ */
+public class ParentExistenceCacheTest {
+
+    private static final int MAX_SIZE = 3;
+
+    private static CoreSettings settings;
+
+    @BeforeClass
+    public static void initClass() {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, "http://localhost:8080/FROST-Server");
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_PARENT_CACHE_SIZE, Integer.toString(MAX_SIZE));
+        settings = new CoreSettings(properties);
+        MessageBusFactory.init(settings);
+        ParentExistenceCache.init(MAX_SIZE);
+    }
+
+    @Before
+    public void init() {
+        ParentExistenceCache.clear();
+    }
+
+    private static boolean isCached(EntityType type, long id) {
+        return new ParentExistenceCache.Transaction().exists(type, id);
+    }
+
+    private static void commitDatastream(long id) {
+        ParentExistenceCache.Transaction transaction = new ParentExistenceCache.Transaction();
+        transaction.addExisting(EntityType.DATASTREAM, id);
+        transaction.commit();
+    }
+
+    @Test
+    public void testPublishedOnCommit() {
+        Assert.assertTrue(ParentExistenceCache.isEnabled());
+        ParentExistenceCache.Transaction transaction = new ParentExistenceCache.Transaction();
+        transaction.addExisting(EntityType.DATASTREAM, 1L);
+        transaction.addObservedPropertyCount(2L, 3);
+        transaction.addGeneratedFeature(EntityType.DATASTREAM, 1L, 7L);
+        Assert.assertTrue(transaction.exists(EntityType.DATASTREAM, 1L));
+        Assert.assertFalse("Not visible to others before the commit.", isCached(EntityType.DATASTREAM, 1L));
+
+        transaction.commit();
+        Assert.assertTrue(isCached(EntityType.DATASTREAM, 1L));
+        ParentExistenceCache.Transaction other = new ParentExistenceCache.Transaction();
+        Assert.assertEquals(Integer.valueOf(3), other.getObservedPropertyCount(2L));
+        Assert.assertEquals(7L, other.getGeneratedFeatureId(EntityType.DATASTREAM, 1L));
+    }
+
+    @Test
+    public void testDroppedOnRollback() {
+        ParentExistenceCache.Transaction transaction = new ParentExistenceCache.Transaction();
+        transaction.addExisting(EntityType.DATASTREAM, 1L);
+        transaction.clear();
+        Assert.assertFalse(transaction.exists(EntityType.DATASTREAM, 1L));
+        transaction.commit();
+        Assert.assertFalse(isCached(EntityType.DATASTREAM, 1L));
+    }
+
+    @Test
+    public void testOnlyDatastreamsPublished() {
+        ParentExistenceCache.Transaction transaction = new ParentExistenceCache.Transaction();
+        transaction.addExisting(EntityType.THING, 1L);
+        transaction.addExisting(EntityType.MULTIDATASTREAM, 1L);
+        transaction.commit();
+        Assert.assertFalse(isCached(EntityType.THING, 1L));
+        Assert.assertTrue(isCached(EntityType.MULTIDATASTREAM, 1L));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedDropped() {
+        commitDatastream(1);
+        commitDatastream(2);
+        commitDatastream(3);
+        Assert.assertTrue(isCached(EntityType.DATASTREAM, 1L));
+        commitDatastream(4);
+        Assert.assertTrue(isCached(EntityType.DATASTREAM, 1L));
+        Assert.assertFalse(isCached(EntityType.DATASTREAM, 2L));
+        Assert.assertTrue(isCached(EntityType.DATASTREAM, 3L));
+        Assert.assertTrue(isCached(EntityType.DATASTREAM, 4L));
+    }
+
+    @Test
+    public void testRemovalDuringTransactionNotPublished() {
+        ParentExistenceCache.Transaction transaction = new ParentExistenceCache.Transaction();
+        transaction.addExisting(EntityType.DATASTREAM, 1L);
+        new ParentExistenceCache.Transaction().entitiesDeleted(EntityType.SENSOR);
+        transaction.commit();
+        Assert.assertFalse(isCached(EntityType.DATASTREAM, 1L));
+    }
+
+    @Test
+    public void testRemovalDuringLookupNotPublished() {
+        ParentExistenceCache.Transaction transaction = new ParentExistenceCache.Transaction();
+        Assert.assertFalse(transaction.exists(EntityType.DATASTREAM, 1L));
+        // The Datastream is deleted after it was found in the database, but
+        // before it is registered.
+        new ParentExistenceCache.Transaction().entitiesDeleted(EntityType.DATASTREAM);
+        transaction.addExisting(EntityType.DATASTREAM, 1L);
+        transaction.commit();
+        Assert.assertFalse(isCached(EntityType.DATASTREAM, 1L));
+    }
+
+    @Test
+    public void testInvalidatedByFactoryDelete() throws NoSuchEntityException {
+        DeleteDatabase db = new DeleteDatabase();
+        commitDatastream(1);
+        db.delete(EntityType.SENSOR, 5);
+        Assert.assertFalse("Deleting a Sensor cascades to its Datastreams.", isCached(EntityType.DATASTREAM, 1L));
+        Assert.assertFalse(db.deletes.isEmpty());
+
+        ParentExistenceCache.Transaction transaction = new ParentExistenceCache.Transaction();
+        transaction.addExisting(EntityType.DATASTREAM, 1L);
+        transaction.addGeneratedFeature(EntityType.DATASTREAM, 1L, 7L);
+        transaction.commit();
+        db.delete(EntityType.LOCATION, 5);
+        Assert.assertTrue("Deleting a Location does not delete Datastreams.", isCached(EntityType.DATASTREAM, 1L));
+        Assert.assertNull(new ParentExistenceCache.Transaction().getGeneratedFeatureId(EntityType.DATASTREAM, 1L));
+
+        db.delete(EntityType.DATASTREAM, 1);
+        Assert.assertFalse(isCached(EntityType.DATASTREAM, 1L));
+    }
+
+    /**
+     * A mock database that deletes one row for every delete statement.
+     */
+    private static class DeleteDatabase {
+
+        private final List<String> deletes = new ArrayList<>();
+        private final PostgresPersistenceManagerLong pm;
+
+        public DeleteDatabase() {
+            final DSLContext dslContext = DSL.using(new MockConnection(ctx -> {
+                deletes.add(ctx.sql());
+                return new MockResult[]{new MockResult(1, null)};
+            }), SQLDialect.POSTGRES);
+            pm = new PostgresPersistenceManagerLong() {
+                @Override
+                public DSLContext getDslContext() {
+                    return dslContext;
+                }
+            };
+            pm.init(settings);
+        }
+
+        public void delete(EntityType type, long id) throws NoSuchEntityException {
+            pm.doDelete(new PathElementEntity(new IdLong(id), type, null));
+        }
+    }
+
+}
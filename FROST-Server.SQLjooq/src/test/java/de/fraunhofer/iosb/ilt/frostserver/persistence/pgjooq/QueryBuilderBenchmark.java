@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.imp.PostgresPersistenceManagerLong;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.ResultQuery;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks QueryBuilder.buildSelect() for a typical dashboard request. The
+ * render benchmark shows the work done for each request without the query
+ * shape cache: building the select and rendering its SQL. The cached
+ * benchmark shows the work done with the cache: building the select, creating
+ * the shape key and extracting the bind values.
+ *
+ * No database is needed. Run using the main method, after building the test
+ * classes.
+ *
+ * @author scf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBuilderBenchmark {
+
+    private static final String PATH = "/Datastreams(42)/Observations";
+    private static final String QUERY = "$filter=phenomenonTime gt 2020-01-01T00:00:00Z and result gt 5 and parameters/quality eq 'good'"
+            + "&$orderby=phenomenonTime desc&$top=100&$select=id,phenomenonTime,result&$expand=FeatureOfInterest($select=id)";
+
+    private CoreSettings coreSettings;
+    private PostgresPersistenceManagerLong pm;
+    private DSLContext dslContext;
+
+    @Setup
+    public void setup() {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, "http://localhost:8080/FROST-Server");
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        coreSettings = new CoreSettings(properties);
+        dslContext = DSL.using(SQLDialect.POSTGRES);
+        pm = new PostgresPersistenceManagerLong() {
+            @Override
+            public DSLContext getDslContext() {
+                return dslContext;
+            }
+        };
+        pm.init(coreSettings);
+    }
+
+    private QueryBuilder<Long> createBuilder() {
+        ResourcePath path = PathParser.parsePath(pm.getIdManager(), coreSettings.getQueryDefaults().getServiceRootUrl(), Version.V_1_1, PATH);
+        Query query = QueryParser.parseQuery(QUERY, coreSettings, path).validate();
+        return new QueryBuilder<>(pm, coreSettings, pm.getPropertyResolver())
+                .forPath(path)
+                .usingQuery(query);
+    }
+
+    @Benchmark
+    public String buildSelectAndRender() {
+        ResultQuery<Record> select = createBuilder().buildSelect();
+        return dslContext.render(select);
+    }
+
+    @Benchmark
+    public void buildSelectWithShapeCache(Blackhole blackhole) {
+        QueryBuilder<Long> builder = createBuilder();
+        ResultQuery<Record> select = builder.buildSelect();
+        blackhole.consume(builder.getShapeKey());
+        List<Object> bindValues = dslContext.extractBindValues(select);
+        blackhole.consume(bindValues);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(QueryBuilderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
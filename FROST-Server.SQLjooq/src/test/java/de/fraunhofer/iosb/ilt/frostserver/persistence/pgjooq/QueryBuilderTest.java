@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.imp.PostgresPersistenceManagerLong;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the SQL generated by the QueryBuilder.
+ *
+ * @author scf
+ */
+public class QueryBuilderTest {
+
+    private static final String SERVICE_ROOT_URL = "http://localhost:8080/FROST-Server";
+    private static final String THINGS = "/Things";
+    private static final String NAME = "\"THINGS\".\"NAME\"";
+    private static final String DESCRIPTION = "\"THINGS\".\"DESCRIPTION\"";
+    private static final String ID = "\"THINGS\".\"ID\"";
+    private static final String DATASTREAM_ID = "\"OBSERVATIONS\".\"DATASTREAM_ID\"";
+    private static final String PHENOMENON_TIME = "\"OBSERVATIONS\".\"PHENOMENON_TIME_START\"";
+    private static final String RESULT = "\"OBSERVATIONS\".\"RESULT_NUMBER\"";
+
+    private static CoreSettings coreSettings;
+    private static DSLContext dslContext;
+    private static PostgresPersistenceManagerLong pm;
+
+    @BeforeClass
+    public static void initClass() {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, SERVICE_ROOT_URL);
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_KEYSET_PAGINATION, "true");
+        coreSettings = new CoreSettings(properties);
+        dslContext = DSL.using(SQLDialect.POSTGRES);
+        pm = new PostgresPersistenceManagerLong() {
+            @Override
+            public DSLContext getDslContext() {
+                return dslContext;
+            }
+        };
+        pm.init(coreSettings);
+    }
+
+    private static String buildSelect(String path, String query) {
+        ResourcePath resourcePath = PathParser.parsePath(pm.getIdManager(), SERVICE_ROOT_URL, Version.V_1_1, path);
+        Query parsed = QueryParser.parseQuery(query, coreSettings, resourcePath).validate();
+        QueryBuilder<Long> builder = new QueryBuilder<>(pm, coreSettings, pm.getPropertyResolver())
+                .forPath(resourcePath)
+                .usingQuery(parsed);
+        return dslContext.renderInlined(builder.buildSelect());
+    }
+
+    private static String buildAggregate(String path, String query) {
+        ResourcePath resourcePath = PathParser.parsePath(pm.getIdManager(), SERVICE_ROOT_URL, Version.V_1_1, path);
+        Query parsed = QueryParser.parseQuery(query, coreSettings, resourcePath).validate();
+        QueryBuilder<Long> builder = new QueryBuilder<>(pm, coreSettings, pm.getPropertyResolver())
+                .forPath(resourcePath)
+                .usingQuery(parsed);
+        return dslContext.renderInlined(builder.buildAggregate());
+    }
+
+    private static String seekSelect(String orderBy, Object... values) {
+        List<Object> valueList = Arrays.asList(values);
+        String token = new SkipToken(200, valueList).encode();
+        return buildSelect(THINGS, "$orderby=" + orderBy + "&$skiptoken=" + token);
+    }
+
+    private static String where(String sql) {
+        return sql.substring(sql.indexOf(" where "), sql.indexOf(" order by "));
+    }
+
+    @Test
+    public void testSeekAscending() {
+        String sql = seekSelect("name asc,description asc", "a", "b", new BigDecimal(5));
+        Assert.assertEquals(
+                " where (true and ("
+                + NAME + " > 'a' or " + NAME + " is null"
+                + " or (" + NAME + " = 'a' and (" + DESCRIPTION + " > 'b' or " + DESCRIPTION + " is null))"
+                + " or (" + NAME + " = 'a' and " + DESCRIPTION + " = 'b' and " + ID + " > 5)))",
+                where(sql));
+        Assert.assertTrue("The seek replaces the offset.", sql.endsWith(" offset 0"));
+    }
+
+    @Test
+    public void testSeekDescending() {
+        String sql = seekSelect("name desc,description desc", "a", "b", new BigDecimal(5));
+        Assert.assertEquals(
+                " where (true and ("
+                + NAME + " < 'a'"
+                + " or (" + NAME + " = 'a' and " + DESCRIPTION + " < 'b')"
+                + " or (" + NAME + " = 'a' and " + DESCRIPTION + " = 'b' and " + ID + " > 5)))",
+                where(sql));
+    }
+
+    @Test
+    public void testSeekMixed() {
+        String sql = seekSelect("name asc,description desc", "a", "b", new BigDecimal(5));
+        Assert.assertEquals(
+                " where (true and ("
+                + NAME + " > 'a' or " + NAME + " is null"
+                + " or (" + NAME + " = 'a' and " + DESCRIPTION + " < 'b')"
+                + " or (" + NAME + " = 'a' and " + DESCRIPTION + " = 'b' and " + ID + " > 5)))",
+                where(sql));
+    }
+
+    @Test
+    public void testSeekNullValues() {
+        // NULLs sort last: after a NULL ascending value only NULLs follow, after
+        // a NULL descending value all non-NULL values follow.
+        String sql = seekSelect("name asc,description desc", null, null, new BigDecimal(5));
+        Assert.assertEquals(
+                " where (true and ("
+                + "(" + NAME + " is null and " + DESCRIPTION + " is not null)"
+                + " or (" + NAME + " is null and " + DESCRIPTION + " is null and " + ID + " > 5)))",
+                where(sql));
+    }
+
+    @Test
+    public void testOffsetOnlyToken() {
+        String token = new SkipToken(200, Collections.emptyList()).encode();
+        String sql = buildSelect(THINGS, "$orderby=name asc&$skiptoken=" + token);
+        Assert.assertFalse(sql, sql.contains(NAME + " >"));
+        Assert.assertTrue(sql, sql.endsWith(" offset 200"));
+    }
+
+    @Test
+    public void testAggregateCalendarBucket() {
+        String bucket = "date_trunc('hour', " + PHENOMENON_TIME + " at time zone 'UTC') at time zone 'UTC'";
+        String sql = buildAggregate("/Observations", "$aggregate=duration'PT1H',min,max,avg,count");
+        Assert.assertEquals(
+                "select " + DATASTREAM_ID + " as \"aggregate_datastream\", " + bucket + " as \"aggregate_bucket\", "
+                + "min(" + RESULT + "), max(" + RESULT + "), avg(" + RESULT + "), count(" + RESULT + ")"
+                + " from \"OBSERVATIONS\""
+                + " where (true and " + DATASTREAM_ID + " is not null)"
+                + " group by " + DATASTREAM_ID + ", " + bucket
+                + " order by " + DATASTREAM_ID + ", " + bucket
+                + " limit 101 offset 0",
+                sql);
+
+        sql = buildAggregate("/Observations", "$aggregate=duration'P1D',avg");
+        Assert.assertTrue(sql, sql.contains(" group by " + DATASTREAM_ID + ", date_trunc('day', " + PHENOMENON_TIME + " at time zone 'UTC') at time zone 'UTC' "));
+    }
+
+    @Test
+    public void testAggregateEpochBucket() {
+        String bucket = "to_timestamp(floor(extract(epoch from " + PHENOMENON_TIME + ") / 900) * 900)";
+        String sql = buildAggregate("/Datastreams(1)/Observations", "$aggregate=duration'PT15M',avg&$filter=result gt 5&$top=10&$skip=20");
+        Assert.assertEquals(
+                "select " + DATASTREAM_ID + " as \"aggregate_datastream\", " + bucket + " as \"aggregate_bucket\", "
+                + "avg(" + RESULT + ")"
+                + " from \"OBSERVATIONS\" join \"DATASTREAMS\" as \"e1\" on \"e1\".\"ID\" = " + DATASTREAM_ID
+                + " where (true and \"e1\".\"ID\" = 1 and " + RESULT + " > 5 and " + DATASTREAM_ID + " is not null)"
+                + " group by " + DATASTREAM_ID + ", " + bucket
+                + " order by " + DATASTREAM_ID + ", " + bucket
+                + " limit 11 offset 20",
+                sql);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSeekTokenNotMatchingOrderby() {
+        seekSelect("name asc,description desc", "a", new BigDecimal(5));
+    }
+
+}
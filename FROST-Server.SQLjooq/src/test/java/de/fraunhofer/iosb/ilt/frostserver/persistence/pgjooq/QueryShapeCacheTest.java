@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.parser.query.QueryParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.imp.PostgresPersistenceManagerLong;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the shape keys of the QueryShapeCache.
+ *
+ * @author scf
+ */
+public class QueryShapeCacheTest {
+
+    private static final String OBSERVATIONS = "/Datastreams(42)/Observations";
+
+    private static CoreSettings coreSettings;
+    private static PostgresPersistenceManagerLong pm;
+
+    @BeforeClass
+    public static void initClass() {
+        coreSettings = createSettings();
+        final DSLContext dslContext = DSL.using(SQLDialect.POSTGRES);
+        pm = new PostgresPersistenceManagerLong() {
+            @Override
+            public DSLContext getDslContext() {
+                return dslContext;
+            }
+        };
+        pm.init(coreSettings);
+    }
+
+    private static CoreSettings createSettings() {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, "http://localhost:8080/FROST-Server");
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        return new CoreSettings(properties);
+    }
+
+    private static ResourcePath parsePath(String path) {
+        return PathParser.parsePath(pm.getIdManager(), coreSettings.getQueryDefaults().getServiceRootUrl(), Version.V_1_1, path);
+    }
+
+    private static String createKey(String path, String query) {
+        ResourcePath resourcePath = parsePath(path);
+        return QueryShapeCache.createKey(resourcePath, QueryParser.parseQuery(query, coreSettings, resourcePath).validate(), true);
+    }
+
+    private static String builderKey(String path, String query) {
+        ResourcePath resourcePath = parsePath(path);
+        Query parsed = QueryParser.parseQuery(query, coreSettings, resourcePath).validate();
+        QueryBuilder<Long> builder = new QueryBuilder<>(pm, coreSettings, pm.getPropertyResolver())
+                .forPath(resourcePath)
+                .usingQuery(parsed);
+        builder.buildSelect();
+        return builder.getShapeKey();
+    }
+
+    @Test
+    public void testBindValuesShareKey() {
+        String key = createKey(OBSERVATIONS, "$filter=result gt 5 and parameters/quality eq 'good'");
+        Assert.assertEquals(key, createKey("/Datastreams(7)/Observations", "$filter=result gt 6 and parameters/quality eq 'bad'"));
+        Assert.assertNotEquals(key, createKey(OBSERVATIONS, "$filter=result gt 5.5 and parameters/quality eq 'good'"));
+        Assert.assertNotEquals(key, createKey(OBSERVATIONS, "$filter=result lt 5 and parameters/quality eq 'good'"));
+    }
+
+    @Test
+    public void testInlinedTimesChangeKey() {
+        String key = createKey(OBSERVATIONS, "$filter=phenomenonTime gt 2020-01-01T00:00:00Z");
+        Assert.assertEquals(key, createKey(OBSERVATIONS, "$filter=phenomenonTime gt 2020-01-01T00:00:00Z"));
+        Assert.assertNotEquals(key, createKey(OBSERVATIONS, "$filter=phenomenonTime gt 2020-01-02T00:00:00Z"));
+        Assert.assertNotEquals(
+                createKey(OBSERVATIONS, "$filter=during(phenomenonTime, 2020-01-01T00:00:00Z/2020-01-02T00:00:00Z)"),
+                createKey(OBSERVATIONS, "$filter=during(phenomenonTime, 2020-01-01T00:00:00Z/2020-01-03T00:00:00Z)"));
+        Assert.assertNotEquals(
+                createKey(OBSERVATIONS, "$filter=phenomenonTime gt now() sub duration'PT1H'"),
+                createKey(OBSERVATIONS, "$filter=phenomenonTime gt now() sub duration'PT2H'"));
+    }
+
+    @Test
+    public void testSelectAndOrderChangeKey() {
+        String key = createKey(OBSERVATIONS, "$select=id,result&$orderby=phenomenonTime desc");
+        Assert.assertNotEquals(key, createKey(OBSERVATIONS, "$select=id&$orderby=phenomenonTime desc"));
+        Assert.assertNotEquals(key, createKey(OBSERVATIONS, "$select=id,result&$orderby=phenomenonTime asc"));
+    }
+
+    @Test
+    public void testSkipTokenHasNoKey() {
+        Assert.assertNotNull(builderKey(OBSERVATIONS, "$orderby=phenomenonTime desc"));
+        String skipToken = new SkipToken(100, Collections.emptyList()).encode();
+        Assert.assertNull(builderKey(OBSERVATIONS, "$orderby=phenomenonTime desc&$skiptoken=" + skipToken));
+    }
+
+    @Test
+    public void testCanBind() {
+        Assert.assertTrue(QueryShapeCache.canBind(Arrays.asList("a", 1, 2L, 1.5, BigDecimal.ONE, true, OffsetDateTime.now())));
+        Assert.assertFalse(QueryShapeCache.canBind(Arrays.asList("a", null)));
+        Assert.assertFalse(QueryShapeCache.canBind(Arrays.asList("a", new Object())));
+    }
+
+    @Test
+    public void testInstancePerSettings() {
+        QueryShapeCache cache = QueryShapeCache.getInstance(coreSettings.getPersistenceSettings());
+        Assert.assertSame(cache, QueryShapeCache.getInstance(coreSettings.getPersistenceSettings()));
+        Assert.assertNotSame(cache, QueryShapeCache.getInstance(createSettings().getPersistenceSettings()));
+    }
+
+}
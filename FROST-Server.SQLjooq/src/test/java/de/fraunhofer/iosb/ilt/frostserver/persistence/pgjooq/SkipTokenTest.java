@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the encoding and decoding of $skiptokens.
+ *
+ * @author scf
+ */
+public class SkipTokenTest {
+
+    @Test
+    public void testRoundTrip() {
+        OffsetDateTime time = OffsetDateTime.parse("2020-03-04T05:06:07.123+02:00");
+        UUID uuid = UUID.fromString("2c9a7f9e-1c8b-4c5e-9a3d-1f2e3d4c5b6a");
+        List<Object> values = Arrays.asList(42L, "a, \"b\" & c/ü", true, time, uuid, null, new BigDecimal("1.25"));
+        SkipToken decoded = SkipToken.decode(new SkipToken(300, values).encode());
+        Assert.assertEquals(300, decoded.getOffset());
+        Assert.assertEquals(
+                Arrays.asList(new BigDecimal(42), "a, \"b\" & c/ü", true, time, uuid, null, new BigDecimal("1.25")),
+                decoded.getValues());
+    }
+
+    @Test
+    public void testNumbersKeepTheirValue() {
+        List<Object> values = Arrays.asList(7, (short) 3, new BigInteger("123456789012345678901234567890"), 0.1d, 2.5f, Long.MAX_VALUE);
+        SkipToken decoded = SkipToken.decode(new SkipToken(0, values).encode());
+        Assert.assertEquals(
+                Arrays.asList(
+                        new BigDecimal(7),
+                        new BigDecimal(3),
+                        new BigDecimal("123456789012345678901234567890"),
+                        new BigDecimal("0.1"),
+                        new BigDecimal("2.5"),
+                        new BigDecimal(Long.MAX_VALUE)),
+                decoded.getValues());
+    }
+
+    @Test
+    public void testOffsetOnly() {
+        SkipToken decoded = SkipToken.decode(new SkipToken(1000, Collections.emptyList()).encode());
+        Assert.assertEquals(1000, decoded.getOffset());
+        Assert.assertTrue(decoded.getValues().isEmpty());
+    }
+
+    @Test
+    public void testTokenIsUrlSafe() {
+        String token = new SkipToken(5, Arrays.asList("???>>>~~~", "ÿÿÿ")).encode();
+        Assert.assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void testCanEncode() {
+        Assert.assertTrue(SkipToken.canEncode(null));
+        Assert.assertTrue(SkipToken.canEncode(1.5d));
+        Assert.assertTrue(SkipToken.canEncode(OffsetDateTime.now()));
+        Assert.assertFalse(SkipToken.canEncode(Double.NaN));
+        Assert.assertFalse(SkipToken.canEncode(Float.POSITIVE_INFINITY));
+        Assert.assertFalse(SkipToken.canEncode(new Object()));
+        Assert.assertFalse(SkipToken.canEncode(Collections.singletonMap("a", 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeUnsupportedValue() {
+        new SkipToken(0, Collections.singletonList(new Object())).encode();
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        assertInvalid("not a token!");
+        assertInvalid(encodeJson("{\"a\":1}"));
+        assertInvalid(encodeJson("[]"));
+        assertInvalid(encodeJson("[\"5\"]"));
+        assertInvalid(encodeJson("[5, 6]"));
+        assertInvalid(encodeJson("[5, \"\"]"));
+        assertInvalid(encodeJson("[5, \"Xabc\"]"));
+        assertInvalid(encodeJson("[5, \"Nabc\"]"));
+        assertInvalid(encodeJson("[5, \"T2020-13-45\"]"));
+        assertInvalid(encodeJson("[5, \"Unot-a-uuid\"]"));
+    }
+
+    private static String encodeJson(String json) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertInvalid(String token) {
+        try {
+            SkipToken.decode(token);
+            Assert.fail("Expected an IllegalArgumentException for " + token);
+        } catch (IllegalArgumentException exc) {
+            Assert.assertEquals("Invalid $skiptoken.", exc.getMessage());
+        }
+    }
+
+}
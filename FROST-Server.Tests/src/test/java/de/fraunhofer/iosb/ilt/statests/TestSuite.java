@@ -42,6 +42,7 @@ import de.fraunhofer.iosb.ilt.statests.c08mqttsubscribe.Capability8Tests;
 import de.fraunhofer.iosb.ilt.statests.f01auth.BasicAuthAnonReadTests;
 import de.fraunhofer.iosb.ilt.statests.f01auth.BasicAuthTests;
 import de.fraunhofer.iosb.ilt.statests.f02customlinks.CustomLinksTests;
+import de.fraunhofer.iosb.ilt.statests.f03rollups.RollupsTests;
 import de.fraunhofer.iosb.ilt.statests.util.HTTPMethods;
 import de.fraunhofer.iosb.ilt.statests.util.HTTPMethods.HttpResponse;
 import java.io.IOException;
@@ -92,7 +93,8 @@ import org.testcontainers.containers.GenericContainer;
     Capability8Tests.class,
     BasicAuthTests.class,
     BasicAuthAnonReadTests.class,
-    CustomLinksTests.class
+    CustomLinksTests.class,
+    RollupsTests.class
 })
 public class TestSuite {
 
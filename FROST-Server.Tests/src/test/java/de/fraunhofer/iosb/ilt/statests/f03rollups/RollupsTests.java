@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2019 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.statests.f03rollups;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.DatastreamRollups;
+import de.fraunhofer.iosb.ilt.frostserver.plugin.rollups.PluginRollups;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.FeatureOfInterest;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.statests.AbstractTestClass;
+import de.fraunhofer.iosb.ilt.statests.ServerVersion;
+import de.fraunhofer.iosb.ilt.statests.util.EntityUtils;
+import de.fraunhofer.iosb.ilt.statests.util.HTTPMethods;
+import de.fraunhofer.iosb.ilt.statests.util.HTTPMethods.HttpResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.geojson.Point;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests that the rollup trigger and the background processing keep the
+ * minute, hour and day rollups up to date when Observations are inserted,
+ * updated and deleted.
+ *
+ * @author scf
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RollupsTests extends AbstractTestClass {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RollupsTests.class.getName());
+
+    private static final long WAIT_MILLIS = 20_000;
+    private static final long POLL_MILLIS = 250;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final List<Datastream> DATASTREAMS = new ArrayList<>();
+    private static final List<Observation> OBSERVATIONS = new ArrayList<>();
+    private static final Properties SERVER_PROPERTIES = new Properties();
+
+    static {
+        SERVER_PROPERTIES.put(CoreSettings.PREFIX_PERSISTENCE + DatastreamRollups.TAG_ROLLUPS_ENABLE, "true");
+        SERVER_PROPERTIES.put(CoreSettings.PREFIX_PERSISTENCE + DatastreamRollups.TAG_ROLLUPS_INTERVAL, "1");
+        SERVER_PROPERTIES.put(CoreSettings.PREFIX_PLUGINS + PluginRollups.TAG_ENABLE_ROLLUPS, "true");
+    }
+
+    public RollupsTests(ServerVersion version) {
+        super(version, SERVER_PROPERTIES);
+    }
+
+    @Override
+    protected void setUpVersion() throws ServiceFailureException, URISyntaxException {
+        LOGGER.info("Setting up for version {}.", version.urlPart);
+        createEntities();
+    }
+
+    @Override
+    protected void tearDownVersion() throws ServiceFailureException {
+        LOGGER.info("Cleaning up after version {}.", version.urlPart);
+        cleanup();
+    }
+
+    @AfterClass
+    public static void tearDown() throws ServiceFailureException {
+        LOGGER.info("Tearing down.");
+        cleanup();
+    }
+
+    private static void cleanup() throws ServiceFailureException {
+        EntityUtils.deleteAll(service);
+        DATASTREAMS.clear();
+        OBSERVATIONS.clear();
+    }
+
+    private static void createEntities() throws ServiceFailureException, URISyntaxException {
+        Thing thing = new Thing("Thing 1", "The first thing.");
+        service.create(thing);
+
+        Sensor sensor = new Sensor("Sensor 1", "The first sensor.", "text", "Some metadata.");
+        service.create(sensor);
+
+        ObservedProperty obsProp = new ObservedProperty("Temperature", new URI("http://dbpedia.org/page/Temperature"), "The temperature of the thing.");
+        service.create(obsProp);
+
+        Datastream datastream = new Datastream("Datastream 1", "The temperature of thing 1.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
+        datastream.setThing(thing);
+        datastream.setSensor(sensor);
+        datastream.setObservedProperty(obsProp);
+        service.create(datastream);
+        DATASTREAMS.add(datastream);
+
+        FeatureOfInterest foi = new FeatureOfInterest("Feature 1", "Feature 1", "application/vnd.geo+json", new Point(8, 51));
+        service.create(foi);
+
+        createObservation(1, "2020-01-01T00:00:10Z", foi);
+        createObservation(3, "2020-01-01T00:00:20Z", foi);
+        createObservation(5, "2020-01-01T00:01:30Z", foi);
+        // Results that are not numeric are not part of the rollups.
+        createObservation("high", "2020-01-01T00:00:30Z", foi);
+    }
+
+    private static void createObservation(Object result, String phenomenonTime, FeatureOfInterest foi) throws ServiceFailureException {
+        Observation o = new Observation(result, DATASTREAMS.get(0));
+        o.setPhenomenonTimeFrom(ZonedDateTime.parse(phenomenonTime));
+        o.setFeatureOfInterest(foi);
+        service.create(o);
+        OBSERVATIONS.add(o);
+    }
+
+    /**
+     * Waits for the background task to bring the rollups of the given unit to
+     * the expected count, min, max, avg and last value per bucket.
+     */
+    private static void assertRollups(String unit, String[] buckets, double[][] expected) throws IOException, InterruptedException {
+        String url = serverSettings.getServiceUrl(version) + "/Rollups?datastream=" + DATASTREAMS.get(0).getId().getUrl() + "&unit=" + unit;
+        long until = System.currentTimeMillis() + WAIT_MILLIS;
+        String last = null;
+        while (System.currentTimeMillis() < until) {
+            HttpResponse response = HTTPMethods.doGet(url);
+            Assert.assertEquals("Failed to get rollups: " + response.response, 200, response.code);
+            last = response.response;
+            if (matches(MAPPER.readTree(last).get("value").get(0).get("dataArray"), buckets, expected)) {
+                return;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        Assert.fail("The " + unit + " rollups did not become as expected, last response: " + last);
+    }
+
+    private static boolean matches(JsonNode dataArray, String[] buckets, double[][] expected) {
+        if (dataArray.size() != expected.length) {
+            return false;
+        }
+        for (int row = 0; row < expected.length; row++) {
+            JsonNode values = dataArray.get(row);
+            if (!values.get(0).asText().startsWith(buckets[row])) {
+                return false;
+            }
+            for (int col = 0; col < expected[row].length; col++) {
+                if (Math.abs(values.get(col + 1).asDouble() - expected[row][col]) > 1e-9) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void test01Insert() throws IOException, InterruptedException {
+        LOGGER.info("  test01Insert");
+        assertRollups("minute",
+                new String[]{"2020-01-01T00:00:00", "2020-01-01T00:01:00"},
+                new double[][]{{2, 1, 3, 2, 3}, {1, 5, 5, 5, 5}});
+        assertRollups("hour",
+                new String[]{"2020-01-01T00:00:00"},
+                new double[][]{{3, 1, 5, 3, 5}});
+        assertRollups("day",
+                new String[]{"2020-01-01T00:00:00"},
+                new double[][]{{3, 1, 5, 3, 5}});
+    }
+
+    @Test
+    public void test02Update() throws ServiceFailureException, IOException, InterruptedException {
+        LOGGER.info("  test02Update");
+        Observation o = OBSERVATIONS.get(0);
+        o.setResult(7);
+        service.update(o);
+        assertRollups("minute",
+                new String[]{"2020-01-01T00:00:00", "2020-01-01T00:01:00"},
+                new double[][]{{2, 3, 7, 5, 3}, {1, 5, 5, 5, 5}});
+        assertRollups("day",
+                new String[]{"2020-01-01T00:00:00"},
+                new double[][]{{3, 3, 7, 5, 5}});
+    }
+
+    @Test
+    public void test03Delete() throws ServiceFailureException, IOException, InterruptedException {
+        LOGGER.info("  test03Delete");
+        service.delete(OBSERVATIONS.get(2));
+        assertRollups("minute",
+                new String[]{"2020-01-01T00:00:00"},
+                new double[][]{{2, 3, 7, 5, 3}});
+        assertRollups("hour",
+                new String[]{"2020-01-01T00:00:00"},
+                new double[][]{{2, 3, 7, 5, 3}});
+    }
+
+}
@@ -48,6 +48,8 @@ public class BatchProcessorHelper {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(BatchProcessorHelper.class);
 
+    private static final String BINARY_NOT_SUPPORTED = "Binary result formats are not supported in batch requests.";
+
     private BatchProcessorHelper() {
         // Utility class, not to be instantiated.
     }
@@ -76,6 +78,15 @@ public class BatchProcessorHelper {
             httpResponse.setContentId(httpRequest.getContentId());
         }
 
+        if (serviceResponse.isSuccessful() && serviceResponse.isStreaming()) {
+            // Results that can only be written to a stream, like those of
+            // binary result formats, do not fit in a text part.
+            httpResponse.setStatusLine(HeaderUtils.generateStatusLine(400, "Bad Request"));
+            httpResponse.setExecuteFailed(true);
+            httpResponse.addData(BINARY_NOT_SUPPORTED);
+            return httpResponse;
+        }
+
         int statusCode = serviceResponse.getCode();
         httpResponse.setStatusLine(HeaderUtils.generateStatusLine(statusCode, "no text"));
 
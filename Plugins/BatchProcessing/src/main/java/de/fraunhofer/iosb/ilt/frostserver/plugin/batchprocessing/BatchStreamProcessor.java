@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing;
+
+import de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing.multipart.Content;
+import de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing.multipart.ContentIdPair;
+import de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing.multipart.HeaderUtils;
+import de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing.multipart.HttpContent;
+import de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing.multipart.MixedContent;
+import de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing.multipart.Part;
+import de.fraunhofer.iosb.ilt.frostserver.service.Service;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the parts of a multipart/mixed batch request while the request is
+ * parsed, and writes the response of each part as soon as it is available.
+ * The parts of a ChangeSet are executed in one transaction, that is committed
+ * when the end of the ChangeSet is reached. The responses of a ChangeSet are
+ * kept until the ChangeSet is complete, since a failure in a later part
+ * replaces them.
+ *
+ * @author scf
+ */
+public class BatchStreamProcessor implements MixedContent.PartListener {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchStreamProcessor.class);
+
+    private final Service service;
+    private final CoreSettings settings;
+    private final MixedContent response;
+    private final Writer out;
+
+    private boolean inTransaction;
+    private MixedContent changesetResponse;
+    private HttpContent changesetFailure;
+    private final List<ContentIdPair> contentIds = new ArrayList<>();
+
+    /**
+     * @param service The service to execute the parts with.
+     * @param response The MixedContent that defines the boundary of the
+     * response.
+     * @param out The Writer to write the response parts to.
+     */
+    public BatchStreamProcessor(Service service, MixedContent response, Writer out) {
+        this.service = service;
+        this.settings = service.getSettings();
+        this.response = response;
+        this.out = out;
+    }
+
+    @Override
+    public void partParsed(Part part) {
+        LOGGER.debug("Part: {}", part);
+        Content content = part.getContent();
+        if (part.isInChangeSet()) {
+            processChangesetPart(content);
+        } else if (content instanceof MixedContent) {
+            finishChangeset((MixedContent) content);
+        } else if (content instanceof HttpContent) {
+            HttpContent httpResponse = BatchProcessorHelper.processHttpRequest(service, (HttpContent) content, false);
+            writePart(httpResponse);
+        } else {
+            LOGGER.warn("Invalid multipart-part type: {}", content.getClass().getName());
+        }
+    }
+
+    /**
+     * Writes the end of the response. Rolls back the transaction of a
+     * ChangeSet that was not completed.
+     *
+     * @throws IOException If writing fails.
+     */
+    public void finish() throws IOException {
+        if (inTransaction) {
+            LOGGER.debug("Incomplete ChangeSet, rolling back.");
+            rollback();
+        }
+        response.writeEnd(out);
+        out.flush();
+    }
+
+    private void processChangesetPart(Content content) {
+        if (changesetFailure != null || content.isParseFailed()) {
+            return;
+        }
+        if (!(content instanceof HttpContent)) {
+            LOGGER.warn("Only http requests allowed in changset. Found type: {}", content.getClass().getName());
+            return;
+        }
+        if (!inTransaction) {
+            service.startTransaction();
+            inTransaction = true;
+            changesetResponse = new MixedContent(settings, true);
+            contentIds.clear();
+        }
+        HttpContent httpContent = (HttpContent) content;
+        httpContent.updateUsingContentIds(contentIds);
+
+        HttpContent httpResponse = BatchProcessorHelper.processHttpRequest(service, httpContent, true);
+        if (httpResponse.isExecuteFailed()) {
+            changesetFailure = httpResponse;
+            changesetResponse = null;
+            rollback();
+            return;
+        }
+        changesetResponse.addPart(new Part(settings, true).setContent(httpResponse));
+
+        String contentId = httpContent.getContentId();
+        String contentIdValue = httpContent.getContentIdValue();
+        if (!StringHelper.isNullOrEmpty(contentId) && !StringHelper.isNullOrEmpty(contentIdValue)) {
+            contentIds.add(new ContentIdPair("$" + contentId, contentIdValue));
+        }
+    }
+
+    private void finishChangeset(MixedContent changeset) {
+        Content result;
+        if (changeset.isParseFailed()) {
+            rollback();
+            HttpContent content = new HttpContent();
+            for (String error : changeset.getErrors()) {
+                content.addData(error);
+                content.addData("\n");
+            }
+            content.setStatusLine(HeaderUtils.generateStatusLine(400, "Bad Request"));
+            result = content;
+        } else if (changesetFailure != null) {
+            result = changesetFailure;
+        } else {
+            if (inTransaction) {
+                service.commitTransaction();
+                inTransaction = false;
+            }
+            result = changesetResponse == null ? new MixedContent(settings, true) : changesetResponse;
+        }
+        changesetResponse = null;
+        changesetFailure = null;
+        contentIds.clear();
+        writePart(result);
+    }
+
+    private void rollback() {
+        if (inTransaction) {
+            service.rollbackTransaction();
+            inTransaction = false;
+        }
+    }
+
+    private void writePart(Content content) {
+        try {
+            response.writePart(out, new Part(settings, false).setContent(content));
+            out.flush();
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+}
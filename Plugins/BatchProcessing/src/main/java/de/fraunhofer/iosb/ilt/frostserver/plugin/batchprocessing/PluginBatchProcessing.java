@@ -41,6 +41,8 @@ public class PluginBatchProcessing implements PluginService, PluginRootDocument,
 
     @DefaultValueBoolean(true)
     public static final String TAG_ENABLE_BATCH_PROCESSING = "batchProcessing.enable";
+    @DefaultValueBoolean(true)
+    public static final String TAG_BATCH_STREAMING = "batchProcessing.streaming";
 
     private static final String REQUIREMENT_BATCH_PROCESSING = "http://www.opengis.net/spec/iot_sensing/1.1/req/batch-request/batch-request";
 
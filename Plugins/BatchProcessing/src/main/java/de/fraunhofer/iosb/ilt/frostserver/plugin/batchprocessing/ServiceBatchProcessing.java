@@ -22,6 +22,10 @@ import de.fraunhofer.iosb.ilt.frostserver.service.Service;
 import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
 import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Handles the service requests for the DataArray plugin. This is the request to
@@ -48,6 +52,10 @@ public class ServiceBatchProcessing {
     }
 
     public ServiceResponse<String> executeBatchOperation(final Service service, final ServiceRequest request) {
+        boolean streaming = settings.getPluginSettings().getBoolean(PluginBatchProcessing.TAG_BATCH_STREAMING, PluginBatchProcessing.class);
+        if (streaming) {
+            return streamBatchOperation(service, request);
+        }
         MixedContent multipartMixedData = new MixedContent(settings, false);
         multipartMixedData.parse(request);
         MixedContent resultContent = BatchProcessorHelper.processMultipartMixed(service, multipartMixedData);
@@ -55,6 +63,30 @@ public class ServiceBatchProcessing {
 
     }
 
+    /**
+     * Executes the parts of the batch request while the request is read, and
+     * writes the response of each part as soon as it is available.
+     */
+    private ServiceResponse<String> streamBatchOperation(final Service service, final ServiceRequest request) {
+        final MixedContent multipartMixedData = new MixedContent(settings, false);
+        if (!multipartMixedData.setBoundaryFromContentType(request.getContentType())) {
+            return new ServiceResponse<>(400, "Batch requests must have content type multipart/mixed, with a boundary.");
+        }
+        final MixedContent resultContent = new MixedContent(settings, false);
+        final ServiceResponse<String> response = new ServiceResponse<>();
+        response.setCode(200);
+        resultContent.getHeaders().entrySet().forEach(x -> response.addHeader(x.getKey(), x.getValue()));
+        response.setContentType(resultContent.getHeaders().get("Content-Type"));
+        response.setResultWriter(out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            BatchStreamProcessor processor = new BatchStreamProcessor(service, resultContent, writer);
+            multipartMixedData.setPartListener(processor);
+            multipartMixedData.parse(request);
+            processor.finish();
+        });
+        return response;
+    }
+
     private ServiceResponse<String> sendMixedResponse(MixedContent multipartMixedData) {
         final ServiceResponse response = new ServiceResponse<>();
         response.setCode(200);
@@ -22,7 +22,7 @@ import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -49,6 +49,20 @@ public class MixedContent implements Content {
     public static final Pattern SUB_HEADER_PATTERN = Pattern.compile(SUB_HEADER_REGEX);
     private static final char[] BOUNDARY_CHARS = "-_abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
 
+    /**
+     * Receives the parts of a MixedContent as soon as they are parsed, so they
+     * do not have to be kept in memory until the entire content is parsed.
+     */
+    public static interface PartListener {
+
+        /**
+         * Called when a part is completely parsed.
+         *
+         * @param part The parsed part.
+         */
+        public void partParsed(Part part);
+    }
+
     /**
      * The different states the parser can have.
      */
@@ -84,24 +98,26 @@ public class MixedContent implements Content {
     private State state = State.PREAMBLE;
     private IsFinished finished = IsFinished.UNFINISHED;
     private Part currentPart;
+    private PartListener partListener;
 
     public MixedContent(CoreSettings settings, boolean isChangeSet) {
         this.settings = settings;
         this.isChangeSet = isChangeSet;
     }
 
+    /**
+     * Parses the content of the given request. The content is read from the
+     * Reader of the request, so that the parts can be handled by the
+     * PartListener while the content is read.
+     *
+     * @param request The request to parse the content of.
+     * @return false if the content could not be read.
+     */
     public boolean parse(ServiceRequest request) {
-        String contentType = request.getContentType();
-        Matcher matcher = BOUNDARY_PATTERN.matcher(contentType);
-        if (!matcher.find()) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("{}Could not find boundary in content type: {}", logIndent, StringHelper.cleanForLogging(contentType));
-            }
+        if (!setBoundaryFromContentType(request.getContentType())) {
             return false;
         }
-        String boundaryHeader = matcher.group(1);
-        setBoundaryHeader(boundaryHeader);
-        try (BufferedReader reader = new BufferedReader(new StringReader(request.getContent()))) {
+        try (BufferedReader reader = new BufferedReader(request.getContentReader())) {
             String line;
             while (finished != IsFinished.FINISHED && (line = reader.readLine()) != null) {
                 parseLine(line);
@@ -113,6 +129,55 @@ public class MixedContent implements Content {
         }
     }
 
+    /**
+     * Sets the boundary from the given Content-Type header.
+     *
+     * @param contentType The Content-Type header.
+     * @return false if the Content-Type header has no boundary.
+     */
+    public boolean setBoundaryFromContentType(String contentType) {
+        Matcher matcher = BOUNDARY_PATTERN.matcher(contentType == null ? "" : contentType);
+        if (!matcher.find()) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("{}Could not find boundary in content type: {}", logIndent, StringHelper.cleanForLogging(contentType));
+            }
+            return false;
+        }
+        setBoundaryHeader(matcher.group(1));
+        return true;
+    }
+
+    /**
+     * Sets the listener that receives the parts as soon as they are parsed.
+     * If a listener is set, the parts are not stored in this MixedContent, and
+     * {@link #getParts()} stays empty.
+     *
+     * @param partListener The listener to send the parts to.
+     * @return this.
+     */
+    public MixedContent setPartListener(PartListener partListener) {
+        this.partListener = partListener;
+        return this;
+    }
+
+    private Part createPart() {
+        return new Part(settings, isChangeSet)
+                .setLogIndent(logIndent + "  ")
+                .setPartListener(partListener);
+    }
+
+    private void addParsedPart(Part part) {
+        if (part.getContent().isParseFailed()) {
+            parseFailed = true;
+            errors.addAll(part.getContent().getErrors());
+        }
+        if (partListener == null) {
+            parts.add(part);
+        } else {
+            partListener.partParsed(part);
+        }
+    }
+
     public MixedContent setBoundaryHeader(String boundaryHeader) {
         boundary = boundaryHeader;
         boundaryPart = "--" + boundaryHeader;
@@ -159,7 +224,7 @@ public class MixedContent implements Content {
     private void parsePreamble(String line) {
         if (boundaryPart.equals(line.trim())) {
             setState(State.PARTCONTENT);
-            currentPart = new Part(settings, isChangeSet).setLogIndent(logIndent + "  ");
+            currentPart = createPart();
         }
     }
 
@@ -174,14 +239,14 @@ public class MixedContent implements Content {
         if (checkBoundary && boundaryPart.equals(line.trim())) {
             LOGGER.debug("{}Found new part", logIndent);
             currentPart.stripLastNewline();
-            parts.add(currentPart);
-            currentPart = new Part(settings, isChangeSet).setLogIndent(logIndent + "  ");
+            addParsedPart(currentPart);
+            currentPart = createPart();
             setState(State.PARTCONTENT);
 
         } else if (checkBoundary && boundaryEnd.equals(line.trim())) {
             LOGGER.debug("{}Found end of multipart content", logIndent);
             currentPart.stripLastNewline();
-            parts.add(currentPart);
+            addParsedPart(currentPart);
             currentPart = null;
             finishParsing();
 
@@ -189,7 +254,7 @@ public class MixedContent implements Content {
             currentPart.appendLine(line);
             if (currentPart.isFinished() == IsFinished.FINISHED) {
                 LOGGER.debug("{}Part declared done", logIndent);
-                parts.add(currentPart);
+                addParsedPart(currentPart);
                 currentPart = null;
                 setState(State.PARTDONE);
             }
@@ -199,7 +264,7 @@ public class MixedContent implements Content {
     private void parsePartDone(String line) {
         if (boundaryPart.equals(line.trim())) {
             LOGGER.debug("{}Found new part", logIndent);
-            currentPart = new Part(settings, isChangeSet).setLogIndent(logIndent + "  ");
+            currentPart = createPart();
             setState(State.PARTCONTENT);
         } else if (boundaryEnd.equals(line.trim())) {
             LOGGER.debug("{}Found end of multipart content", logIndent);
@@ -212,12 +277,6 @@ public class MixedContent implements Content {
     private void finishParsing() {
         setState(State.EPILOGUE);
         finished = IsFinished.FINISHED;
-        for (Part part : parts) {
-            if (part.getContent().isParseFailed()) {
-                parseFailed = true;
-                errors.addAll(part.getContent().getErrors());
-            }
-        }
         LOGGER.debug("{}Found {} parts", logIndent, parts.size());
     }
 
@@ -281,6 +340,37 @@ public class MixedContent implements Content {
         return content.toString();
     }
 
+    /**
+     * Writes the given part, preceded by a boundary, to the given Writer. Used
+     * to write the parts one by one, instead of through
+     * {@link #getContent(boolean)}.
+     *
+     * @param out The Writer to write to.
+     * @param part The part to write.
+     * @throws IOException If writing fails.
+     */
+    public void writePart(Writer out, Part part) throws IOException {
+        if (boundary == null) {
+            generateBoundary();
+        }
+        out.append('\n').append(boundaryPart).append('\n');
+        out.append(part.getContent().getContent(true));
+    }
+
+    /**
+     * Writes the closing boundary to the given Writer, after all parts have
+     * been written with {@link #writePart(Writer, Part)}.
+     *
+     * @param out The Writer to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeEnd(Writer out) throws IOException {
+        if (boundary == null) {
+            generateBoundary();
+        }
+        out.append('\n').append(boundaryEnd);
+    }
+
     @Override
     public Map<String, String> getHeaders() {
         if (boundary == null) {
@@ -57,6 +57,8 @@ public class Part {
 
     private final boolean inChangeSet;
 
+    private MixedContent.PartListener partListener;
+
     /**
      * Creates a new Part.
      *
@@ -157,7 +159,8 @@ public class Part {
             }
             LOGGER.debug("{}Found multipart content", logIndent);
             content = new MixedContent(settings, true)
-                    .setBoundaryHeader(getHeader("boundary"));
+                    .setBoundaryHeader(getHeader("boundary"))
+                    .setPartListener(partListener);
         } else if ("application/http".equalsIgnoreCase(contentType)) {
             LOGGER.debug("{}Found Http content", logIndent);
             content = new HttpContent(inChangeSet);
@@ -211,6 +214,27 @@ public class Part {
         return this;
     }
 
+    /**
+     * Flag indicating the Part is part of a ChangeSet.
+     *
+     * @return true if the Part is part of a ChangeSet.
+     */
+    public boolean isInChangeSet() {
+        return inChangeSet;
+    }
+
+    /**
+     * Sets the listener that receives the parts of a ChangeSet in this Part,
+     * as soon as they are parsed.
+     *
+     * @param partListener The listener to send the parts to.
+     * @return this.
+     */
+    public Part setPartListener(MixedContent.PartListener partListener) {
+        this.partListener = partListener;
+        return this;
+    }
+
     /**
      * Sets the indentation of log messages. Since Content can be nested, this
      * makes debug output better readable.
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing;
+
+import com.github.fge.jsonpatch.JsonPatch;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityChangedMessage;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.Thing;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.ObservationRows;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntity;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.IdManager;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
+import de.fraunhofer.iosb.ilt.frostserver.plugin.batchprocessing.multipart.MixedContent;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.service.RequestTypeUtils;
+import de.fraunhofer.iosb.ilt.frostserver.service.Service;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequestBuilder;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the streaming execution of batch requests, in particular the
+ * transactions of ChangeSets.
+ *
+ * @author scf
+ */
+public class BatchStreamProcessorTest {
+
+    private static final String BOUNDARY = "batch_36522ad7";
+    private static final String CHANGESET_BOUNDARY = "changeset_77162fcd";
+
+    private static CoreSettings settings;
+
+    @BeforeClass
+    public static void initClass() {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, "http://localhost:8080/FROST-Server");
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_IMPLEMENTATION_CLASS, NoPersistenceManager.class.getName());
+        settings = new CoreSettings(properties);
+    }
+
+    private static String request(String method, String url, String contentId, String body) {
+        StringBuilder part = new StringBuilder("Content-Type: application/http\n");
+        if (contentId != null) {
+            part.append("Content-ID: ").append(contentId).append('\n');
+        }
+        part.append('\n')
+                .append(method).append(' ').append(url).append(" HTTP/1.1\n");
+        if (body != null) {
+            part.append("Content-Type: application/json\n");
+        }
+        part.append('\n');
+        if (body != null) {
+            part.append(body).append('\n');
+        }
+        return part.toString();
+    }
+
+    private static String changeset(String... parts) {
+        StringBuilder changeset = new StringBuilder("Content-Type: multipart/mixed; boundary=")
+                .append(CHANGESET_BOUNDARY).append("\n\n");
+        for (String part : parts) {
+            changeset.append("--").append(CHANGESET_BOUNDARY).append('\n').append(part);
+        }
+        return changeset.append("--").append(CHANGESET_BOUNDARY).append("--\n").toString();
+    }
+
+    private static String batch(String... parts) {
+        StringBuilder batch = new StringBuilder();
+        for (String part : parts) {
+            batch.append("--").append(BOUNDARY).append('\n').append(part);
+        }
+        return batch.append("--").append(BOUNDARY).append("--\n").toString();
+    }
+
+    private static String execute(RecordingService service, String body) throws IOException {
+        ServiceRequest request = new ServiceRequestBuilder(Version.V_1_1)
+                .withContentType("multipart/mixed; boundary=" + BOUNDARY)
+                .withContentReader(new StringReader(body))
+                .build();
+        MixedContent requestContent = new MixedContent(settings, false);
+        Writer out = new StringWriter();
+        BatchStreamProcessor processor = new BatchStreamProcessor(service, new MixedContent(settings, false), out);
+        requestContent.setPartListener(processor);
+        Assert.assertTrue(requestContent.parse(request));
+        processor.finish();
+        return out.toString();
+    }
+
+    @Test
+    public void testChangesetCommitted() throws IOException {
+        RecordingService service = new RecordingService(settings);
+        String response = execute(service, batch(
+                request("GET", "/v1.1/Things(5)", null, null),
+                changeset(
+                        request("POST", "/v1.1/Things", "t1", "{\"name\":\"a\"}"),
+                        request("POST", "/v1.1/Sensors", "s1", "{\"name\":\"b\"}")),
+                request("GET", "/v1.1/Sensors(6)", null, null)));
+        Assert.assertEquals(
+                Arrays.asList("read /Things(5)", "start", "create /Things", "create /Sensors", "commit", "read /Sensors(6)"),
+                service.events);
+        Assert.assertEquals(2, countOccurrences(response, "http/1.1 201"));
+        Assert.assertEquals(2, countOccurrences(response, "http/1.1 200"));
+        Assert.assertTrue(response.contains("Content-ID: t1"));
+        Assert.assertTrue(response.contains("Content-ID: s1"));
+        Assert.assertTrue("The response must be closed.", response.trim().endsWith("--"));
+    }
+
+    @Test
+    public void testChangesetRolledBackOnFailure() throws IOException {
+        RecordingService service = new RecordingService(settings);
+        String response = execute(service, batch(
+                changeset(
+                        request("POST", "/v1.1/Things", "t1", "{\"name\":\"a\"}"),
+                        request("POST", "/v1.1/Fail", "f1", "{}"),
+                        request("POST", "/v1.1/Sensors", "s1", "{\"name\":\"b\"}")),
+                request("GET", "/v1.1/Things(5)", null, null)));
+        Assert.assertEquals(
+                "Parts after the failure must not be executed.",
+                Arrays.asList("start", "create /Things", "create /Fail", "rollback", "read /Things(5)"),
+                service.events);
+        Assert.assertTrue(response.contains("http/1.1 400"));
+        Assert.assertTrue(response.contains("Failed: /Fail"));
+        Assert.assertFalse("The responses of the rolled back parts must not be sent.", response.contains("http/1.1 201"));
+        Assert.assertTrue(response.contains("http/1.1 200"));
+    }
+
+    @Test
+    public void testChangesetWithParseError() throws IOException {
+        RecordingService service = new RecordingService(settings);
+        String response = execute(service, batch(
+                changeset(
+                        request("POST", "/v1.1/Things", "t1", "{\"name\":\"a\"}"),
+                        request("POST", "/v1.1/Sensors", null, "{\"name\":\"b\"}"),
+                        request("POST", "/v1.1/Locations", "l1", "{\"name\":\"c\"}"))));
+        Assert.assertEquals(
+                Arrays.asList("start", "create /Things", "create /Locations", "rollback"),
+                service.events);
+        Assert.assertTrue(response.contains("http/1.1 400"));
+        Assert.assertTrue(response.contains("All Changeset parts must have a valid content-id header."));
+        Assert.assertFalse(response.contains("http/1.1 201"));
+    }
+
+    @Test
+    public void testContentIdSubstitution() throws IOException {
+        RecordingService service = new RecordingService(settings);
+        execute(service, batch(
+                changeset(
+                        request("POST", "/v1.1/Things", "t1", "{\"name\":\"a\"}"),
+                        request("POST", "$t1/Locations", "l1", "{\"name\":\"b\"}"),
+                        request("PATCH", "$l1", "l2", "{\"name\":\"c\"}")),
+                changeset(
+                        request("POST", "$t1/Datastreams", "d1", "{\"name\":\"d\"}"))));
+        Assert.assertEquals(
+                Arrays.asList(
+                        "start", "create /Things", "create /Things(1)/Locations", RequestTypeUtils.UPDATE_CHANGES + " /Locations(2)", "commit",
+                        "start", "create $t1/Datastreams", "commit"),
+                service.events);
+    }
+
+    @Test
+    public void testIncompleteChangesetRolledBack() throws IOException {
+        RecordingService service = new RecordingService(settings);
+        execute(service, "--" + BOUNDARY + "\n"
+                + "Content-Type: multipart/mixed; boundary=" + CHANGESET_BOUNDARY + "\n\n"
+                + "--" + CHANGESET_BOUNDARY + "\n"
+                + request("POST", "/v1.1/Things", "t1", "{\"name\":\"a\"}")
+                + "--" + CHANGESET_BOUNDARY + "\n");
+        Assert.assertEquals(Arrays.asList("start", "create /Things", "rollback"), service.events);
+    }
+
+    private static int countOccurrences(String haystack, String needle) {
+        int count = 0;
+        int idx = haystack.indexOf(needle);
+        while (idx >= 0) {
+            count++;
+            idx = haystack.indexOf(needle, idx + 1);
+        }
+        return count;
+    }
+
+    /**
+     * A Service that records the requests it executes and the transaction
+     * calls. Creates return a Thing with a self link to the created path,
+     * requests on /Fail fail.
+     */
+    private static class RecordingService extends Service {
+
+        private final List<String> events = new ArrayList<>();
+        private long nextId = 1;
+
+        public RecordingService(CoreSettings settings) {
+            super(settings);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> ServiceResponse<T> execute(ServiceRequest request) {
+            String path = request.getUrlPath();
+            events.add(request.getRequestType() + " " + path);
+            if (path.endsWith("/Fail")) {
+                return new ServiceResponse<>(400, "Failed: " + path);
+            }
+            if (RequestTypeUtils.CREATE.equals(request.getRequestType())) {
+                long id = nextId++;
+                String type = path.substring(path.lastIndexOf('/') + 1);
+                Thing created = new Thing(new IdLong(id));
+                created.setSelfLink("/" + type + "(" + id + ")");
+                return new ServiceResponse<>(201, null, (T) created, null);
+            }
+            return new ServiceResponse<>(200, null, null, "{}");
+        }
+
+        @Override
+        public Service startTransaction() {
+            events.add("start");
+            return this;
+        }
+
+        @Override
+        public Service commitTransaction() {
+            events.add("commit");
+            return this;
+        }
+
+        @Override
+        public Service rollbackTransaction() {
+            events.add("rollback");
+            return this;
+        }
+    }
+
+    /**
+     * A PersistenceManager that can only be created and closed, to satisfy
+     * the PersistenceManagerFactory of the Service.
+     */
+    public static class NoPersistenceManager implements PersistenceManager {
+
+        private CoreSettings coreSettings;
+
+        @Override
+        public void init(CoreSettings coreSettings) {
+            this.coreSettings = coreSettings;
+        }
+
+        @Override
+        public CoreSettings getCoreSettings() {
+            return coreSettings;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close.
+        }
+
+        @Override
+        public IdManager getIdManager() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean validatePath(ResourcePath path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean insert(Entity entity) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Exception> insert(List<? extends Entity> entities) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Entity get(EntityType entityType, Id id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object get(ResourcePath path, Query query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ObservationRows getObservationRows(ResourcePath path, Query query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean delete(PathElementEntity pathElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void delete(ResourcePath path, Query query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean update(PathElementEntity pathElement, Entity entity) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean update(PathElementEntity pathElement, JsonPatch patch) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<EntityChangedMessage> getEntityChangedMessages() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void commit() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void rollback() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String checkForUpgrades() {
+            return "";
+        }
+
+        @Override
+        public boolean doUpgrades(Writer out) {
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.format.arrow;
+
+import de.fraunhofer.iosb.ilt.frostserver.json.serialize.JsonWriter;
+import de.fraunhofer.iosb.ilt.frostserver.model.Observation;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Entity;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.ObservationRows;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInstant;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeValue;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Iterator;
+import org.joda.time.DateTime;
+
+/**
+ * Presents a loaded set of Observations as ObservationRows, for when the rows
+ * can not be read from the database directly.
+ *
+ * @author scf
+ */
+class EntitySetRows implements ObservationRows {
+
+    private final EntitySet<? extends Entity> entitySet;
+    private final Iterator<? extends Entity> iterator;
+    private Observation current;
+    private Observation first;
+
+    public EntitySetRows(EntitySet<? extends Entity> entitySet) {
+        this.entitySet = entitySet;
+        this.iterator = entitySet.iterator();
+        if (iterator.hasNext()) {
+            first = (Observation) iterator.next();
+        }
+    }
+
+    @Override
+    public Class<?> getIdType() {
+        if (first == null || first.getId() == null) {
+            return Long.class;
+        }
+        return first.getId().getValue().getClass();
+    }
+
+    @Override
+    public boolean next() {
+        if (first != null) {
+            current = first;
+            first = null;
+            return true;
+        }
+        if (iterator.hasNext()) {
+            current = (Observation) iterator.next();
+            return true;
+        }
+        current = null;
+        return false;
+    }
+
+    @Override
+    public Object getId() {
+        return idValue(current);
+    }
+
+    @Override
+    public Instant getPhenomenonTimeStart() {
+        TimeValue time = current.getPhenomenonTime();
+        if (time instanceof TimeInterval) {
+            return toInstant(((TimeInterval) time).getInterval().getStart());
+        }
+        return toInstant((TimeInstant) time);
+    }
+
+    @Override
+    public Instant getPhenomenonTimeEnd() {
+        TimeValue time = current.getPhenomenonTime();
+        if (time instanceof TimeInterval) {
+            return toInstant(((TimeInterval) time).getInterval().getEnd());
+        }
+        return toInstant((TimeInstant) time);
+    }
+
+    @Override
+    public Instant getResultTime() {
+        return toInstant(current.getResultTime());
+    }
+
+    @Override
+    public ResultKind getResultKind() {
+        Object result = current.getResult();
+        if (result == null) {
+            return null;
+        }
+        if (result instanceof Number) {
+            return ResultKind.NUMBER;
+        }
+        if (result instanceof Boolean) {
+            return ResultKind.BOOLEAN;
+        }
+        if (result instanceof String) {
+            return ResultKind.STRING;
+        }
+        return ResultKind.JSON;
+    }
+
+    @Override
+    public Double getResultNumber() {
+        return ((Number) current.getResult()).doubleValue();
+    }
+
+    @Override
+    public Boolean getResultBoolean() {
+        return (Boolean) current.getResult();
+    }
+
+    @Override
+    public String getResultString() {
+        Object result = current.getResult();
+        if (result instanceof String) {
+            return (String) result;
+        }
+        try {
+            return JsonWriter.writeObject(result);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to write result as JSON.", ex);
+        }
+    }
+
+    @Override
+    public Object getDatastreamId() {
+        return idValue(current.getDatastream());
+    }
+
+    @Override
+    public Object getMultiDatastreamId() {
+        return idValue(current.getMultiDatastream());
+    }
+
+    @Override
+    public long getCount() {
+        return entitySet.getCount();
+    }
+
+    @Override
+    public void close() {
+        current = null;
+    }
+
+    private static Object idValue(Entity entity) {
+        if (entity == null || entity.getId() == null) {
+            return null;
+        }
+        return entity.getId().getValue();
+    }
+
+    private static Instant toInstant(TimeInstant time) {
+        if (time == null || time.isEmpty()) {
+            return null;
+        }
+        return toInstant(time.getDateTime());
+    }
+
+    private static Instant toInstant(DateTime time) {
+        return Instant.ofEpochMilli(time.getMillis());
+    }
+}
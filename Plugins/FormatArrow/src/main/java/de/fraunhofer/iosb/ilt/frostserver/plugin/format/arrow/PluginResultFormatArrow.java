@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.format.arrow;
+
+import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
+import de.fraunhofer.iosb.ilt.frostserver.service.PluginResultFormat;
+import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueBoolean;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueInt;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Provides the Arrow result format, that exports Observations as Apache Arrow
+ * record batches.
+ *
+ * @author scf
+ */
+public class PluginResultFormatArrow implements PluginResultFormat, ConfigDefaults {
+
+    @DefaultValueBoolean(true)
+    public static final String TAG_ENABLE_ARROW = "arrow.enable";
+    @DefaultValueInt(10000)
+    public static final String TAG_ARROW_BATCH_SIZE = "arrow.batchSize";
+
+    /**
+     * The "name" of the Arrow resultFormatter.
+     */
+    public static final String ARROW_FORMAT_NAME = "Arrow";
+
+    private ResultFormatterArrow formatter;
+
+    @Override
+    public void init(CoreSettings settings) {
+        Settings pluginSettings = settings.getPluginSettings();
+        boolean enabled = pluginSettings.getBoolean(TAG_ENABLE_ARROW, getClass());
+        if (enabled) {
+            int batchSize = pluginSettings.getInt(TAG_ARROW_BATCH_SIZE, getClass());
+            formatter = new ResultFormatterArrow(Math.max(1, batchSize));
+            settings.getPluginManager().registerPlugin(this);
+        }
+    }
+
+    @Override
+    public Collection<String> getFormatNames() {
+        return Arrays.asList(ARROW_FORMAT_NAME);
+    }
+
+    @Override
+    public ResultFormatter getResultFormatter() {
+        return formatter;
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.format.arrow;
+
+import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.Observation;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetImpl;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.ObservationRows;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElement;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.NavigationPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.property.Property;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
+import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampMicroTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes sets of Observations as an Apache Arrow IPC stream, with one column
+ * per field, in record batches of a configurable number of rows.
+ *
+ * @author scf
+ */
+public class ResultFormatterArrow implements ResultFormatter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultFormatterArrow.class);
+    private static final String OBSERVATIONS_ONLY = "The Arrow resultFormat is only available for sets of Observations, without $expand.";
+
+    public static final String COL_ID = "id";
+    public static final String COL_PHENOMENON_TIME_START = "phenomenonTimeStart";
+    public static final String COL_PHENOMENON_TIME_END = "phenomenonTimeEnd";
+    public static final String COL_RESULT_TIME = "resultTime";
+    public static final String COL_RESULT_NUMBER = "resultNumber";
+    public static final String COL_RESULT_BOOLEAN = "resultBoolean";
+    public static final String COL_RESULT_STRING = "resultString";
+    public static final String COL_RESULT_JSON = "resultJson";
+    public static final String COL_DATASTREAM_ID = "datastreamId";
+    public static final String COL_MULTIDATASTREAM_ID = "multiDatastreamId";
+    /**
+     * The key of the schema metadata holding the total number of
+     * Observations, when $count=true.
+     */
+    public static final String META_COUNT = "count";
+
+    /**
+     * The properties that can be exported, and $selected.
+     */
+    private static final Set<Property> EXPORTED_PROPERTIES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            EntityPropertyMain.ID,
+            EntityPropertyMain.PHENOMENONTIME,
+            EntityPropertyMain.RESULTTIME,
+            EntityPropertyMain.RESULT,
+            NavigationPropertyMain.DATASTREAM,
+            NavigationPropertyMain.MULTIDATASTREAM)));
+
+    private static final ArrowType TYPE_TIME = new ArrowType.Timestamp(org.apache.arrow.vector.types.TimeUnit.MICROSECOND, "UTC");
+
+    private final BufferAllocator rootAllocator = new RootAllocator();
+    private final int batchSize;
+
+    /**
+     * @param batchSize The number of rows per record batch.
+     */
+    public ResultFormatterArrow(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void preProcessRequest(ResourcePath path, Query query) throws IncorrectRequestException {
+        PathElement lastElement = path.getLastElement();
+        if (!(lastElement instanceof PathElementEntitySet)
+                || ((PathElementEntitySet) lastElement).getEntityType() != EntityType.OBSERVATION
+                || path.isRef()
+                || !query.getExpand().isEmpty()) {
+            throw new IncorrectRequestException(OBSERVATIONS_ONLY);
+        }
+        Set<Property> select = query.getSelect();
+        if (select.isEmpty()) {
+            // Only load the columns that are exported.
+            select.addAll(EXPORTED_PROPERTIES);
+            return;
+        }
+        for (Property property : select) {
+            if (!EXPORTED_PROPERTIES.contains(property)) {
+                throw new IncorrectRequestException("The Arrow resultFormat can not export " + property.getName() + ".");
+            }
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/vnd.apache.arrow.stream";
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public boolean isRowBased() {
+        return true;
+    }
+
+    @Override
+    public String format(ResourcePath path, Query query, Object result, boolean useAbsoluteNavigationLinks) {
+        // Callers check isBinary() and never format binary results as String.
+        throw new IllegalStateException("The Arrow format can not be formatted as String.");
+    }
+
+    @Override
+    public void format(ResourcePath path, Query query, Object result, boolean useAbsoluteNavigationLinks, OutputStream out) throws IOException {
+        Set<Property> select = EXPORTED_PROPERTIES;
+        if (query != null && !query.getSelect().isEmpty()) {
+            select = query.getSelect();
+        }
+        if (result instanceof ObservationRows) {
+            writeRows((ObservationRows) result, select, out);
+        } else if (result instanceof EntitySet) {
+            writeRows(new EntitySetRows((EntitySet) result), select, out);
+        } else if (result instanceof Observation) {
+            // Single Observations, as sent to MQTT subscriptions.
+            EntitySet<Observation> set = new EntitySetImpl<>(EntityType.OBSERVATION, Collections.singletonList((Observation) result));
+            writeRows(new EntitySetRows(set), select, out);
+        } else {
+            throw new IllegalArgumentException(OBSERVATIONS_ONLY);
+        }
+    }
+
+    private void writeRows(ObservationRows rows, Set<Property> select, OutputStream out) throws IOException {
+        Map<String, String> metadata = Collections.emptyMap();
+        if (rows.getCount() >= 0) {
+            metadata = Collections.singletonMap(META_COUNT, Long.toString(rows.getCount()));
+        }
+        Schema schema = new Schema(createFields(select, rows.getIdType()), metadata);
+
+        try (BufferAllocator allocator = rootAllocator.newChildAllocator("arrow-export", 0, Long.MAX_VALUE);
+                VectorSchemaRoot root = VectorSchemaRoot.create(schema, allocator)) {
+            // The writer is not closed, since that would close the OutputStream.
+            ArrowStreamWriter writer = new ArrowStreamWriter(root, null, Channels.newChannel(out));
+            writer.start();
+            BatchVectors vectors = new BatchVectors(root);
+            root.allocateNew();
+            int row = 0;
+            long total = 0;
+            while (rows.next()) {
+                vectors.set(row, rows);
+                row++;
+                if (row == batchSize) {
+                    root.setRowCount(row);
+                    writer.writeBatch();
+                    root.allocateNew();
+                    total += row;
+                    row = 0;
+                }
+            }
+            if (row > 0 || total == 0) {
+                root.setRowCount(row);
+                writer.writeBatch();
+                total += row;
+            }
+            writer.end();
+            out.flush();
+            LOGGER.debug("Wrote {} Observations as Arrow.", total);
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Creates the fields for the selected properties, in the fixed order of
+     * the columns.
+     */
+    private static List<Field> createFields(Set<Property> select, Class<?> idClass) {
+        ArrowType idType = isNumeric(idClass) ? new ArrowType.Int(64, true) : ArrowType.Utf8.INSTANCE;
+        List<Field> fields = new ArrayList<>();
+        if (select.contains(EntityPropertyMain.ID)) {
+            fields.add(Field.nullable(COL_ID, idType));
+        }
+        if (select.contains(EntityPropertyMain.PHENOMENONTIME)) {
+            fields.add(Field.nullable(COL_PHENOMENON_TIME_START, TYPE_TIME));
+            fields.add(Field.nullable(COL_PHENOMENON_TIME_END, TYPE_TIME));
+        }
+        if (select.contains(EntityPropertyMain.RESULTTIME)) {
+            fields.add(Field.nullable(COL_RESULT_TIME, TYPE_TIME));
+        }
+        if (select.contains(EntityPropertyMain.RESULT)) {
+            fields.add(Field.nullable(COL_RESULT_NUMBER, new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE)));
+            fields.add(Field.nullable(COL_RESULT_BOOLEAN, ArrowType.Bool.INSTANCE));
+            fields.add(Field.nullable(COL_RESULT_STRING, ArrowType.Utf8.INSTANCE));
+            fields.add(Field.nullable(COL_RESULT_JSON, ArrowType.Utf8.INSTANCE));
+        }
+        if (select.contains(NavigationPropertyMain.DATASTREAM)) {
+            fields.add(Field.nullable(COL_DATASTREAM_ID, idType));
+        }
+        if (select.contains(NavigationPropertyMain.MULTIDATASTREAM)) {
+            fields.add(Field.nullable(COL_MULTIDATASTREAM_ID, idType));
+        }
+        return fields;
+    }
+
+    private static boolean isNumeric(Class<?> type) {
+        return Long.class.equals(type) || Integer.class.equals(type) || Short.class.equals(type);
+    }
+
+    /**
+     * Holds the vectors of one VectorSchemaRoot, and fills them from the
+     * current row of an ObservationRows cursor. Null values are not set, since
+     * newly allocated vectors are null everywhere. Vectors of columns that are
+     * not selected are null, and skipped.
+     */
+    private static class BatchVectors {
+
+        private final FieldVector id;
+        private final TimeStampMicroTZVector phenomenonTimeStart;
+        private final TimeStampMicroTZVector phenomenonTimeEnd;
+        private final TimeStampMicroTZVector resultTime;
+        private final Float8Vector resultNumber;
+        private final BitVector resultBoolean;
+        private final VarCharVector resultString;
+        private final VarCharVector resultJson;
+        private final FieldVector datastreamId;
+        private final FieldVector multiDatastreamId;
+
+        public BatchVectors(VectorSchemaRoot root) {
+            id = root.getVector(COL_ID);
+            phenomenonTimeStart = (TimeStampMicroTZVector) root.getVector(COL_PHENOMENON_TIME_START);
+            phenomenonTimeEnd = (TimeStampMicroTZVector) root.getVector(COL_PHENOMENON_TIME_END);
+            resultTime = (TimeStampMicroTZVector) root.getVector(COL_RESULT_TIME);
+            resultNumber = (Float8Vector) root.getVector(COL_RESULT_NUMBER);
+            resultBoolean = (BitVector) root.getVector(COL_RESULT_BOOLEAN);
+            resultString = (VarCharVector) root.getVector(COL_RESULT_STRING);
+            resultJson = (VarCharVector) root.getVector(COL_RESULT_JSON);
+            datastreamId = root.getVector(COL_DATASTREAM_ID);
+            multiDatastreamId = root.getVector(COL_MULTIDATASTREAM_ID);
+        }
+
+        public void set(int row, ObservationRows rows) {
+            setId(id, row, rows.getId());
+            setTime(phenomenonTimeStart, row, rows.getPhenomenonTimeStart());
+            setTime(phenomenonTimeEnd, row, rows.getPhenomenonTimeEnd());
+            setTime(resultTime, row, rows.getResultTime());
+            if (resultNumber != null) {
+                ObservationRows.ResultKind kind = rows.getResultKind();
+                if (kind != null) {
+                    setResult(row, rows, kind);
+                }
+            }
+            setId(datastreamId, row, rows.getDatastreamId());
+            setId(multiDatastreamId, row, rows.getMultiDatastreamId());
+        }
+
+        private void setResult(int row, ObservationRows rows, ObservationRows.ResultKind kind) {
+            switch (kind) {
+                case NUMBER:
+                    Double number = rows.getResultNumber();
+                    if (number != null) {
+                        resultNumber.setSafe(row, number);
+                    }
+                    break;
+
+                case BOOLEAN:
+                    Boolean bool = rows.getResultBoolean();
+                    if (bool != null) {
+                        resultBoolean.setSafe(row, bool ? 1 : 0);
+                    }
+                    break;
+
+                case STRING:
+                    setString(resultString, row, rows.getResultString());
+                    break;
+
+                default:
+                    setString(resultJson, row, rows.getResultString());
+            }
+        }
+
+        private static void setId(FieldVector vector, int row, Object value) {
+            if (vector == null || value == null) {
+                return;
+            }
+            if (vector instanceof BigIntVector) {
+                ((BigIntVector) vector).setSafe(row, ((Number) value).longValue());
+            } else {
+                setString((VarCharVector) vector, row, value.toString());
+            }
+        }
+
+        private static void setTime(TimeStampMicroTZVector vector, int row, Instant value) {
+            if (vector == null || value == null) {
+                return;
+            }
+            long micros = TimeUnit.SECONDS.toMicros(value.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(value.getNano());
+            vector.setSafe(row, micros);
+        }
+
+        private static void setString(VarCharVector vector, int row, String value) {
+            if (value == null) {
+                return;
+            }
+            vector.setSafe(row, value.getBytes(StringHelper.UTF8));
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.format.arrow;
+
+import de.fraunhofer.iosb.ilt.frostserver.model.Datastream;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.Observation;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetImpl;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInstant;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.frostserver.path.PathElementEntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.query.QueryDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampMicroTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Writes Observations with the Arrow formatter and reads them back with an
+ * ArrowStreamReader.
+ *
+ * @author scf
+ */
+public class ResultFormatterArrowTest {
+
+    private static final long TIME_1 = 1_600_000_000_000L;
+    private static final long TIME_2 = 1_600_000_060_000L;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Datastream ds = new Datastream(new IdLong(7));
+        List<Observation> observations = Arrays.asList(
+                new Observation(new IdLong(1))
+                        .setPhenomenonTime(TimeInstant.create(TIME_1))
+                        .setResultTime(TimeInstant.create(TIME_2))
+                        .setResult(1.5)
+                        .setDatastream(ds),
+                new Observation(new IdLong(2))
+                        .setPhenomenonTime(TimeInterval.create(TIME_1, TIME_2))
+                        .setResult(true)
+                        .setDatastream(ds),
+                new Observation(new IdLong(3))
+                        .setPhenomenonTime(TimeInstant.create(TIME_2))
+                        .setResult("text")
+                        .setDatastream(ds));
+        EntitySetImpl<Observation> set = new EntitySetImpl<>(EntityType.OBSERVATION, observations);
+        set.setCount(42);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ResultFormatterArrow(2).format(null, null, set, true, out);
+
+        List<Long> ids = new ArrayList<>();
+        List<Integer> batchSizes = new ArrayList<>();
+        try (BufferAllocator allocator = new RootAllocator();
+                ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            Assert.assertEquals("42", root.getSchema().getCustomMetadata().get(ResultFormatterArrow.META_COUNT));
+            while (reader.loadNextBatch()) {
+                int rowCount = root.getRowCount();
+                batchSizes.add(rowCount);
+                BigIntVector id = (BigIntVector) root.getVector(ResultFormatterArrow.COL_ID);
+                TimeStampMicroTZVector start = (TimeStampMicroTZVector) root.getVector(ResultFormatterArrow.COL_PHENOMENON_TIME_START);
+                TimeStampMicroTZVector end = (TimeStampMicroTZVector) root.getVector(ResultFormatterArrow.COL_PHENOMENON_TIME_END);
+                TimeStampMicroTZVector resultTime = (TimeStampMicroTZVector) root.getVector(ResultFormatterArrow.COL_RESULT_TIME);
+                Float8Vector number = (Float8Vector) root.getVector(ResultFormatterArrow.COL_RESULT_NUMBER);
+                BitVector bool = (BitVector) root.getVector(ResultFormatterArrow.COL_RESULT_BOOLEAN);
+                VarCharVector string = (VarCharVector) root.getVector(ResultFormatterArrow.COL_RESULT_STRING);
+                BigIntVector dsId = (BigIntVector) root.getVector(ResultFormatterArrow.COL_DATASTREAM_ID);
+                for (int row = 0; row < rowCount; row++) {
+                    long obsId = id.get(row);
+                    ids.add(obsId);
+                    Assert.assertEquals(7L, dsId.get(row));
+                    if (obsId == 1) {
+                        Assert.assertEquals(TIME_1 * 1000, start.get(row));
+                        Assert.assertEquals(TIME_1 * 1000, end.get(row));
+                        Assert.assertEquals(TIME_2 * 1000, resultTime.get(row));
+                        Assert.assertEquals(1.5, number.get(row), 0);
+                        Assert.assertTrue(bool.isNull(row));
+                    } else if (obsId == 2) {
+                        Assert.assertEquals(TIME_1 * 1000, start.get(row));
+                        Assert.assertEquals(TIME_2 * 1000, end.get(row));
+                        Assert.assertTrue(resultTime.isNull(row));
+                        Assert.assertEquals(1, bool.get(row));
+                        Assert.assertTrue(number.isNull(row));
+                    } else {
+                        Assert.assertEquals("text", new String(string.get(row), "UTF-8"));
+                        Assert.assertTrue(number.isNull(row));
+                    }
+                }
+            }
+        }
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L), ids);
+        Assert.assertEquals(Arrays.asList(2, 1), batchSizes);
+    }
+
+    @Test
+    public void testEmptySet() throws IOException {
+        EntitySetImpl<Observation> set = new EntitySetImpl<>(EntityType.OBSERVATION, new ArrayList<Observation>());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ResultFormatterArrow(2).format(null, null, set, true, out);
+
+        int rows = 0;
+        try (BufferAllocator allocator = new RootAllocator();
+                ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            Assert.assertEquals(10, root.getSchema().getFields().size());
+            while (reader.loadNextBatch()) {
+                rows += root.getRowCount();
+            }
+        }
+        Assert.assertEquals(0, rows);
+    }
+
+    @Test
+    public void testSelect() throws IOException, IncorrectRequestException {
+        ResourcePath path = new ResourcePath();
+        path.addPathElement(new PathElementEntitySet(EntityType.OBSERVATION, null), true, false);
+        Query query = new Query(new QueryDefaults(true, false, 100, 1000), path);
+        query.addSelect(EntityPropertyMain.RESULT);
+        query.addSelect(EntityPropertyMain.ID);
+        ResultFormatterArrow formatter = new ResultFormatterArrow(2);
+        formatter.preProcessRequest(path, query);
+
+        List<Observation> observations = Arrays.asList(
+                new Observation(new IdLong(1))
+                        .setPhenomenonTime(TimeInstant.create(TIME_1))
+                        .setResult(1.5)
+                        .setDatastream(new Datastream(new IdLong(7))));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        formatter.format(path, query, new EntitySetImpl<>(EntityType.OBSERVATION, observations), true, out);
+
+        try (BufferAllocator allocator = new RootAllocator();
+                ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            List<String> names = root.getSchema().getFields().stream()
+                    .map(f -> f.getName())
+                    .collect(Collectors.toList());
+            Assert.assertEquals(
+                    Arrays.asList(
+                            ResultFormatterArrow.COL_ID,
+                            ResultFormatterArrow.COL_RESULT_NUMBER,
+                            ResultFormatterArrow.COL_RESULT_BOOLEAN,
+                            ResultFormatterArrow.COL_RESULT_STRING,
+                            ResultFormatterArrow.COL_RESULT_JSON),
+                    names);
+            Assert.assertTrue(reader.loadNextBatch());
+            Assert.assertEquals(1, root.getRowCount());
+            Assert.assertEquals(1L, ((BigIntVector) root.getVector(ResultFormatterArrow.COL_ID)).get(0));
+            Assert.assertEquals(1.5, ((Float8Vector) root.getVector(ResultFormatterArrow.COL_RESULT_NUMBER)).get(0), 0);
+        }
+    }
+
+    @Test(expected = IncorrectRequestException.class)
+    public void testSelectUnsupported() throws IncorrectRequestException {
+        ResourcePath path = new ResourcePath();
+        path.addPathElement(new PathElementEntitySet(EntityType.OBSERVATION, null), true, false);
+        Query query = new Query(new QueryDefaults(true, false, 100, 1000), path);
+        query.addSelect(EntityPropertyMain.PARAMETERS);
+        new ResultFormatterArrow(2).preProcessRequest(path, query);
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.format.binary;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
+import de.fraunhofer.iosb.ilt.frostserver.service.PluginResultFormat;
+import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueBoolean;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+/**
+ * Provides the binary result formats CBOR, Smile and MessagePack. These
+ * contain the same data as the default JSON format, but are smaller and faster
+ * to parse.
+ *
+ * @author scf
+ */
+public class PluginResultFormatBinary implements PluginResultFormat, ConfigDefaults {
+
+    @DefaultValueBoolean(true)
+    public static final String TAG_ENABLE_BINARY = "binary.enable";
+
+    /**
+     * The "name" of the CBOR resultFormatter.
+     */
+    public static final String CBOR_FORMAT_NAME = "CBOR";
+    /**
+     * The "name" of the Smile resultFormatter.
+     */
+    public static final String SMILE_FORMAT_NAME = "Smile";
+    /**
+     * The "name" of the MessagePack resultFormatter.
+     */
+    public static final String MSGPACK_FORMAT_NAME = "MessagePack";
+
+    private final Map<String, ResultFormatter> formatters = new LinkedHashMap<>();
+
+    @Override
+    public void init(CoreSettings settings) {
+        Settings pluginSettings = settings.getPluginSettings();
+        boolean enabled = pluginSettings.getBoolean(TAG_ENABLE_BINARY, getClass());
+        if (enabled) {
+            formatters.put(CBOR_FORMAT_NAME.toLowerCase(Locale.ROOT), new ResultFormatterBinary(new CBORFactory(), "application/cbor"));
+            formatters.put(SMILE_FORMAT_NAME.toLowerCase(Locale.ROOT), new ResultFormatterBinary(new SmileFactory(), "application/x-jackson-smile"));
+            formatters.put(MSGPACK_FORMAT_NAME.toLowerCase(Locale.ROOT), new ResultFormatterBinary(new MessagePackFactory(), "application/msgpack"));
+            settings.getPluginManager().registerPlugin(this);
+        }
+    }
+
+    @Override
+    public Collection<String> getFormatNames() {
+        return Arrays.asList(CBOR_FORMAT_NAME, SMILE_FORMAT_NAME, MSGPACK_FORMAT_NAME);
+    }
+
+    @Override
+    public ResultFormatter getResultFormatter() {
+        return formatters.get(CBOR_FORMAT_NAME.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public ResultFormatter getResultFormatter(String formatName) {
+        return formatters.get(formatName.toLowerCase(Locale.ROOT));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.format.binary;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
+import de.fraunhofer.iosb.ilt.frostserver.json.serialize.JsonWriter;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.EntitySetResult;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A resultFormatter that writes the same structure as the default JSON
+ * formatter, in a binary format supported by Jackson.
+ *
+ * @author scf
+ */
+public class ResultFormatterBinary implements ResultFormatter {
+
+    private final ObjectWriter writer;
+    private final String contentType;
+
+    /**
+     * @param factory The factory for the binary format.
+     * @param contentType The content type of the binary format.
+     */
+    public ResultFormatterBinary(JsonFactory factory, String contentType) {
+        this.writer = JsonWriter.createObjectMapper(factory)
+                .writer()
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public String format(ResourcePath path, Query query, Object result, boolean useAbsoluteNavigationLinks) {
+        // Callers check isBinary() and never format binary results as String.
+        throw new IllegalStateException("Binary formats can not be formatted as String.");
+    }
+
+    /**
+     * Writes the result with the same serialisers as the default JSON
+     * formatter. Like there, the navigation links are made relative by the
+     * EntitySerializer, when the settings of the Query of the entity have
+     * useAbsoluteNavigationLinks disabled.
+     */
+    @Override
+    public void format(ResourcePath path, Query query, Object result, boolean useAbsoluteNavigationLinks, OutputStream out) throws IOException {
+        if (result instanceof EntitySet) {
+            writer.writeValue(out, new EntitySetResult((EntitySet) result));
+        } else if (result instanceof Id) {
+            writer.writeValue(out, ((Id) result).getValue());
+        } else {
+            writer.writeValue(out, result);
+        }
+    }
+
+}
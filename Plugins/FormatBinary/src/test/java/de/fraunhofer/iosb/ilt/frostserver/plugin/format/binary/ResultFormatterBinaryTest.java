@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.format.binary;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatterDefault;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.Thing;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySet;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.EntitySetImpl;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.IdLong;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.AggregateResult;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.frostserver.parser.path.PathParser;
+import de.fraunhofer.iosb.ilt.frostserver.path.ResourcePath;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.query.Query;
+import de.fraunhofer.iosb.ilt.frostserver.query.QueryDefaults;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+/**
+ * Writes results with the binary formatters, reads them back, and compares
+ * them to the output of the default JSON formatter.
+ *
+ * @author scf
+ */
+public class ResultFormatterBinaryTest {
+
+    private static final String SERVICE_ROOT_URL = "http://example.org";
+    private static final String NEXT_LINK = SERVICE_ROOT_URL + "/v1.0/Things?$top=2&$skip=2";
+    private static final Map<String, JsonFactory> FORMATS = new LinkedHashMap<>();
+
+    static {
+        FORMATS.put(PluginResultFormatBinary.CBOR_FORMAT_NAME, new CBORFactory());
+        FORMATS.put(PluginResultFormatBinary.SMILE_FORMAT_NAME, new SmileFactory());
+        FORMATS.put(PluginResultFormatBinary.MSGPACK_FORMAT_NAME, new MessagePackFactory());
+    }
+
+    private static Thing createThing(long id, Query query) {
+        return new Thing()
+                .setQuery(query)
+                .setId(new IdLong(id))
+                .setName("Thing " + id)
+                .setDescription("The thing with id " + id + ".")
+                .addProperty("owner", "John Doe")
+                .addProperty("weight", 1.5);
+    }
+
+    private static Query createQuery(String path, boolean absoluteLinks) {
+        ResourcePath resourcePath = PathParser.parsePath(SERVICE_ROOT_URL, Version.V_1_0, path);
+        return new Query(new QueryDefaults(absoluteLinks, false, 100, 1000), resourcePath).validate();
+    }
+
+    /**
+     * Writes the result in each binary format and checks that reading it back
+     * gives the same document as the JSON formatter writes.
+     *
+     * @return The document, as read back from the last binary format.
+     */
+    private static JsonNode assertRoundTrip(Query query, Object result, boolean absoluteLinks) throws IOException {
+        ResourcePath path = query == null ? null : query.getPath();
+        JsonNode expected = new ObjectMapper().readTree(new ResultFormatterDefault().format(path, query, result, absoluteLinks));
+        JsonNode actual = null;
+        for (Map.Entry<String, JsonFactory> entry : FORMATS.entrySet()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new ResultFormatterBinary(entry.getValue(), "application/octet-stream").format(path, query, result, absoluteLinks, out);
+            actual = new ObjectMapper(entry.getValue()).readTree(out.toByteArray());
+            Assert.assertEquals(entry.getKey(), expected, actual);
+        }
+        return actual;
+    }
+
+    @Test
+    public void testEntity() throws IOException {
+        Query query = createQuery("/Things(1)", true);
+        JsonNode actual = assertRoundTrip(query, createThing(1, query), true);
+        Assert.assertEquals(1, actual.get("@iot.id").asLong());
+        Assert.assertEquals(1.5, actual.get("properties").get("weight").asDouble(), 0);
+        Assert.assertEquals(SERVICE_ROOT_URL + "/v1.0/Things(1)/Datastreams", actual.get("Datastreams@iot.navigationLink").asText());
+    }
+
+    @Test
+    public void testEntityRelativeLinks() throws IOException {
+        Query query = createQuery("/Things(1)", false);
+        JsonNode actual = assertRoundTrip(query, createThing(1, query), false);
+        Assert.assertEquals("Things(1)/Datastreams", actual.get("Datastreams@iot.navigationLink").asText());
+    }
+
+    @Test
+    public void testEntitySetNextLink() throws IOException {
+        Query query = createQuery("/Things", true);
+        EntitySet<Thing> things = new EntitySetImpl<>(EntityType.THING);
+        things.add(createThing(1, query));
+        things.add(createThing(2, query));
+        things.setCount(5);
+        things.setNextLink(NEXT_LINK);
+        JsonNode actual = assertRoundTrip(query, things, true);
+        Assert.assertEquals(5, actual.get("@iot.count").asLong());
+        Assert.assertEquals(NEXT_LINK, actual.get("@iot.nextLink").asText());
+        Assert.assertEquals(2, actual.get("value").size());
+        Assert.assertEquals(2, actual.get("value").get(1).get("@iot.id").asLong());
+    }
+
+    @Test
+    public void testDataArray() throws IOException {
+        AggregateResult result = new AggregateResult();
+        AggregateResult.Value value = new AggregateResult.Value(SERVICE_ROOT_URL + "/v1.1/Datastreams(1)", Arrays.asList("phenomenonTime", "count", "avg"));
+        value.getDataArray().add(Arrays.asList(TimeInterval.create(0, 3_600_000), 2L, 1.5));
+        value.getDataArray().add(Arrays.asList(TimeInterval.create(3_600_000, 7_200_000), 1L, 4.0));
+        result.getValue().add(value);
+        result.setNextLink(SERVICE_ROOT_URL + "/v1.1/Rollups?datastream=1&start=1970-01-01T02%3A00Z&top=2");
+        JsonNode actual = assertRoundTrip(null, result, true);
+        JsonNode dataArray = actual.get("value").get(0).get("dataArray");
+        Assert.assertEquals(2, dataArray.size());
+        Assert.assertEquals("1970-01-01T00:00:00.000Z/1970-01-01T01:00:00.000Z", dataArray.get(0).get(0).asText());
+        Assert.assertEquals(4.0, dataArray.get(1).get(2).asDouble(), 0);
+        Assert.assertNotNull(actual.get("@iot.nextLink"));
+    }
+
+}
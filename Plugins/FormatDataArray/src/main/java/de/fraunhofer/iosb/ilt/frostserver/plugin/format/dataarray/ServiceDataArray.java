@@ -32,9 +32,7 @@ import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
 import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
 import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
 import de.fraunhofer.iosb.ilt.frostserver.util.ArrayValueHandlers;
-import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncompleteEntityException;
 import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
-import de.fraunhofer.iosb.ilt.frostserver.util.exception.NoSuchEntityException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -78,6 +76,7 @@ public class ServiceDataArray {
             JsonReader entityParser = new JsonReader(pm.getIdManager().getIdClass());
             List<DataArrayValue> postData = entityParser.parseObject(LIST_OF_DATAARRAYVALUE, request.getContent());
             List<String> selfLinks = new ArrayList<>();
+            List<Observation> observations = new ArrayList<>();
             for (DataArrayValue daValue : postData) {
                 Datastream datastream = daValue.getDatastream();
                 MultiDatastream multiDatastream = daValue.getMultiDatastream();
@@ -85,8 +84,9 @@ public class ServiceDataArray {
                 for (String component : daValue.getComponents()) {
                     handlers.add(ArrayValueHandlers.getHandler(settings, component));
                 }
-                handleDataArrayItems(version, handlers, daValue, datastream, multiDatastream, pm, selfLinks);
+                handleDataArrayItems(handlers, daValue, datastream, multiDatastream, observations, selfLinks);
             }
+            insertObservations(version, pm, observations, selfLinks);
             service.maybeCommitAndClose();
             ResultFormatter formatter = settings.getFormatter(DEFAULT_FORMAT_NAME);
             response.setResultFormatted(formatter.format(null, null, selfLinks, settings.getQueryDefaults().useAbsoluteNavigationLinks()));
@@ -106,8 +106,13 @@ public class ServiceDataArray {
         }
     }
 
-    private void handleDataArrayItems(Version version, List<ArrayValueHandlers.ArrayValueHandler> handlers, DataArrayValue daValue, Datastream datastream, MultiDatastream multiDatastream, PersistenceManager pm, List<String> selfLinks) {
-        final String serviceRootUrl = settings.getQueryDefaults().getServiceRootUrl();
+    /**
+     * Creates the Observations for the items in the given DataArrayValue.
+     * Items that can not be parsed get an error in the list of selfLinks. Items
+     * that can be parsed get a null placeholder, to be filled by
+     * insertObservations.
+     */
+    private void handleDataArrayItems(List<ArrayValueHandlers.ArrayValueHandler> handlers, DataArrayValue daValue, Datastream datastream, MultiDatastream multiDatastream, List<Observation> observations, List<String> selfLinks) {
         int compCount = handlers.size();
         for (List<Object> entry : daValue.getDataArray()) {
             try {
@@ -117,14 +122,35 @@ public class ServiceDataArray {
                 for (int i = 0; i < compCount; i++) {
                     handlers.get(i).handle(entry.get(i), observation);
                 }
-
-                pm.insert(observation);
-                String selfLink = UrlHelper.generateSelfLink(serviceRootUrl, version, observation);
-                selfLinks.add(selfLink);
-            } catch (NoSuchEntityException | IncompleteEntityException | IllegalArgumentException exc) {
+                observations.add(observation);
+                selfLinks.add(null);
+            } catch (IllegalArgumentException exc) {
                 LOGGER.debug("Failed to create entity", exc);
                 selfLinks.add("error " + exc.getMessage());
             }
         }
     }
+
+    /**
+     * Inserts all Observations in one go, and fills the placeholders in the
+     * list of selfLinks.
+     */
+    private void insertObservations(Version version, PersistenceManager pm, List<Observation> observations, List<String> selfLinks) {
+        final String serviceRootUrl = settings.getQueryDefaults().getServiceRootUrl();
+        List<Exception> failures = pm.insert(observations);
+        int obsIdx = 0;
+        for (int i = 0; i < selfLinks.size(); i++) {
+            if (selfLinks.get(i) != null) {
+                continue;
+            }
+            Exception failure = failures.get(obsIdx);
+            if (failure == null) {
+                selfLinks.set(i, UrlHelper.generateSelfLink(serviceRootUrl, version, observations.get(obsIdx)));
+            } else {
+                LOGGER.debug("Failed to create entity", failure);
+                selfLinks.set(i, "error " + failure.getMessage());
+            }
+            obsIdx++;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.rollups;
+
+import de.fraunhofer.iosb.ilt.frostserver.service.PluginService;
+import de.fraunhofer.iosb.ilt.frostserver.service.Service;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
+import de.fraunhofer.iosb.ilt.frostserver.settings.ConfigDefaults;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.Settings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.annotation.DefaultValueBoolean;
+import de.fraunhofer.iosb.ilt.frostserver.util.HttpMethod;
+import static de.fraunhofer.iosb.ilt.frostserver.util.HttpMethod.GET;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Makes the Datastream rollups, maintained by the PostgreSQL persistence
+ * manager when persistence.rollups.enable is set, available at the /Rollups
+ * path.
+ *
+ * @author scf
+ */
+public class PluginRollups implements PluginService, ConfigDefaults {
+
+    @DefaultValueBoolean(false)
+    public static final String TAG_ENABLE_ROLLUPS = "rollups.enable";
+
+    private CoreSettings settings;
+
+    @Override
+    public void init(CoreSettings settings) {
+        this.settings = settings;
+        Settings pluginSettings = settings.getPluginSettings();
+        boolean enabled = pluginSettings.getBoolean(TAG_ENABLE_ROLLUPS, getClass());
+        if (enabled) {
+            settings.getPluginManager().registerPlugin(this);
+        }
+    }
+
+    @Override
+    public Collection<String> getUrlPaths() {
+        return Arrays.asList(ServiceRollups.PATH_GET_ROLLUPS);
+    }
+
+    @Override
+    public Collection<String> getRequestTypes() {
+        return Arrays.asList(ServiceRollups.REQUEST_TYPE_GET_ROLLUPS);
+    }
+
+    @Override
+    public String getRequestTypeFor(String path, HttpMethod method) {
+        if (GET.equals(method) && path.equals(ServiceRollups.PATH_GET_ROLLUPS)) {
+            return ServiceRollups.REQUEST_TYPE_GET_ROLLUPS;
+        }
+        throw new IllegalArgumentException("Method " + method + "not valid for path " + path);
+    }
+
+    @Override
+    public ServiceResponse execute(Service service, ServiceRequest request) {
+        return new ServiceRollups(settings).executeGetRollups(service, request);
+    }
+}
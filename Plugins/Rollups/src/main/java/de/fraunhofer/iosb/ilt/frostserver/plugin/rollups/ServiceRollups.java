@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.rollups;
+
+import static de.fraunhofer.iosb.ilt.frostserver.formatter.PluginResultFormatDefault.DEFAULT_FORMAT_NAME;
+import de.fraunhofer.iosb.ilt.frostserver.formatter.ResultFormatter;
+import de.fraunhofer.iosb.ilt.frostserver.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostserver.model.core.Id;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.AggregateResult;
+import de.fraunhofer.iosb.ilt.frostserver.model.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.frostserver.path.UrlHelper;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.DatastreamRollups;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.PostgresPersistenceManager;
+import de.fraunhofer.iosb.ilt.frostserver.service.Service;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.util.StringHelper;
+import de.fraunhofer.iosb.ilt.frostserver.util.exception.IncorrectRequestException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import org.jooq.Cursor;
+import org.jooq.Record;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles the service requests for the Rollups plugin. This is the request to
+ * /Rollups.
+ *
+ * The parameters are the id of the Datastream (datastream), the bucket size
+ * (unit: minute, hour or day, default hour), the time range (start and end,
+ * ISO 8601 date-times, optional) and the maximum number of buckets (top).
+ *
+ * @author scf
+ */
+public class ServiceRollups {
+
+    /**
+     * The path for the Rollups request type.
+     */
+    public static final String PATH_GET_ROLLUPS = "/Rollups";
+
+    /**
+     * The RequestType definition for the Rollups request type.
+     */
+    public static final String REQUEST_TYPE_GET_ROLLUPS = "getRollups";
+
+    public static final String PARAM_DATASTREAM = "datastream";
+    public static final String PARAM_UNIT = "unit";
+    public static final String PARAM_START = "start";
+    public static final String PARAM_END = "end";
+    public static final String PARAM_TOP = "top";
+
+    /**
+     * The names of the columns in the dataArray.
+     */
+    public static final List<String> COMPONENTS = Collections.unmodifiableList(Arrays.asList("phenomenonTime", "count", "min", "max", "avg", "last"));
+
+    private static final String DEFAULT_UNIT = "hour";
+    private static final long MILLIS_PER_MINUTE = 60_000L;
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceRollups.class);
+
+    private final CoreSettings settings;
+
+    public ServiceRollups(CoreSettings settings) {
+        this.settings = settings;
+    }
+
+    public <T> ServiceResponse<T> executeGetRollups(final Service service, final ServiceRequest request) {
+        final ServiceResponse<T> response = new ServiceResponse<>();
+        final PersistenceManager pm = service.getPm();
+        if (!(pm instanceof PostgresPersistenceManager)) {
+            service.maybeRollbackAndClose();
+            return Service.errorResponse(response, 501, "Rollups are only available with the PostgreSQL persistence managers.");
+        }
+        try {
+            String datastreamParam = getParam(request, PARAM_DATASTREAM, null);
+            if (datastreamParam == null) {
+                return Service.errorResponse(response, 400, "Parameter " + PARAM_DATASTREAM + " is required.");
+            }
+            Id datastreamId = pm.getIdManager().parseId(datastreamParam);
+            String unit = getParam(request, PARAM_UNIT, DEFAULT_UNIT).toLowerCase(Locale.ROOT);
+            OffsetDateTime start = parseTime(getParam(request, PARAM_START, null));
+            OffsetDateTime end = parseTime(getParam(request, PARAM_END, null));
+            int top = Math.min(
+                    Integer.parseInt(getParam(request, PARAM_TOP, Integer.toString(settings.getQueryDefaults().getTopDefault()))),
+                    settings.getQueryDefaults().getTopMax());
+            if (top < 1) {
+                // With top=0 the nextLink would repeat the same start, forever.
+                return Service.errorResponse(response, 400, "Parameter " + PARAM_TOP + " must be at least 1.");
+            }
+
+            final String serviceRootUrl = settings.getQueryDefaults().getServiceRootUrl();
+            String datastreamLink = UrlHelper.generateSelfLink(serviceRootUrl, request.getVersion(), EntityType.DATASTREAM, datastreamId);
+            AggregateResult result = new AggregateResult();
+            AggregateResult.Value value = new AggregateResult.Value(datastreamLink, COMPONENTS);
+            result.getValue().add(value);
+
+            PostgresPersistenceManager<?> ppm = (PostgresPersistenceManager<?>) pm;
+            long bucketLength = getBucketLength(unit);
+            try (Cursor<? extends Record> rows = DatastreamRollups.buildQuery(ppm.getDslContext(), datastreamId.asBasicPersistenceType(), unit, start, end, top + 1).fetchLazy()) {
+                while (rows.hasNext()) {
+                    Record row = rows.fetchNext();
+                    long bucketStart = row.get(0, OffsetDateTime.class).toInstant().toEpochMilli();
+                    if (value.getDataArray().size() >= top) {
+                        result.setNextLink(generateNextLink(serviceRootUrl, request, datastreamParam, unit, row.get(0, OffsetDateTime.class), end, top));
+                        break;
+                    }
+                    List<Object> dataRow = new ArrayList<>(COMPONENTS.size());
+                    dataRow.add(TimeInterval.create(bucketStart, bucketStart + bucketLength));
+                    for (int idx = 1; idx < COMPONENTS.size(); idx++) {
+                        dataRow.add(row.get(idx));
+                    }
+                    value.getDataArray().add(dataRow);
+                }
+            }
+            service.maybeCommitAndClose();
+            ResultFormatter formatter = settings.getFormatter(DEFAULT_FORMAT_NAME);
+            response.setResultFormatted(formatter.format(null, null, result, settings.getQueryDefaults().useAbsoluteNavigationLinks()));
+            response.setContentType(formatter.getContentType());
+            return Service.successResponse(response, 200, "OK");
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            pm.rollbackAndClose();
+            return Service.errorResponse(response, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to load rollups.", e);
+            pm.rollbackAndClose();
+            return Service.errorResponse(response, 500, "Failed to load rollups. See logs for details.");
+        } catch (IncorrectRequestException ex) {
+            LOGGER.error("Formatter not available.", ex);
+            return Service.errorResponse(response, 500, "Failed to instantiate formatter");
+        } finally {
+            service.maybeRollbackAndClose();
+        }
+    }
+
+    private static long getBucketLength(String unit) {
+        switch (unit) {
+            case "minute":
+                return MILLIS_PER_MINUTE;
+
+            case "hour":
+                return 60 * MILLIS_PER_MINUTE;
+
+            case "day":
+                return 24 * 60 * MILLIS_PER_MINUTE;
+
+            default:
+                throw new IllegalArgumentException("Unknown rollup unit: " + unit + ", should be one of " + DatastreamRollups.UNITS);
+        }
+    }
+
+    private static String generateNextLink(String serviceRootUrl, ServiceRequest request, String datastream, String unit, OffsetDateTime nextStart, OffsetDateTime end, int top) {
+        StringBuilder nextLink = new StringBuilder(serviceRootUrl)
+                .append('/').append(request.getVersion().urlPart)
+                .append(PATH_GET_ROLLUPS)
+                .append('?').append(PARAM_DATASTREAM).append('=').append(StringHelper.urlEncode(datastream))
+                .append('&').append(PARAM_UNIT).append('=').append(unit)
+                .append('&').append(PARAM_START).append('=').append(StringHelper.urlEncode(nextStart.toString()));
+        if (end != null) {
+            nextLink.append('&').append(PARAM_END).append('=').append(StringHelper.urlEncode(end.toString()));
+        }
+        nextLink.append('&').append(PARAM_TOP).append('=').append(top);
+        return nextLink.toString();
+    }
+
+    private static OffsetDateTime parseTime(String value) {
+        if (value == null) {
+            return null;
+        }
+        return OffsetDateTime.parse(value);
+    }
+
+    private static String getParam(ServiceRequest request, String name, String dflt) {
+        String[] values = request.getParameterMap().get(name);
+        if (values == null || values.length == 0 || values[0] == null || values[0].isEmpty()) {
+            return dflt;
+        }
+        return values[0];
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2020 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.frostserver.plugin.rollups;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.frostserver.messagebus.MessageBusFactory;
+import de.fraunhofer.iosb.ilt.frostserver.path.Version;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.PersistenceManager;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.DatastreamRollups;
+import de.fraunhofer.iosb.ilt.frostserver.persistence.pgjooq.imp.PostgresPersistenceManagerLong;
+import de.fraunhofer.iosb.ilt.frostserver.service.Service;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequest;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceRequestBuilder;
+import de.fraunhofer.iosb.ilt.frostserver.service.ServiceResponse;
+import de.fraunhofer.iosb.ilt.frostserver.settings.CoreSettings;
+import de.fraunhofer.iosb.ilt.frostserver.settings.PersistenceSettings;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockExecuteContext;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the parameter handling and paging of the Rollups requests, against a
+ * mock database with six hour buckets of Datastream 1.
+ *
+ * @author scf
+ */
+public class ServiceRollupsTest {
+
+    private static final String SERVICE_ROOT_URL = "http://localhost:8080/FROST-Server";
+    private static final int MAX_TOP = 50;
+    private static final OffsetDateTime FIRST_BUCKET = OffsetDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final int BUCKET_COUNT = 6;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static CoreSettings settings;
+
+    private final List<List<Object>> queries = new ArrayList<>();
+    private MockService service;
+
+    @BeforeClass
+    public static void initClass() {
+        Properties properties = new Properties();
+        properties.put(CoreSettings.TAG_SERVICE_ROOT_URL, SERVICE_ROOT_URL);
+        properties.put(CoreSettings.TAG_TEMP_PATH, System.getProperty("java.io.tmpdir"));
+        properties.put(CoreSettings.TAG_MAX_TOP, Integer.toString(MAX_TOP));
+        properties.put(CoreSettings.PREFIX_PERSISTENCE + PersistenceSettings.TAG_IMPLEMENTATION_CLASS, PostgresPersistenceManagerLong.class.getName());
+        settings = new CoreSettings(properties);
+        MessageBusFactory.init(settings);
+    }
+
+    @Before
+    public void init() {
+        queries.clear();
+        final DSLContext dslContext = DSL.using(new MockConnection(ctx -> new MockResult[]{execute(ctx)}), SQLDialect.POSTGRES);
+        PostgresPersistenceManagerLong pm = new PostgresPersistenceManagerLong() {
+            @Override
+            public DSLContext getDslContext() {
+                return dslContext;
+            }
+        };
+        pm.init(settings);
+        service = new MockService(settings, pm);
+    }
+
+    /**
+     * Answers the rollup query from the hour buckets, applying the start, end
+     * and limit the way the SQL does.
+     */
+    private MockResult execute(MockExecuteContext ctx) {
+        String sql = ctx.sql();
+        List<Object> bindings = new ArrayList<>();
+        for (Object binding : ctx.bindings()) {
+            bindings.add(binding);
+        }
+        queries.add(bindings);
+        Assert.assertTrue(sql, sql.contains("from \"DATASTREAM_ROLLUPS\""));
+        Assert.assertEquals(1L, ((Number) bindings.get(0)).longValue());
+        Assert.assertEquals("hour", bindings.get(1));
+        int next = 2;
+        OffsetDateTime start = null;
+        OffsetDateTime end = null;
+        if (sql.contains("frost_rollup_bucket")) {
+            start = toOffsetDateTime(bindings.get(next++)).truncatedTo(ChronoUnit.HOURS);
+        }
+        if (sql.contains("\"BUCKET_START\" < ")) {
+            end = toOffsetDateTime(bindings.get(next++));
+        }
+        int limit = ((Number) bindings.get(next)).intValue();
+
+        DSLContext dslContext = DSL.using(SQLDialect.POSTGRES);
+        Field<?>[] fields = {
+            DatastreamRollups.COL_BUCKET_START,
+            DatastreamRollups.COL_RESULT_COUNT,
+            DatastreamRollups.COL_RESULT_MIN,
+            DatastreamRollups.COL_RESULT_MAX,
+            DatastreamRollups.COL_RESULT_SUM,
+            DatastreamRollups.COL_LAST_VALUE
+        };
+        Result<Record> result = dslContext.newResult(fields);
+        for (int i = 0; i < BUCKET_COUNT && result.size() < limit; i++) {
+            OffsetDateTime bucket = FIRST_BUCKET.plusHours(i);
+            if ((start != null && bucket.isBefore(start)) || (end != null && !bucket.isBefore(end))) {
+                continue;
+            }
+            Record record = dslContext.newRecord(fields);
+            record.set(DatastreamRollups.COL_BUCKET_START, bucket);
+            record.set(DatastreamRollups.COL_RESULT_COUNT, i + 1L);
+            record.set(DatastreamRollups.COL_RESULT_MIN, (double) i);
+            record.set(DatastreamRollups.COL_RESULT_MAX, i + 1.0);
+            // The query returns the average in the place of the sum.
+            record.set(DatastreamRollups.COL_RESULT_SUM, i + 0.5);
+            record.set(DatastreamRollups.COL_LAST_VALUE, i + 1.0);
+            result.add(record);
+        }
+        return new MockResult(result.size(), result);
+    }
+
+    private static OffsetDateTime toOffsetDateTime(Object value) {
+        if (value instanceof OffsetDateTime) {
+            return (OffsetDateTime) value;
+        }
+        // Bound as text, like 2020-01-01 01:30:00+00:00.
+        return OffsetDateTime.parse(value.toString().replace(' ', 'T'));
+    }
+
+    private ServiceResponse<Object> get(String... parameters) {
+        Map<String, String[]> parameterMap = new HashMap<>();
+        for (int i = 0; i < parameters.length; i += 2) {
+            parameterMap.put(parameters[i], new String[]{parameters[i + 1]});
+        }
+        return get(parameterMap);
+    }
+
+    private ServiceResponse<Object> get(Map<String, String[]> parameterMap) {
+        ServiceRequest request = new ServiceRequestBuilder(Version.V_1_1)
+                .withRequestType(ServiceRollups.REQUEST_TYPE_GET_ROLLUPS)
+                .withUrlPath(ServiceRollups.PATH_GET_ROLLUPS)
+                .withParameterMap(parameterMap)
+                .build();
+        return new ServiceRollups(settings).executeGetRollups(service, request);
+    }
+
+    private static Map<String, String[]> parseNextLink(String nextLink) throws UnsupportedEncodingException {
+        String prefix = SERVICE_ROOT_URL + "/v1.1" + ServiceRollups.PATH_GET_ROLLUPS + "?";
+        Assert.assertTrue(nextLink, nextLink.startsWith(prefix));
+        Map<String, String[]> parameterMap = new HashMap<>();
+        for (String parameter : nextLink.substring(prefix.length()).split("&")) {
+            String[] nameValue = parameter.split("=", 2);
+            parameterMap.put(nameValue[0], new String[]{URLDecoder.decode(nameValue[1], "UTF-8")});
+        }
+        return parameterMap;
+    }
+
+    @Test
+    public void testDatastreamRequired() {
+        ServiceResponse<Object> response = get(ServiceRollups.PARAM_UNIT, "hour");
+        Assert.assertEquals(400, response.getCode());
+        Assert.assertTrue(queries.isEmpty());
+    }
+
+    @Test
+    public void testUnknownUnit() {
+        ServiceResponse<Object> response = get(
+                ServiceRollups.PARAM_DATASTREAM, "1",
+                ServiceRollups.PARAM_UNIT, "week");
+        Assert.assertEquals(400, response.getCode());
+        Assert.assertTrue(response.getMessage(), response.getMessage().contains("week"));
+        Assert.assertTrue(queries.isEmpty());
+    }
+
+    @Test
+    public void testTopBelowOne() {
+        for (String top : new String[]{"0", "-1"}) {
+            ServiceResponse<Object> response = get(
+                    ServiceRollups.PARAM_DATASTREAM, "1",
+                    ServiceRollups.PARAM_TOP, top);
+            Assert.assertEquals("top=" + top, 400, response.getCode());
+        }
+        Assert.assertTrue(queries.isEmpty());
+    }
+
+    @Test
+    public void testTopNotANumber() {
+        ServiceResponse<Object> response = get(
+                ServiceRollups.PARAM_DATASTREAM, "1",
+                ServiceRollups.PARAM_TOP, "ten");
+        Assert.assertEquals(400, response.getCode());
+    }
+
+    @Test
+    public void testTopLimitedToMaxTop() {
+        ServiceResponse<Object> response = get(
+                ServiceRollups.PARAM_DATASTREAM, "1",
+                ServiceRollups.PARAM_TOP, Integer.toString(MAX_TOP * 10));
+        Assert.assertEquals(response.getMessage(), 200, response.getCode());
+        Assert.assertEquals(1, queries.size());
+        List<Object> bindings = queries.get(0);
+        // One more than top, to find out if there is a next page.
+        Assert.assertEquals(MAX_TOP + 1, ((Number) bindings.get(bindings.size() - 1)).intValue());
+    }
+
+    @Test
+    public void testInvalidTime() {
+        ServiceResponse<Object> response = get(
+                ServiceRollups.PARAM_DATASTREAM, "1",
+                ServiceRollups.PARAM_START, "yesterday");
+        Assert.assertEquals(400, response.getCode());
+        Assert.assertTrue(queries.isEmpty());
+    }
+
+    @Test
+    public void testStartAndEnd() throws IOException {
+        ServiceResponse<Object> response = get(
+                ServiceRollups.PARAM_DATASTREAM, "1",
+                ServiceRollups.PARAM_START, "2020-01-01T01:30:00Z",
+                ServiceRollups.PARAM_END, "2020-01-01T04:00:00Z");
+        Assert.assertEquals(response.getMessage(), 200, response.getCode());
+        JsonNode result = MAPPER.readTree(response.getResultFormatted());
+        Assert.assertNull(result.get("@iot.nextLink"));
+        JsonNode value = result.get("value").get(0);
+        Assert.assertEquals(SERVICE_ROOT_URL + "/v1.1/Datastreams(1)", value.get("Datastream@iot.navigationLink").asText());
+        Assert.assertEquals(ServiceRollups.COMPONENTS.size(), value.get("components").size());
+        JsonNode dataArray = value.get("dataArray");
+        // The bucket containing the start is included, the end is exclusive.
+        Assert.assertEquals(3, dataArray.size());
+        Assert.assertEquals("2020-01-01T01:00:00.000Z/2020-01-01T02:00:00.000Z", dataArray.get(0).get(0).asText());
+        Assert.assertEquals("2020-01-01T03:00:00.000Z/2020-01-01T04:00:00.000Z", dataArray.get(2).get(0).asText());
+        Assert.assertEquals(2, dataArray.get(0).get(1).asLong());
+        Assert.assertEquals(1.5, dataArray.get(0).get(4).asDouble(), 0.0001);
+    }
+
+    @Test
+    public void testNextLinkPaging() throws IOException {
+        List<String> buckets = new ArrayList<>();
+        Map<String, String[]> parameterMap = new HashMap<>();
+        parameterMap.put(ServiceRollups.PARAM_DATASTREAM, new String[]{"1"});
+        parameterMap.put(ServiceRollups.PARAM_TOP, new String[]{"4"});
+        int pages = 0;
+        while (parameterMap != null) {
+            pages++;
+            Assert.assertTrue("Paging does not end.", pages <= BUCKET_COUNT);
+            ServiceResponse<Object> response = get(parameterMap);
+            Assert.assertEquals(response.getMessage(), 200, response.getCode());
+            JsonNode result = MAPPER.readTree(response.getResultFormatted());
+            for (JsonNode row : result.get("value").get(0).get("dataArray")) {
+                buckets.add(row.get(0).asText());
+            }
+            JsonNode nextLink = result.get("@iot.nextLink");
+            parameterMap = nextLink == null ? null : parseNextLink(nextLink.asText());
+        }
+        Assert.assertEquals(2, pages);
+        Assert.assertEquals(BUCKET_COUNT, buckets.size());
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            Assert.assertTrue(buckets.get(i), buckets.get(i).startsWith(FIRST_BUCKET.plusHours(i).toLocalDate() + "T0" + i + ":00:00"));
+        }
+    }
+
+    /**
+     * A Service that uses the given PersistenceManager.
+     */
+    private static class MockService extends Service {
+
+        private final PersistenceManager pm;
+
+        public MockService(CoreSettings settings, PersistenceManager pm) {
+            super(settings);
+            this.pm = pm;
+        }
+
+        @Override
+        public PersistenceManager getPm() {
+            return pm;
+        }
+    }
+}